@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs Samba benchmarks once per configured thread count with GC and allocation 
+ * profiling enabled (<code>gc.alloc.rate.norm</code> reports allocated bytes per operation).
+ * 
+ * Thread counts are given by <code>samba.benchmark.threads</code> system property 
+ * as comma separated list (default is <code>1,&lt;available processors&gt;</code>). 
+ * All other arguments are passed to JMH as is, 
+ * for example <code>-p cacheType=TIERED -p mutatorRate=100 get</code>.
+ */
+public final class SambaBenchmarkRunner {
+
+    private SambaBenchmarkRunner() {
+        
+    }
+    
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        String threads = 
+                System.getProperty(
+                        "samba.benchmark.threads", 
+                        "1," + Runtime.getRuntime().availableProcessors());
+        for (String threadCount : threads.split(",")) {
+            ChainedOptionsBuilder optionsBuilder = 
+                    new OptionsBuilder().
+                            parent(commandLineOptions).
+                            threads(Integer.parseInt(threadCount.trim())).
+                            addProfiler(GCProfiler.class);
+            if (commandLineOptions.getIncludes().isEmpty()) {
+                optionsBuilder.include(SambaFieldBenchmark.class.getSimpleName());
+                optionsBuilder.include(SambaNearCacheBenchmark.class.getSimpleName());
+                optionsBuilder.include(SambaSerializationBenchmark.class.getSimpleName());
+            }
+            new Runner(optionsBuilder.build()).run();
+        }
+    }
+    
+}
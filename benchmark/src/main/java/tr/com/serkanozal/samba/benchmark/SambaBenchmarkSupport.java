@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache;
+import tr.com.serkanozal.samba.cache.impl.SambaLocalCache;
+import tr.com.serkanozal.samba.cache.impl.SambaTieredCache;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStore;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreType;
+import tr.com.serkanozal.samba.cache.store.impl.SambaSharedFileGlobalStore;
+import tr.com.serkanozal.samba.dynamodb.InMemoryDynamoDB;
+
+/**
+ * Creates caches for benchmarks. Global and tiered caches are backed by 
+ * the in-memory DynamoDB stand-in or by a shared file store, 
+ * so benchmarks don't need network access and measure Samba's own overhead on the hot paths.
+ */
+final class SambaBenchmarkSupport {
+
+    private SambaBenchmarkSupport() {
+        
+    }
+    
+    static File createStoreFile() throws IOException {
+        File storeFile = File.createTempFile("samba-benchmark-", ".samba");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+        return storeFile;
+    }
+    
+    static SambaCache createCache(SambaCacheType cacheType, SambaGlobalStoreType storeType, 
+                                  InMemoryDynamoDB dynamoDB, File storeFile) {
+        switch (cacheType) {
+            case LOCAL:
+                return new SambaLocalCache();
+            case GLOBAL:
+                if (storeType == SambaGlobalStoreType.DYNAMODB) {
+                    return new SambaGlobalCache(dynamoDB, dynamoDB.getStreams());
+                } else {
+                    return new SambaGlobalCache(createSharedFileStore(storeFile));
+                }
+            case TIERED:
+                if (storeType == SambaGlobalStoreType.DYNAMODB) {
+                    return new SambaTieredCache(dynamoDB, dynamoDB.getStreams());
+                } else {
+                    return new SambaTieredCache(createSharedFileStore(storeFile));
+                }
+            default:
+                throw new IllegalArgumentException("Unknown cache type: " + cacheType);
+        }
+    }
+    
+    private static SambaGlobalStore createSharedFileStore(File storeFile) {
+        return new SambaSharedFileGlobalStore(storeFile, 4096, 64, 1024, 65536, 100);
+    }
+    
+}
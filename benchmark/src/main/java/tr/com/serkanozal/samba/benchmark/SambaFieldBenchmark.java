@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tr.com.serkanozal.samba.SambaField;
+import tr.com.serkanozal.samba.SambaFieldProcessor;
+import tr.com.serkanozal.samba.SambaValueFactory;
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreType;
+import tr.com.serkanozal.samba.dynamodb.InMemoryDynamoDB;
+
+/**
+ * JMH benchmarks for {@link SambaField} operations over all cache types.
+ * 
+ * A background mutator updates random fields through another cache instance 
+ * (simulating another container) at <code>mutatorRate</code> updates per second, 
+ * so near-cache invalidations of tiered cache are also exercised.
+ * 
+ * Cache type is given with the type of its global store as <code>&lt;cacheType&gt;[:&lt;globalStore&gt;]</code> 
+ * (DynamoDB by default), so local cache is not run once for each global store.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SambaFieldBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class FieldState {
+        
+        @Param({ "LOCAL", "GLOBAL", "GLOBAL:SHARED_FILE", "TIERED", "TIERED:SHARED_FILE" })
+        public String cacheType;
+        
+        @Param({ "64" })
+        public int fieldCount;
+        
+        // Updates per second done by the background mutator
+        @Param({ "0", "10" })
+        public int mutatorRate;
+        
+        private InMemoryDynamoDB dynamoDB;
+        private File storeFile;
+        private SambaCache cache;
+        private SambaCache mutatorCache;
+        // Gives distinct fields to the threads creating their values
+        private final AtomicInteger creatorCount = new AtomicInteger();
+        private SambaField<String>[] fields;
+        private String[] values;
+        private String[] otherValues;
+        private volatile boolean stopMutator;
+        private Thread mutator;
+        
+        @SuppressWarnings("unchecked")
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            String[] cacheTypeAndGlobalStore = cacheType.split(":");
+            SambaCacheType type = SambaCacheType.valueOf(cacheTypeAndGlobalStore[0]);
+            SambaGlobalStoreType globalStore = 
+                    cacheTypeAndGlobalStore.length > 1 
+                        ? SambaGlobalStoreType.valueOf(cacheTypeAndGlobalStore[1]) 
+                        : SambaGlobalStoreType.DYNAMODB;
+            dynamoDB = new InMemoryDynamoDB();
+            storeFile = SambaBenchmarkSupport.createStoreFile();
+            cache = SambaBenchmarkSupport.createCache(type, globalStore, dynamoDB, storeFile);
+            mutatorCache = 
+                    type == SambaCacheType.LOCAL 
+                        ? cache 
+                        : SambaBenchmarkSupport.createCache(type, globalStore, dynamoDB, storeFile);
+            fields = new SambaField[fieldCount];
+            values = new String[fieldCount];
+            otherValues = new String[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                fields[i] = new SambaField<String>("SambaField-" + i, cache);
+                values[i] = "Hello Samba " + i;
+                otherValues[i] = "Good bye Samba " + i;
+                fields[i].set(values[i]);
+            }
+            if (mutatorRate > 0) {
+                startMutator();
+            }
+        }
+        
+        private void startMutator() {
+            final SambaField<String>[] mutatorFields = createFields(mutatorCache);
+            final long sleepMillis = Math.max(1, 1000 / mutatorRate);
+            stopMutator = false;
+            mutator = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    while (!stopMutator) {
+                        int fieldNo = random.nextInt(mutatorFields.length);
+                        mutatorFields[fieldNo].set(
+                                random.nextBoolean() ? values[fieldNo] : otherValues[fieldNo]);
+                        try {
+                            sleep(sleepMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+            mutator.setDaemon(true);
+            mutator.start();
+        }
+        
+        @SuppressWarnings("unchecked")
+        private SambaField<String>[] createFields(SambaCache cache) {
+            SambaField<String>[] fields = new SambaField[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                fields[i] = new SambaField<String>("SambaField-" + i, cache);
+            }
+            return fields;
+        }
+        
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            if (mutator != null) {
+                stopMutator = true;
+                mutator.interrupt();
+                mutator.join();
+                mutator = null;
+            }
+        }
+        
+    }
+    
+    @State(Scope.Thread)
+    public static class ThreadState {
+        
+        private int index;
+        private boolean flip;
+        private SambaFieldProcessor<String> processor;
+        
+        @Setup(Level.Trial)
+        public void setup(final FieldState fieldState) {
+            index = ThreadLocalRandom.current().nextInt(fieldState.fieldCount);
+            processor = new SambaFieldProcessor<String>() {
+                @Override
+                public String process(String currentValue) {
+                    return fieldState.values[index].equals(currentValue) 
+                            ? fieldState.otherValues[index] 
+                            : fieldState.values[index];
+                }
+            };
+        }
+        
+        private int nextIndex(FieldState fieldState) {
+            int i = index + 1;
+            if (i == fieldState.fieldCount) {
+                i = 0;
+            }
+            index = i;
+            return i;
+        }
+        
+        private String nextValue(FieldState fieldState, int i) {
+            flip = !flip;
+            return flip ? fieldState.otherValues[i] : fieldState.values[i];
+        }
+        
+    }
+    
+    /**
+     * Fields of the thread which are cleared before each invocation, 
+     * so their values are created by the factory while the fields read by the other benchmarks are always set.
+     */
+    @State(Scope.Thread)
+    public static class CreationState {
+        
+        private SambaField<String>[] fields;
+        private String[] values;
+        private int index;
+        private SambaValueFactory<String> factory;
+        
+        @SuppressWarnings("unchecked")
+        @Setup(Level.Trial)
+        public void setup(FieldState fieldState) {
+            int creatorNo = fieldState.creatorCount.getAndIncrement();
+            fields = new SambaField[fieldState.fieldCount];
+            values = new String[fieldState.fieldCount];
+            for (int i = 0; i < fieldState.fieldCount; i++) {
+                fields[i] = new SambaField<String>("SambaCreatedField-" + creatorNo + "-" + i, fieldState.cache);
+                values[i] = "Hello Samba " + creatorNo + "-" + i;
+            }
+            factory = new SambaValueFactory<String>() {
+                @Override
+                public String create() {
+                    return values[index];
+                }
+                
+                @Override
+                public void destroy(String value) {
+                }
+            };
+        }
+        
+        @Setup(Level.Invocation)
+        public void clearNextField() {
+            int i = index + 1;
+            if (i == fields.length) {
+                i = 0;
+            }
+            index = i;
+            fields[i].clear();
+        }
+        
+    }
+    
+    @State(Scope.Benchmark)
+    public static class ReadWriteState {
+        
+        // Percentage of reads
+        @Param({ "100", "90", "50" })
+        public int readRatio;
+        
+    }
+    
+    @Benchmark
+    public String get(FieldState fieldState, ThreadState threadState) {
+        return fieldState.fields[threadState.nextIndex(fieldState)].get();
+    }
+    
+    @Benchmark
+    public String getAsync(FieldState fieldState, ThreadState threadState) {
+        return fieldState.fields[threadState.nextIndex(fieldState)].getAsync().join();
+    }
+    
+    @Benchmark
+    public List<Object> getAll(FieldState fieldState) {
+        return SambaField.getAll(fieldState.fields);
+    }
+    
+    @Benchmark
+    public void set(FieldState fieldState, ThreadState threadState) {
+        int i = threadState.nextIndex(fieldState);
+        fieldState.fields[i].set(threadState.nextValue(fieldState, i));
+    }
+    
+    @Benchmark
+    public boolean compareAndSet(FieldState fieldState, ThreadState threadState) {
+        int i = threadState.nextIndex(fieldState);
+        return fieldState.fields[i].compareAndSet(threadState.nextValue(fieldState, i));
+    }
+    
+    @Benchmark
+    public String processAtomically(FieldState fieldState, ThreadState threadState) {
+        return fieldState.fields[threadState.nextIndex(fieldState)].processAtomically(threadState.processor);
+    }
+    
+    // Includes the creation of the value, since the field has been cleared before the invocation
+    @Benchmark
+    public String getOrCreate(FieldState fieldState, CreationState creationState) {
+        return creationState.fields[creationState.index].getOrCreate(creationState.factory);
+    }
+    
+    @Benchmark
+    public Object readWrite(FieldState fieldState, ThreadState threadState, ReadWriteState readWriteState) {
+        int i = threadState.nextIndex(fieldState);
+        if (ThreadLocalRandom.current().nextInt(100) < readWriteState.readRatio) {
+            return fieldState.fields[i].get();
+        } else {
+            fieldState.fields[i].set(threadState.nextValue(fieldState, i));
+            return null;
+        }
+    }
+    
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tr.com.serkanozal.samba.cache.SambaNearCachePropagationMode;
+import tr.com.serkanozal.samba.cache.impl.SambaTieredCache;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
+import tr.com.serkanozal.samba.cache.store.impl.SambaSharedFileGlobalStore;
+
+/**
+ * JMH benchmark for near-cache population of tiered cache under contention.
+ *
+ * All threads read the same small set of keys while a background mutator updates them through
+ * another cache instance (simulating another container) at <code>mutatorRate</code> updates per second,
+ * so invalidated keys are re-populated by concurrent readers. Reads falling through to the global store
+ * are reported by the <code>globalReads</code> counter, which should stay close to the mutator rate
+ * regardless of the thread count when readers can populate the near-cache concurrently.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SambaNearCacheBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class CacheState {
+
+        @Param({ "INVALIDATE", "UPDATE" })
+        public SambaNearCachePropagationMode propagationMode;
+
+        @Param({ "16" })
+        public int keyCount;
+
+        // Updates per second done by the background mutator
+        @Param({ "0", "100" })
+        public int mutatorRate;
+
+        private File storeFile;
+        private ReadCountingStore store;
+        private SambaTieredCache cache;
+        private SambaTieredCache mutatorCache;
+        private String[] keys;
+        private volatile boolean stopMutator;
+        private Thread mutator;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            storeFile = SambaBenchmarkSupport.createStoreFile();
+            store = new ReadCountingStore(storeFile);
+            cache = new SambaTieredCache(store, propagationMode);
+            mutatorCache = new SambaTieredCache(new ReadCountingStore(storeFile), propagationMode);
+            keys = new String[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = "SambaNearCacheKey-" + i;
+                mutatorCache.put(keys[i], "Hello Samba " + i);
+            }
+            if (mutatorRate > 0) {
+                startMutator();
+            }
+        }
+
+        private void startMutator() {
+            final long sleepMillis = Math.max(1, 1000 / mutatorRate);
+            stopMutator = false;
+            mutator = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    while (!stopMutator) {
+                        int keyNo = random.nextInt(keys.length);
+                        mutatorCache.put(keys[keyNo], "Hello Samba " + keyNo + "-" + random.nextInt());
+                        try {
+                            sleep(sleepMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+            mutator.setDaemon(true);
+            mutator.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            if (mutator != null) {
+                stopMutator = true;
+                mutator.interrupt();
+                mutator.join();
+                mutator = null;
+            }
+        }
+
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ThreadState {
+
+        // Reads of this thread which have missed the near-cache
+        public long globalReads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            globalReads = 0;
+        }
+
+    }
+
+    @Benchmark
+    public Object get(CacheState cacheState, ThreadState threadState) {
+        String key = cacheState.keys[ThreadLocalRandom.current().nextInt(cacheState.keyCount)];
+        long readCount = cacheState.store.getReadCount();
+        Object value = cacheState.cache.get(key);
+        threadState.globalReads += cacheState.store.getReadCount() - readCount;
+        return value;
+    }
+
+    /**
+     * Shared file store which counts the reads done by the current thread.
+     */
+    private static class ReadCountingStore extends SambaSharedFileGlobalStore {
+
+        private final ThreadLocal<long[]> readCounts = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+
+        private ReadCountingStore(File storeFile) {
+            super(storeFile, 4096, 64, 1024, 65536, 100);
+        }
+
+        private long getReadCount() {
+            return readCounts.get()[0];
+        }
+
+        @Override
+        public SambaGlobalStoreEntry get(String key) {
+            readCounts.get()[0]++;
+            return super.get(key);
+        }
+
+        @Override
+        public Map<String, SambaGlobalStoreEntry> getAll(Collection<String> keys) {
+            readCounts.get()[0] += keys.size();
+            return super.getAll(keys);
+        }
+
+    }
+
+}
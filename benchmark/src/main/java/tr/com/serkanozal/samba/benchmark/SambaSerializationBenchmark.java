@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+import tr.com.serkanozal.samba.cache.impl.SambaKryoSerializer;
+
+/**
+ * JMH benchmark for allocations of the serialization paths of global and tiered caches.
+ *
+ * <code>*Array</code> benchmarks go through byte arrays, so every value is copied into a new array
+ * before it is written and every received buffer is copied into a new array before it is read.
+ * <code>*Buffer</code> benchmarks write values into a reused buffer (as the pooled buffers of global cache)
+ * and read them from the received buffers directly, so <code>gc.alloc.rate.norm</code>
+ * should be zero for writes and only the decoded value itself for reads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SambaSerializationBenchmark {
+
+    public enum ValueType {
+
+        STRING,
+        OBJECT
+
+    }
+
+    public static class Payload {
+
+        private long id;
+        private String name;
+        private int[] values;
+
+    }
+
+    @State(Scope.Thread)
+    public static class SerializationState {
+
+        @Param({ "STRING", "OBJECT" })
+        public ValueType valueType;
+
+        // Length of the string or the number of the values in the object
+        @Param({ "16", "16384" })
+        public int valueSize;
+
+        private final SambaSerializer serializer = new SambaKryoSerializer();
+        private Object value;
+        private ByteBuffer buffer;
+        // Serialized value in the middle of a bigger buffer as received from the remote storage
+        private ByteBuffer receivedBuffer;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            if (valueType == ValueType.STRING) {
+                char[] chars = new char[valueSize];
+                Arrays.fill(chars, 'x');
+                value = new String(chars);
+            } else {
+                Payload payload = new Payload();
+                payload.id = 1;
+                payload.name = "Hello Samba";
+                payload.values = new int[valueSize];
+                value = payload;
+            }
+            buffer = serializer.serialize(value, ByteBuffer.allocate(4096));
+            byte[] data = serializer.serialize(value);
+            byte[] receivedData = new byte[data.length + 32];
+            System.arraycopy(data, 0, receivedData, 16, data.length);
+            receivedBuffer = ByteBuffer.wrap(receivedData, 16, data.length).slice();
+        }
+
+    }
+
+    @Benchmark
+    public Object serializeIntoArray(SerializationState state) {
+        return ByteBuffer.wrap(state.serializer.serialize(state.value));
+    }
+
+    @Benchmark
+    public Object serializeIntoBuffer(SerializationState state) {
+        return state.buffer = state.serializer.serialize(state.value, state.buffer);
+    }
+
+    @Benchmark
+    public Object deserializeFromArray(SerializationState state) {
+        ByteBuffer receivedBuffer = state.receivedBuffer;
+        byte[] data = new byte[receivedBuffer.remaining()];
+        receivedBuffer.duplicate().get(data);
+        return state.serializer.deserialize(data);
+    }
+
+    @Benchmark
+    public Object deserializeFromBuffer(SerializationState state) {
+        return state.serializer.deserialize(state.receivedBuffer);
+    }
+
+}
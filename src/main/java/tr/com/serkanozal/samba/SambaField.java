@@ -15,27 +15,77 @@
  */
 package tr.com.serkanozal.samba;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
 
 import tr.com.serkanozal.samba.cache.SambaCache;
 import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
 import tr.com.serkanozal.samba.cache.SambaCacheProvider;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaMutation;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
 
 public class SambaField<V> {
 
+    private static final Logger LOGGER = Logger.getLogger(SambaField.class);
+
     private static final SambaValueProxy EMPTY_PROXY = 
             new SambaValueProxy(SambaValueProxy.INVALIDATED);
     
+    public static final long DEFAULT_CREATION_LEASE_MILLIS = 30000;
+    
+    static final String CREATION_LEASE_KEY_SUFFIX = "#creationLease";
+    private static final long MIN_CREATION_BACKOFF_MILLIS = 10;
+    private static final long MAX_CREATION_BACKOFF_MILLIS = 1000;
+    // Creations in progress in this process, so the other callers wait for them without competing for the lease
+    private static final ConcurrentMap<FieldKey, CompletableFuture<Void>> CREATIONS = 
+            new ConcurrentHashMap<FieldKey, CompletableFuture<Void>>();
+    
+    // Lower bound of the expected load time for refreshing ahead, until loads of this process have been timed
+    private static final long MIN_REFRESH_AHEAD_MILLIS = 100;
+    // Loads in progress in this process, so the same value is not loaded concurrently by the readers
+    private static final ConcurrentMap<FieldKey, CompletableFuture<Void>> LOADS = 
+            new ConcurrentHashMap<FieldKey, CompletableFuture<Void>>();
+    // Fields whose values have been found absent by their loaders in this process, with the times 
+    // until which the absence is trusted, so the loaders are not called again by every read of an absent value
+    private static final ConcurrentMap<FieldKey, Long> ABSENCES = new ConcurrentHashMap<FieldKey, Long>();
+    private static final ExecutorService LOADER_EXECUTOR_SERVICE = 
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                private final ThreadFactory delegatedThreadFactory = Executors.defaultThreadFactory();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = delegatedThreadFactory.newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    
     private final SambaCache cache;
     private final String id;
+    private final SambaLoader<V> loader;
+    private final long loadedValueTtlMillis;
+    private volatile long loadMillis;
     private SambaValueProxy valueProxy;
     
     public SambaField(SambaCacheType cacheType) {
         this(generateIdFromCallee(), cacheType);
     }
     
-    private static String generateIdFromCallee() {
+    static String generateIdFromCallee() {
         StackTraceElement callee = Thread.currentThread().getStackTrace()[3];
         String calleeId = callee.getClassName() + "#" + callee.getMethodName() + ":" + callee.getLineNumber();
         return UUID.nameUUIDFromBytes(calleeId.getBytes()).toString();
@@ -45,12 +95,73 @@ public class SambaField<V> {
         this(id, SambaCacheProvider.getCache(cacheType));
     }
     
+    /**
+     * Creates the field on the named cache, which is configured by 
+     * <code>cache.named.&lt;name&gt;.*</code> properties or registered via 
+     * {@link SambaCacheProvider#registerCache(String, SambaCache)}.
+     * 
+     * @param id the id of the field
+     * @param cacheName the name of the cache of the field
+     */
+    public SambaField(String id, String cacheName) {
+        this(id, SambaCacheProvider.getCache(cacheName));
+    }
+    
+    public SambaField(String id, String cacheName, SambaSerializer serializer) {
+        this(id, SambaCacheProvider.getCache(cacheName), serializer);
+    }
+    
     public SambaField(String id, SambaCache cache) {
+        this(id, cache, null, SambaCache.NO_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    public SambaField(String id, SambaCacheType cacheType, SambaLoader<V> loader, long ttl, TimeUnit timeUnit) {
+        this(id, SambaCacheProvider.getCache(cacheType), loader, ttl, timeUnit);
+    }
+    
+    /**
+     * Creates the field whose value is loaded by the given loader and written into the cache 
+     * with the given time-to-live when it is absent, so {@link #get()} reads through the loader.
+     * 
+     * Values which are about to expire are refreshed ahead in the background, while the readers 
+     * keep being served the current value until the loaded one is swapped in. Each read decides to refresh 
+     * with a probability increasing as the expiration time gets closer (probabilistic early expiration 
+     * scaled by the time loads take), so the processes sharing the field don't all refresh at once 
+     * and the first refresh written into the cache extends the expiration for all of them. 
+     * Loaded value is only swapped in if the current value has not been changed in the meantime.
+     * 
+     * If the loader finds the value absent, the absence is remembered in this process for the same time-to-live 
+     * (or until the field is set or cleared), so reads of the absent value don't call the loader again 
+     * but they still read the cache, so the values written by the others are served as usual.
+     * 
+     * @param id the id of the field
+     * @param cache the cache of the field
+     * @param loader the loader of the field value
+     * @param ttl the time-to-live of the loaded values, non-positive means that they never expire 
+     *            (so they are only loaded when they are absent)
+     * @param timeUnit the unit of the time-to-live
+     */
+    public SambaField(String id, SambaCache cache, SambaLoader<V> loader, long ttl, TimeUnit timeUnit) {
         this.id = id;
         this.cache = cache;
+        this.loader = loader;
+        this.loadedValueTtlMillis = timeUnit.toMillis(Math.max(ttl, SambaCache.NO_TTL));
         this.valueProxy = EMPTY_PROXY;
     }
     
+    /**
+     * Creates the field whose value is serialized by the given serializer instead of the serializer of the cache.
+     * All processes sharing the field must use the same serializer for it.
+     * 
+     * @param id the id of the field
+     * @param cache the cache of the field
+     * @param serializer the serializer of the field value
+     */
+    public SambaField(String id, SambaCache cache, SambaSerializer serializer) {
+        this(id, cache);
+        cache.registerSerializer(id, serializer);
+    }
+    
     public String getId() {
         return id;
     }
@@ -63,8 +174,23 @@ public class SambaField<V> {
         return cache.getConsistencyModel();
     }
     
-    @SuppressWarnings("unchecked")
     public V get() {
+        V value = getFromCache();
+        if (loader == null) {
+            return value;
+        }
+        if (value == null) {
+            return isKnownAbsent() ? null : loadAndGet();
+        }
+        SambaValueProxy proxy = valueProxy;
+        if (isAboutToExpire(proxy)) {
+            refreshAhead(value);
+        }
+        return value;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private V getFromCache() {
         Object value = valueProxy.getValue();
         if (value != SambaValueProxy.INVALIDATED) {
             return (V) value;
@@ -79,6 +205,10 @@ public class SambaField<V> {
                     if (value != SambaValueProxy.INVALIDATED) {
                         return (V) value;
                     }    
+                    if (proxy.isDetached()) {
+                        // Not served locally again but kept for its version
+                        return (V) proxy.getObservedValue();
+                    }
                 }
             } else {
                 valueProxy = EMPTY_PROXY;
@@ -87,6 +217,176 @@ public class SambaField<V> {
         }    
     }
     
+    /*
+     * XFetch: the value is refreshed once "now - delta * beta * ln(random)" reaches its expiration time, 
+     * where delta is the time a load takes and beta is 1. Since "-ln(random)" is exponentially distributed, 
+     * refreshes of the readers spread before the expiration and they are more likely for slow loads.
+     */
+    private boolean isAboutToExpire(SambaValueProxy proxy) {
+        long expirationTime = proxy.getExpirationTime();
+        if (expirationTime == SambaValueProxy.NO_EXPIRATION) {
+            return false;
+        }
+        long delta = Math.max(loadMillis, MIN_REFRESH_AHEAD_MILLIS);
+        double random = ThreadLocalRandom.current().nextDouble();
+        return System.currentTimeMillis() - delta * Math.log(random) >= expirationTime;
+    }
+    
+    private V load() {
+        long start = System.nanoTime();
+        V value = loader.load(id);
+        loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return value;
+    }
+    
+    private void refreshAhead(V currentValue) {
+        FieldKey loadKey = new FieldKey(cache, id);
+        CompletableFuture<Void> load = new CompletableFuture<Void>();
+        if (LOADS.putIfAbsent(loadKey, load) != null) {
+            return;
+        }
+        LOADER_EXECUTOR_SERVICE.execute(() -> {
+            try {
+                // Not swapped in if the value has been changed (or refreshed by another process) in the meantime
+                compareAndSet(currentValue, load(), loadedValueTtlMillis, TimeUnit.MILLISECONDS, true);
+            } catch (Throwable t) {
+                // Current value is still served until it expires, then it is loaded by the reader
+                LOGGER.error("Unable to refresh value of field " + id + " ahead", t);
+            } finally {
+                LOADS.remove(loadKey, load);
+                load.complete(null);
+            }
+        });
+    }
+    
+    private boolean isKnownAbsent() {
+        FieldKey absenceKey = new FieldKey(cache, id);
+        Long absentUntil = ABSENCES.get(absenceKey);
+        if (absentUntil == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() < absentUntil) {
+            return true;
+        }
+        ABSENCES.remove(absenceKey, absentUntil);
+        return false;
+    }
+    
+    private void forgetAbsence() {
+        if (loader != null) {
+            ABSENCES.remove(new FieldKey(cache, id));
+        }
+    }
+    
+    private V loadAndGet() {
+        FieldKey loadKey = new FieldKey(cache, id);
+        for (;;) {
+            CompletableFuture<Void> load = new CompletableFuture<Void>();
+            CompletableFuture<Void> loadInProgress = LOADS.putIfAbsent(loadKey, load);
+            if (loadInProgress != null) {
+                // Failures are handled by the loader, so the value is just looked up again
+                loadInProgress.handle((nothing, error) -> null).join();
+                V value = getFromCache();
+                if (value != null || isKnownAbsent()) {
+                    return value;
+                }
+                continue;
+            }
+            try {
+                V loadedValue = load();
+                if (loadedValue == null) {
+                    ABSENCES.put(
+                            loadKey, 
+                            loadedValueTtlMillis > 0 
+                                ? System.currentTimeMillis() + loadedValueTtlMillis 
+                                : Long.MAX_VALUE);
+                    return null;
+                }
+                if (compareAndSet(null, loadedValue, loadedValueTtlMillis, TimeUnit.MILLISECONDS, true)) {
+                    return loadedValue;
+                }
+                // Written by another process in the meantime
+                V value = refresh();
+                if (value != null) {
+                    return value;
+                }
+            } finally {
+                LOADS.remove(loadKey, load);
+                load.complete(null);
+            }
+        }
+    }
+    
+    /**
+     * Gets values of the given fields by fetching the ones, 
+     * which are not available locally, in batch from their caches.
+     * 
+     * @param fields the fields whose values are retrieved
+     * @return the values of the given fields in the same order with the fields
+     */
+    public static List<Object> getAll(SambaField<?>... fields) {
+        Object[] values = new Object[fields.length];
+        Map<SambaCache, List<Integer>> missedFieldIndexes = new IdentityHashMap<SambaCache, List<Integer>>();
+        for (int i = 0; i < fields.length; i++) {
+            Object value = fields[i].valueProxy.getValue();
+            if (value != SambaValueProxy.INVALIDATED) {
+                values[i] = value;
+            } else {
+                List<Integer> fieldIndexes = missedFieldIndexes.get(fields[i].cache);
+                if (fieldIndexes == null) {
+                    fieldIndexes = new ArrayList<Integer>();
+                    missedFieldIndexes.put(fields[i].cache, fieldIndexes);
+                }
+                fieldIndexes.add(i);
+            }
+        }
+        for (Map.Entry<SambaCache, List<Integer>> entry : missedFieldIndexes.entrySet()) {
+            List<Integer> fieldIndexes = entry.getValue();
+            List<String> ids = new ArrayList<String>(fieldIndexes.size());
+            for (int i : fieldIndexes) {
+                ids.add(fields[i].id);
+            }
+            Map<String, Object> cachedValues = entry.getKey().getAll(ids);
+            for (int i : fieldIndexes) {
+                values[i] = fields[i].installFetched(cachedValues.get(fields[i].id));
+            }
+        }
+        return Arrays.asList(values);
+    }
+    
+    private Object installFetched(Object value) {
+        if (value instanceof SambaValueProxy) {
+            valueProxy = (SambaValueProxy) value;
+            value = valueProxy.getValue();
+            if (value != SambaValueProxy.INVALIDATED) {
+                return value;
+            }
+            if (valueProxy.isDetached()) {
+                return valueProxy.getObservedValue();
+            }
+            // Invalidated in the meantime, so fallback to single get
+            return get();
+        } else {
+            valueProxy = EMPTY_PROXY;
+            return value;
+        }
+    }
+    
+    /**
+     * Gets the value asynchronously. If the value is available locally, 
+     * the returned future is already completed on the caller thread.
+     * 
+     * @return the future of the value
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<V> getAsync() {
+        CompletableFuture<Object> valueFuture = valueProxy.getValueFuture();
+        if (valueFuture != null) {
+            return (CompletableFuture<V>) valueFuture;
+        }
+        return cache.getAsync(id);
+    }
+    
     public V getOrCreate(SambaValueFactory<V> factory) {
         V value = get();
         if (value != null) {
@@ -106,6 +406,128 @@ public class SambaField<V> {
             }    
         }
     }
+    
+    /**
+     * Gets the value like {@link #getOrCreate(SambaValueFactory)} does, but the value is created 
+     * by a single caller across all the processes sharing the field with 
+     * a lease of {@link #DEFAULT_CREATION_LEASE_MILLIS} milliseconds.
+     * 
+     * @param factory the factory to create the value if it doesn't exist
+     * @return the existing or the created value
+     * @see #getOrCreateWithLease(SambaValueFactory, long, TimeUnit)
+     */
+    public V getOrCreateWithLease(SambaValueFactory<V> factory) {
+        return getOrCreateWithLease(factory, DEFAULT_CREATION_LEASE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Gets the value if it exists, otherwise creates it through the given factory by a single caller 
+     * across all the processes sharing the field, so expensive creations are not repeated on cold starts.
+     * 
+     * The creator acquires a lease, which expires after the given lease time, by conditionally writing 
+     * into the cache of the field. Other callers in the same process wait for the creation in progress 
+     * and callers in other processes wait by polling the value with bounded backoff until it appears. 
+     * If the creator fails or dies, another caller takes the lease over once it is released or expired. 
+     * So the lease time should be longer than the creation takes, otherwise the value might be created 
+     * more than once and the values which could not be set are destroyed just like 
+     * {@link #getOrCreate(SambaValueFactory)} does.
+     * 
+     * @param factory the factory to create the value if it doesn't exist
+     * @param leaseTime the time after which the lease of the creator expires
+     * @param timeUnit the unit of the lease time
+     * @return the existing or the created value
+     */
+    public V getOrCreateWithLease(SambaValueFactory<V> factory, long leaseTime, TimeUnit timeUnit) {
+        FieldKey creationKey = new FieldKey(cache, id);
+        for (;;) {
+            V value = get();
+            if (value != null) {
+                return value;
+            }
+            CompletableFuture<Void> creation = new CompletableFuture<Void>();
+            CompletableFuture<Void> creationInProgress = CREATIONS.putIfAbsent(creationKey, creation);
+            if (creationInProgress != null) {
+                // Failures are handled by the creator, so the value is just looked up again
+                creationInProgress.handle((nothing, error) -> null).join();
+                continue;
+            }
+            try {
+                return createWithLease(factory, leaseTime, timeUnit);
+            } finally {
+                CREATIONS.remove(creationKey, creation);
+                creation.complete(null);
+            }
+        }
+    }
+    
+    private V createWithLease(SambaValueFactory<V> factory, long leaseTime, TimeUnit timeUnit) {
+        String leaseKey = id + CREATION_LEASE_KEY_SUFFIX;
+        String leaseOwner = UUID.randomUUID().toString();
+        long backoffMillis = MIN_CREATION_BACKOFF_MILLIS;
+        for (;;) {
+            V value = refresh();
+            if (value != null) {
+                return value;
+            }
+            if (cache.replace(leaseKey, null, leaseOwner, leaseTime, timeUnit)) {
+                try {
+                    // Value might have been created by the previous owner right before it released the lease
+                    value = refresh();
+                    if (value != null) {
+                        return value;
+                    }
+                    V createdValue = factory.create();
+                    if (compareAndSet(null, createdValue)) {
+                        return createdValue;
+                    }
+                    // Set by a caller not using the lease or by a creator whose lease has expired
+                    factory.destroy(createdValue);
+                    continue;
+                } finally {
+                    // Only released if it is still owned, since it might have expired and taken over
+                    cache.replace(leaseKey, leaseOwner, null);
+                }
+            }
+            // Jittered, so waiting callers in different processes don't poll all together
+            sleep(backoffMillis + ThreadLocalRandom.current().nextLong(backoffMillis));
+            backoffMillis = Math.min(backoffMillis << 1, MAX_CREATION_BACKOFF_MILLIS);
+        }
+    }
+    
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for creation of field " + id, e);
+        }
+    }
+    
+    private static final class FieldKey {
+        
+        private final SambaCache cache;
+        private final String id;
+        
+        private FieldKey(SambaCache cache, String id) {
+            this.cache = cache;
+            this.id = id;
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(cache) + id.hashCode();
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FieldKey)) {
+                return false;
+            }
+            FieldKey fieldKey = (FieldKey) obj;
+            return cache == fieldKey.cache && id.equals(fieldKey.id);
+        }
+        
+    }
      
     @SuppressWarnings("unchecked")
     public V refresh() {
@@ -120,6 +542,10 @@ public class SambaField<V> {
                     if (value != SambaValueProxy.INVALIDATED) {
                         return (V) value;
                     }    
+                    if (proxy.isDetached()) {
+                        // Not served locally again but kept for its version
+                        return (V) proxy.getObservedValue();
+                    }
                 }
             } else {
                 valueProxy = EMPTY_PROXY;
@@ -129,17 +555,154 @@ public class SambaField<V> {
     }
     
     public void set(V value) {
+        set(value, SambaCache.DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Sets the value which expires after the given time-to-live.
+     * 
+     * @param value the value to be set
+     * @param ttl the time-to-live of the value, non-positive means that the value never expires
+     * @param timeUnit the unit of the time-to-live
+     */
+    public void set(V value, long ttl, TimeUnit timeUnit) {
         if (value == null) {
             clear();
         } else {
-            cache.put(id, value);
+            forgetAbsence();
+            install(cache.putAndGetProxy(id, value, Math.max(ttl, SambaCache.NO_TTL), timeUnit));
         }    
-        // TODO Also set proxy on update eagerly as atomic 
+    }
+    
+    /*
+     * Proxy of the written value is installed, so the next reads of this field are served by the proxy 
+     * without going to the cache until the value is changed again (by this field or by any other writer) 
+     * and the next compare-and-set is done by the version of the written value. 
+     * Proxies installed by concurrent writes of this field might overwrite each other, 
+     * but the one of the older value has already been invalidated by the cache, so reads fallback to the cache.
+     */
+    private boolean install(SambaValueProxy proxy) {
+        if (proxy == null) {
+            return false;
+        }
+        valueProxy = proxy;
+        return true;
+    }
+    
+    private boolean uninstall(boolean removed) {
+        if (removed) {
+            valueProxy = EMPTY_PROXY;
+        }
+        return removed;
     }
     
     public boolean compareAndSet(V oldValue, V newValue) {
-        return cache.replace(id, oldValue, newValue);
-        // TODO Also set proxy on update eagerly as atomic 
+        return compareAndSet(oldValue, newValue, SambaCache.DEFAULT_TTL, TimeUnit.MILLISECONDS, true);
+    }
+    
+    /**
+     * Sets the new value which expires after the given time-to-live, if the current value is the old value.
+     * 
+     * @param oldValue the expected current value
+     * @param newValue the value to be set
+     * @param ttl the time-to-live of the new value, non-positive means that the value never expires
+     * @param timeUnit the unit of the time-to-live
+     * @return <code>true</code> if the value has been set, <code>false</code> otherwise
+     */
+    public boolean compareAndSet(V oldValue, V newValue, long ttl, TimeUnit timeUnit) {
+        return compareAndSet(oldValue, newValue, Math.max(ttl, SambaCache.NO_TTL), timeUnit, true);
+    }
+    
+    /*
+     * If the old value is the last retrieved value and it is versioned, 
+     * it is replaced on condition of its version without comparing the values on the cache side.
+     * When the version doesn't match anymore, the value has been updated since it was retrieved, 
+     * but it might still have been updated to an equal value. 
+     * So comparison by value is done as fallback unless the caller is going to retry anyway.
+     */
+    private boolean compareAndSet(V oldValue, V newValue, long ttl, TimeUnit timeUnit, 
+                                  boolean fallbackToValueComparison) {
+        SambaValueProxy proxy = valueProxy;
+        long version = proxy.getVersion();
+        if (version != SambaValueProxy.NO_VERSION && oldValue != null) {
+            Object observedValue = proxy.getObservedValue();
+            if (observedValue == oldValue || oldValue.equals(observedValue)) {
+                boolean replaced;
+                if (newValue == null) {
+                    replaced = uninstall(cache.replaceIfVersion(id, version, null, ttl, timeUnit));
+                } else {
+                    replaced = install(cache.replaceIfVersionAndGetProxy(id, version, newValue, ttl, timeUnit));
+                }
+                if (replaced) {
+                    return true;
+                }
+                if (!fallbackToValueComparison) {
+                    return false;
+                }
+            }
+        }
+        if (newValue == null) {
+            return uninstall(cache.replace(id, oldValue, null, ttl, timeUnit));
+        }
+        return install(cache.replaceAndGetProxy(id, oldValue, newValue, ttl, timeUnit));
+    }
+    
+    // Written proxy is installed once the write completes like the sync writes do
+    public CompletableFuture<Void> setAsync(V value) {
+        forgetAbsence();
+        if (value == null) {
+            return cache.removeAsync(id).thenApply(nothing -> {
+                valueProxy = EMPTY_PROXY;
+                return null;
+            });
+        } else {
+            return cache.putAndGetProxyAsync(id, value).thenApply(proxy -> {
+                install(proxy);
+                return null;
+            });
+        }
+    }
+    
+    public CompletableFuture<Boolean> compareAndSetAsync(V oldValue, V newValue) {
+        return compareAndSetAsync(oldValue, newValue, true);
+    }
+    
+    // Replaced on condition of the version like the sync one, so the cache doesn't read and compare the values 
+    // unless there is no version or the version has changed and the caller is not going to retry anyway
+    private CompletableFuture<Boolean> compareAndSetAsync(V oldValue, V newValue, 
+                                                          boolean fallbackToValueComparison) {
+        SambaValueProxy proxy = valueProxy;
+        long version = proxy.getVersion();
+        if (version != SambaValueProxy.NO_VERSION && oldValue != null) {
+            Object observedValue = proxy.getObservedValue();
+            if (observedValue == oldValue || oldValue.equals(observedValue)) {
+                CompletableFuture<Boolean> replacedFuture = replaceIfVersionAsync(version, newValue);
+                if (!fallbackToValueComparison) {
+                    return replacedFuture;
+                }
+                return replacedFuture.thenCompose(replaced -> {
+                    if (replaced) {
+                        return CompletableFuture.completedFuture(true);
+                    }
+                    return replaceAsync(oldValue, newValue);
+                });
+            }
+        }
+        return replaceAsync(oldValue, newValue);
+    }
+    
+    private CompletableFuture<Boolean> replaceIfVersionAsync(long version, V newValue) {
+        if (newValue == null) {
+            return cache.replaceIfVersionAsync(id, version, null).thenApply(this::uninstall);
+        }
+        return cache.replaceIfVersionAndGetProxyAsync(id, version, newValue).thenApply(this::install);
+    }
+    
+    private CompletableFuture<Boolean> replaceAsync(V oldValue, V newValue) {
+        if (newValue == null) {
+            return cache.replaceAsync(id, oldValue, null).thenApply(this::uninstall);
+        }
+        return cache.replaceAndGetProxyAsync(id, oldValue, newValue).thenApply(this::install);
     }
     
     public boolean compareAndSet(V newValue) {
@@ -147,8 +710,10 @@ public class SambaField<V> {
     }
     
     public void clear() {
+        forgetAbsence();
         cache.remove(id);
-        // TODO Also clear proxy on update eagerly as atomic
+        // Absence cannot be invalidated by the later writes, so it is not served by this field
+        valueProxy = EMPTY_PROXY;
     }
     
     public V process(SambaFieldProcessor<V> processor) {
@@ -162,13 +727,50 @@ public class SambaField<V> {
         V currentValue = get();
         for (;;) {
             V newValue = processor.process(currentValue);
-            if (compareAndSet(currentValue, newValue)) {
+            // Refreshed and retried anyway on failure, so there is no need to compare by value
+            if (compareAndSet(currentValue, newValue, SambaCache.DEFAULT_TTL, TimeUnit.MILLISECONDS, false)) {
                 return newValue;
             }
             currentValue = refresh();
         }
     }
 
+    /**
+     * Mutates the structured value (a list, a set, a map or a number) in place by the given mutation, 
+     * so unlike {@link #processAtomically(SambaFieldProcessor)}, the whole value is neither read nor rewritten
+     * and concurrent mutations don't retry. See {@link SambaMutation} for the semantics of the mutations.
+     * 
+     * @param mutation the mutation to be applied to the value
+     */
+    public void mutate(SambaMutation mutation) {
+        cache.mutate(id, mutation);
+    }
+    
+    /**
+     * Asynchronous version of {@link #processAtomically(SambaFieldProcessor)}. 
+     * Note that the processor might be called on I/O threads of the cache.
+     * 
+     * @param processor the processor to produce new value from the current value
+     * @return the future of the new value
+     */
+    public CompletableFuture<V> processAtomicallyAsync(SambaFieldProcessor<V> processor) {
+        return getAsync().thenCompose(currentValue -> processAtomicallyAsync(processor, currentValue));
+    }
+    
+    private CompletableFuture<V> processAtomicallyAsync(SambaFieldProcessor<V> processor, V currentValue) {
+        V newValue = processor.process(currentValue);
+        // Refreshed and retried anyway on failure, so there is no need to compare by value
+        return compareAndSetAsync(currentValue, newValue, false).thenCompose(replaced -> {
+            if (replaced) {
+                return CompletableFuture.completedFuture(newValue);
+            }
+            // Refreshed value is not installed, so the version of the stale proxy is not tried again
+            valueProxy = EMPTY_PROXY;
+            return cache.<V>refreshAsync(id).thenCompose(
+                    refreshedValue -> processAtomicallyAsync(processor, refreshedValue));
+        });
+    }
+
     @Override
     public String toString() {
         return "SambaField [" + 
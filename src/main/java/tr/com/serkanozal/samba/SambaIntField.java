@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
+import tr.com.serkanozal.samba.cache.SambaCacheProvider;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+
+/**
+ * Shared counter of primitive <code>int</code> which is updated atomically in place by its cache
+ * like {@link SambaLongField}. Counter is kept as <code>long</code> by the cache, 
+ * but it is truncated to <code>int</code>, so it overflows like an <code>int</code> does.
+ */
+public class SambaIntField {
+
+    private final SambaCache cache;
+    private final String id;
+    
+    public SambaIntField(SambaCacheType cacheType) {
+        this(SambaField.generateIdFromCallee(), cacheType);
+    }
+    
+    public SambaIntField(String id, SambaCacheType cacheType) {
+        this(id, SambaCacheProvider.getCache(cacheType));
+    }
+    
+    public SambaIntField(String id, String cacheName) {
+        this(id, SambaCacheProvider.getCache(cacheName));
+    }
+    
+    public SambaIntField(String id, SambaCache cache) {
+        this.id = id;
+        this.cache = cache;
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public SambaCache getCache() {
+        return cache;
+    }
+    
+    public SambaCacheConsistencyModel getConsistencyModel() {
+        return cache.getConsistencyModel();
+    }
+    
+    public int get() {
+        return (int) cache.getCounter(id);
+    }
+    
+    public void set(int value) {
+        cache.getAndSetCounter(id, value);
+    }
+    
+    public int getAndSet(int newValue) {
+        return (int) cache.getAndSetCounter(id, newValue);
+    }
+    
+    public int incrementAndGet() {
+        return (int) cache.addAndGetCounter(id, 1);
+    }
+    
+    public int decrementAndGet() {
+        return (int) cache.addAndGetCounter(id, -1);
+    }
+    
+    public int addAndGet(int delta) {
+        return (int) cache.addAndGetCounter(id, delta);
+    }
+    
+    // Previous value is derived from the new one, so there is still a single update
+    public int getAndIncrement() {
+        return (int) cache.addAndGetCounter(id, 1) - 1;
+    }
+    
+    public int getAndDecrement() {
+        return (int) cache.addAndGetCounter(id, -1) + 1;
+    }
+    
+    public int getAndAdd(int delta) {
+        return (int) cache.addAndGetCounter(id, delta) - delta;
+    }
+    
+    public void clear() {
+        cache.remove(id);
+    }
+    
+    @Override
+    public String toString() {
+        return "SambaIntField [" + 
+                    "cacheType=" + cache.getType() + 
+                    ", id=" + id + 
+                    ", value=" + get() + 
+               "]";
+    }
+
+}
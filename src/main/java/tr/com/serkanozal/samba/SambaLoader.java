@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+/**
+ * Loads the value of a field from where it comes from (for example the system of record, 
+ * or the global cache for fields whose values are written there by others) when it is absent 
+ * in the cache of the field or it is about to expire. Loaders are attached to the fields 
+ * by the constructors of {@link SambaField} taking a loader.
+ *
+ * @param <V> the type of the value
+ */
+public interface SambaLoader<V> {
+
+    /**
+     * @param id the id of the field
+     * @return the loaded value, <code>null</code> if the value is absent
+     */
+    V load(String id);
+
+}
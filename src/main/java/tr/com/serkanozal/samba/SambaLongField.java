@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
+import tr.com.serkanozal.samba.cache.SambaCacheProvider;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+
+/**
+ * Shared counter of primitive <code>long</code> which is updated atomically in place by its cache
+ * (see {@link SambaCache#addAndGetCounter(String, long)}), so updates are neither boxed nor serialized 
+ * and they never retry under contention unlike {@link SambaField#processAtomically(SambaFieldProcessor)}.
+ * 
+ * Counter of <code>LOCAL</code> cache is a padded atomic long on the local heap. 
+ * Every update of <code>GLOBAL</code> cache is a single request to the global store 
+ * (a single <code>ADD</code> update expression on <b>DynamoDB</b>). Reads of <code>TIERED</code> cache 
+ * are served from its near-cache, which is also populated by the results of the updates.
+ */
+public class SambaLongField {
+
+    private final SambaCache cache;
+    private final String id;
+    
+    public SambaLongField(SambaCacheType cacheType) {
+        this(SambaField.generateIdFromCallee(), cacheType);
+    }
+    
+    public SambaLongField(String id, SambaCacheType cacheType) {
+        this(id, SambaCacheProvider.getCache(cacheType));
+    }
+    
+    public SambaLongField(String id, String cacheName) {
+        this(id, SambaCacheProvider.getCache(cacheName));
+    }
+    
+    public SambaLongField(String id, SambaCache cache) {
+        this.id = id;
+        this.cache = cache;
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public SambaCache getCache() {
+        return cache;
+    }
+    
+    public SambaCacheConsistencyModel getConsistencyModel() {
+        return cache.getConsistencyModel();
+    }
+    
+    public long get() {
+        return cache.getCounter(id);
+    }
+    
+    public void set(long value) {
+        cache.getAndSetCounter(id, value);
+    }
+    
+    public long getAndSet(long newValue) {
+        return cache.getAndSetCounter(id, newValue);
+    }
+    
+    public long incrementAndGet() {
+        return cache.addAndGetCounter(id, 1);
+    }
+    
+    public long decrementAndGet() {
+        return cache.addAndGetCounter(id, -1);
+    }
+    
+    public long addAndGet(long delta) {
+        return cache.addAndGetCounter(id, delta);
+    }
+    
+    // Previous value is derived from the new one, so there is still a single update
+    public long getAndIncrement() {
+        return cache.addAndGetCounter(id, 1) - 1;
+    }
+    
+    public long getAndDecrement() {
+        return cache.addAndGetCounter(id, -1) + 1;
+    }
+    
+    public long getAndAdd(long delta) {
+        return cache.addAndGetCounter(id, delta) - delta;
+    }
+    
+    public void clear() {
+        cache.remove(id);
+    }
+    
+    @Override
+    public String toString() {
+        return "SambaLongField [" + 
+                    "cacheType=" + cache.getType() + 
+                    ", id=" + id + 
+                    ", value=" + get() + 
+               "]";
+    }
+
+}
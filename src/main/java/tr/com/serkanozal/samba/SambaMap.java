@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
+import tr.com.serkanozal.samba.cache.SambaCacheProvider;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaMutation;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+import tr.com.serkanozal.samba.cache.impl.SambaKryoSerializer;
+
+/**
+ * Shared map whose entries are kept as individual entries of its cache,
+ * so getting, putting and removing an entry neither read nor rewrite the other entries
+ * and contended entries don't conflict with each other. Entries of <code>TIERED</code> cache
+ * are also held individually by its near-cache.
+ *
+ * Keys of the map are kept in an index (a set mutated in place by {@link SambaMutation}s),
+ * so the map can be iterated and sized without scanning the global store. Iteration goes over
+ * a snapshot of the index and retrieves the entries lazily in pages by {@link SambaCache#getAll},
+ * so it is weakly consistent. Note that the index is kept in a single entry of the global store,
+ * so it is limited by the item size of the global store (400 KB on <b>DynamoDB</b>).
+ *
+ * Keys are encoded into the keys of the cache entries by their binary forms,
+ * so they must have deterministic binary forms such as strings, boxed primitives and enums.
+ * Null keys and values are not supported.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class SambaMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+    static final String INDEX_KEY_SUFFIX = "#keys";
+    static final String ENTRY_KEY_INFIX = "#entry#";
+    // Maximum number of the keys in a single batch get (BatchGetItem) of DynamoDB
+    static final int PAGE_SIZE = 100;
+
+    private static final SambaSerializer KEY_SERIALIZER = new SambaKryoSerializer();
+    private static final Base64.Encoder KEY_ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private final SambaCache cache;
+    private final String id;
+    private final String indexKey;
+    private final String entryKeyPrefix;
+
+    public SambaMap(SambaCacheType cacheType) {
+        this(SambaField.generateIdFromCallee(), cacheType);
+    }
+
+    public SambaMap(String id, SambaCacheType cacheType) {
+        this(id, SambaCacheProvider.getCache(cacheType));
+    }
+
+    public SambaMap(String id, String cacheName) {
+        this(id, SambaCacheProvider.getCache(cacheName));
+    }
+
+    public SambaMap(String id, SambaCache cache) {
+        this.id = id;
+        this.cache = cache;
+        this.indexKey = id + INDEX_KEY_SUFFIX;
+        this.entryKeyPrefix = id + ENTRY_KEY_INFIX;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public SambaCache getCache() {
+        return cache;
+    }
+
+    public SambaCacheConsistencyModel getConsistencyModel() {
+        return cache.getConsistencyModel();
+    }
+
+    private String entryKey(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+        return entryKeyPrefix + KEY_ENCODER.encodeToString(KEY_SERIALIZER.serialize(key));
+    }
+
+    private static Object unwrap(SambaValueProxy proxy) {
+        Object value = proxy.getValue();
+        // Invalidated after it has been retrieved, but it is still the value observed by the read
+        return value != SambaValueProxy.INVALIDATED ? value : proxy.getObservedValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private V get(String entryKey, boolean fresh) {
+        for (;;) {
+            Object value = fresh ? cache.refresh(entryKey) : cache.get(entryKey);
+            if (!(value instanceof SambaValueProxy)) {
+                return (V) value;
+            }
+            SambaValueProxy proxy = (SambaValueProxy) value;
+            value = proxy.getValue();
+            if (value != SambaValueProxy.INVALIDATED) {
+                return (V) value;
+            }
+            if (proxy.isDetached()) {
+                return (V) proxy.getObservedValue();
+            }
+        }
+    }
+
+    public V get(K key) {
+        return get(entryKey(key), false);
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /*
+     * Entry is written before its key is added to the index and the key is removed from the index
+     * after its entry has been removed. Then removers check the entry again and add its key back
+     * if the entry has been put in the meantime, so the key of every entry is eventually in the index.
+     * Index might still have keys whose entries have been removed in the meantime,
+     * but they are skipped by the iterations.
+     */
+
+    public void put(K key, V value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        cache.put(entryKey(key), value);
+        cache.mutate(indexKey, SambaMutation.setAdd(key));
+    }
+
+    public boolean putIfAbsent(K key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null!");
+        }
+        if (!cache.replace(entryKey(key), null, value)) {
+            return false;
+        }
+        cache.mutate(indexKey, SambaMutation.setAdd(key));
+        return true;
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (oldValue == null) {
+            throw new IllegalArgumentException("Old value cannot be null!");
+        }
+        if (!cache.replace(entryKey(key), oldValue, newValue)) {
+            return false;
+        }
+        if (newValue == null) {
+            removeFromIndex(key);
+        }
+        return true;
+    }
+
+    public void remove(K key) {
+        cache.remove(entryKey(key));
+        removeFromIndex(key);
+    }
+
+    private void removeFromIndex(K key) {
+        cache.mutate(indexKey, SambaMutation.setRemove(key));
+        if (get(entryKey(key), true) != null) {
+            cache.mutate(indexKey, SambaMutation.setAdd(key));
+        }
+    }
+
+    /**
+     * Gets the keys of the map from its index, so the entries which are being put or removed concurrently
+     * might be included or not.
+     *
+     * @return the snapshot of the keys of the map
+     */
+    @SuppressWarnings("unchecked")
+    public Set<K> keySet() {
+        Set<K> keys = (Set<K>) get(indexKey, false);
+        return keys != null ? Collections.unmodifiableSet(keys) : Collections.<K>emptySet();
+    }
+
+    /**
+     * Gets the number of the keys in the index of the map without retrieving any entry.
+     * See {@link #keySet()} for its consistency.
+     */
+    public int size() {
+        return keySet().size();
+    }
+
+    public boolean isEmpty() {
+        return keySet().isEmpty();
+    }
+
+    /**
+     * Iterates the entries of the keys in a snapshot of the index (see {@link #keySet()})
+     * by retrieving them lazily in pages. Entries which have been removed in the meantime are skipped.
+     * The iterator doesn't support removal, so entries should be removed via {@link #remove(Object)}.
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator(keySet().iterator());
+    }
+
+    /**
+     * Removes all the entries whose keys are in the index, one by one.
+     */
+    public void clear() {
+        for (K key : keySet()) {
+            remove(key);
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final Iterator<K> keyIterator;
+        private Iterator<Map.Entry<K, V>> pageIterator = Collections.emptyIterator();
+
+        private EntryIterator(Iterator<K> keyIterator) {
+            this.keyIterator = keyIterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!pageIterator.hasNext() && keyIterator.hasNext()) {
+                pageIterator = nextPage();
+            }
+            return pageIterator.hasNext();
+        }
+
+        @SuppressWarnings("unchecked")
+        private Iterator<Map.Entry<K, V>> nextPage() {
+            List<K> keys = new ArrayList<K>(PAGE_SIZE);
+            List<String> entryKeys = new ArrayList<String>(PAGE_SIZE);
+            while (keys.size() < PAGE_SIZE && keyIterator.hasNext()) {
+                K key = keyIterator.next();
+                keys.add(key);
+                entryKeys.add(entryKey(key));
+            }
+            Map<String, Object> values = cache.getAll(entryKeys);
+            List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(values.size());
+            for (int i = 0; i < keys.size(); i++) {
+                Object value = values.get(entryKeys.get(i));
+                if (value instanceof SambaValueProxy) {
+                    value = unwrap((SambaValueProxy) value);
+                }
+                if (value != null) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<K, V>(keys.get(i), (V) value));
+                }
+            }
+            return entries.iterator();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return pageIterator.next();
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return "SambaMap [" +
+                    "cacheType=" + cache.getType() +
+                    ", id=" + id +
+                    ", size=" + size() +
+               "]";
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
+import tr.com.serkanozal.samba.cache.SambaCacheProvider;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+
+/**
+ * Shared set whose elements are kept as individual entries of its cache like the entries of {@link SambaMap},
+ * so checking, adding and removing an element neither read nor rewrite the other elements.
+ * See {@link SambaMap} for the consistency of the iterations and the restrictions on the elements.
+ *
+ * @param <E> the type of the elements
+ */
+public class SambaSet<E> implements Iterable<E> {
+
+    private final SambaMap<E, Boolean> map;
+
+    public SambaSet(SambaCacheType cacheType) {
+        this(SambaField.generateIdFromCallee(), cacheType);
+    }
+
+    public SambaSet(String id, SambaCacheType cacheType) {
+        this(id, SambaCacheProvider.getCache(cacheType));
+    }
+
+    public SambaSet(String id, String cacheName) {
+        this(id, SambaCacheProvider.getCache(cacheName));
+    }
+
+    public SambaSet(String id, SambaCache cache) {
+        this.map = new SambaMap<E, Boolean>(id, cache);
+    }
+
+    public String getId() {
+        return map.getId();
+    }
+
+    public SambaCache getCache() {
+        return map.getCache();
+    }
+
+    public SambaCacheConsistencyModel getConsistencyModel() {
+        return map.getConsistencyModel();
+    }
+
+    public boolean contains(E element) {
+        return map.containsKey(element);
+    }
+
+    /**
+     * @return <code>true</code> if the element has been added,
+     *         <code>false</code> if it is already in the set
+     */
+    public boolean add(E element) {
+        return map.putIfAbsent(element, Boolean.TRUE);
+    }
+
+    /**
+     * @return <code>true</code> if the element has been removed,
+     *         <code>false</code> if it is not in the set
+     */
+    public boolean remove(E element) {
+        return map.replace(element, Boolean.TRUE, null);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        Iterator<Map.Entry<E, Boolean>> entryIterator = map.iterator();
+        return new Iterator<E>() {
+            @Override
+            public boolean hasNext() {
+                return entryIterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return entryIterator.next().getKey();
+            }
+        };
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "SambaSet [" +
+                    "cacheType=" + getCache().getType() +
+                    ", id=" + getId() +
+                    ", size=" + size() +
+               "]";
+    }
+
+}
@@ -15,23 +15,130 @@
  */
 package tr.com.serkanozal.samba;
 
+import java.util.concurrent.CompletableFuture;
+
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
+
 public final class SambaValueProxy {
 
     public static final Object INVALIDATED = new Object();
+    public static final long NO_VERSION = SambaGlobalStoreEntry.NO_VERSION;
+    public static final long NO_EXPIRATION = SambaGlobalStoreEntry.NO_EXPIRATION;
     
     private volatile Object value;
+    // Completed future of the value, so async reads of cached values don't allocate
+    private volatile CompletableFuture<Object> valueFuture;
+    // Value and its version in the global store at the time this proxy has been created.
+    // They are kept even after invalidation, so compare-and-set can be conditioned on the version.
+    private final Object observedValue;
+    private final long version;
+    // Value invalidates itself once it expires, so holders never see an expired value 
+    // even if it has not been removed from its cache yet
+    private final long expirationTime;
+    private final boolean detached;
     
     public SambaValueProxy() {
+        this(null, NO_VERSION);
     }
     
     public SambaValueProxy(Object value) {
-        this.value = value;
+        this(value, NO_VERSION);
+    }
+    
+    public SambaValueProxy(Object value, long version) {
+        this(value, version, NO_EXPIRATION);
+    }
+    
+    public SambaValueProxy(Object value, long version, long expirationTime) {
+        this(value, version, expirationTime, false);
+    }
+    
+    private SambaValueProxy(Object value, long version, long expirationTime, boolean detached) {
+        this.value = detached ? INVALIDATED : value;
+        this.observedValue = value;
+        this.version = version;
+        this.expirationTime = expirationTime;
+        this.detached = detached;
+    }
+    
+    /**
+     * Creates a proxy which is not backed by any cache and so which is invalidated from the beginning.
+     * It only carries the observed value with its version, so strongly consistent caches don't serve 
+     * the value again locally but compare-and-set can still be done by version.
+     * 
+     * @param value the observed value
+     * @param version the version of the observed value
+     * @return the detached proxy
+     */
+    public static SambaValueProxy detached(Object value, long version) {
+        return detached(value, version, NO_EXPIRATION);
+    }
+    
+    public static SambaValueProxy detached(Object value, long version, long expirationTime) {
+        return new SambaValueProxy(value, version, expirationTime, true);
     }
     
     public Object getValue() {
-        return value;
+        Object currentValue = value;
+        if (currentValue != INVALIDATED && expirationTime != NO_EXPIRATION && isExpired()) {
+            value = INVALIDATED;
+            return INVALIDATED;
+        }
+        return currentValue;
+    }
+    
+    public Object getObservedValue() {
+        return observedValue;
+    }
+    
+    /**
+     * Gets the version of the observed value.
+     * 
+     * @return the version of the observed value, 
+     *         {@link #NO_VERSION} if the value is not versioned
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Gets the expiration time of the value as wall-clock time in milliseconds.
+     * 
+     * @return the expiration time of the value, 
+     *         {@link #NO_EXPIRATION} if the value never expires
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+    
+    public boolean isExpired() {
+        return SambaGlobalStoreEntry.isExpired(expirationTime, System.currentTimeMillis());
+    }
+    
+    public boolean isDetached() {
+        return detached;
     }
 
+    /**
+     * Gets the completed future of the value which is created once and shared by all the callers.
+     * 
+     * @return the completed future of the value, 
+     *         <code>null</code> if the value has been already invalidated
+     */
+    public CompletableFuture<Object> getValueFuture() {
+        Object currentValue = getValue();
+        if (currentValue == INVALIDATED) {
+            return null;
+        }
+        CompletableFuture<Object> future = valueFuture;
+        if (future == null) {
+            // Racy creation is fine, since value is never changed but only invalidated
+            future = CompletableFuture.completedFuture(currentValue);
+            valueFuture = future;
+        }
+        return future;
+    }
+    
     public void invalidateValue() {
         value = INVALIDATED;
     }
@@ -15,8 +15,21 @@
  */
 package tr.com.serkanozal.samba.cache;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import tr.com.serkanozal.samba.SambaValueProxy;
+
 public interface SambaCache {
 
+    // Time-to-live to use the default time-to-live of the cache, which is configured by 
+    // "cache.<type>.defaultTtlMillis" in "samba.properties" (entries never expire if it is not configured)
+    long DEFAULT_TTL = -1;
+    // Time-to-live of the entries which never expire
+    long NO_TTL = 0;
+    
     SambaCacheType getType();
     SambaCacheConsistencyModel getConsistencyModel();
     
@@ -24,7 +37,69 @@ public interface SambaCache {
     <V> V refresh(String key);
     void put(String key, Object value);
     boolean replace(String key, Object oldValue, Object newValue);
+    // Replaces (or removes if the new value is null) only if the entry still has the given version.
+    // Version is the one carried by value proxy (see SambaValueProxy#getVersion()) returned from get.
+    boolean replaceIfVersion(String key, long oldVersion, Object newValue);
+    
+    // Variants of the writes which expire the written entry after the given time-to-live.
+    // Writes without time-to-live use the default time-to-live of the cache. 
+    // Expired entries are treated as absent even if they have not been removed yet.
+    void put(String key, Object value, long ttl, TimeUnit timeUnit);
+    boolean replace(String key, Object oldValue, Object newValue, long ttl, TimeUnit timeUnit);
+    boolean replaceIfVersion(String key, long oldVersion, Object newValue, long ttl, TimeUnit timeUnit);
+
+    // Variants of the writes which return the value proxy of the written (non-null) value,
+    // so the writer can serve its own write without reading it back. Replacements return null if they fail.
+    // Returned proxy is invalidated by the subsequent writes just like the ones returned from get
+    // (or it is detached if the cache doesn't serve values locally), and it might also be the proxy of
+    // a newer value which has been written concurrently.
+    SambaValueProxy putAndGetProxy(String key, Object value, long ttl, TimeUnit timeUnit);
+    SambaValueProxy replaceAndGetProxy(String key, Object oldValue, Object newValue, long ttl, TimeUnit timeUnit);
+    SambaValueProxy replaceIfVersionAndGetProxy(String key, long oldVersion, Object newValue,
+                                                long ttl, TimeUnit timeUnit);
+
     void remove(String key);
     void clear();
+    // Writes the writes queued by write-behind caches (see SambaTieredCache) into the global store, 
+    // so they are visible to the other instances once it returns. Nothing to do for the caches writing through.
+    void flush();
+    
+    <V> Map<String, V> getAll(Collection<String> keys);
+    void putAll(Map<String, ?> entries);
+    void removeAll(Collection<String> keys);
+    
+    // Counters are primitive longs which are updated atomically in place (by the global store itself if it can),
+    // so updates neither go through the serializers nor retry compare-and-sets. Absent counter is zero.
+    // Counters are created with the default time-to-live of the cache and their updates don't extend it.
+    long getCounter(String key);
+    long addAndGetCounter(String key, long delta);
+    long getAndSetCounter(String key, long newValue);
+    
+    // Mutations of structured values (lists, sets, maps and numbers) are applied in place 
+    // (by the global store itself in a single request if it can), so the whole value is neither read 
+    // nor rewritten by the caller. See SambaMutation for the semantics of the mutations.
+    void mutate(String key, SambaMutation mutation);
+    
+    // Async variants complete with values (never with value proxies).
+    // Futures of cached values might be shared, so they must not be completed/obtruded by callers.
+    <V> CompletableFuture<V> getAsync(String key);
+    <V> CompletableFuture<V> refreshAsync(String key);
+    CompletableFuture<Void> putAsync(String key, Object value);
+    CompletableFuture<Boolean> replaceAsync(String key, Object oldValue, Object newValue);
+    CompletableFuture<Boolean> replaceIfVersionAsync(String key, long oldVersion, Object newValue);
+    // Except the async variants of the writes returning value proxies, 
+    // which complete with the proxies of the written (non-null) values just like their sync variants.
+    CompletableFuture<SambaValueProxy> putAndGetProxyAsync(String key, Object value);
+    CompletableFuture<SambaValueProxy> replaceAndGetProxyAsync(String key, Object oldValue, Object newValue);
+    CompletableFuture<SambaValueProxy> replaceIfVersionAndGetProxyAsync(String key, long oldVersion, 
+                                                                         Object newValue);
+    CompletableFuture<Void> removeAsync(String key);
+    
+    // Serializes values of the given key (field) by the given serializer instead of the serializer of the cache.
+    // Ignored by the caches which keep values without serializing them.
+    void registerSerializer(String key, SambaSerializer serializer);
+    
+    // Snapshot of the metrics counted since the cache has been created
+    SambaCacheMetrics getMetrics();
     
 }
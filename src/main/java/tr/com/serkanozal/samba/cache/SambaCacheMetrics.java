@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache;
+
+import javax.management.MXBean;
+
+/**
+ * Metrics of a {@link SambaCache} counted since the cache has been created.
+ *
+ * Metrics returned by {@link SambaCache#getMetrics()} are immutable snapshots, so they can be pulled
+ * and compared periodically. Caches provided by {@link SambaCacheProvider#getCache(SambaCacheType)}
+ * and {@link SambaCacheProvider#getCache(String)} are also registered to the platform MBean server 
+ * with this interface as <code>tr.com.serkanozal.samba:type=SambaCache,name=&lt;cache type or name&gt;</code>.
+ *
+ * Local metrics are the ones of the local heap (local cache or near-cache of tiered cache) and
+ * global metrics are the ones of the global store, so metrics of the tiers a cache doesn't have are zero.
+ */
+@MXBean
+public interface SambaCacheMetrics {
+
+    /**
+     * Gets the number of reads which have found the value on the local heap.
+     */
+    long getLocalHitCount();
+
+    /**
+     * Gets the number of reads which have not found the value on the local heap.
+     */
+    long getLocalMissCount();
+
+    /**
+     * Gets the number of reads which have found an entry in the global store.
+     */
+    long getGlobalHitCount();
+
+    /**
+     * Gets the number of reads which have not found any entry in the global store.
+     */
+    long getGlobalMissCount();
+
+    /**
+     * Gets the number of reads which have been served by a concurrent read of the same key
+     * instead of reading from the global store by themselves.
+     */
+    long getCoalescedReadCount();
+
+    /**
+     * Gets the number of values read from the global store which have been put into the near-cache.
+     */
+    long getNearCachePopulationCount();
+
+    /**
+     * Gets the number of values read from the global store which could not be put into the near-cache,
+     * since the key has been changed or invalidated while the value was being read.
+     */
+    long getNearCachePopulationFailureCount();
+
+    /**
+     * Gets the number of compare-and-set attempts (conditional replaces and removes).
+     */
+    long getCasAttemptCount();
+
+    /**
+     * Gets the number of compare-and-set attempts which have failed, since the current value
+     * was not the expected one (a concurrent update has won).
+     */
+    long getCasFailureCount();
+
+    /**
+     * Gets the number of change records received from the global store,
+     * including the ones of the changes done by this process.
+     */
+    long getStreamRecordCount();
+
+    /**
+     * Gets the latencies of the reads from the global store in microseconds.
+     */
+    Histogram getRemoteReadLatencyMicros();
+
+    /**
+     * Gets the latencies of the writes to the global store in microseconds.
+     */
+    Histogram getRemoteWriteLatencyMicros();
+
+    /**
+     * Gets the sizes of the serialized values written to and read from the global store in bytes.
+     */
+    Histogram getSerializedSizeBytes();
+
+    /**
+     * Gets the times passed between the changes and their receipts from the change stream
+     * of the global store in milliseconds. Stores which don't know the times of their changes don't record them.
+     */
+    Histogram getStreamLagMillis();
+
+    /**
+     * Gets the maximum memory in bytes which can be allocated for the values kept off-heap
+     * (by a local cache or the near-cache of a tiered cache in off-heap mode).
+     */
+    long getOffHeapMaxMemoryBytes();
+
+    /**
+     * Gets the memory in bytes which has been allocated for the values kept off-heap, including the free chunks.
+     */
+    long getOffHeapAllocatedMemoryBytes();
+
+    /**
+     * Gets the memory in bytes of the chunks holding the values kept off-heap.
+     */
+    long getOffHeapUsedMemoryBytes();
+
+    /**
+     * Gets the total size in bytes of the serialized values kept off-heap.
+     */
+    long getOffHeapDataBytes();
+
+    /**
+     * Gets the ratio of the allocated off-heap memory which doesn't hold any data
+     * (free chunks and unused tails of the used chunks), between <code>0</code> and <code>1</code>.
+     */
+    double getOffHeapFragmentation();
+
+    /**
+     * Gets the number of values which have been kept on the heap instead of off-heap,
+     * since the off-heap memory was full or they were bigger than a slab.
+     */
+    long getOffHeapAllocationFailureCount();
+
+    /**
+     * Distribution of the recorded values.
+     *
+     * Values are counted in buckets whose widths are about 3% of their values,
+     * so percentiles are upper bounds of their buckets and they are at most 3% higher than the exact ones.
+     */
+    interface Histogram {
+
+        long getCount();
+        double getMean();
+        long getMax();
+        long getPercentile50();
+        long getPercentile90();
+        long getPercentile99();
+        long getPercentile999();
+
+    }
+
+}
@@ -16,23 +16,24 @@
 package tr.com.serkanozal.samba.cache;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import tr.com.serkanozal.samba.cache.impl.SambaCacheMBeanRegistrar;
 import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache;
 import tr.com.serkanozal.samba.cache.impl.SambaLocalCache;
+import tr.com.serkanozal.samba.cache.impl.SambaNamedCacheFactory;
 import tr.com.serkanozal.samba.cache.impl.SambaTieredCache;
 
 public class SambaCacheProvider {
 
-    private static final Map<SambaCacheType, SambaCache> CACHE_MAP = 
-            new HashMap<SambaCacheType, SambaCache>(SambaCacheType.values().length);
-    
-    static {
-        CACHE_MAP.put(SambaCacheType.LOCAL, new SambaLocalCache());
-        CACHE_MAP.put(SambaCacheType.GLOBAL, new SambaGlobalCache());
-        CACHE_MAP.put(SambaCacheType.TIERED, new SambaTieredCache());
-    }
+    // Caches are created lazily, so using only local cache doesn't require any AWS access
+    private static final ConcurrentMap<SambaCacheType, SambaCache> CACHE_MAP = 
+            new ConcurrentHashMap<SambaCacheType, SambaCache>(SambaCacheType.values().length);
+    // Named caches have their own stores, near-caches and configurations, 
+    // so fields with different workloads can be isolated from each other
+    private static final ConcurrentMap<String, SambaCache> NAMED_CACHE_MAP = 
+            new ConcurrentHashMap<String, SambaCache>();
     
     private SambaCacheProvider() {
         
@@ -41,12 +42,61 @@ public class SambaCacheProvider {
     public static SambaCache getCache(SambaCacheType cacheType) {
         SambaCache cache = CACHE_MAP.get(cacheType);
         if (cache == null) {
-            throw new IllegalArgumentException("Unknow cache type: " + cacheType + 
-                    "! Valid values are " + Arrays.asList(SambaCacheType.values()));
+            synchronized (CACHE_MAP) {
+                cache = CACHE_MAP.get(cacheType);
+                if (cache == null) {
+                    cache = createCache(cacheType);
+                    CACHE_MAP.put(cacheType, cache);
+                    // Only the shared caches are registered, since created ones are not tracked
+                    SambaCacheMBeanRegistrar.register(cacheType.name(), cache);
+                }
+            }
+        }
+        return cache;
+    }
+    
+    /**
+     * Gets the cache with the given name. If it has not been registered by 
+     * {@link #registerCache(String, SambaCache)}, it is created by its 
+     * <code>cache.named.&lt;name&gt;.*</code> configurations on first access.
+     * 
+     * @param cacheName the name of the cache
+     * @return the cache with the given name
+     * @throws IllegalArgumentException if the cache is neither registered nor configured
+     */
+    public static SambaCache getCache(String cacheName) {
+        SambaCache cache = NAMED_CACHE_MAP.get(cacheName);
+        if (cache == null) {
+            synchronized (NAMED_CACHE_MAP) {
+                cache = NAMED_CACHE_MAP.get(cacheName);
+                if (cache == null) {
+                    cache = SambaNamedCacheFactory.createCache(cacheName);
+                    NAMED_CACHE_MAP.put(cacheName, cache);
+                    SambaCacheMBeanRegistrar.register(cacheName, cache);
+                }
+            }
         }
         return cache;
     }
     
+    /**
+     * Registers the given cache with the given name, 
+     * so the caches created programmatically can be accessed by their names.
+     * 
+     * @param cacheName the name of the cache
+     * @param cache the cache to be registered
+     * @throws IllegalStateException if there is already a cache with the given name
+     */
+    public static void registerCache(String cacheName, SambaCache cache) {
+        synchronized (NAMED_CACHE_MAP) {
+            if (NAMED_CACHE_MAP.containsKey(cacheName)) {
+                throw new IllegalStateException("There is already a cache with name " + cacheName);
+            }
+            NAMED_CACHE_MAP.put(cacheName, cache);
+            SambaCacheMBeanRegistrar.register(cacheName, cache);
+        }
+    }
+    
     public static SambaCache createCache(SambaCacheType cacheType) {
         switch (cacheType) {
             case LOCAL:
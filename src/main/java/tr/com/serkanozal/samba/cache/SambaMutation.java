@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStore;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreMutation;
+
+/**
+ * Mutation of a structured value (a list, a set, a map with string keys or a number)
+ * applied by {@link SambaCache#mutate(String, SambaMutation)} without getting, processing
+ * and compare-and-setting the whole value on the caller side.
+ *
+ * Global stores which keep structures natively apply mutations in place by a single request
+ * (see {@link SambaGlobalStore#mutate(String, SambaGlobalStoreMutation, long)}) and the others apply them
+ * through compare-and-set on the serialized value. Elements are serialized by the serializer of the key.
+ *
+ * Mutated values are read as {@link ArrayList}s, {@link LinkedHashSet}s, {@link LinkedHashMap}s and {@link Long}s.
+ * Absent value is created by the mutations adding to it, while removals from an absent value are ignored.
+ * A set whose elements have all been removed becomes absent. Mutations don't change the time-to-live
+ * of an existing value and a created value has the default time-to-live of the cache.
+ */
+public final class SambaMutation {
+
+    private final SambaGlobalStoreMutation.Type type;
+    private final List<Object> elements;
+    private final String mapKey;
+    private final long delta;
+
+    private SambaMutation(SambaGlobalStoreMutation.Type type, List<Object> elements, String mapKey, long delta) {
+        this.type = type;
+        this.elements = elements;
+        this.mapKey = mapKey;
+        this.delta = delta;
+    }
+
+    public static SambaMutation listAppend(Object... elements) {
+        return new SambaMutation(SambaGlobalStoreMutation.Type.LIST_APPEND, toElements(elements), null, 0);
+    }
+
+    public static SambaMutation setAdd(Object... elements) {
+        return new SambaMutation(SambaGlobalStoreMutation.Type.SET_ADD, toElements(elements), null, 0);
+    }
+
+    public static SambaMutation setRemove(Object... elements) {
+        return new SambaMutation(SambaGlobalStoreMutation.Type.SET_REMOVE, toElements(elements), null, 0);
+    }
+
+    public static SambaMutation numberAdd(long delta) {
+        return new SambaMutation(
+                SambaGlobalStoreMutation.Type.NUMBER_ADD, Collections.emptyList(), null, delta);
+    }
+
+    public static SambaMutation mapPut(String key, Object value) {
+        return new SambaMutation(
+                SambaGlobalStoreMutation.Type.MAP_PUT, toElements(value), toMapKey(key), 0);
+    }
+
+    public static SambaMutation mapRemove(String key) {
+        return new SambaMutation(
+                SambaGlobalStoreMutation.Type.MAP_REMOVE, Collections.emptyList(), toMapKey(key), 0);
+    }
+
+    // Stores cannot keep empty sets or null elements natively, so they are rejected up front
+    private static List<Object> toElements(Object... elements) {
+        if (elements == null || elements.length == 0) {
+            throw new IllegalArgumentException("At least one element must be given!");
+        }
+        for (Object element : elements) {
+            if (element == null) {
+                throw new IllegalArgumentException("Elements cannot be null!");
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(elements.clone()));
+    }
+
+    private static String toMapKey(String key) {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("Map key cannot be null or empty!");
+        }
+        return key;
+    }
+
+    public SambaGlobalStoreMutation.Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets the elements of the list and set mutations or the value of the map put.
+     */
+    public List<Object> getElements() {
+        return elements;
+    }
+
+    public String getMapKey() {
+        return mapKey;
+    }
+
+    public long getDelta() {
+        return delta;
+    }
+
+    /**
+     * Applies the mutation to a copy of the given value, so the given value is never modified.
+     *
+     * @param value the current value, <code>null</code> if it is absent
+     * @return the mutated copy, the given value itself if the mutation doesn't change it
+     *         or <code>null</code> if the value becomes absent
+     * @throws IllegalArgumentException if the given value is not of the mutated kind
+     */
+    @SuppressWarnings("unchecked")
+    public Object apply(Object value) {
+        switch (type) {
+            case LIST_APPEND: {
+                List<Object> list = new ArrayList<Object>();
+                if (value != null) {
+                    list.addAll(cast(value, List.class));
+                }
+                list.addAll(elements);
+                return list;
+            }
+            case SET_ADD: {
+                Set<Object> set = new LinkedHashSet<Object>();
+                if (value != null) {
+                    set.addAll(cast(value, Set.class));
+                }
+                return set.addAll(elements) || value == null ? set : value;
+            }
+            case SET_REMOVE: {
+                if (value == null) {
+                    return null;
+                }
+                Set<Object> set = new LinkedHashSet<Object>(cast(value, Set.class));
+                if (!set.removeAll(elements)) {
+                    return value;
+                }
+                return set.isEmpty() ? null : set;
+            }
+            case NUMBER_ADD:
+                return (value != null ? cast(value, Number.class).longValue() : 0) + delta;
+            case MAP_PUT: {
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                if (value != null) {
+                    map.putAll(cast(value, Map.class));
+                }
+                map.put(mapKey, elements.get(0));
+                return map;
+            }
+            case MAP_REMOVE: {
+                if (value == null || !cast(value, Map.class).containsKey(mapKey)) {
+                    return value;
+                }
+                Map<String, Object> map = new LinkedHashMap<String, Object>(cast(value, Map.class));
+                map.remove(mapKey);
+                return map;
+            }
+            default:
+                throw new IllegalStateException("Unknown mutation type: " + type);
+        }
+    }
+
+    private <T> T cast(Object value, Class<T> kind) {
+        if (!kind.isInstance(value)) {
+            throw new IllegalArgumentException(
+                    "Mutation " + type + " cannot be applied to value of type " + value.getClass().getName());
+        }
+        return kind.cast(value);
+    }
+
+    @Override
+    public String toString() {
+        return "SambaMutation [" +
+                    "type=" + type +
+                    (mapKey != null ? ", mapKey=" + mapKey : "") +
+                    (!elements.isEmpty() ? ", elements=" + elements : "") +
+                    (type == SambaGlobalStoreMutation.Type.NUMBER_ADD ? ", delta=" + delta : "") +
+               "]";
+    }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache;
+
+/**
+ * How changes done by other instances are propagated to the near-cache of a tiered cache.
+ */
+public enum SambaNearCachePropagationMode {
+
+    /**
+     * Changed entries are removed from near-cache, so they are retrieved again on next access.
+     */
+    INVALIDATE,
+    
+    /**
+     * Changed values are put into near-cache in place of the older ones, if they are held there. 
+     * Changes are ordered by entry versions, so an older change never overrides a newer value.
+     */
+    UPDATE;
+    
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts values of the caches into the binary form kept in the global store and back.
+ *
+ * Serializers are called concurrently, so they must be thread-safe.
+ * All processes sharing the global store must use compatible serializers for the same keys.
+ * 
+ * Values are also serialized into and deserialized from byte buffers, 
+ * so caches can reuse their buffers instead of allocating a byte array per value.
+ * These variants go through the byte array variants by default, 
+ * so serializers which can work on buffers directly should override them.
+ */
+public interface SambaSerializer {
+
+    /**
+     * @return the binary form of the given non-null value
+     */
+    byte[] serialize(Object value);
+
+    /**
+     * @return the value of the given binary form which has been produced by {@link #serialize(Object)}
+     */
+    Object deserialize(byte[] data);
+    
+    /**
+     * Writes the binary form of the given non-null value into the given buffer starting from its beginning.
+     * If the binary form doesn't fit into the given buffer, it is written into a bigger buffer instead.
+     * 
+     * @return the given or the bigger buffer where the binary form is between its position and limit
+     */
+    default ByteBuffer serialize(Object value, ByteBuffer buffer) {
+        byte[] data = serialize(value);
+        if (data.length > buffer.capacity()) {
+            return ByteBuffer.wrap(data);
+        }
+        // Called through Buffer, since ByteBuffer overrides them with covariant return types since Java 9
+        ((Buffer) buffer).clear();
+        buffer.put(data);
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+    
+    /**
+     * @return the value of the binary form between the position and the limit of the given buffer, 
+     *         which is neither modified nor retained (including its position)
+     */
+    default Object deserialize(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return deserialize(bytes);
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache;
+
+/**
+ * Calculates weights of the cache entries to bound caches by their total weight.
+ */
+public interface SambaWeigher {
+
+    /**
+     * Weighs every entry as <code>1</code>, so the maximum weight is the maximum entry count.
+     */
+    SambaWeigher ENTRY_COUNT = new SambaWeigher() {
+        @Override
+        public int weigh(String key, Object value) {
+            return 1;
+        }
+    };
+    
+    /**
+     * @return the non-negative weight of the entry. 
+     *         Weight is calculated when the entry is put and is not updated afterwards.
+     */
+    int weigh(String key, Object value);
+    
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of growable heap buffers which values are serialized into before they are written
+ * into the global store, so writes don't allocate a byte array per value.
+ *
+ * Buffers are kept in a fixed number of slots which are taken and filled by CAS without any allocation.
+ * Threads start probing from different slots, so they don't contend on the same ones.
+ * A new buffer is allocated if all the slots are empty (more writes in flight than the slots)
+ * and a released buffer is left to GC if all the slots are full.
+ * Serializers replace too small buffers with bigger ones, and the bigger ones are pooled in their places
+ * unless they are bigger than the maximum retained capacity, so a few huge values don't pin memory.
+ *
+ * Heap buffers are pooled instead of direct ones, since both <b>Kryo</b> and the <b>AWS SDK</b>
+ * work on byte arrays, so direct buffers would be copied into arrays by them anyway.
+ */
+final class SambaBufferPool {
+
+    private final AtomicReferenceArray<ByteBuffer> slots;
+    private final int mask;
+    private final int initialCapacity;
+    private final int maxRetainedCapacity;
+
+    SambaBufferPool(int slotCount, int initialCapacity, int maxRetainedCapacity) {
+        int powerOfTwoSlotCount = Integer.highestOneBit(Math.max(1, slotCount) - 1) << 1;
+        this.slots = new AtomicReferenceArray<ByteBuffer>(Math.max(1, powerOfTwoSlotCount));
+        this.mask = slots.length() - 1;
+        this.initialCapacity = initialCapacity;
+        this.maxRetainedCapacity = maxRetainedCapacity;
+    }
+
+    ByteBuffer acquire() {
+        int start = probe();
+        for (int i = 0; i <= mask; i++) {
+            int index = (start + i) & mask;
+            ByteBuffer buffer = slots.get(index);
+            if (buffer != null && slots.compareAndSet(index, buffer, null)) {
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocate(initialCapacity);
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() > maxRetainedCapacity 
+                || !buffer.hasArray() || buffer.arrayOffset() != 0) {
+            return;
+        }
+        int start = probe();
+        for (int i = 0; i <= mask; i++) {
+            int index = (start + i) & mask;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, buffer)) {
+                return;
+            }
+        }
+    }
+
+    private static int probe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) * 0x9E3779B9;
+    }
+
+}
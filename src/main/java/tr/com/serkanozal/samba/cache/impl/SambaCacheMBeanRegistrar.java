@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheMetrics;
+
+/**
+ * Registers metrics of the caches to the platform MBean server as {@link SambaCacheMetrics} MXBeans.
+ *
+ * Registration is enabled by default and it can be disabled by <code>cache.metrics.jmxEnabled</code>
+ * in <code>samba.properties</code>. Failing to register doesn't fail the cache, since metrics are optional.
+ */
+public final class SambaCacheMBeanRegistrar {
+
+    private static final Logger LOGGER = Logger.getLogger(SambaCacheMBeanRegistrar.class);
+
+    private static final boolean JMX_ENABLED =
+            SambaCacheProperties.getBooleanProperty(
+                    SambaCacheProperties.getSambaProperties(), "cache.metrics.jmxEnabled", true);
+
+    private SambaCacheMBeanRegistrar() {
+
+    }
+
+    public static void register(String name, SambaCache cache) {
+        if (!JMX_ENABLED) {
+            return;
+        }
+        try {
+            ObjectName objectName =
+                    new ObjectName("tr.com.serkanozal.samba:type=SambaCache,name=" + name);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new LiveMetrics(cache), objectName);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Unable to register metrics of cache " + name + " to JMX", e);
+        }
+    }
+
+    // Every attribute is read from a new snapshot, so attributes are always up to date
+    private static final class LiveMetrics implements SambaCacheMetrics {
+
+        private final SambaCache cache;
+
+        private LiveMetrics(SambaCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public long getLocalHitCount() {
+            return cache.getMetrics().getLocalHitCount();
+        }
+
+        @Override
+        public long getLocalMissCount() {
+            return cache.getMetrics().getLocalMissCount();
+        }
+
+        @Override
+        public long getGlobalHitCount() {
+            return cache.getMetrics().getGlobalHitCount();
+        }
+
+        @Override
+        public long getGlobalMissCount() {
+            return cache.getMetrics().getGlobalMissCount();
+        }
+
+        @Override
+        public long getCoalescedReadCount() {
+            return cache.getMetrics().getCoalescedReadCount();
+        }
+
+        @Override
+        public long getNearCachePopulationCount() {
+            return cache.getMetrics().getNearCachePopulationCount();
+        }
+
+        @Override
+        public long getNearCachePopulationFailureCount() {
+            return cache.getMetrics().getNearCachePopulationFailureCount();
+        }
+
+        @Override
+        public long getCasAttemptCount() {
+            return cache.getMetrics().getCasAttemptCount();
+        }
+
+        @Override
+        public long getCasFailureCount() {
+            return cache.getMetrics().getCasFailureCount();
+        }
+
+        @Override
+        public long getStreamRecordCount() {
+            return cache.getMetrics().getStreamRecordCount();
+        }
+
+        @Override
+        public Histogram getRemoteReadLatencyMicros() {
+            return cache.getMetrics().getRemoteReadLatencyMicros();
+        }
+
+        @Override
+        public Histogram getRemoteWriteLatencyMicros() {
+            return cache.getMetrics().getRemoteWriteLatencyMicros();
+        }
+
+        @Override
+        public Histogram getSerializedSizeBytes() {
+            return cache.getMetrics().getSerializedSizeBytes();
+        }
+
+        @Override
+        public Histogram getStreamLagMillis() {
+            return cache.getMetrics().getStreamLagMillis();
+        }
+
+        @Override
+        public long getOffHeapMaxMemoryBytes() {
+            return cache.getMetrics().getOffHeapMaxMemoryBytes();
+        }
+
+        @Override
+        public long getOffHeapAllocatedMemoryBytes() {
+            return cache.getMetrics().getOffHeapAllocatedMemoryBytes();
+        }
+
+        @Override
+        public long getOffHeapUsedMemoryBytes() {
+            return cache.getMetrics().getOffHeapUsedMemoryBytes();
+        }
+
+        @Override
+        public long getOffHeapDataBytes() {
+            return cache.getMetrics().getOffHeapDataBytes();
+        }
+
+        @Override
+        public double getOffHeapFragmentation() {
+            return cache.getMetrics().getOffHeapFragmentation();
+        }
+
+        @Override
+        public long getOffHeapAllocationFailureCount() {
+            return cache.getMetrics().getOffHeapAllocationFailureCount();
+        }
+
+    }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import tr.com.serkanozal.samba.cache.SambaCacheMetrics;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreChangeListener;
+
+/**
+ * Records metrics of a cache on its hot paths.
+ *
+ * Counters are {@link LongAdder}s, so concurrent recordings don't contend on the same cache line,
+ * and distributions are {@link SambaHistogram}s. Both are summed only when a snapshot is taken.
+ */
+final class SambaCacheMetricsRecorder {
+
+    private final LongAdder localHitCount = new LongAdder();
+    private final LongAdder localMissCount = new LongAdder();
+    private final LongAdder globalHitCount = new LongAdder();
+    private final LongAdder globalMissCount = new LongAdder();
+    private final LongAdder coalescedReadCount = new LongAdder();
+    private final LongAdder nearCachePopulationCount = new LongAdder();
+    private final LongAdder nearCachePopulationFailureCount = new LongAdder();
+    private final LongAdder casAttemptCount = new LongAdder();
+    private final LongAdder casFailureCount = new LongAdder();
+    private final LongAdder streamRecordCount = new LongAdder();
+    private final SambaHistogram remoteReadLatencyMicros = new SambaHistogram();
+    private final SambaHistogram remoteWriteLatencyMicros = new SambaHistogram();
+    private final SambaHistogram serializedSizeBytes = new SambaHistogram();
+    private final SambaHistogram streamLagMillis = new SambaHistogram();
+    // Null unless the local tier keeps its values off-heap
+    private volatile SambaSlabAllocator offHeapMemory;
+
+    void recordLocalRead(boolean hit) {
+        (hit ? localHitCount : localMissCount).increment();
+    }
+
+    void recordGlobalRead(boolean hit) {
+        (hit ? globalHitCount : globalMissCount).increment();
+    }
+
+    void recordCoalescedRead() {
+        coalescedReadCount.increment();
+    }
+
+    void recordNearCachePopulation(boolean populated) {
+        (populated ? nearCachePopulationCount : nearCachePopulationFailureCount).increment();
+    }
+
+    void recordCas(boolean succeeded) {
+        casAttemptCount.increment();
+        if (!succeeded) {
+            casFailureCount.increment();
+        }
+    }
+
+    // Latencies are given by the start times taken by System.nanoTime()
+    void recordRemoteRead(long startNanos) {
+        remoteReadLatencyMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    void recordRemoteWrite(long startNanos) {
+        remoteWriteLatencyMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    void recordSerializedSize(int size) {
+        serializedSizeBytes.record(size);
+    }
+
+    void recordStreamRecord(long lagMillis) {
+        streamRecordCount.increment();
+        if (lagMillis != SambaGlobalStoreChangeListener.UNKNOWN_LAG) {
+            streamLagMillis.record(lagMillis);
+        }
+    }
+
+    // Off-heap memory is not recorded but its own statistics are taken when a snapshot is taken
+    void trackOffHeapMemory(SambaSlabAllocator offHeapMemory) {
+        this.offHeapMemory = offHeapMemory;
+    }
+
+    long getLocalHitCount() {
+        return localHitCount.sum();
+    }
+
+    long getLocalMissCount() {
+        return localMissCount.sum();
+    }
+
+    long getGlobalHitCount() {
+        return globalHitCount.sum();
+    }
+
+    long getGlobalMissCount() {
+        return globalMissCount.sum();
+    }
+
+    long getCoalescedReadCount() {
+        return coalescedReadCount.sum();
+    }
+
+    SambaCacheMetrics snapshot() {
+        return snapshot(this);
+    }
+
+    // Metrics of the global tier are taken from the given recorder,
+    // so a tiered cache can combine its own metrics with the ones of its global cache
+    SambaCacheMetrics snapshot(SambaCacheMetricsRecorder globalTier) {
+        return new Snapshot(this, globalTier);
+    }
+
+    private static final class Snapshot implements SambaCacheMetrics {
+
+        private final long localHitCount;
+        private final long localMissCount;
+        private final long globalHitCount;
+        private final long globalMissCount;
+        private final long coalescedReadCount;
+        private final long nearCachePopulationCount;
+        private final long nearCachePopulationFailureCount;
+        private final long casAttemptCount;
+        private final long casFailureCount;
+        private final long streamRecordCount;
+        private final Histogram remoteReadLatencyMicros;
+        private final Histogram remoteWriteLatencyMicros;
+        private final Histogram serializedSizeBytes;
+        private final Histogram streamLagMillis;
+        private final long offHeapMaxMemoryBytes;
+        private final long offHeapAllocatedMemoryBytes;
+        private final long offHeapUsedMemoryBytes;
+        private final long offHeapDataBytes;
+        private final long offHeapAllocationFailureCount;
+
+        private Snapshot(SambaCacheMetricsRecorder localTier, SambaCacheMetricsRecorder globalTier) {
+            this.localHitCount = localTier.localHitCount.sum();
+            this.localMissCount = localTier.localMissCount.sum();
+            this.nearCachePopulationCount = localTier.nearCachePopulationCount.sum();
+            this.nearCachePopulationFailureCount = localTier.nearCachePopulationFailureCount.sum();
+            this.casAttemptCount = localTier.casAttemptCount.sum();
+            this.casFailureCount = localTier.casFailureCount.sum();
+            this.globalHitCount = globalTier.globalHitCount.sum();
+            this.globalMissCount = globalTier.globalMissCount.sum();
+            this.coalescedReadCount = globalTier.coalescedReadCount.sum();
+            this.streamRecordCount = globalTier.streamRecordCount.sum();
+            this.remoteReadLatencyMicros = globalTier.remoteReadLatencyMicros.snapshot();
+            this.remoteWriteLatencyMicros = globalTier.remoteWriteLatencyMicros.snapshot();
+            this.serializedSizeBytes = globalTier.serializedSizeBytes.snapshot();
+            this.streamLagMillis = globalTier.streamLagMillis.snapshot();
+            SambaSlabAllocator offHeapMemory = localTier.offHeapMemory;
+            if (offHeapMemory != null) {
+                this.offHeapMaxMemoryBytes = offHeapMemory.getMaxMemory();
+                this.offHeapAllocatedMemoryBytes = offHeapMemory.getAllocatedMemory();
+                this.offHeapUsedMemoryBytes = offHeapMemory.getUsedMemory();
+                this.offHeapDataBytes = offHeapMemory.getDataSize();
+                this.offHeapAllocationFailureCount = offHeapMemory.getAllocationFailureCount();
+            } else {
+                this.offHeapMaxMemoryBytes = 0;
+                this.offHeapAllocatedMemoryBytes = 0;
+                this.offHeapUsedMemoryBytes = 0;
+                this.offHeapDataBytes = 0;
+                this.offHeapAllocationFailureCount = 0;
+            }
+        }
+
+        @Override
+        public long getLocalHitCount() {
+            return localHitCount;
+        }
+
+        @Override
+        public long getLocalMissCount() {
+            return localMissCount;
+        }
+
+        @Override
+        public long getGlobalHitCount() {
+            return globalHitCount;
+        }
+
+        @Override
+        public long getGlobalMissCount() {
+            return globalMissCount;
+        }
+
+        @Override
+        public long getCoalescedReadCount() {
+            return coalescedReadCount;
+        }
+
+        @Override
+        public long getNearCachePopulationCount() {
+            return nearCachePopulationCount;
+        }
+
+        @Override
+        public long getNearCachePopulationFailureCount() {
+            return nearCachePopulationFailureCount;
+        }
+
+        @Override
+        public long getCasAttemptCount() {
+            return casAttemptCount;
+        }
+
+        @Override
+        public long getCasFailureCount() {
+            return casFailureCount;
+        }
+
+        @Override
+        public long getStreamRecordCount() {
+            return streamRecordCount;
+        }
+
+        @Override
+        public Histogram getRemoteReadLatencyMicros() {
+            return remoteReadLatencyMicros;
+        }
+
+        @Override
+        public Histogram getRemoteWriteLatencyMicros() {
+            return remoteWriteLatencyMicros;
+        }
+
+        @Override
+        public Histogram getSerializedSizeBytes() {
+            return serializedSizeBytes;
+        }
+
+        @Override
+        public Histogram getStreamLagMillis() {
+            return streamLagMillis;
+        }
+
+        @Override
+        public long getOffHeapMaxMemoryBytes() {
+            return offHeapMaxMemoryBytes;
+        }
+
+        @Override
+        public long getOffHeapAllocatedMemoryBytes() {
+            return offHeapAllocatedMemoryBytes;
+        }
+
+        @Override
+        public long getOffHeapUsedMemoryBytes() {
+            return offHeapUsedMemoryBytes;
+        }
+
+        @Override
+        public long getOffHeapDataBytes() {
+            return offHeapDataBytes;
+        }
+
+        @Override
+        public double getOffHeapFragmentation() {
+            if (offHeapAllocatedMemoryBytes == 0) {
+                return 0;
+            }
+            return 1 - (double) offHeapDataBytes / offHeapAllocatedMemoryBytes;
+        }
+
+        @Override
+        public long getOffHeapAllocationFailureCount() {
+            return offHeapAllocationFailureCount;
+        }
+
+        @Override
+        public String toString() {
+            return "SambaCacheMetrics{"
+                    + "localHitCount=" + localHitCount
+                    + ", localMissCount=" + localMissCount
+                    + ", globalHitCount=" + globalHitCount
+                    + ", globalMissCount=" + globalMissCount
+                    + ", coalescedReadCount=" + coalescedReadCount
+                    + ", nearCachePopulationCount=" + nearCachePopulationCount
+                    + ", nearCachePopulationFailureCount=" + nearCachePopulationFailureCount
+                    + ", casAttemptCount=" + casAttemptCount
+                    + ", casFailureCount=" + casFailureCount
+                    + ", streamRecordCount=" + streamRecordCount
+                    + ", remoteReadLatencyMicros=" + remoteReadLatencyMicros
+                    + ", remoteWriteLatencyMicros=" + remoteWriteLatencyMicros
+                    + ", serializedSizeBytes=" + serializedSizeBytes
+                    + ", streamLagMillis=" + streamLagMillis
+                    + ", offHeapMaxMemoryBytes=" + offHeapMaxMemoryBytes
+                    + ", offHeapAllocatedMemoryBytes=" + offHeapAllocatedMemoryBytes
+                    + ", offHeapUsedMemoryBytes=" + offHeapUsedMemoryBytes
+                    + ", offHeapDataBytes=" + offHeapDataBytes
+                    + ", offHeapAllocationFailureCount=" + offHeapAllocationFailureCount
+                    + "}";
+        }
+
+    }
+
+}
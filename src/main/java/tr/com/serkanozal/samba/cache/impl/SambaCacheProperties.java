@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Loads configurations of caches from property files on classpath overridden by system properties.
+ */
+final class SambaCacheProperties {
+
+    private static final Logger LOGGER = Logger.getLogger(SambaCacheProperties.class);
+    
+    private static final String NAMED_CACHE_PROPERTY_PREFIX = "cache.named.";
+    private static final String[] CACHE_TYPE_PROPERTY_PREFIXES = { "cache.local.", "cache.global.", "cache.tiered." };
+    
+    private SambaCacheProperties() {
+        
+    }
+    
+    static Properties getSambaProperties() {
+        try {
+            return getProperties("samba.properties");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    // Named cache is configured by the same properties with the cache types, but under its own prefix 
+    // (for example "cache.named.<name>.tableName" in place of "cache.global.tableName"), 
+    // so its own properties override the ones of the cache types and the rest are inherited from them
+    static Properties getNamedCacheProperties(String cacheName) {
+        Properties sambaProps = getSambaProperties();
+        Properties cacheProps = new Properties();
+        cacheProps.putAll(sambaProps);
+        String namedCachePropPrefix = getNamedCachePropertyPrefix(cacheName);
+        for (String propName : sambaProps.stringPropertyNames()) {
+            if (propName.startsWith(namedCachePropPrefix)) {
+                String propSuffix = propName.substring(namedCachePropPrefix.length());
+                String propValue = sambaProps.getProperty(propName);
+                for (String cacheTypePropPrefix : CACHE_TYPE_PROPERTY_PREFIXES) {
+                    cacheProps.setProperty(cacheTypePropPrefix + propSuffix, propValue);
+                }
+            }
+        }
+        return cacheProps;
+    }
+    
+    static String getNamedCachePropertyPrefix(String cacheName) {
+        return NAMED_CACHE_PROPERTY_PREFIX + cacheName + ".";
+    }
+    
+    static Properties getProperties(String propFileName) throws IOException {
+        Properties props = new Properties();
+        try {
+            InputStream in = SambaCacheProperties.class.getClassLoader().getResourceAsStream(propFileName);
+            if (in != null) {
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
+            } 
+            props.putAll(System.getProperties());
+            return props;
+        } catch (IOException e) {
+            LOGGER.error("Error occured while loading properties from " + "'" + propFileName + "'", e);
+            throw e;
+        }
+    }
+    
+    static int getIntProperty(Properties props, String propName, int defaultValue) {
+        String value = props.getProperty(propName);
+        if (value != null) {
+            return Integer.parseInt(value.trim());
+        } else {
+            return defaultValue;
+        }
+    }
+    
+    static long getLongProperty(Properties props, String propName, long defaultValue) {
+        String value = props.getProperty(propName);
+        if (value != null) {
+            return Long.parseLong(value.trim());
+        } else {
+            return defaultValue;
+        }
+    }
+    
+    static boolean getBooleanProperty(Properties props, String propName, boolean defaultValue) {
+        String value = props.getProperty(propName);
+        if (value != null) {
+            return Boolean.parseBoolean(value.trim());
+        } else {
+            return defaultValue;
+        }
+    }
+    
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStore;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreChangeListener;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreMutation;
+
+/**
+ * {@link SambaGlobalStore} decorator which coalesces concurrent reads of the same key into a single read
+ * from the underlying store (single-flight), so a hot key which has just been changed or invalidated
+ * doesn't cause a read from every thread. Waiting readers receive the entry read by the first one.
+ *
+ * A read in flight is not joined anymore once the key is written through this store or
+ * a change of it is received from the underlying store, so readers never see an entry
+ * which has been read before a write they have already observed.
+ *
+ * As every call of the cache to the global store goes through this store, 
+ * latencies of the calls and hits and misses of the reads are recorded here.
+ */
+final class SambaCoalescingGlobalStore implements SambaGlobalStore {
+
+    private final SambaGlobalStore store;
+    private final ConcurrentMap<String, CompletableFuture<SambaGlobalStoreEntry>> inFlightReads =
+            new ConcurrentHashMap<String, CompletableFuture<SambaGlobalStoreEntry>>();
+    private final ConcurrentMap<SambaGlobalStoreChangeListener, ForgettingChangeListener> changeListeners =
+            new ConcurrentHashMap<SambaGlobalStoreChangeListener, ForgettingChangeListener>();
+    private final SambaCacheMetricsRecorder metrics;
+
+    SambaCoalescingGlobalStore(SambaGlobalStore store, SambaCacheMetricsRecorder metrics) {
+        this.store = store;
+        this.metrics = metrics;
+    }
+
+    SambaGlobalStore getStore() {
+        return store;
+    }
+
+    private void forget(String key) {
+        inFlightReads.remove(key);
+    }
+
+    private void forgetAll(Collection<String> keys) {
+        for (String key : keys) {
+            inFlightReads.remove(key);
+        }
+    }
+
+    @Override
+    public SambaGlobalStoreEntry get(String key) {
+        SambaGlobalStoreEntry entry;
+        CompletableFuture<SambaGlobalStoreEntry> read = new CompletableFuture<SambaGlobalStoreEntry>();
+        CompletableFuture<SambaGlobalStoreEntry> inFlightRead = inFlightReads.putIfAbsent(key, read);
+        if (inFlightRead != null) {
+            metrics.recordCoalescedRead();
+            entry = join(inFlightRead);
+        } else {
+            long start = System.nanoTime();
+            try {
+                entry = store.get(key);
+                read.complete(entry);
+            } catch (RuntimeException | Error e) {
+                read.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlightReads.remove(key, read);
+                metrics.recordRemoteRead(start);
+            }
+        }
+        metrics.recordGlobalRead(entry != null);
+        return entry;
+    }
+
+    // Failure of the read is rethrown to the waiting readers as it is
+    private static SambaGlobalStoreEntry join(CompletableFuture<SambaGlobalStoreEntry> read) {
+        try {
+            return read.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public long put(String key, byte[] data, long expirationTime) {
+        long start = System.nanoTime();
+        try {
+            return store.put(key, data, expirationTime);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public long putIfAbsent(String key, byte[] data, long expirationTime) {
+        long start = System.nanoTime();
+        try {
+            return store.putIfAbsent(key, data, expirationTime);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public long replace(String key, long oldVersion, byte[] newData, long expirationTime) {
+        long start = System.nanoTime();
+        try {
+            return store.replace(key, oldVersion, newData, expirationTime);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public long put(String key, ByteBuffer data, long expirationTime) {
+        long start = System.nanoTime();
+        try {
+            return store.put(key, data, expirationTime);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public long putIfAbsent(String key, ByteBuffer data, long expirationTime) {
+        long start = System.nanoTime();
+        try {
+            return store.putIfAbsent(key, data, expirationTime);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public long replace(String key, long oldVersion, ByteBuffer newData, long expirationTime) {
+        long start = System.nanoTime();
+        try {
+            return store.replace(key, oldVersion, newData, expirationTime);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public SambaGlobalStoreEntry addAndGetCounter(String key, long delta, long expirationTime) {
+        long start = System.nanoTime();
+        try {
+            return store.addAndGetCounter(key, delta, expirationTime);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public SambaGlobalStoreEntry getAndSetCounter(String key, long newCounter, long expirationTime) {
+        long start = System.nanoTime();
+        try {
+            return store.getAndSetCounter(key, newCounter, expirationTime);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public long mutate(String key, SambaGlobalStoreMutation mutation, long expirationTime) {
+        long start = System.nanoTime();
+        try {
+            return store.mutate(key, mutation, expirationTime);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        long start = System.nanoTime();
+        try {
+            store.remove(key);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public boolean remove(String key, long oldVersion) {
+        long start = System.nanoTime();
+        try {
+            return store.remove(key, oldVersion);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forget(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        long start = System.nanoTime();
+        try {
+            store.clear();
+        } finally {
+            metrics.recordRemoteWrite(start);
+            inFlightReads.clear();
+        }
+    }
+
+    @Override
+    public Map<String, SambaGlobalStoreEntry> getAll(Collection<String> keys) {
+        long start = System.nanoTime();
+        try {
+            return store.getAll(keys);
+        } finally {
+            metrics.recordRemoteRead(start);
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> entries, long expirationTime) {
+        long start = System.nanoTime();
+        try {
+            store.putAll(entries, expirationTime);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forgetAll(entries.keySet());
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        long start = System.nanoTime();
+        try {
+            store.removeAll(keys);
+        } finally {
+            metrics.recordRemoteWrite(start);
+            forgetAll(keys);
+        }
+    }
+
+    // Changes received from the underlying store are forgotten before they are dispatched to the listener
+    @Override
+    public void registerChangeListener(SambaGlobalStoreChangeListener changeListener) {
+        ForgettingChangeListener forgettingChangeListener = new ForgettingChangeListener(changeListener);
+        if (changeListeners.putIfAbsent(changeListener, forgettingChangeListener) == null) {
+            store.registerChangeListener(forgettingChangeListener);
+        }
+    }
+
+    @Override
+    public void deregisterChangeListener(SambaGlobalStoreChangeListener changeListener) {
+        ForgettingChangeListener forgettingChangeListener = changeListeners.remove(changeListener);
+        if (forgettingChangeListener != null) {
+            store.deregisterChangeListener(forgettingChangeListener);
+        }
+    }
+
+    private class ForgettingChangeListener implements SambaGlobalStoreChangeListener {
+
+        private final SambaGlobalStoreChangeListener changeListener;
+
+        private ForgettingChangeListener(SambaGlobalStoreChangeListener changeListener) {
+            this.changeListener = changeListener;
+        }
+
+        @Override
+        public void onInsert(String key, SambaGlobalStoreEntry entry) {
+            forget(key);
+            changeListener.onInsert(key, entry);
+        }
+
+        @Override
+        public void onUpdate(String key, SambaGlobalStoreEntry oldEntry, SambaGlobalStoreEntry newEntry) {
+            forget(key);
+            changeListener.onUpdate(key, oldEntry, newEntry);
+        }
+
+        @Override
+        public void onDelete(String key, long oldVersion) {
+            forget(key);
+            changeListener.onDelete(key, oldVersion);
+        }
+
+        @Override
+        public void onClear() {
+            inFlightReads.clear();
+            changeListener.onClear();
+        }
+
+        @Override
+        public void onChangeReceived(long lagMillis) {
+            changeListener.onChangeReceived(lagMillis);
+        }
+
+    }
+
+}
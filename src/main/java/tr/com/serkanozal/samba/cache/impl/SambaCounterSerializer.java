@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.nio.ByteBuffer;
+
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
+
+/**
+ * {@link SambaSerializer} implementation for the keys of the counters, which reads and writes them 
+ * as {@link Long}s in the form of {@link SambaGlobalStoreEntry#toCounterData(long)}. 
+ * 
+ * Counter updates don't go through serializers at all, but it is registered for the keys of the counters,
+ * so their values are decoded correctly by the reads and by the propagations to near-caches.
+ */
+final class SambaCounterSerializer implements SambaSerializer {
+
+    static final SambaCounterSerializer INSTANCE = new SambaCounterSerializer();
+    
+    private SambaCounterSerializer() {
+        
+    }
+    
+    @Override
+    public byte[] serialize(Object value) {
+        return SambaGlobalStoreEntry.toCounterData(((Number) value).longValue());
+    }
+
+    @Override
+    public Object deserialize(byte[] data) {
+        return deserialize(ByteBuffer.wrap(data));
+    }
+    
+    @Override
+    public Object deserialize(ByteBuffer data) {
+        return SambaGlobalStoreEntry.toCounter(data);
+    }
+
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Window TinyLFU eviction policy bounding total weight of the entries of a {@link SambaLocalCache}.
+ *
+ * <ul>
+ *  <li>
+ *      New entries are put into a small LRU admission window. Entries leaving the window are candidates 
+ *      to enter the main space, which is a segmented LRU (probation and protected segments). 
+ *      When the cache is full, a candidate is admitted only if it is accessed more frequently than 
+ *      the victim of the main space, so one-hit wonders cannot flush the frequently accessed entries.
+ *  </li>
+ *  <li>
+ *      Access frequencies are estimated by a count-min sketch with 4-bit counters 
+ *      which are halved periodically, so the history ages.
+ *  </li>
+ *  <li>
+ *      Reads are recorded into buffers of the reader threads and replayed in batches, 
+ *      so reads never contend on a shared structure. Read buffers are lossy, 
+ *      a full buffer is dropped if the policy is busy. Writes are never dropped.
+ *  </li>
+ *  <li>
+ *      Written keys are replayed against the current state of the cache, 
+ *      so the order in which concurrent writes are replayed doesn't matter.
+ *  </li>
+ * </ul>
+ */
+final class SambaEvictionPolicy {
+
+    private static final int READ_BUFFER_SIZE = 16;
+    private static final int MAX_PENDING_WRITE_COUNT = 64;
+    private static final int WINDOW_PERCENTAGE = 1;
+    private static final int PROTECTED_PERCENTAGE = 80;
+    
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    
+    /**
+     * View of the cache entries bounded by the policy.
+     */
+    interface Entries {
+        
+        /**
+         * @return the weight of the entry or <code>-1</code> if there is no entry with the given key
+         */
+        int getWeight(String key);
+        
+        void evict(String key);
+        
+    }
+    
+    private final long maximumWeight;
+    private final long windowMaximumWeight;
+    private final long protectedMaximumWeight;
+    private final Entries entries;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<String> writeBuffer = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger pendingWriteCount = new AtomicInteger();
+    private final ThreadLocal<ReadBuffer> readBuffers = 
+            new ThreadLocal<ReadBuffer>() {
+                protected ReadBuffer initialValue() {
+                    return new ReadBuffer();
+                };
+            };
+    // Following ones are guarded by the lock
+    private final Map<String, Node> nodes = new HashMap<String, Node>();
+    private final Node[] queues = { new Node(null), new Node(null), new Node(null) };
+    private final long[] queueWeights = new long[3];
+    private final FrequencySketch sketch = new FrequencySketch();
+    private long totalWeight;
+    private int candidateCount;
+    
+    SambaEvictionPolicy(long maximumWeight, Entries entries) {
+        this.maximumWeight = maximumWeight;
+        this.windowMaximumWeight = Math.max(1, maximumWeight * WINDOW_PERCENTAGE / 100);
+        this.protectedMaximumWeight = (maximumWeight - windowMaximumWeight) * PROTECTED_PERCENTAGE / 100;
+        this.entries = entries;
+        for (Node queue : queues) {
+            queue.prev = queue;
+            queue.next = queue;
+        }
+    }
+    
+    long getMaximumWeight() {
+        return maximumWeight;
+    }
+    
+    void recordRead(String key) {
+        ReadBuffer readBuffer = readBuffers.get();
+        readBuffer.keys[readBuffer.size++] = key;
+        if (readBuffer.size == READ_BUFFER_SIZE) {
+            if (lock.tryLock()) {
+                try {
+                    drainReadBuffer(readBuffer);
+                    maintain();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            readBuffer.clear();
+        }
+    }
+    
+    void recordWrite(String key) {
+        writeBuffer.offer(key);
+        if (pendingWriteCount.incrementAndGet() > MAX_PENDING_WRITE_COUNT) {
+            // Writers wait for the policy instead of letting the cache grow while the policy is busy
+            lock.lock();
+            try {
+                maintain();
+            } finally {
+                lock.unlock();
+            }
+        }
+        // Writes might be left in the buffer if the lock was released just before they were buffered, 
+        // so buffer is checked again after releasing the lock
+        while (!writeBuffer.isEmpty() && lock.tryLock()) {
+            try {
+                maintain();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    private void drainReadBuffer(ReadBuffer readBuffer) {
+        for (int i = 0; i < readBuffer.size; i++) {
+            String key = readBuffer.keys[i];
+            sketch.increment(key);
+            Node node = nodes.get(key);
+            if (node != null) {
+                onAccess(node);
+            }
+        }
+    }
+    
+    private void maintain() {
+        String key;
+        while ((key = writeBuffer.poll()) != null) {
+            pendingWriteCount.decrementAndGet();
+            int weight = entries.getWeight(key);
+            Node node = nodes.get(key);
+            if (weight < 0) {
+                if (node != null) {
+                    nodes.remove(key);
+                    unlink(node);
+                }
+            } else if (node == null) {
+                sketch.ensureCapacity(nodes.size() + 1);
+                sketch.increment(key);
+                node = new Node(key);
+                node.weight = weight;
+                nodes.put(key, node);
+                link(WINDOW, node);
+            } else {
+                sketch.increment(key);
+                if (node.weight != weight) {
+                    queueWeights[node.queue] += weight - node.weight;
+                    totalWeight += weight - node.weight;
+                    node.weight = weight;
+                }
+                onAccess(node);
+            }
+        }
+        evict();
+    }
+    
+    private void onAccess(Node node) {
+        if (node.queue == PROBATION) {
+            unlink(node);
+            link(PROTECTED, node);
+            // Least recently used protected entries are demoted to probation to give room for the promoted one
+            while (queueWeights[PROTECTED] > protectedMaximumWeight) {
+                Node demoted = queues[PROTECTED].next;
+                unlink(demoted);
+                link(PROBATION, demoted);
+            }
+        } else {
+            unlink(node);
+            link(node.queue, node);
+        }
+    }
+    
+    private void evict() {
+        // Entries overflowing the window are moved to the end of probation as candidates
+        while (queueWeights[WINDOW] > windowMaximumWeight) {
+            Node candidate = queues[WINDOW].next;
+            unlink(candidate);
+            link(PROBATION, candidate);
+            candidate.candidate = true;
+            candidateCount++;
+        }
+        while (totalWeight > maximumWeight) {
+            Node victim = queues[PROBATION].next;
+            Node candidate = candidateCount > 0 ? queues[PROBATION].prev : null;
+            if (victim == queues[PROBATION]) {
+                // There are no entries in the main space to compare with, so LRU entries are evicted
+                victim = queues[PROTECTED].next != queues[PROTECTED] ? queues[PROTECTED].next : queues[WINDOW].next;
+                evict(victim);
+            } else if (candidate == null || candidate == victim) {
+                evict(victim);
+            } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim);
+            } else {
+                evict(candidate);
+            }
+        }
+        // Remaining candidates have been admitted
+        for (Node node = queues[PROBATION].prev; candidateCount > 0; node = node.prev, candidateCount--) {
+            node.candidate = false;
+        }
+    }
+    
+    private void evict(Node node) {
+        nodes.remove(node.key);
+        if (node.candidate) {
+            candidateCount--;
+        }
+        unlink(node);
+        entries.evict(node.key);
+    }
+    
+    private void link(int queue, Node node) {
+        Node head = queues[queue];
+        node.queue = queue;
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        queueWeights[queue] += node.weight;
+        totalWeight += node.weight;
+    }
+    
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        queueWeights[node.queue] -= node.weight;
+        totalWeight -= node.weight;
+    }
+    
+    private static final class Node {
+        
+        private final String key;
+        private int weight;
+        private int queue;
+        private boolean candidate;
+        private Node prev;
+        private Node next;
+        
+        private Node(String key) {
+            this.key = key;
+        }
+        
+    }
+    
+    private static final class ReadBuffer {
+        
+        private final String[] keys = new String[READ_BUFFER_SIZE];
+        private int size;
+        
+        private void clear() {
+            for (int i = 0; i < size; i++) {
+                keys[i] = null;
+            }
+            size = 0;
+        }
+        
+    }
+    
+    /**
+     * Count-min sketch of 4 rows with 4-bit counters, 16 counters of a key are packed into the same long 
+     * and all counters are halved once the number of increments reaches 10 times of the table length.
+     */
+    private static final class FrequencySketch {
+        
+        private static final long[] SEEDS = {
+            0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L
+        };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final long ONE_MASK = 0x1111111111111111L;
+        private static final int MIN_TABLE_LENGTH = 64;
+        
+        private long[] table = new long[MIN_TABLE_LENGTH];
+        private int sampleSize = 10 * MIN_TABLE_LENGTH;
+        private int size;
+        
+        // Table grows with the entry count, but the recorded frequencies are lost while growing
+        private void ensureCapacity(int entryCount) {
+            if (entryCount <= table.length || table.length >= (1 << 30)) {
+                return;
+            }
+            int length = Integer.highestOneBit(entryCount - 1) << 1;
+            table = new long[length];
+            sampleSize = 10 * length;
+            size = 0;
+        }
+        
+        private int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xFL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+        
+        private void increment(String key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++size == sampleSize) {
+                reset();
+            }
+        }
+        
+        private boolean incrementAt(int index, int counter) {
+            int offset = counter << 2;
+            long mask = 0xFL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+        
+        private void reset() {
+            int oddCount = 0;
+            for (int i = 0; i < table.length; i++) {
+                oddCount += Long.bitCount(table[i] & ONE_MASK);
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            size = (size >>> 1) - (oddCount >>> 2);
+        }
+        
+        private int indexOf(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return ((int) h) & (table.length - 1);
+        }
+        
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45D9F3B;
+            hash = ((hash >>> 16) ^ hash) * 0x45D9F3B;
+            return (hash >>> 16) ^ hash;
+        }
+        
+    }
+
+}
@@ -15,19 +15,31 @@
  */
 package tr.com.serkanozal.samba.cache.impl;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 import org.apache.log4j.Logger;
 
@@ -35,56 +47,35 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreamsClient;
-import com.amazonaws.services.dynamodbv2.document.Expected;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.ItemCollection;
-import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
-import com.amazonaws.services.dynamodbv2.document.Table;
-import com.amazonaws.services.dynamodbv2.document.internal.IteratorSupport;
-import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
-import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
-import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
-import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
-import com.amazonaws.services.dynamodbv2.model.DescribeStreamRequest;
-import com.amazonaws.services.dynamodbv2.model.DescribeStreamResult;
-import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
-import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
-import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
-import com.amazonaws.services.dynamodbv2.model.GetShardIteratorRequest;
-import com.amazonaws.services.dynamodbv2.model.GetShardIteratorResult;
-import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
-import com.amazonaws.services.dynamodbv2.model.KeyType;
-import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
-import com.amazonaws.services.dynamodbv2.model.Record;
-import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
-import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
-import com.amazonaws.services.dynamodbv2.model.Shard;
-import com.amazonaws.services.dynamodbv2.model.ShardIteratorType;
-import com.amazonaws.services.dynamodbv2.model.StreamRecord;
-import com.amazonaws.services.dynamodbv2.model.StreamSpecification;
-import com.amazonaws.services.dynamodbv2.model.StreamViewType;
-import com.amazonaws.services.dynamodbv2.model.TableDescription;
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.FastInput;
-import com.esotericsoftware.kryo.io.FastOutput;
 
+import tr.com.serkanozal.samba.SambaValueProxy;
 import tr.com.serkanozal.samba.cache.SambaCache;
 import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
+import tr.com.serkanozal.samba.cache.SambaCacheMetrics;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaMutation;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStore;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreChangeListener;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreMutation;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreStructure;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreType;
+import tr.com.serkanozal.samba.cache.store.impl.SambaDynamoDBGlobalStore;
+import tr.com.serkanozal.samba.cache.store.impl.SambaSharedFileGlobalStore;
 
 public class SambaGlobalCache implements SambaCache {
 
     private static final Logger LOGGER = Logger.getLogger(SambaGlobalCache.class);
     
-    private final String DYNAMO_DB_TABLE_NAME;
-    private final int DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND;
-    private final int DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND;
-    private final AmazonDynamoDB DYNAMO_DB;
-    private final Table DYNAMO_DB_TABLE;
-    private final AmazonDynamoDBStreamsClient DYNAMO_DB_STREAMS;
-    private final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = 
-            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    // Bulk results smaller than this are decoded on the caller thread,
+    // since handing them off costs more than decoding them
+    private static final int PARALLEL_DECODE_THRESHOLD = 16;
+    private static final int DECODER_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService DECODER_EXECUTOR_SERVICE = 
+            Executors.newFixedThreadPool(DECODER_COUNT, new ThreadFactory() {
                 private final ThreadFactory delegatedThreadFactory = Executors.defaultThreadFactory();
                 @Override
                 public Thread newThread(Runnable r) {
@@ -93,304 +84,359 @@ public class SambaGlobalCache implements SambaCache {
                     return t;
                 }
             });
-    private final ThreadLocal<ReusableKryo> threadLocalKryo = 
-            new ThreadLocal<ReusableKryo>() {
-                protected ReusableKryo initialValue() {
-                    return new ReusableKryo();
-                };
-            };
+    
+    // Remote calls are blocking, so async operations are executed on dedicated I/O threads
+    // and independent calls are in flight at the same time instead of one after another
+    private static final ExecutorService IO_EXECUTOR_SERVICE = 
+            Executors.newFixedThreadPool(
+                    SambaCacheProperties.getIntProperty(
+                            SambaCacheProperties.getSambaProperties(), "cache.global.ioThreadCount", 50), 
+                    new ThreadFactory() {
+                        private final ThreadFactory delegatedThreadFactory = Executors.defaultThreadFactory();
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = delegatedThreadFactory.newThread(r);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+    
+    // Values are serialized into pooled buffers which are handed to the store as they are
+    private static final SambaBufferPool BUFFER_POOL = 
+            new SambaBufferPool(Runtime.getRuntime().availableProcessors() * 4, 4096, 1024 * 1024);
+    
+    private final SambaCoalescingGlobalStore store;
+    final SambaCacheMetricsRecorder metrics = new SambaCacheMetricsRecorder();
+    private final long defaultTtlMillis;
+    private final SambaSerializer serializer;
+    // Serializers of the specific keys (fields) overriding the serializer of the cache
+    private final ConcurrentMap<String, SambaSerializer> keySerializers = 
+            new ConcurrentHashMap<String, SambaSerializer>();
     private final List<CacheChangeListener> cacheChangeListeners = 
             new CopyOnWriteArrayList<CacheChangeListener>();   
-    private final String UUID = java.util.UUID.randomUUID().toString();
+    private final AtomicBoolean storeChangeListenerRegistered = new AtomicBoolean();
     
     public SambaGlobalCache() {
-        this(null);
+        this((CacheChangeListener) null);
     }
    
     public SambaGlobalCache(CacheChangeListener cacheChangeListener) {
-        try {
-            Properties sambaProps = getProperties("samba.properties");
-            String tableName = sambaProps.getProperty("cache.global.tableName");
-            if (tableName != null) {
-                DYNAMO_DB_TABLE_NAME = tableName;
-            } else {
-                DYNAMO_DB_TABLE_NAME = "___SambaGlobalCache___";
-            }
-            String readCapacityPerSecond = sambaProps.getProperty("cache.global.readCapacityPerSecond");
-            if (readCapacityPerSecond != null) {
-                DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND = Integer.parseInt(readCapacityPerSecond);
-            } else {
-                DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND = 1000;
-            }
-            String writeCapacityPerSecond = sambaProps.getProperty("cache.global.writeCapacityPerSecond");
-            if (writeCapacityPerSecond != null) {
-                DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND = Integer.parseInt(writeCapacityPerSecond);
-            } else {
-                DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND = 100;
-            }
-            
-            /////////////////////////////////////////////////////////////////
-            
-            Properties awsProps = getProperties("aws-credentials.properties");
-            AWSCredentials awsCredentials = 
-                    new BasicAWSCredentials(
-                            awsProps.getProperty("aws.accessKey"), 
-                            awsProps.getProperty("aws.secretKey"));
-            
-            DYNAMO_DB = new AmazonDynamoDBClient(awsCredentials);
-            DYNAMO_DB_STREAMS = new AmazonDynamoDBStreamsClient(awsCredentials);
-            DYNAMO_DB_TABLE = ensureTableAvailable();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        
+        this(SambaCacheProperties.getSambaProperties(), cacheChangeListener);
+    }
+    
+    SambaGlobalCache(Properties sambaProps, CacheChangeListener cacheChangeListener) {
+        this(createGlobalStore(sambaProps), createSerializer(sambaProps), 
+             getConfiguredDefaultTtlMillis(sambaProps), cacheChangeListener);
+    }
+    
+    public SambaGlobalCache(AmazonDynamoDB dynamoDB, AmazonDynamoDBStreams dynamoDBStreams) {
+        this(dynamoDB, dynamoDBStreams, null);
+    }
+    
+    public SambaGlobalCache(AmazonDynamoDB dynamoDB, AmazonDynamoDBStreams dynamoDBStreams, 
+                            CacheChangeListener cacheChangeListener) {
+        this(createDynamoDBGlobalStore(dynamoDB, dynamoDBStreams, SambaCacheProperties.getSambaProperties()), 
+             cacheChangeListener);
+    }
+    
+    public SambaGlobalCache(SambaGlobalStore store) {
+        this(store, (CacheChangeListener) null);
+    }
+    
+    public SambaGlobalCache(SambaGlobalStore store, CacheChangeListener cacheChangeListener) {
+        this(store, createSerializer(), cacheChangeListener);
+    }
+    
+    public SambaGlobalCache(SambaGlobalStore store, SambaSerializer serializer) {
+        this(store, serializer, null);
+    }
+    
+    public SambaGlobalCache(SambaGlobalStore store, SambaSerializer serializer, 
+                            CacheChangeListener cacheChangeListener) {
+        this(store, serializer, getConfiguredDefaultTtlMillis(SambaCacheProperties.getSambaProperties()), 
+             cacheChangeListener);
+    }
+    
+    SambaGlobalCache(SambaGlobalStore store, SambaSerializer serializer, long defaultTtlMillis,
+                     CacheChangeListener cacheChangeListener) {
+        this.store = new SambaCoalescingGlobalStore(store, metrics);
+        this.serializer = serializer;
+        this.defaultTtlMillis = defaultTtlMillis;
         if (cacheChangeListener != null) {
             registerCacheChangeListener(cacheChangeListener);
         }
     }
     
+    // Changed values are given as suppliers decoding them on demand, 
+    // so values the listener is not interested in are never deserialized
     interface CacheChangeListener {
 
-        void onInsert(String key, Object value);
-        void onUpdate(String key, Object oldValue, Object newValue);
-        void onDelete(String key);
+        void onInsert(String key, Supplier<Object> value, long version, long expirationTime);
+        void onUpdate(String key, Supplier<Object> newValue, long version, long expirationTime);
+        void onDelete(String key, long oldVersion);
+        void onClear();
         
     }
-
-    private Table ensureTableAvailable() {
-        boolean tableExist = false;
-        try {
-            DYNAMO_DB.describeTable(DYNAMO_DB_TABLE_NAME);
-            tableExist = true;
-        } catch (ResourceNotFoundException e) {
-        }
-        
-        if (!tableExist) {
-            ArrayList<AttributeDefinition> attributeDefinitions = 
-                    new ArrayList<AttributeDefinition>();
-            attributeDefinitions.add(
-                    new AttributeDefinition().
-                            withAttributeName("id").
-                            withAttributeType("S"));
-    
-            ArrayList<KeySchemaElement> keySchema = new ArrayList<KeySchemaElement>();
-            keySchema.add(
-                    new KeySchemaElement().
-                            withAttributeName("id").
-                            withKeyType(KeyType.HASH));
-    
-            StreamSpecification streamSpecification = new StreamSpecification();
-            streamSpecification.setStreamEnabled(true);
-            streamSpecification.setStreamViewType(StreamViewType.NEW_AND_OLD_IMAGES);
-    
-            CreateTableRequest createTableRequest = 
-                    new CreateTableRequest().
-                            withTableName(DYNAMO_DB_TABLE_NAME).
-                            withKeySchema(keySchema).
-                            withAttributeDefinitions(attributeDefinitions).
-                            withStreamSpecification(streamSpecification).
-                            withProvisionedThroughput(
-                                    new ProvisionedThroughput().
-                                            withReadCapacityUnits((long) DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND).
-                                            withWriteCapacityUnits((long) DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND));
-            
+    
+    private static long getConfiguredDefaultTtlMillis(Properties sambaProps) {
+        return SambaCacheProperties.getLongProperty(sambaProps, "cache.global.defaultTtlMillis", NO_TTL);
+    }
+    
+    static SambaSerializer createSerializer() {
+        return createSerializer(SambaCacheProperties.getSambaProperties());
+    }
+    
+    static SambaSerializer createSerializer(Properties sambaProps) {
+        String serializerName = sambaProps.getProperty("cache.global.serializer");
+        if (serializerName == null || "KRYO".equalsIgnoreCase(serializerName.trim())) {
+            return new SambaKryoSerializer(sambaProps, "cache.global.serializer.kryo");
+        } else {
             try {
-                LOGGER.info(
-                        String.format(
-                                "Creating DynamoDB table (%s) creation, because it is not exist", 
-                                DYNAMO_DB_TABLE_NAME));
-                
-                DYNAMO_DB.createTable(createTableRequest);
-            } catch (ResourceInUseException e) { 
-                LOGGER.info(
-                        String.format(
-                                "Ignoring DynamoDB table (%s) creation, because it is already exist", 
-                                DYNAMO_DB_TABLE_NAME));
+                return (SambaSerializer) Class.forName(serializerName.trim()).getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Unable to create serializer: " + serializerName, e);
             }
+        }
+    }
+    
+    private static SambaGlobalStore createGlobalStore(Properties sambaProps) {
+        SambaGlobalStoreType storeType = SambaGlobalStoreType.DYNAMODB;
+        String storeTypeName = sambaProps.getProperty("cache.global.store");
+        if (storeTypeName != null) {
+            storeType = SambaGlobalStoreType.valueOf(storeTypeName.trim().toUpperCase());
+        }
+        switch (storeType) {
+            case DYNAMODB:
+                AWSCredentials awsCredentials = getAwsCredentials();
+                return createDynamoDBGlobalStore(
+                            new AmazonDynamoDBClient(awsCredentials), 
+                            new AmazonDynamoDBStreamsClient(awsCredentials), 
+                            sambaProps);
+            case SHARED_FILE:
+                return createSharedFileGlobalStore(sambaProps);
+            default:
+                throw new IllegalArgumentException("Unknown global store type: " + storeType);
+        }
+    }
+    
+    private static SambaGlobalStore createDynamoDBGlobalStore(AmazonDynamoDB dynamoDB, 
+                                                              AmazonDynamoDBStreams dynamoDBStreams,
+                                                              Properties sambaProps) {
+        String checkpointFilePath = sambaProps.getProperty("cache.global.stream.checkpointFile");
+        return new SambaDynamoDBGlobalStore(
+                    dynamoDB, 
+                    dynamoDBStreams,
+                    getTableName(sambaProps), 
+                    SambaCacheProperties.getIntProperty(sambaProps, "cache.global.readCapacityPerSecond", 1000), 
+                    SambaCacheProperties.getIntProperty(sambaProps, "cache.global.writeCapacityPerSecond", 100),
+                    SambaCacheProperties.getIntProperty(
+                            sambaProps, "cache.global.stream.threadCount", 
+                            SambaDynamoDBGlobalStore.DEFAULT_STREAM_THREAD_COUNT),
+                    SambaCacheProperties.getLongProperty(
+                            sambaProps, "cache.global.stream.minPollIntervalMillis", 
+                            SambaDynamoDBGlobalStore.DEFAULT_STREAM_MIN_POLL_INTERVAL_MILLIS),
+                    SambaCacheProperties.getLongProperty(
+                            sambaProps, "cache.global.stream.maxPollIntervalMillis", 
+                            SambaDynamoDBGlobalStore.DEFAULT_STREAM_MAX_POLL_INTERVAL_MILLIS),
+                    SambaCacheProperties.getLongProperty(
+                            sambaProps, "cache.global.stream.shardDiscoveryIntervalMillis", 
+                            SambaDynamoDBGlobalStore.DEFAULT_STREAM_SHARD_DISCOVERY_INTERVAL_MILLIS),
+                    checkpointFilePath != null ? new File(checkpointFilePath) : null,
+                    SambaCacheProperties.getLongProperty(
+                            sambaProps, "cache.global.generationRefreshIntervalMillis", 
+                            SambaDynamoDBGlobalStore.DEFAULT_GENERATION_REFRESH_INTERVAL_MILLIS));
+    }
+    
+    private static SambaGlobalStore createSharedFileGlobalStore(Properties sambaProps) {
+        String path = sambaProps.getProperty("cache.global.sharedFile.path");
+        File file;
+        if (path != null) {
+            file = new File(path);
         } else {
-            LOGGER.info(
-                    String.format(
-                            "Ignoring DynamoDB table (%s) creation, because it is already exist", 
-                            DYNAMO_DB_TABLE_NAME));
+            file = new File(System.getProperty("java.io.tmpdir"), getTableName(sambaProps) + ".samba");
+        }
+        return new SambaSharedFileGlobalStore(
+                    file,
+                    SambaCacheProperties.getIntProperty(sambaProps, "cache.global.sharedFile.slotCount", 16384),
+                    SambaCacheProperties.getIntProperty(sambaProps, "cache.global.sharedFile.maxKeyLength", 256),
+                    SambaCacheProperties.getIntProperty(sambaProps, "cache.global.sharedFile.maxDataLength", 4096),
+                    SambaCacheProperties.getIntProperty(sambaProps, "cache.global.sharedFile.changeRingCapacity", 65536),
+                    SambaCacheProperties.getIntProperty(sambaProps, "cache.global.sharedFile.pollIntervalMicros", 100));
+    }
+    
+    private static String getTableName(Properties sambaProps) {
+        String tableName = sambaProps.getProperty("cache.global.tableName");
+        if (tableName != null) {
+            return tableName;
+        } else {
+            return "___SambaGlobalCache___";
         }
-        
-        while (true) {
-            DescribeTableResult describeTableResult = 
-                    DYNAMO_DB.describeTable(DYNAMO_DB_TABLE_NAME);
-            TableDescription tableDescription = describeTableResult.getTable();
-            if ("ACTIVE".equals(tableDescription.getTableStatus())) {
-                break;
-            }
-            LOGGER.info(
-                    String.format(
-                            "DynamoDB table (%s) is not active yet, waiting until it is active ...", 
-                            DYNAMO_DB_TABLE_NAME));
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-            }
-        } 
-        
-        SCHEDULED_EXECUTOR_SERVICE.scheduleAtFixedRate(
-                new StreamListener(), 
-                0, 1000, TimeUnit.MILLISECONDS);
-        
-        return new Table(DYNAMO_DB, DYNAMO_DB_TABLE_NAME);
     }
     
-    private static Properties getProperties(String propFileName) throws IOException {
-        Properties props = new Properties();
+    private static AWSCredentials getAwsCredentials() {
         try {
-            InputStream in = SambaGlobalCache.class.getClassLoader().getResourceAsStream(propFileName);
-            if (in != null) {
-                props.load(in);
-            } 
-            props.putAll(System.getProperties());
-            return props;
+            Properties awsProps = SambaCacheProperties.getProperties("aws-credentials.properties");
+            return new BasicAWSCredentials(
+                        awsProps.getProperty("aws.accessKey"), 
+                        awsProps.getProperty("aws.secretKey"));
         } catch (IOException e) {
-            LOGGER.error("Error occured while loading properties from " + "'" + propFileName + "'", e);
-            throw e;
+            throw new RuntimeException(e);
         }
     }
+    
+    private class StoreChangeListener implements SambaGlobalStoreChangeListener {
 
-    private class StreamListener implements Runnable {
+        @Override
+        public void onInsert(String key, SambaGlobalStoreEntry entry) {
+            Supplier<Object> value = new LazyValue(key, entry);
+            for (CacheChangeListener listener : cacheChangeListeners) {
+                listener.onInsert(key, value, entry.getVersion(), entry.getExpirationTime());
+            }
+        }
 
-        private final ConcurrentMap<String, String> shardIteratorMap = 
-                new ConcurrentHashMap<String, String>();
-        private final AtomicBoolean inProgress = new AtomicBoolean();
-        
-        private StreamListener() {
-            execute(true);
+        @Override
+        public void onUpdate(String key, SambaGlobalStoreEntry oldEntry, SambaGlobalStoreEntry newEntry) {
+            Supplier<Object> newValue = new LazyValue(key, newEntry);
+            for (CacheChangeListener listener : cacheChangeListeners) {
+                listener.onUpdate(key, newValue, newEntry.getVersion(), newEntry.getExpirationTime());
+            }
         }
-        
+
         @Override
-        public void run() {
-            execute(false);
+        public void onDelete(String key, long oldVersion) {
+            for (CacheChangeListener listener : cacheChangeListeners) {
+                listener.onDelete(key, oldVersion);
+            }
+        }
+
+        @Override
+        public void onClear() {
+            for (CacheChangeListener listener : cacheChangeListeners) {
+                listener.onClear();
+            }
         }
         
-        private void execute(boolean initial) {
-            if (inProgress.compareAndSet(false, true)) {
-                try {
-                    DescribeTableResult describeTableResult = 
-                            DYNAMO_DB.describeTable(DYNAMO_DB_TABLE_NAME);
-                    String tableStreamArn = describeTableResult.getTable().getLatestStreamArn();
-                    DescribeStreamResult describeStreamResult = 
-                            DYNAMO_DB_STREAMS.describeStream(
-                                    new DescribeStreamRequest().withStreamArn(tableStreamArn));
-                    String streamArn = describeStreamResult.getStreamDescription().getStreamArn();
-                    List<Shard> shards = describeStreamResult.getStreamDescription().getShards();
-                    
-                    for (Shard shard : shards) {
-                        String shardId = shard.getShardId();
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.info("Processing " + shardId + " from stream " + streamArn + " ...");
-                        }
-                        
-                        String shardIterator = shardIteratorMap.get(shardId);
-                        if (shardIterator == null) {
-                            ShardIteratorType shardIteratorType = ShardIteratorType.LATEST;
-                            if (!initial) {
-                                shardIteratorType = ShardIteratorType.TRIM_HORIZON;
-                            }
-                            GetShardIteratorRequest getShardIteratorRequest = 
-                                    new GetShardIteratorRequest().
-                                            withStreamArn(tableStreamArn).
-                                            withShardId(shardId).
-                                            withShardIteratorType(shardIteratorType);
-                            GetShardIteratorResult shardIteratorResult = 
-                                DYNAMO_DB_STREAMS.getShardIterator(getShardIteratorRequest);
-                            String newShardIterator = shardIteratorResult.getShardIterator();
-                            String oldShardIterator = 
-                                    shardIteratorMap.putIfAbsent(shardId, newShardIterator);
-                            if (oldShardIterator == null) {
-                                shardIterator = newShardIterator;
-                            } else {
-                                shardIterator = oldShardIterator;
-                            }
-                        }
-                        String nextItr = shardIterator;
-                        while (nextItr != null) {
-                            GetRecordsResult getRecordsResult = 
-                                    DYNAMO_DB_STREAMS.getRecords(
-                                            new GetRecordsRequest().withShardIterator(nextItr));
-                            List<Record> records = getRecordsResult.getRecords();
-                            for (Record record : records) {
-                                StreamRecord streamRecord = record.getDynamodb();
-                                String eventName = record.getEventName();
-                                String key = streamRecord.getKeys().get("id").getS();
-                                if ("INSERT".equals(eventName)) {
-                                    byte[] newData = streamRecord.getNewImage().get("data").getB().array();
-                                    String source = streamRecord.getNewImage().get("source").getS();
-                                    Object newValue = newData != null ? deserialize(newData) : null;
-                                    if (!source.equals(UUID)) { 
-                                        for (CacheChangeListener listener : cacheChangeListeners) {
-                                            listener.onInsert(key, newValue);
-                                        }
-                                    }    
-                                } else if ("MODIFY".equals(eventName)) {
-                                    byte[] oldData = streamRecord.getOldImage().get("data").getB().array();
-                                    byte[] newData = streamRecord.getNewImage().get("data").getB().array();
-                                    String source = streamRecord.getNewImage().get("source").getS();
-                                    Object oldValue = oldData != null ? deserialize(oldData) : null;
-                                    Object newValue = newData != null ? deserialize(newData) : null;
-                                    if (!source.equals(UUID)) { 
-                                        for (CacheChangeListener listener : cacheChangeListeners) {
-                                            listener.onUpdate(key, oldValue, newValue);
-                                        }
-                                    }    
-                                } else if ("REMOVE".equals(eventName)) {
-                                    for (CacheChangeListener listener : cacheChangeListeners) {
-                                        listener.onDelete(key);
-                                    }
-                                } else {
-                                    LOGGER.warn("Unknown event name: " + eventName);
-                                }
-                            }
-                            shardIteratorMap.put(shardId, nextItr);
-                            if (records.isEmpty()) {
-                                break;
-                            }
-                            nextItr = getRecordsResult.getNextShardIterator();
-                        }
-                    }
-                } catch (Throwable t) {
-                    LOGGER.error("Error occurred while processing stream events!", t);
-                } finally {
-                    inProgress.set(false);
-                }
-            }    
+        @Override
+        public void onChangeReceived(long lagMillis) {
+            metrics.recordStreamRecord(lagMillis);
         }
         
     }
-
-    private class ReusableKryo extends Kryo {
+    
+    // Decoded at most once, since change events are dispatched to the listeners by a single thread
+    private class LazyValue implements Supplier<Object> {
         
-        private static final int BUFFER_SIZE = 4096;
+        private final String key;
+        private SambaGlobalStoreEntry entry;
+        private Object value;
         
-        private final FastOutput output = new FastOutput(BUFFER_SIZE);
-
-        private byte[] encode(Object obj) {
-            output.clear();
-            writeClassAndObject(output, obj);
-            return output.toBytes();
+        private LazyValue(String key, SambaGlobalStoreEntry entry) {
+            this.key = key;
+            this.entry = entry;
         }
         
-        private Object decode(byte[] data) {
-            return readClassAndObject(new FastInput(data));
+        // Entry without data (like an emptied structure) has no value
+        @Override
+        public Object get() {
+            if (entry != null) {
+                value = entry.getDataBuffer() != null ? deserialize(key, entry) : null;
+                entry = null;
+            }
+            return value;
+        }
+        
+    }
+
+    private SambaSerializer getSerializer(String key) {
+        if (keySerializers.isEmpty()) {
+            return serializer;
         }
+        SambaSerializer keySerializer = keySerializers.get(key);
+        return keySerializer != null ? keySerializer : serializer;
     }
     
-    private byte[] serialize(Object obj) {
-        return threadLocalKryo.get().encode(obj);
+    private byte[] serialize(String key, Object obj) {
+        byte[] data = getSerializer(key).serialize(obj);
+        metrics.recordSerializedSize(data.length);
+        return data;
     }
     
+    // Returned buffer (given or grown one) must be released back to the pool once the data has been written
+    private ByteBuffer serializeIntoBuffer(String key, Object obj) {
+        ByteBuffer data = getSerializer(key).serialize(obj, BUFFER_POOL.acquire());
+        metrics.recordSerializedSize(data.remaining());
+        return data;
+    }
+    
+    // Structured entries are decoded from their structures whose elements are serialized by the serializer of the key
     @SuppressWarnings("unchecked")
-    private <T> T deserialize(byte[] data) {
-        return (T) threadLocalKryo.get().decode(data);
+    private <T> T deserialize(String key, SambaGlobalStoreEntry entry) {
+        ByteBuffer data = entry.getDataBuffer();
+        metrics.recordSerializedSize(data.remaining());
+        SambaSerializer keySerializer = getSerializer(key);
+        if (entry.isStructured()) {
+            return (T) SambaGlobalStoreStructure.decode(data, keySerializer::deserialize);
+        }
+        return (T) keySerializer.deserialize(data);
+    }
+    
+    /**
+     * Serializes values of the given key by the given serializer instead of the serializer of the cache. 
+     * All processes sharing the key must use the same serializer for it.
+     */
+    @Override
+    public void registerSerializer(String key, SambaSerializer serializer) {
+        keySerializers.put(key, serializer);
+    }
+    
+    public SambaGlobalStore getStore() {
+        return store.getStore();
+    }
+    
+    /**
+     * Gets the number of reads which have found an entry in the global store.
+     */
+    public long getHitCount() {
+        return metrics.getGlobalHitCount();
+    }
+    
+    /**
+     * Gets the number of reads which have not found any entry in the global store.
+     */
+    public long getMissCount() {
+        return metrics.getGlobalMissCount();
+    }
+    
+    /**
+     * Gets the number of reads which have been served by a concurrent read of the same key 
+     * instead of reading from the global store by themselves.
+     */
+    public long getCoalescedReadCount() {
+        return metrics.getCoalescedReadCount();
+    }
+    
+    @Override
+    public SambaCacheMetrics getMetrics() {
+        return metrics.snapshot();
+    }
+    
+    private long toExpirationTime(long ttl, TimeUnit timeUnit) {
+        if (ttl == DEFAULT_TTL) {
+            return SambaGlobalStoreEntry.toExpirationTime(defaultTtlMillis, TimeUnit.MILLISECONDS);
+        }
+        return SambaGlobalStoreEntry.toExpirationTime(ttl, timeUnit);
+    }
+    
+    private long getDefaultExpirationTime() {
+        return toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
     }
     
     public void registerCacheChangeListener(CacheChangeListener cacheChangeListener) {
         cacheChangeListeners.add(cacheChangeListener);
+        // Store is listened only if there is someone interested in changes
+        if (storeChangeListenerRegistered.compareAndSet(false, true)) {
+            store.registerChangeListener(new StoreChangeListener());
+        }
     }
     
     public void deregisterCacheChangeListener(CacheChangeListener cacheChangeListener) {
@@ -407,29 +453,37 @@ public class SambaGlobalCache implements SambaCache {
         return SambaCacheConsistencyModel.STRONG_CONSISTENCY;
     }
 
+    /**
+     * Gets the value in a detached value proxy (see {@link SambaValueProxy#detached(Object, long)}) 
+     * which carries the version of the value, so the value is not served locally again 
+     * but compare-and-set can be done by its version.
+     */
+    @SuppressWarnings("unchecked")
     @Override
     public <V> V get(String key) {
-        V value;
-        Item item = 
-                DYNAMO_DB_TABLE.getItem(
-                        new GetItemSpec().
-                                withPrimaryKey("id", key).
-                                withConsistentRead(true));
-        if (item == null) {
-            value = null;
+        return (V) getEntry(key);
+    }
+    
+    private SambaValueProxy getEntry(String key) {
+        SambaValueProxy valueProxy;
+        SambaGlobalStoreEntry entry = store.get(key);
+        if (entry == null) {
+            valueProxy = null;
         } else {
-            byte[] data = item.getBinary("data");
-            if (data == null) {
-                value = null;
-            } else {
-                value = deserialize(data);
-            }
-        }    
+            valueProxy = 
+                    SambaValueProxy.detached(
+                            deserialize(key, entry), entry.getVersion(), entry.getExpirationTime());
+        }
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
-                    String.format("Value %s has been retrieved from global cache with key %s", key, value));
+                    String.format("Value %s has been retrieved from global cache with key %s", 
+                                  key, valueProxy != null ? valueProxy.getObservedValue() : null));
         }
-        return value;
+        return valueProxy;
+    }
+    
+    private static Object unwrapValue(SambaValueProxy valueProxy) {
+        return valueProxy != null ? valueProxy.getObservedValue() : null;
     }
     
     @Override
@@ -439,59 +493,152 @@ public class SambaGlobalCache implements SambaCache {
 
     @Override
     public void put(String key, Object value) {
+        put(key, value, DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public void put(String key, Object value, long ttl, TimeUnit timeUnit) {
         if (value == null) {
             remove(key);
         } else {
-            byte[] data = serialize(value);
-            Item item = 
-                    new Item().
-                        withPrimaryKey("id", key).
-                        withBinary("data", data).
-                        with("source", UUID);
-            DYNAMO_DB_TABLE.putItem(item);
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug(
-                        String.format("Value %s has been put into global cache with key %s", key, value));
-            }
+            putAndGetVersion(key, value, toExpirationTime(ttl, timeUnit));
         }    
     }
     
+    /**
+     * Puts the value and returns it in a detached value proxy carrying its version like {@link #get(String)} does,
+     * so the value is still not served locally but it can be compare-and-set by its version without reading it.
+     */
     @Override
-    public boolean replace(String key, Object oldValue, Object newValue) {
-        boolean replaced = false;
-        if (oldValue == null && newValue != null) {
-            byte[] newData = serialize(newValue);
-            Item item = 
-                    new Item().
-                        withPrimaryKey("id", key).
-                        withBinary("data", newData).
-                        with("source", UUID);
-            try {
-                DYNAMO_DB_TABLE.putItem(item, new Expected("id").notExist());
-                replaced = true;
-            } catch (ConditionalCheckFailedException e) {
-            }
-        } else if (oldValue != null && newValue == null) {
-            byte[] oldData = serialize(oldValue);
+    public SambaValueProxy putAndGetProxy(String key, Object value, long ttl, TimeUnit timeUnit) {
+        long expirationTime = toExpirationTime(ttl, timeUnit);
+        return SambaValueProxy.detached(value, putAndGetVersion(key, value, expirationTime), expirationTime);
+    }
+    
+    // Returns the version of the put value, so tiered cache can keep it in its near-cache
+    long putAndGetVersion(String key, Object value, long expirationTime) {
+        ByteBuffer data = serializeIntoBuffer(key, value);
+        long version;
+        try {
+            version = store.put(key, data, expirationTime);
+        } finally {
+            BUFFER_POOL.release(data);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value %s has been put into global cache with key %s", key, value));
+        }
+        return version;
+    }
+    
+    /**
+     * Gets the values in detached value proxies like {@link #get(String)} does.
+     */
+    @Override
+    public <V> Map<String, V> getAll(Collection<String> keys) {
+        Map<String, SambaGlobalStoreEntry> entryMap = store.getAll(keys);
+        Map<String, V> values;
+        if (entryMap.isEmpty()) {
+            values = Collections.emptyMap();
+        } else if (entryMap.size() < PARALLEL_DECODE_THRESHOLD || DECODER_COUNT == 1) {
+            values = decodeAll(new ArrayList<Map.Entry<String, SambaGlobalStoreEntry>>(entryMap.entrySet()));
+        } else {
+            values = decodeAllInParallel(new ArrayList<Map.Entry<String, SambaGlobalStoreEntry>>(entryMap.entrySet()));
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d values have been retrieved from global cache with keys %s", 
+                                  values.size(), keys));
+        }
+        return values;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <V> Map<String, V> decodeAll(List<Map.Entry<String, SambaGlobalStoreEntry>> entries) {
+        Map<String, V> values = new HashMap<String, V>(entries.size());
+        for (Map.Entry<String, SambaGlobalStoreEntry> entry : entries) {
+            SambaGlobalStoreEntry storeEntry = entry.getValue();
+            Object value = deserialize(entry.getKey(), storeEntry);
+            values.put(
+                    entry.getKey(), 
+                    (V) SambaValueProxy.detached(value, storeEntry.getVersion(), storeEntry.getExpirationTime()));
+        }
+        return values;
+    }
+    
+    private <V> Map<String, V> decodeAllInParallel(List<Map.Entry<String, SambaGlobalStoreEntry>> entries) {
+        int chunkCount = Math.min(DECODER_COUNT, entries.size() / PARALLEL_DECODE_THRESHOLD + 1);
+        int chunkSize = (entries.size() + chunkCount - 1) / chunkCount;
+        List<Future<Map<String, V>>> futures = new ArrayList<Future<Map<String, V>>>(chunkCount - 1);
+        // First chunk is decoded by the caller thread itself while others are decoded by decoders
+        for (int i = chunkSize; i < entries.size(); i += chunkSize) {
+            final List<Map.Entry<String, SambaGlobalStoreEntry>> chunk = 
+                    entries.subList(i, Math.min(i + chunkSize, entries.size()));
+            futures.add(DECODER_EXECUTOR_SERVICE.submit(new Callable<Map<String, V>>() {
+                @Override
+                public Map<String, V> call() throws Exception {
+                    return decodeAll(chunk);
+                }
+            }));
+        }
+        Map<String, V> values = new HashMap<String, V>(entries.size());
+        values.putAll(this.<V>decodeAll(entries.subList(0, Math.min(chunkSize, entries.size()))));
+        for (Future<Map<String, V>> future : futures) {
             try {
-                DYNAMO_DB_TABLE.deleteItem("id", key, new Expected("data").eq(oldData));
-                replaced = true;
-            } catch (ConditionalCheckFailedException e) {
+                values.putAll(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while decoding values", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Unable to decode values", e.getCause());
             }
-        } else if (oldValue != null && newValue != null) {
-            byte[] oldData = serialize(oldValue);
-            byte[] newData = serialize(newValue);
-            Item item = 
-                    new Item().
-                        withPrimaryKey("id", key).
-                        withBinary("data", newData).
-                        with("source", UUID);
-            try {
-                DYNAMO_DB_TABLE.putItem(item, new Expected("data").eq(oldData));
-                replaced = true;
-            } catch (ConditionalCheckFailedException e) {
+        }
+        return values;
+    }
+    
+    @Override
+    public void putAll(Map<String, ?> entries) {
+        putAll(entries, getDefaultExpirationTime());
+    }
+    
+    void putAll(Map<String, ?> entries, long expirationTime) {
+        Map<String, byte[]> dataMap = new HashMap<String, byte[]>(entries.size());
+        List<String> removedKeys = new ArrayList<String>();
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            if (entry.getValue() == null) {
+                removedKeys.add(entry.getKey());
+            } else {
+                dataMap.put(entry.getKey(), serialize(entry.getKey(), entry.getValue()));
             }
+        }
+        if (!dataMap.isEmpty()) {
+            store.putAll(dataMap, expirationTime);
+        }
+        if (!removedKeys.isEmpty()) {
+            store.removeAll(removedKeys);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d values have been put into global cache", entries.size()));
+        }
+    }
+    
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue) {
+        return replace(key, oldValue, newValue, DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue, long ttl, TimeUnit timeUnit) {
+        boolean replaced = false;
+        if (oldValue != null && newValue == null) {
+            replaced = removeIfEqual(key, oldValue);
+        } else if (newValue != null) {
+            replaced = 
+                    replaceAndGetVersion(key, oldValue, newValue, toExpirationTime(ttl, timeUnit)) 
+                        != SambaGlobalStoreEntry.NO_VERSION;
         }    
+        metrics.recordCas(replaced);
         if (replaced && LOGGER.isDebugEnabled()) {
             LOGGER.debug(
                     String.format("Old value %s has been replaced with new value %s " + 
@@ -499,10 +646,232 @@ public class SambaGlobalCache implements SambaCache {
         }
         return replaced;
     }
+    
+    @Override
+    public SambaValueProxy replaceAndGetProxy(String key, Object oldValue, Object newValue, 
+                                              long ttl, TimeUnit timeUnit) {
+        long expirationTime = toExpirationTime(ttl, timeUnit);
+        long version = replaceAndGetVersion(key, oldValue, newValue, expirationTime);
+        return toReplacedProxy(key, newValue, version, expirationTime);
+    }
+    
+    private SambaValueProxy toReplacedProxy(String key, Object newValue, long version, long expirationTime) {
+        boolean replaced = version != SambaGlobalStoreEntry.NO_VERSION;
+        metrics.recordCas(replaced);
+        if (!replaced) {
+            return null;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value with key %s has been replaced with new value %s", key, newValue));
+        }
+        return SambaValueProxy.detached(newValue, version, expirationTime);
+    }
+    
+    // Returns the version of the new value or NO_VERSION if the current value is not the old value
+    long replaceAndGetVersion(String key, Object oldValue, Object newValue, long expirationTime) {
+        ByteBuffer newData = serializeIntoBuffer(key, newValue);
+        try {
+            return replaceDataAndGetVersion(key, oldValue, newData, expirationTime);
+        } finally {
+            BUFFER_POOL.release(newData);
+        }
+    }
+    
+    // Old value is only known by value, so current entry is read to learn its version 
+    // and then it is replaced on condition of that version
+    private long replaceDataAndGetVersion(String key, Object oldValue, ByteBuffer newData, long expirationTime) {
+        if (oldValue == null) {
+            return store.putIfAbsent(key, newData, expirationTime);
+        }
+        for (;;) {
+            SambaGlobalStoreEntry entry = store.get(key);
+            if (entry == null || !isEqual(key, entry, oldValue)) {
+                return SambaGlobalStoreEntry.NO_VERSION;
+            }
+            long version = store.replace(key, entry.getVersion(), newData, expirationTime);
+            if (version != SambaGlobalStoreEntry.NO_VERSION) {
+                return version;
+            }
+            // Entry has been updated in the meantime, but it might still have an equal value
+        }
+    }
+    
+    private boolean removeIfEqual(String key, Object oldValue) {
+        for (;;) {
+            SambaGlobalStoreEntry entry = store.get(key);
+            if (entry == null || !isEqual(key, entry, oldValue)) {
+                return false;
+            }
+            if (store.remove(key, entry.getVersion())) {
+                return true;
+            }
+        }
+    }
+    
+    // Serialized forms are compared only as fallback for the values which don't override equals
+    private boolean isEqual(String key, SambaGlobalStoreEntry entry, Object value) {
+        if (value.equals(deserialize(key, entry))) {
+            return true;
+        }
+        ByteBuffer data = serializeIntoBuffer(key, value);
+        try {
+            return data.equals(entry.getDataBuffer());
+        } finally {
+            BUFFER_POOL.release(data);
+        }
+    }
+    
+    @Override
+    public boolean replaceIfVersion(String key, long oldVersion, Object newValue) {
+        return replaceIfVersion(key, oldVersion, newValue, DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public boolean replaceIfVersion(String key, long oldVersion, Object newValue, long ttl, TimeUnit timeUnit) {
+        boolean replaced;
+        if (newValue == null) {
+            replaced = store.remove(key, oldVersion);
+        } else {
+            replaced = 
+                    replaceIfVersionAndGetVersion(key, oldVersion, newValue, toExpirationTime(ttl, timeUnit)) 
+                        != SambaGlobalStoreEntry.NO_VERSION;
+        }
+        metrics.recordCas(replaced);
+        if (replaced && LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value with version %d has been replaced with new value %s " + 
+                                  "assigned to key %s", oldVersion, newValue, key));
+        }
+        return replaced;
+    }
+    
+    @Override
+    public SambaValueProxy replaceIfVersionAndGetProxy(String key, long oldVersion, Object newValue, 
+                                                       long ttl, TimeUnit timeUnit) {
+        long expirationTime = toExpirationTime(ttl, timeUnit);
+        long version = replaceIfVersionAndGetVersion(key, oldVersion, newValue, expirationTime);
+        return toReplacedProxy(key, newValue, version, expirationTime);
+    }
+    
+    // Returns the version of the new value or NO_VERSION if the entry doesn't have the old version
+    long replaceIfVersionAndGetVersion(String key, long oldVersion, Object newValue, long expirationTime) {
+        ByteBuffer newData = serializeIntoBuffer(key, newValue);
+        try {
+            return store.replace(key, oldVersion, newData, expirationTime);
+        } finally {
+            BUFFER_POOL.release(newData);
+        }
+    }
+
+    // Counter serializer is registered for the key of the counter, 
+    // so the counter is also decoded correctly by the reads and by the propagations of its changes
+    void registerCounter(String key) {
+        if (keySerializers.get(key) != SambaCounterSerializer.INSTANCE) {
+            keySerializers.put(key, SambaCounterSerializer.INSTANCE);
+        }
+    }
+    
+    @Override
+    public long getCounter(String key) {
+        registerCounter(key);
+        SambaGlobalStoreEntry entry = store.get(key);
+        return entry != null ? SambaGlobalStoreEntry.toCounter(entry.getDataBuffer()) : 0;
+    }
+    
+    @Override
+    public long addAndGetCounter(String key, long delta) {
+        SambaGlobalStoreEntry entry = addAndGetCounterEntry(key, delta, getDefaultExpirationTime());
+        return SambaGlobalStoreEntry.toCounter(entry.getDataBuffer());
+    }
+    
+    // Returns the entry of the counter, so tiered cache can keep it in its near-cache with its version
+    SambaGlobalStoreEntry addAndGetCounterEntry(String key, long delta, long expirationTime) {
+        registerCounter(key);
+        SambaGlobalStoreEntry entry = store.addAndGetCounter(key, delta, expirationTime);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d has been added to counter with key %s in global cache", delta, key));
+        }
+        return entry;
+    }
+    
+    @Override
+    public long getAndSetCounter(String key, long newValue) {
+        return getAndSetCounter(key, newValue, getDefaultExpirationTime());
+    }
+    
+    long getAndSetCounter(String key, long newValue, long expirationTime) {
+        registerCounter(key);
+        SambaGlobalStoreEntry oldEntry = store.getAndSetCounter(key, newValue, expirationTime);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Counter with key %s has been set to %d in global cache", key, newValue));
+        }
+        return oldEntry != null ? SambaGlobalStoreEntry.toCounter(oldEntry.getDataBuffer()) : 0;
+    }
+
+    @Override
+    public void mutate(String key, SambaMutation mutation) {
+        mutate(key, mutation, getDefaultExpirationTime());
+    }
+    
+    void mutate(String key, SambaMutation mutation, long expirationTime) {
+        long version = store.mutate(key, toStoreMutation(key, mutation), expirationTime);
+        if (version == SambaGlobalStoreEntry.NO_VERSION) {
+            // Declined by the store, so the mutation is applied to the serialized value by compare-and-set
+            mutateByCompareAndSet(key, mutation, expirationTime);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value with key %s has been mutated by %s in global cache", key, mutation));
+        }
+    }
+    
+    // Set elements are compared by their serialized forms on the store side, so they are deduplicated by them
+    private SambaGlobalStoreMutation toStoreMutation(String key, SambaMutation mutation) {
+        Collection<ByteBuffer> elements;
+        if (mutation.getType() == SambaGlobalStoreMutation.Type.SET_ADD 
+                || mutation.getType() == SambaGlobalStoreMutation.Type.SET_REMOVE) {
+            elements = new LinkedHashSet<ByteBuffer>();
+        } else {
+            elements = new ArrayList<ByteBuffer>(mutation.getElements().size());
+        }
+        for (Object element : mutation.getElements()) {
+            elements.add(ByteBuffer.wrap(serialize(key, element)));
+        }
+        return new SambaGlobalStoreMutation(
+                    mutation.getType(), new ArrayList<ByteBuffer>(elements), mutation.getMapKey(), mutation.getDelta());
+    }
+    
+    private void mutateByCompareAndSet(String key, SambaMutation mutation, long expirationTime) {
+        for (;;) {
+            SambaGlobalStoreEntry entry = store.get(key);
+            Object value = entry != null ? deserialize(key, entry) : null;
+            Object newValue = mutation.apply(value);
+            if (newValue == value) {
+                return;
+            }
+            boolean replaced;
+            if (entry == null) {
+                replaced = replaceAndGetVersion(key, null, newValue, expirationTime) != SambaGlobalStoreEntry.NO_VERSION;
+            } else if (newValue == null) {
+                replaced = store.remove(key, entry.getVersion());
+            } else {
+                replaced = 
+                        replaceIfVersionAndGetVersion(key, entry.getVersion(), newValue, entry.getExpirationTime()) 
+                            != SambaGlobalStoreEntry.NO_VERSION;
+            }
+            metrics.recordCas(replaced);
+            if (replaced) {
+                return;
+            }
+        }
+    }
 
     @Override
     public void remove(String key) {
-        DYNAMO_DB_TABLE.deleteItem("id", key);
+        store.remove(key);
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
                     String.format("Value has been removed from global cache with key %s", key));
@@ -510,13 +879,164 @@ public class SambaGlobalCache implements SambaCache {
     }
     
     @Override
-    public void clear() {
-        ItemCollection<ScanOutcome> items = DYNAMO_DB_TABLE.scan();
-        IteratorSupport<Item, ScanOutcome> itemsIter = items.iterator();
-        while (itemsIter.hasNext()) {
-            Item item = itemsIter.next();
-            DYNAMO_DB_TABLE.deleteItem("id", item.get("id"));
+    public void removeAll(Collection<String> keys) {
+        if (!keys.isEmpty()) {
+            store.removeAll(keys);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Values have been removed from global cache with keys %s", keys));
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> CompletableFuture<V> getAsync(String key) {
+        return CompletableFuture.supplyAsync(() -> (V) unwrapValue(getEntry(key)), IO_EXECUTOR_SERVICE);
+    }
+    
+    // Completes with detached value proxy, so tiered cache can keep version of the value
+    CompletableFuture<SambaValueProxy> getEntryAsync(String key) {
+        return CompletableFuture.supplyAsync(() -> getEntry(key), IO_EXECUTOR_SERVICE);
+    }
+    
+    @Override
+    public <V> CompletableFuture<V> refreshAsync(String key) {
+        return getAsync(key);
+    }
+    
+    @Override
+    public CompletableFuture<Void> putAsync(String key, Object value) {
+        return putAsync(key, value, getDefaultExpirationTime());
+    }
+    
+    CompletableFuture<Void> putAsync(String key, Object value, long expirationTime) {
+        if (value == null) {
+            return removeAsync(key);
         }
+        // Serialized on the caller thread, so later changes on the value are not reflected
+        ByteBuffer data = serializeIntoBuffer(key, value);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                store.put(key, data, expirationTime);
+            } finally {
+                BUFFER_POOL.release(data);
+            }
+        }, IO_EXECUTOR_SERVICE);
+    }
+    
+    @Override
+    public CompletableFuture<Boolean> replaceAsync(String key, Object oldValue, Object newValue) {
+        return replaceAsync(key, oldValue, newValue, getDefaultExpirationTime());
+    }
+    
+    CompletableFuture<Boolean> replaceAsync(String key, Object oldValue, Object newValue, long expirationTime) {
+        ByteBuffer newData = newValue != null ? serializeIntoBuffer(key, newValue) : null;
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                boolean replaced = false;
+                if (oldValue != null && newData == null) {
+                    replaced = removeIfEqual(key, oldValue);
+                } else if (newData != null) {
+                    replaced = replaceDataAndGetVersion(key, oldValue, newData, expirationTime) 
+                                    != SambaGlobalStoreEntry.NO_VERSION;
+                }
+                metrics.recordCas(replaced);
+                return replaced;
+            } finally {
+                BUFFER_POOL.release(newData);
+            }
+        }, IO_EXECUTOR_SERVICE);
+    }
+    
+    @Override
+    public CompletableFuture<Boolean> replaceIfVersionAsync(String key, long oldVersion, Object newValue) {
+        return replaceIfVersionAsync(key, oldVersion, newValue, getDefaultExpirationTime());
+    }
+    
+    // Replaced by the store on condition of the version in a single request, so the values are not compared
+    CompletableFuture<Boolean> replaceIfVersionAsync(String key, long oldVersion, Object newValue, 
+                                                     long expirationTime) {
+        ByteBuffer newData = newValue != null ? serializeIntoBuffer(key, newValue) : null;
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                boolean replaced;
+                if (newData == null) {
+                    replaced = store.remove(key, oldVersion);
+                } else {
+                    replaced = store.replace(key, oldVersion, newData, expirationTime) 
+                                    != SambaGlobalStoreEntry.NO_VERSION;
+                }
+                metrics.recordCas(replaced);
+                return replaced;
+            } finally {
+                BUFFER_POOL.release(newData);
+            }
+        }, IO_EXECUTOR_SERVICE);
+    }
+    
+    @Override
+    public CompletableFuture<SambaValueProxy> putAndGetProxyAsync(String key, Object value) {
+        long expirationTime = getDefaultExpirationTime();
+        return putAndGetVersionAsync(key, value, expirationTime).thenApply(
+                    version -> SambaValueProxy.detached(value, version, expirationTime));
+    }
+    
+    @Override
+    public CompletableFuture<SambaValueProxy> replaceAndGetProxyAsync(String key, Object oldValue, Object newValue) {
+        long expirationTime = getDefaultExpirationTime();
+        return replaceAndGetVersionAsync(key, oldValue, newValue, expirationTime).thenApply(
+                    version -> toReplacedProxy(key, newValue, version, expirationTime));
+    }
+    
+    @Override
+    public CompletableFuture<SambaValueProxy> replaceIfVersionAndGetProxyAsync(String key, long oldVersion, 
+                                                                                Object newValue) {
+        long expirationTime = getDefaultExpirationTime();
+        return replaceIfVersionAndGetVersionAsync(key, oldVersion, newValue, expirationTime).thenApply(
+                    version -> toReplacedProxy(key, newValue, version, expirationTime));
+    }
+    
+    // Async variants of the writes returning versions, so tiered cache can keep the written values in its near-cache
+    CompletableFuture<Long> putAndGetVersionAsync(String key, Object value, long expirationTime) {
+        return writeAsync(key, value, data -> store.put(key, data, expirationTime));
+    }
+    
+    CompletableFuture<Long> replaceAndGetVersionAsync(String key, Object oldValue, Object newValue, 
+                                                      long expirationTime) {
+        return writeAsync(key, newValue, data -> replaceDataAndGetVersion(key, oldValue, data, expirationTime));
+    }
+    
+    CompletableFuture<Long> replaceIfVersionAndGetVersionAsync(String key, long oldVersion, Object newValue, 
+                                                               long expirationTime) {
+        return writeAsync(key, newValue, data -> store.replace(key, oldVersion, data, expirationTime));
+    }
+    
+    // Serialized on the caller thread, so later changes on the value are not reflected
+    private CompletableFuture<Long> writeAsync(String key, Object value, ToLongFunction<ByteBuffer> write) {
+        ByteBuffer data = serializeIntoBuffer(key, value);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return write.applyAsLong(data);
+            } finally {
+                BUFFER_POOL.release(data);
+            }
+        }, IO_EXECUTOR_SERVICE);
+    }
+    
+    @Override
+    public CompletableFuture<Void> removeAsync(String key) {
+        return CompletableFuture.runAsync(() -> remove(key), IO_EXECUTOR_SERVICE);
+    }
+    
+    // Writes are not queued, so there is nothing to flush
+    @Override
+    public void flush() {
+    }
+    
+    @Override
+    public void clear() {
+        store.clear();
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Global cache has been cleared");
         }
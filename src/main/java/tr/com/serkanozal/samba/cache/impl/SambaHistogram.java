@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import tr.com.serkanozal.samba.cache.SambaCacheMetrics;
+
+/**
+ * Concurrent histogram of non-negative values with log-linear buckets (as <b>HdrHistogram</b>).
+ *
+ * Every power of two range is split into {@link #SUB_BUCKET_COUNT} equal buckets, so the width of a bucket
+ * is at most about 3% of its values, while the whole <code>long</code> range is covered by
+ * a fixed array of counters. Recording a value is a few bit operations and an atomic increment
+ * without any allocation or lock.
+ */
+final class SambaHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values are non-negative, so the highest one bit is at most the 63rd one
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+    private static final long[] PERCENTILES_PER_MILLE = { 500, 900, 990, 999 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    // Values smaller than twice the sub-bucket count have their own buckets and bigger ones are shifted,
+    // so their highest sub-bucket bits (after the highest one bit) select the bucket in their power of two range
+    static int bucketIndex(long value) {
+        if (value < (SUB_BUCKET_COUNT << 1)) {
+            return (int) value;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long bucketUpperBound(int bucketIndex) {
+        if (bucketIndex < (SUB_BUCKET_COUNT << 1)) {
+            return bucketIndex;
+        }
+        int shift = bucketIndex / SUB_BUCKET_COUNT - 1;
+        long nextBucketLowerBound = (long) (bucketIndex % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT + 1) << shift;
+        // Upper bound of the last bucket overflows
+        return nextBucketLowerBound > 0 ? nextBucketLowerBound - 1 : Long.MAX_VALUE;
+    }
+
+    SambaCacheMetrics.Histogram snapshot() {
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bucketCounts[i] = counts.get(i);
+            count += bucketCounts[i];
+        }
+        long maxValue = max.get();
+        long[] percentiles = new long[PERCENTILES_PER_MILLE.length];
+        if (count > 0) {
+            int percentile = 0;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT && percentile < percentiles.length; i++) {
+                seen += bucketCounts[i];
+                // Ranks are rounded up, so percentile of a single value is that value
+                while (percentile < percentiles.length
+                        && seen * 1000 >= PERCENTILES_PER_MILLE[percentile] * count) {
+                    // Upper bound of the bucket never exceeds the max value which has been recorded
+                    percentiles[percentile++] = Math.min(bucketUpperBound(i), maxValue);
+                }
+            }
+        }
+        return new Snapshot(count, count > 0 ? (double) sum.sum() / count : 0, maxValue, percentiles);
+    }
+
+    private static final class Snapshot implements SambaCacheMetrics.Histogram {
+
+        private final long count;
+        private final double mean;
+        private final long max;
+        private final long[] percentiles;
+
+        private Snapshot(long count, double mean, long max, long[] percentiles) {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.percentiles = percentiles;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public double getMean() {
+            return mean;
+        }
+
+        @Override
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public long getPercentile50() {
+            return percentiles[0];
+        }
+
+        @Override
+        public long getPercentile90() {
+            return percentiles[1];
+        }
+
+        @Override
+        public long getPercentile99() {
+            return percentiles[2];
+        }
+
+        @Override
+        public long getPercentile999() {
+            return percentiles[3];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{count=%d, mean=%.2f, max=%d, p50=%d, p90=%d, p99=%d, p99.9=%d}",
+                                 count, mean, max, percentiles[0], percentiles[1], percentiles[2], percentiles[3]);
+        }
+
+    }
+
+}
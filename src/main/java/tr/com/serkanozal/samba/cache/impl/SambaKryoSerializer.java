@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.io.UnsafeInput;
+import com.esotericsoftware.kryo.io.UnsafeOutput;
+
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+
+/**
+ * Default {@link SambaSerializer} implementation based on <b>Kryo</b>.
+ *
+ * Strings, byte arrays, byte buffers and boxed primitives are written in their raw forms
+ * behind a single type tag without going through <b>Kryo</b> at all. Other values are written by <b>Kryo</b>
+ * with their class names, or with their IDs if their classes are registered, so registering the classes
+ * of the values makes them smaller. Registrations must be the same on all the processes sharing the values.
+ *
+ * Reference tracking (enabled by default) is only needed for object graphs with shared or cyclic references.
+ * Unsafe I/O (disabled by default) writes values faster in fixed lengths instead of variable lengths
+ * and in native byte order, so it can only be enabled when all the processes run on the same architecture.
+ */
+public class SambaKryoSerializer implements SambaSerializer {
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final byte[] EMPTY_BUFFER = new byte[0];
+    private static final int MAX_VAR_LONG_SIZE = 10;
+
+    private static final byte TAG_KRYO = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_BYTE_ARRAY = 2;
+    private static final byte TAG_BYTE_BUFFER = 3;
+    private static final byte TAG_INTEGER = 4;
+    private static final byte TAG_LONG = 5;
+    private static final byte TAG_DOUBLE = 6;
+    private static final byte TAG_FLOAT = 7;
+    private static final byte TAG_SHORT = 8;
+    private static final byte TAG_BYTE = 9;
+    private static final byte TAG_CHARACTER = 10;
+    private static final byte TAG_BOOLEAN = 11;
+
+    private final Map<Class<?>, Integer> registeredClasses;
+    private final boolean referenceTracking;
+    private final boolean unsafe;
+    private final ThreadLocal<ReusableKryo> threadLocalKryo =
+            new ThreadLocal<ReusableKryo>() {
+                protected ReusableKryo initialValue() {
+                    return new ReusableKryo();
+                };
+            };
+
+    public SambaKryoSerializer() {
+        this(Collections.<Class<?>, Integer>emptyMap(), true, false);
+    }
+
+    /**
+     * @param registeredClasses the classes to be registered with their IDs,
+     *                          <code>null</code> IDs are assigned by <b>Kryo</b> in the iteration order.
+     *                          Note that IDs from <code>0</code> to <code>9</code> are used by <b>Kryo</b> itself.
+     * @param referenceTracking <code>true</code> to track shared and cyclic references in object graphs
+     * @param unsafe <code>true</code> to use unsafe I/O in native byte order
+     */
+    public SambaKryoSerializer(Map<Class<?>, Integer> registeredClasses, boolean referenceTracking, boolean unsafe) {
+        this.registeredClasses = new LinkedHashMap<Class<?>, Integer>(registeredClasses);
+        this.referenceTracking = referenceTracking;
+        this.unsafe = unsafe;
+    }
+
+    SambaKryoSerializer(Properties sambaProps, String propPrefix) {
+        this(getRegisteredClasses(sambaProps.getProperty(propPrefix + ".registrations")),
+             SambaCacheProperties.getBooleanProperty(sambaProps, propPrefix + ".referenceTracking", true),
+             SambaCacheProperties.getBooleanProperty(sambaProps, propPrefix + ".unsafe", false));
+    }
+
+    // Registrations are given as comma separated list of "<class name>[:<id>]"
+    private static Map<Class<?>, Integer> getRegisteredClasses(String registrations) {
+        Map<Class<?>, Integer> registeredClasses = new LinkedHashMap<Class<?>, Integer>();
+        if (registrations == null) {
+            return registeredClasses;
+        }
+        for (String registration : registrations.split(",")) {
+            registration = registration.trim();
+            if (registration.isEmpty()) {
+                continue;
+            }
+            int separatorIndex = registration.lastIndexOf(':');
+            String className = separatorIndex < 0 ? registration : registration.substring(0, separatorIndex).trim();
+            Integer id = separatorIndex < 0 ? null : Integer.valueOf(registration.substring(separatorIndex + 1).trim());
+            try {
+                registeredClasses.put(Class.forName(className), id);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("Unable to register class: " + className, e);
+            }
+        }
+        return registeredClasses;
+    }
+
+    private class ReusableKryo extends Kryo {
+
+        private final Output output = unsafe ? new UnsafeOutput() : new Output();
+        private final Input input = unsafe ? new UnsafeInput() : new Input();
+        // Used by byte array serializations to write values before copying them out
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private ReusableKryo() {
+            setReferences(referenceTracking);
+            for (Map.Entry<Class<?>, Integer> entry : registeredClasses.entrySet()) {
+                if (entry.getValue() != null) {
+                    register(entry.getKey(), entry.getValue());
+                } else {
+                    register(entry.getKey());
+                }
+            }
+        }
+
+        // Written into the array of the given buffer directly, which is replaced by a bigger one if it is too small
+        private ByteBuffer encode(Object obj, ByteBuffer buffer) {
+            byte[] bytes = buffer.array();
+            output.setBuffer(bytes, -1);
+            try {
+                output.writeByte(TAG_KRYO);
+                writeClassAndObject(output, obj);
+                return written(output.getBuffer() == bytes ? buffer : ByteBuffer.wrap(output.getBuffer()), 
+                               output.position());
+            } finally {
+                // Buffer is not retained, so it can be reused by others
+                output.setBuffer(EMPTY_BUFFER, -1);
+            }
+        }
+
+        private Object decode(byte[] data, int offset, int length) {
+            input.setBuffer(data, offset + 1, length - 1);
+            try {
+                return readClassAndObject(input);
+            } finally {
+                // Buffer is not retained, so it can be garbage collected or reused
+                input.setBuffer(EMPTY_BUFFER);
+            }
+        }
+
+    }
+
+    @Override
+    public byte[] serialize(Object value) {
+        ReusableKryo kryo = threadLocalKryo.get();
+        ByteBuffer buffer = write(value, kryo.buffer, kryo);
+        kryo.buffer = buffer;
+        return Arrays.copyOf(buffer.array(), buffer.limit());
+    }
+
+    /**
+     * Writes the value into the array of the given buffer without any intermediate copy 
+     * if the buffer is backed by an array from its beginning (as the ones allocated on heap).
+     */
+    @Override
+    public ByteBuffer serialize(Object value, ByteBuffer buffer) {
+        if (!buffer.hasArray() || buffer.arrayOffset() != 0) {
+            return SambaSerializer.super.serialize(value, buffer);
+        }
+        return write(value, buffer, null);
+    }
+
+    private ByteBuffer write(Object value, ByteBuffer buffer, ReusableKryo kryo) {
+        if (value == null) {
+            return (kryo != null ? kryo : threadLocalKryo.get()).encode(null, buffer);
+        }
+        Class<?> valueClass = value.getClass();
+        if (valueClass == String.class) {
+            return writeString((String) value, buffer);
+        } else if (valueClass == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            buffer = require(buffer, 1 + bytes.length);
+            buffer.array()[0] = TAG_BYTE_ARRAY;
+            System.arraycopy(bytes, 0, buffer.array(), 1, bytes.length);
+            return written(buffer, 1 + bytes.length);
+        } else if (value instanceof ByteBuffer) {
+            return writeByteBuffer((ByteBuffer) value, buffer);
+        } else if (valueClass == Integer.class) {
+            return writeVarLong(TAG_INTEGER, (Integer) value, buffer);
+        } else if (valueClass == Long.class) {
+            return writeVarLong(TAG_LONG, (Long) value, buffer);
+        } else if (valueClass == Double.class) {
+            return writeLong(TAG_DOUBLE, Double.doubleToRawLongBits((Double) value), 8, buffer);
+        } else if (valueClass == Float.class) {
+            return writeLong(TAG_FLOAT, Float.floatToRawIntBits((Float) value), 4, buffer);
+        } else if (valueClass == Short.class) {
+            return writeVarLong(TAG_SHORT, (Short) value, buffer);
+        } else if (valueClass == Byte.class) {
+            return writeLong(TAG_BYTE, (Byte) value, 1, buffer);
+        } else if (valueClass == Character.class) {
+            return writeVarLong(TAG_CHARACTER, (Character) value, buffer);
+        } else if (valueClass == Boolean.class) {
+            return writeLong(TAG_BOOLEAN, (Boolean) value ? 1 : 0, 1, buffer);
+        } else {
+            return (kryo != null ? kryo : threadLocalKryo.get()).encode(value, buffer);
+        }
+    }
+
+    // Given buffer is used if it has enough capacity, otherwise a bigger one is allocated
+    private static ByteBuffer require(ByteBuffer buffer, int size) {
+        if (buffer.capacity() >= size) {
+            return buffer;
+        }
+        return ByteBuffer.allocate(Math.max(size, Math.min(buffer.capacity() * 2, Integer.MAX_VALUE - 8)));
+    }
+
+    // Called through Buffer, since ByteBuffer overrides them with covariant return types since Java 9
+    private static ByteBuffer written(ByteBuffer buffer, int length) {
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).limit(length);
+        return buffer;
+    }
+
+    // Strings are encoded into UTF-8 by hand, so they are written without encoding them into a temporary array.
+    // Unpaired surrogates are replaced with '?' as String::getBytes does.
+    private static ByteBuffer writeString(String value, ByteBuffer buffer) {
+        int length = value.length();
+        buffer = require(buffer, 1 + 3 * length);
+        byte[] data = buffer.array();
+        data[0] = TAG_STRING;
+        int position = 1;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                data[position++] = (byte) c;
+            } else if (c < 0x800) {
+                data[position++] = (byte) (0xC0 | (c >> 6));
+                data[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    data[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    data[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    data[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    data[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    data[position++] = '?';
+                }
+            } else {
+                data[position++] = (byte) (0xE0 | (c >> 12));
+                data[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                data[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return written(buffer, position);
+    }
+
+    // Read by absolute gets, so the position of the given buffer is not changed
+    private static ByteBuffer writeByteBuffer(ByteBuffer value, ByteBuffer buffer) {
+        int length = value.remaining();
+        buffer = require(buffer, 1 + length);
+        byte[] data = buffer.array();
+        data[0] = TAG_BYTE_BUFFER;
+        if (value.hasArray()) {
+            System.arraycopy(value.array(), value.arrayOffset() + value.position(), data, 1, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                data[1 + i] = value.get(value.position() + i);
+            }
+        }
+        return written(buffer, 1 + length);
+    }
+
+    // Written in big-endian order regardless of unsafe I/O
+    private static ByteBuffer writeLong(byte tag, long value, int size, ByteBuffer buffer) {
+        buffer = require(buffer, 1 + size);
+        byte[] data = buffer.array();
+        data[0] = tag;
+        for (int i = size; i > 0; i--) {
+            data[i] = (byte) value;
+            value >>>= 8;
+        }
+        return written(buffer, 1 + size);
+    }
+
+    // Integral values are written as zig-zag encoded variable length values, so small values take a few bytes
+    private static ByteBuffer writeVarLong(byte tag, long value, ByteBuffer buffer) {
+        buffer = require(buffer, 1 + MAX_VAR_LONG_SIZE);
+        byte[] data = buffer.array();
+        data[0] = tag;
+        int position = 1;
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            data[position++] = (byte) ((zigZag & 0x7F) | 0x80);
+            zigZag >>>= 7;
+        }
+        data[position++] = (byte) zigZag;
+        return written(buffer, position);
+    }
+
+    private static long readVarLong(byte[] data, int offset, int length) {
+        long zigZag = 0;
+        for (int i = 1, shift = 0; i < length; i++, shift += 7) {
+            zigZag |= (long) (data[offset + i] & 0x7F) << shift;
+        }
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    private static long readLong(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    @Override
+    public Object deserialize(byte[] data) {
+        return read(data, 0, data.length);
+    }
+
+    /**
+     * Reads the value from the array of the given buffer without any intermediate copy 
+     * if the buffer is backed by an array (as the ones allocated on heap).
+     */
+    @Override
+    public Object deserialize(ByteBuffer data) {
+        if (!data.hasArray()) {
+            return SambaSerializer.super.deserialize(data);
+        }
+        return read(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+
+    private Object read(byte[] data, int offset, int length) {
+        switch (data[offset]) {
+            case TAG_KRYO:
+                return threadLocalKryo.get().decode(data, offset, length);
+            case TAG_STRING:
+                return new String(data, offset + 1, length - 1, StandardCharsets.UTF_8);
+            case TAG_BYTE_ARRAY:
+                return Arrays.copyOfRange(data, offset + 1, offset + length);
+            case TAG_BYTE_BUFFER:
+                // Copied, since the same data might be deserialized by others concurrently
+                return ByteBuffer.wrap(Arrays.copyOfRange(data, offset + 1, offset + length));
+            case TAG_INTEGER:
+                return (int) readVarLong(data, offset, length);
+            case TAG_LONG:
+                return readVarLong(data, offset, length);
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(readLong(data, offset, length));
+            case TAG_FLOAT:
+                return Float.intBitsToFloat((int) readLong(data, offset, length));
+            case TAG_SHORT:
+                return (short) readVarLong(data, offset, length);
+            case TAG_BYTE:
+                return (byte) readLong(data, offset, length);
+            case TAG_CHARACTER:
+                return (char) readVarLong(data, offset, length);
+            case TAG_BOOLEAN:
+                return readLong(data, offset, length) != 0;
+            default:
+                throw new IllegalArgumentException("Unknown serialized value type: " + data[offset]);
+        }
+    }
+
+}
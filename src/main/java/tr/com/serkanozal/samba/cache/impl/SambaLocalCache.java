@@ -15,22 +15,309 @@
  */
 package tr.com.serkanozal.samba.cache.impl;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 import org.apache.log4j.Logger;
-import org.cliffc.high_scale_lib.NonBlockingHashMap;
 
 import tr.com.serkanozal.samba.SambaValueProxy;
 import tr.com.serkanozal.samba.cache.SambaCache;
 import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
+import tr.com.serkanozal.samba.cache.SambaCacheMetrics;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaMutation;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+import tr.com.serkanozal.samba.cache.SambaWeigher;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
 
+/**
+ * {@link SambaCache} implementation which keeps entries on the local heap.
+ * 
+ * Cache is unbounded by default. If a maximum weight is specified, entries are weighed by the given 
+ * {@link SambaWeigher} and evicted by {@link SambaEvictionPolicy} once their total weight exceeds the maximum. 
+ * Proxies of the evicted values are invalidated, so fields holding them look them up again.
+ * 
+ * Expiring entries are scheduled on a {@link SambaTimingWheel} which is advanced by the cache operations
+ * themselves, so expired entries are removed without per-entry timers or scans. Until then, 
+ * expired values are neither served by the cache nor by their proxies.
+ * 
+ * In off-heap mode, values are serialized into chunks of slabs allocated off-heap by {@link SambaSlabAllocator}
+ * and the map of the cache only indexes their chunks by their keys, so large values don't add to GC pauses. 
+ * Values are deserialized on every read unless their decoded values are kept in the small on-heap front cache, 
+ * whose proxies are invalidated once they are dropped from it, so fields holding them read them again. 
+ * Without the front cache, values are served by detached proxies which are not served locally again. 
+ * Chunks are reference counted, so a chunk is not reused while its value is being deserialized. 
+ * Values which cannot be allocated off-heap (the memory is full or they are bigger than a slab) 
+ * and the ones updated in place (counters) are kept on the heap as usual.
+ */
 public class SambaLocalCache implements SambaCache {
 
     private static final Logger LOGGER = Logger.getLogger(SambaLocalCache.class);
     
-    private final NonBlockingHashMap<String, LocalValueWrapper> map = 
-            new NonBlockingHashMap<String, LocalValueWrapper>();
+    // Local operations complete immediately, so shared completed futures are returned
+    private static final CompletableFuture<?> NULL_FUTURE = CompletableFuture.completedFuture(null);
+    private static final CompletableFuture<Boolean> TRUE_FUTURE = CompletableFuture.completedFuture(true);
+    private static final CompletableFuture<Boolean> FALSE_FUTURE = CompletableFuture.completedFuture(false);
+    
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+    
+    private static final long DEFAULT_OFF_HEAP_MAX_MEMORY = 64 * 1024 * 1024;
+    private static final int DEFAULT_OFF_HEAP_SLAB_SIZE = 1024 * 1024;
+    
+    private final ConcurrentMap<String, LocalValueWrapper> map = 
+            new ConcurrentHashMap<String, LocalValueWrapper>();
+    private final SambaWeigher weigher;
+    private final SambaEvictionPolicy evictionPolicy;
+    private final long defaultTtlMillis;
+    // Null unless the cache is in off-heap mode
+    private final OffHeapStorage offHeapStorage;
+    private final SambaCacheMetricsRecorder metrics = new SambaCacheMetricsRecorder();
+    private final SambaTimingWheel expirationWheel = new SambaTimingWheel(System.currentTimeMillis());
+    private final Lock expirationLock = new ReentrantLock();
+    // Clock is not read for expiration at all until an expiring entry is put
+    private volatile boolean expirationScheduled;
+    private volatile long nextExpirationTime;
+    
+    public SambaLocalCache() {
+        this(SambaCacheProperties.getSambaProperties(), "cache.local");
+    }
+    
+    SambaLocalCache(Properties sambaProps, String propPrefix) {
+        this(SambaCacheProperties.getLongProperty(sambaProps, propPrefix + ".maximumWeight", UNBOUNDED), 
+             createWeigher(sambaProps.getProperty(propPrefix + ".weigher")),
+             SambaCacheProperties.getLongProperty(sambaProps, propPrefix + ".defaultTtlMillis", NO_TTL),
+             createOffHeapStorage(sambaProps, propPrefix));
+    }
+    
+    public SambaLocalCache(long maximumWeight, SambaWeigher weigher) {
+        this(maximumWeight, weigher, NO_TTL);
+    }
+    
+    public SambaLocalCache(long maximumWeight, SambaWeigher weigher, long defaultTtlMillis) {
+        this(maximumWeight, weigher, defaultTtlMillis, null);
+    }
+    
+    /**
+     * Creates the local cache in off-heap mode.
+     * 
+     * @param serializer the serializer of the values kept off-heap
+     * @param maxOffHeapMemory the maximum memory in bytes to be allocated off-heap, 
+     *                         values are kept on the heap once it is reached
+     * @param slabSize the size of the off-heap slabs in bytes, 
+     *                 values bigger than a slab are kept on the heap
+     * @param frontCacheSize the maximum number of decoded values kept on the heap, 
+     *                       non-positive means that values are decoded on every read
+     */
+    public SambaLocalCache(long maximumWeight, SambaWeigher weigher, long defaultTtlMillis, 
+                           SambaSerializer serializer, long maxOffHeapMemory, int slabSize, int frontCacheSize) {
+        this(maximumWeight, weigher, defaultTtlMillis, 
+             new OffHeapStorage(serializer, new SambaSlabAllocator(slabSize, maxOffHeapMemory), frontCacheSize));
+    }
+    
+    private SambaLocalCache(long maximumWeight, SambaWeigher weigher, long defaultTtlMillis, 
+                            OffHeapStorage offHeapStorage) {
+        this.weigher = weigher;
+        if (maximumWeight != UNBOUNDED) {
+            this.evictionPolicy = new SambaEvictionPolicy(maximumWeight, new EvictableEntries());
+        } else {
+            this.evictionPolicy = null;
+        }
+        this.defaultTtlMillis = defaultTtlMillis;
+        this.offHeapStorage = offHeapStorage;
+        if (offHeapStorage != null) {
+            metrics.trackOffHeapMemory(offHeapStorage.allocator);
+        }
+    }
+    
+    private static OffHeapStorage createOffHeapStorage(Properties sambaProps, String propPrefix) {
+        if (!SambaCacheProperties.getBooleanProperty(sambaProps, propPrefix + ".offHeap.enabled", false)) {
+            return null;
+        }
+        SambaSlabAllocator allocator = 
+                new SambaSlabAllocator(
+                        SambaCacheProperties.getIntProperty(
+                                sambaProps, propPrefix + ".offHeap.slabSizeBytes", DEFAULT_OFF_HEAP_SLAB_SIZE), 
+                        SambaCacheProperties.getLongProperty(
+                                sambaProps, propPrefix + ".offHeap.maxMemoryBytes", DEFAULT_OFF_HEAP_MAX_MEMORY));
+        return new OffHeapStorage(
+                    SambaGlobalCache.createSerializer(sambaProps), 
+                    allocator, 
+                    SambaCacheProperties.getIntProperty(sambaProps, propPrefix + ".offHeap.frontCacheSize", 0));
+    }
+    
+    // Used by tiered cache to report the off-heap memory of its near-cache
+    SambaSlabAllocator getOffHeapMemory() {
+        return offHeapStorage != null ? offHeapStorage.allocator : null;
+    }
+    
+    private static SambaWeigher createWeigher(String weigherName) {
+        if (weigherName == null || "ENTRY_COUNT".equalsIgnoreCase(weigherName.trim())) {
+            return SambaWeigher.ENTRY_COUNT;
+        } else if ("SERIALIZED_SIZE".equalsIgnoreCase(weigherName.trim())) {
+            return new SambaSerializedSizeWeigher();
+        } else {
+            try {
+                return (SambaWeigher) Class.forName(weigherName.trim()).getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Unable to create weigher: " + weigherName, e);
+            }
+        }
+    }
+    
+    private class EvictableEntries implements SambaEvictionPolicy.Entries {
+
+        @Override
+        public int getWeight(String key) {
+            LocalValueWrapper wrapper = map.get(key);
+            return wrapper != null ? wrapper.weight : -1;
+        }
+
+        @Override
+        public void evict(String key) {
+            LocalValueWrapper wrapper = map.remove(key);
+            if (wrapper != null) {
+                release(wrapper);
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(
+                            String.format("Value has been evicted from local cache with key %s", key));
+                }
+            }
+        }
+        
+    }
+    
+    private void recordRead(String key) {
+        if (evictionPolicy != null) {
+            evictionPolicy.recordRead(key);
+        }
+    }
+    
+    private void recordWrite(String key) {
+        if (evictionPolicy != null) {
+            evictionPolicy.recordWrite(key);
+        }
+    }
+    
+    private long toExpirationTime(long ttl, TimeUnit timeUnit) {
+        if (ttl == DEFAULT_TTL) {
+            return SambaGlobalStoreEntry.toExpirationTime(defaultTtlMillis, TimeUnit.MILLISECONDS);
+        }
+        return SambaGlobalStoreEntry.toExpirationTime(ttl, timeUnit);
+    }
+    
+    // Node of the put wrapper is kept by the wrapper, so it is cancelled once the wrapper is released. 
+    // Wrapper might have been released concurrently before it is scheduled and then it is not scheduled at all.
+    private void scheduleExpiration(String key, LocalValueWrapper wrapper) {
+        long expirationTime = wrapper.value.getExpirationTime();
+        if (expirationTime == SambaValueProxy.NO_EXPIRATION) {
+            return;
+        }
+        expirationLock.lock();
+        try {
+            if (wrapper.released) {
+                return;
+            }
+            wrapper.expirationNode = expirationWheel.schedule(key, expirationTime);
+            if (!expirationScheduled) {
+                nextExpirationTime = expirationWheel.nextTickTime();
+                expirationScheduled = true;
+            }
+        } finally {
+            expirationLock.unlock();
+        }
+    }
+    
+    // Called by every operation, but the wheel is only advanced once it ticks 
+    // and by a single thread while others just go on
+    private void expireEntries() {
+        if (!expirationScheduled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < nextExpirationTime || !expirationLock.tryLock()) {
+            return;
+        }
+        try {
+            expirationWheel.advance(now, this::expireIfExpired);
+            nextExpirationTime = expirationWheel.nextTickTime();
+        } finally {
+            expirationLock.unlock();
+        }
+    }
+    
+    private void cancelExpiration(LocalValueWrapper wrapper) {
+        if (wrapper.value.getExpirationTime() == SambaValueProxy.NO_EXPIRATION) {
+            return;
+        }
+        expirationLock.lock();
+        try {
+            wrapper.released = true;
+            if (wrapper.expirationNode != null) {
+                expirationWheel.cancel(wrapper.expirationNode);
+                wrapper.expirationNode = null;
+            }
+        } finally {
+            expirationLock.unlock();
+        }
+    }
+    
+    // Reported key might have been updated or removed since it was scheduled
+    private void expireIfExpired(String key) {
+        LocalValueWrapper wrapper = map.get(key);
+        if (wrapper != null && wrapper.value.isExpired()) {
+            expire(key, wrapper);
+        }
+    }
+    
+    private void expire(String key, LocalValueWrapper wrapper) {
+        // Only the expired wrapper itself is removed but not a new one which might be equal to it
+        boolean[] removed = new boolean[1];
+        map.computeIfPresent(key, (k, currentWrapper) -> {
+            if (currentWrapper != wrapper) {
+                return currentWrapper;
+            }
+            removed[0] = true;
+            return null;
+        });
+        // Released only once, since the wrapper might be expired concurrently by the wheel and on access
+        if (!removed[0]) {
+            return;
+        }
+        release(wrapper);
+        recordWrite(key);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value has been expired from local cache with key %s", key));
+        }
+    }
+    
+    // Expired wrapper is removed on access, as it might not have been reported by the wheel yet
+    private LocalValueWrapper getWrapper(String key) {
+        LocalValueWrapper wrapper = map.get(key);
+        if (wrapper != null 
+                && wrapper.value.getExpirationTime() != SambaValueProxy.NO_EXPIRATION 
+                && wrapper.value.isExpired()) {
+            expire(key, wrapper);
+            return null;
+        }
+        return wrapper;
+    }
     
     @Override
     public SambaCacheType getType() {
@@ -45,11 +332,14 @@ public class SambaLocalCache implements SambaCache {
     @SuppressWarnings("unchecked")
     @Override
     public Object get(String key) {
+        expireEntries();
         Object value = null;
-        SambaValueProxy valueProxy = unwrapValue(map.get(key));
+        SambaValueProxy valueProxy = getProxy(key);
         if (valueProxy != null) {
             value = valueProxy.getValue();
+            recordRead(key);
         }
+        metrics.recordLocalRead(valueProxy != null);
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
                     String.format("Value %s has been retrieved from local cache with key %s", key, value));
@@ -57,6 +347,11 @@ public class SambaLocalCache implements SambaCache {
         return valueProxy;
     }
     
+    // Gets the value without recording the access, so the eviction policy is not affected
+    SambaValueProxy peek(String key) {
+        return getProxy(key);
+    }
+    
     @SuppressWarnings("unchecked")
     @Override
     public Object refresh(String key) {
@@ -65,64 +360,310 @@ public class SambaLocalCache implements SambaCache {
 
     @Override
     public void put(String key, Object value) {
+        put(key, value, DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public void put(String key, Object value, long ttl, TimeUnit timeUnit) {
+        put(key, value, SambaValueProxy.NO_VERSION, toExpirationTime(ttl, timeUnit));
+    }
+    
+    // Used by near-cache of tiered cache to keep versions and expiration times of values in the global cache
+    SambaValueProxy put(String key, Object value, long version, long expirationTime) {
+        expireEntries();
         if (value == null) {
             remove(key);
+            return null;
         } else {
-            SambaValueProxy oldValueProxy = unwrapValue(map.put(key, wrapValue(new SambaValueProxy(value))));
-            if (oldValueProxy != null) {
-                oldValueProxy.invalidateValue();
+            SambaValueProxy valueProxy = new SambaValueProxy(value, version, expirationTime);
+            LocalValueWrapper valueWrapper = wrapValue(key, valueProxy);
+            LocalValueWrapper oldValueWrapper = map.put(key, valueWrapper);
+            if (oldValueWrapper != null) {
+                release(oldValueWrapper);
             }
+            valueProxy = toWrittenProxy(valueWrapper, valueProxy);
+            recordWrite(key);
+            scheduleExpiration(key, valueWrapper);
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug(
                         String.format("Value %s has been put into local cache with key %s", key, value));
             }
+            return valueProxy;
         }    
     }
 
+    /**
+     * Puts the value with its version unless the held value is at least as new, 
+     * so late writers cannot overwrite newer values. Values which cannot be ordered by their versions 
+     * are always put. The given condition is checked atomically with the put and nothing is put if it fails.
+     * 
+     * Used by near-cache of tiered cache to populate entries concurrently without any ownership of keys.
+     * Returns the proxy held after the call or null if the condition failed.
+     */
+    SambaValueProxy putIfNewer(String key, Object value, long version, long expirationTime, 
+                               BooleanSupplier condition) {
+        expireEntries();
+        // Weighed (and serialized in off-heap mode) before the bin of the key is locked, 
+        // since the weigher might be expensive
+        SambaValueProxy newValueProxy = new SambaValueProxy(value, version, expirationTime);
+        LocalValueWrapper newValueWrapper = wrapValue(key, newValueProxy);
+        // Held wrapper is remembered by the remapping function, so it is known whether the new one has been put
+        LocalValueWrapper[] oldValueWrapper = new LocalValueWrapper[1];
+        // Proxy of the newer held value is taken while the bin is locked, so its off-heap value is not released
+        SambaValueProxy[] newerValueProxy = new SambaValueProxy[1];
+        boolean[] conditionFailed = new boolean[1];
+        LocalValueWrapper currentWrapper = map.compute(key, (k, wrapper) -> {
+            oldValueWrapper[0] = wrapper;
+            if (!condition.getAsBoolean()) {
+                conditionFailed[0] = true;
+                return wrapper;
+            }
+            if (wrapper != null 
+                    && !wrapper.value.isExpired()
+                    && version != SambaValueProxy.NO_VERSION 
+                    && wrapper.value.getVersion() != SambaValueProxy.NO_VERSION 
+                    && wrapper.value.getVersion() >= version) {
+                newerValueProxy[0] = toProxy(wrapper);
+                return wrapper;
+            }
+            return newValueWrapper;
+        });
+        if (currentWrapper != newValueWrapper) {
+            release(newValueWrapper);
+            return conditionFailed[0] ? null : newerValueProxy[0];
+        }
+        if (oldValueWrapper[0] != null) {
+            release(oldValueWrapper[0]);
+        }
+        newValueProxy = toWrittenProxy(newValueWrapper, newValueProxy);
+        recordWrite(key);
+        scheduleExpiration(key, newValueWrapper);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value %s with version %d has been put into local cache with key %s", 
+                                  value, version, key));
+        }
+        return newValueProxy;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> Map<String, V> getAll(Collection<String> keys) {
+        expireEntries();
+        Map<String, Object> values = new HashMap<String, Object>(keys.size());
+        for (String key : keys) {
+            SambaValueProxy valueProxy = getProxy(key);
+            if (valueProxy != null) {
+                values.put(key, valueProxy);
+                recordRead(key);
+            }
+            metrics.recordLocalRead(valueProxy != null);
+        }
+        return (Map<String, V>) values;
+    }
+
+    @Override
+    public void putAll(Map<String, ?> entries) {
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
     @Override
     public boolean replace(String key, Object oldValue, Object newValue) {
+        return replace(key, oldValue, newValue, DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue, long ttl, TimeUnit timeUnit) {
+        if (newValue != null) {
+            return replaceAndGetProxy(key, oldValue, newValue, ttl, timeUnit) != null;
+        }
+        expireEntries();
+        // Expired entry is removed first, so it is neither replaced nor prevents putting a new one
+        getWrapper(key);
         boolean replaced = false;
-        if (oldValue == null && newValue != null) {
-            if (map.putIfAbsent(key, wrapValue(new SambaValueProxy(newValue))) == null) {
-                replaced = true;
-            }
-        } else if (oldValue != null && newValue == null) {
+        if (oldValue != null) {
             LocalValueWrapper oldValueWraper = wrapValue(new SambaValueProxy(oldValue));
             replaced = map.remove(key, oldValueWraper);
             if (replaced) {
                 assert oldValueWraper.equalValueWrapper != null;
                 
-                SambaValueProxy oldValueProxy = oldValueWraper.equalValueWrapper.value;
-                if (oldValueProxy != null) {
-                    oldValueProxy.invalidateValue();
-                }
+                release(oldValueWraper.equalValueWrapper);
+            }
+        }    
+        metrics.recordCas(replaced);
+        if (replaced) {
+            recordWrite(key);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                        String.format("Old value %s has been replaced with new value %s " + 
+                                      "assigned to key %s", oldValue, newValue, key));
             }
-        } else if (oldValue != null && newValue != null) {
+        }
+        return replaced;
+    }
+    
+    @Override
+    public SambaValueProxy putAndGetProxy(String key, Object value, long ttl, TimeUnit timeUnit) {
+        return put(key, value, SambaValueProxy.NO_VERSION, toExpirationTime(ttl, timeUnit));
+    }
+    
+    @Override
+    public SambaValueProxy replaceAndGetProxy(String key, Object oldValue, Object newValue, 
+                                              long ttl, TimeUnit timeUnit) {
+        expireEntries();
+        // Expired entry is removed first, so it is neither replaced nor prevents putting a new one
+        getWrapper(key);
+        long expirationTime = toExpirationTime(ttl, timeUnit);
+        SambaValueProxy newValueProxy = new SambaValueProxy(newValue, SambaValueProxy.NO_VERSION, expirationTime);
+        LocalValueWrapper newValueWrapper = wrapValue(key, newValueProxy);
+        boolean replaced = false;
+        if (oldValue == null) {
+            replaced = map.putIfAbsent(key, newValueWrapper) == null;
+        } else {
             LocalValueWrapper oldValueWraper = wrapValue(new SambaValueProxy(oldValue));
-            LocalValueWrapper newValueWrapper = wrapValue(new SambaValueProxy(newValue));
             replaced = map.replace(key, oldValueWraper, newValueWrapper);
             if (replaced) {
                 assert oldValueWraper.equalValueWrapper != null;
                 
-                SambaValueProxy oldValueProxy = oldValueWraper.equalValueWrapper.value;
-                if (oldValueProxy != null) {
-                    oldValueProxy.invalidateValue();
-                }
+                release(oldValueWraper.equalValueWrapper);
             }
         }    
-        if (replaced && LOGGER.isDebugEnabled()) {
+        metrics.recordCas(replaced);
+        if (!replaced) {
+            release(newValueWrapper);
+            return null;
+        }
+        newValueProxy = toWrittenProxy(newValueWrapper, newValueProxy);
+        recordWrite(key);
+        scheduleExpiration(key, newValueWrapper);
+        if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
                     String.format("Old value %s has been replaced with new value %s " + 
                                   "assigned to key %s", oldValue, newValue, key));
         }
-        return replaced;
+        return newValueProxy;
+    }
+
+    @Override
+    public boolean replaceIfVersion(String key, long oldVersion, Object newValue) {
+        throw new UnsupportedOperationException("Values of local cache are not versioned");
+    }
+    
+    @Override
+    public boolean replaceIfVersion(String key, long oldVersion, Object newValue, long ttl, TimeUnit timeUnit) {
+        throw new UnsupportedOperationException("Values of local cache are not versioned");
+    }
+    
+    @Override
+    public SambaValueProxy replaceIfVersionAndGetProxy(String key, long oldVersion, Object newValue, 
+                                                       long ttl, TimeUnit timeUnit) {
+        throw new UnsupportedOperationException("Values of local cache are not versioned");
+    }
+
+    @Override
+    public long getCounter(String key) {
+        expireEntries();
+        SambaValueProxy valueProxy = getProxy(key);
+        metrics.recordLocalRead(valueProxy != null);
+        if (valueProxy == null) {
+            return 0;
+        }
+        recordRead(key);
+        return ((Number) valueProxy.getObservedValue()).longValue();
+    }
+    
+    @Override
+    public long addAndGetCounter(String key, long delta) {
+        return getOrCreateCounter(key).addAndGet(delta);
+    }
+    
+    @Override
+    public long getAndSetCounter(String key, long newValue) {
+        return getOrCreateCounter(key).getAndSet(newValue);
+    }
+    
+    // Counter is created once and then updated in place, so updates don't touch the map at all
+    private LocalCounter getOrCreateCounter(String key) {
+        expireEntries();
+        LocalValueWrapper wrapper = getWrapper(key);
+        if (wrapper != null && wrapper.value.getObservedValue() instanceof LocalCounter) {
+            recordRead(key);
+            return (LocalCounter) wrapper.value.getObservedValue();
+        }
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        LocalValueWrapper newWrapper = 
+                wrapValue(key, new SambaValueProxy(new LocalCounter(), SambaValueProxy.NO_VERSION, expirationTime));
+        LocalValueWrapper[] oldWrapper = new LocalValueWrapper[1];
+        LocalValueWrapper currentWrapper = map.compute(key, (k, w) -> {
+            if (w != null && !w.value.isExpired() && w.value.getObservedValue() instanceof LocalCounter) {
+                return w;
+            }
+            oldWrapper[0] = w;
+            return newWrapper;
+        });
+        if (currentWrapper == newWrapper) {
+            if (oldWrapper[0] != null) {
+                release(oldWrapper[0]);
+            }
+            recordWrite(key);
+            scheduleExpiration(key, newWrapper);
+        }
+        return (LocalCounter) currentWrapper.value.getObservedValue();
+    }
+
+    /**
+     * Applies the mutation to a copy of the held value atomically in the remapping function of the map,
+     * so concurrent mutations of the same key are serialized without any retry 
+     * and proxies of the old value are invalidated like a put does.
+     */
+    @Override
+    public void mutate(String key, SambaMutation mutation) {
+        expireEntries();
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        LocalValueWrapper[] oldWrapper = new LocalValueWrapper[1];
+        LocalValueWrapper currentWrapper = map.compute(key, (k, wrapper) -> {
+            oldWrapper[0] = wrapper;
+            boolean live = wrapper != null && !wrapper.value.isExpired();
+            // Off-heap value is decoded while the bin is locked, so it is not released in the meantime
+            Object value = live ? toProxy(wrapper).getObservedValue() : null;
+            Object newValue = mutation.apply(value);
+            if (newValue == value) {
+                return wrapper;
+            }
+            if (newValue == null) {
+                return null;
+            }
+            // Weighed in the remapping function, since the mutated value is not known before
+            return wrapValue(
+                    key, 
+                    new SambaValueProxy(
+                            newValue, SambaValueProxy.NO_VERSION, 
+                            live ? wrapper.value.getExpirationTime() : expirationTime));
+        });
+        if (currentWrapper != oldWrapper[0]) {
+            if (oldWrapper[0] != null) {
+                release(oldWrapper[0]);
+            }
+            recordWrite(key);
+            if (currentWrapper != null) {
+                scheduleExpiration(key, currentWrapper);
+            }
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value with key %s has been mutated by %s in local cache", key, mutation));
+        }
     }
 
     @Override
     public void remove(String key) {
-        SambaValueProxy oldValueProxy = unwrapValue(map.remove(key));
-        if (oldValueProxy != null) {
-            oldValueProxy.invalidateValue();
+        expireEntries();
+        LocalValueWrapper oldValueWrapper = map.remove(key);
+        if (oldValueWrapper != null) {
+            release(oldValueWrapper);
+            recordWrite(key);
         }
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
@@ -130,6 +671,104 @@ public class SambaLocalCache implements SambaCache {
         }
     }
     
+    @Override
+    public void removeAll(Collection<String> keys) {
+        for (String key : keys) {
+            remove(key);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> CompletableFuture<V> getAsync(String key) {
+        expireEntries();
+        for (;;) {
+            SambaValueProxy valueProxy = getProxy(key);
+            if (valueProxy == null) {
+                metrics.recordLocalRead(false);
+                return (CompletableFuture<V>) NULL_FUTURE;
+            }
+            if (valueProxy.isDetached()) {
+                // Decoded off-heap value which is not kept in the front cache
+                recordRead(key);
+                metrics.recordLocalRead(true);
+                return CompletableFuture.completedFuture((V) valueProxy.getObservedValue());
+            }
+            CompletableFuture<Object> valueFuture = valueProxy.getValueFuture();
+            if (valueFuture != null) {
+                recordRead(key);
+                metrics.recordLocalRead(true);
+                return (CompletableFuture<V>) valueFuture;
+            }
+            // Value has been replaced or removed in the meantime, so look it up again
+        }
+    }
+    
+    @Override
+    public <V> CompletableFuture<V> refreshAsync(String key) {
+        return getAsync(key);
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public CompletableFuture<Void> putAsync(String key, Object value) {
+        put(key, value);
+        return (CompletableFuture<Void>) NULL_FUTURE;
+    }
+    
+    @Override
+    public CompletableFuture<Boolean> replaceAsync(String key, Object oldValue, Object newValue) {
+        return replace(key, oldValue, newValue) ? TRUE_FUTURE : FALSE_FUTURE;
+    }
+    
+    @Override
+    public CompletableFuture<Boolean> replaceIfVersionAsync(String key, long oldVersion, Object newValue) {
+        return replaceIfVersion(key, oldVersion, newValue) ? TRUE_FUTURE : FALSE_FUTURE;
+    }
+    
+    @Override
+    public CompletableFuture<SambaValueProxy> putAndGetProxyAsync(String key, Object value) {
+        return CompletableFuture.completedFuture(putAndGetProxy(key, value, DEFAULT_TTL, TimeUnit.MILLISECONDS));
+    }
+    
+    @Override
+    public CompletableFuture<SambaValueProxy> replaceAndGetProxyAsync(String key, Object oldValue, Object newValue) {
+        return CompletableFuture.completedFuture(
+                    replaceAndGetProxy(key, oldValue, newValue, DEFAULT_TTL, TimeUnit.MILLISECONDS));
+    }
+    
+    @Override
+    public CompletableFuture<SambaValueProxy> replaceIfVersionAndGetProxyAsync(String key, long oldVersion, 
+                                                                                Object newValue) {
+        return CompletableFuture.completedFuture(
+                    replaceIfVersionAndGetProxy(key, oldVersion, newValue, DEFAULT_TTL, TimeUnit.MILLISECONDS));
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public CompletableFuture<Void> removeAsync(String key) {
+        remove(key);
+        return (CompletableFuture<Void>) NULL_FUTURE;
+    }
+    
+    // Values are kept on the heap as they are unless the cache is in off-heap mode
+    @Override
+    public void registerSerializer(String key, SambaSerializer serializer) {
+        if (offHeapStorage != null) {
+            offHeapStorage.keySerializers.put(key, serializer);
+        }
+    }
+    
+    @Override
+    public SambaCacheMetrics getMetrics() {
+        return metrics.snapshot();
+    }
+    
+    // Writes are not queued, so there is nothing to flush
+    @Override
+    public void flush() {
+    }
+    
     @Override
     public void clear() {
         Iterator<String> iter = map.keySet().iterator();
@@ -142,25 +781,122 @@ public class SambaLocalCache implements SambaCache {
         }
     }
     
+    // Wrappers to be compared only are not weighed
     private LocalValueWrapper wrapValue(SambaValueProxy valueProxy) {
-        return new LocalValueWrapper(valueProxy);
+        return new LocalValueWrapper(valueProxy, 0);
     }
     
-    private SambaValueProxy unwrapValue(LocalValueWrapper wrapper) {
-        if (wrapper != null) {
-            return (SambaValueProxy) wrapper.value;
-        } else {
+    private LocalValueWrapper wrapValue(String key, SambaValueProxy valueProxy) {
+        Object value = valueProxy.getValue();
+        if (offHeapStorage != null && !(value instanceof HeapResident)) {
+            OffHeapValue offHeapValue = offHeapStorage.store(key, value);
+            if (offHeapValue != null) {
+                // Serialized size is known already, so values are not serialized again to be weighed
+                int weight = 0;
+                if (evictionPolicy != null) {
+                    weight = weigher instanceof SambaSerializedSizeWeigher 
+                                ? key.length() + offHeapValue.length 
+                                : weigher.weigh(key, value);
+                }
+                // Only the version and the expiration time of the value are kept on the heap
+                SambaValueProxy metadata = 
+                        SambaValueProxy.detached(null, valueProxy.getVersion(), valueProxy.getExpirationTime());
+                return new LocalValueWrapper(metadata, weight, offHeapValue);
+            }
+        }
+        int weight = evictionPolicy != null ? weigher.weigh(key, value) : 0;
+        return new LocalValueWrapper(valueProxy, weight);
+    }
+    
+    // Returns null if the wrapper has been released concurrently, so its off-heap value could not be decoded
+    private SambaValueProxy toProxy(LocalValueWrapper wrapper) {
+        OffHeapValue offHeapValue = wrapper.offHeapValue;
+        if (offHeapValue == null) {
+            return wrapper.value;
+        }
+        SambaValueProxy decoded = offHeapValue.decoded;
+        if (decoded != null) {
+            return decoded;
+        }
+        Object value = offHeapStorage.load(offHeapValue);
+        if (value == SambaValueProxy.INVALIDATED) {
             return null;
         }
+        return offHeapStorage.cache(
+                    offHeapValue, 
+                    new SambaValueProxy(value, wrapper.value.getVersion(), wrapper.value.getExpirationTime()));
+    }
+    
+    // Written value is not decoded back from its off-heap value
+    private SambaValueProxy toWrittenProxy(LocalValueWrapper wrapper, SambaValueProxy valueProxy) {
+        if (wrapper.offHeapValue == null) {
+            return wrapper.value;
+        }
+        return offHeapStorage.cache(wrapper.offHeapValue, valueProxy);
     }
     
-    private static final class LocalValueWrapper {
+    // Wrapper is looked up again if it has been released while its off-heap value was being decoded
+    private SambaValueProxy getProxy(String key) {
+        for (;;) {
+            LocalValueWrapper wrapper = getWrapper(key);
+            if (wrapper == null) {
+                return null;
+            }
+            SambaValueProxy valueProxy = toProxy(wrapper);
+            if (valueProxy != null) {
+                return valueProxy;
+            }
+        }
+    }
+    
+    // Called once by the caller which has removed (or failed to put) the wrapper, 
+    // so proxies of its value are invalidated and its off-heap chunk is freed
+    private void release(LocalValueWrapper wrapper) {
+        cancelExpiration(wrapper);
+        if (wrapper.offHeapValue != null) {
+            offHeapStorage.release(wrapper.offHeapValue);
+        } else {
+            wrapper.value.invalidateValue();
+        }
+    }
+    
+    /**
+     * Marker of the values which are always kept on the heap, even in off-heap mode, 
+     * since they are updated in place or they are compared by their identities.
+     */
+    interface HeapResident {
+    }
+    
+    // Padded, so the counters allocated next to each other don't contend on the same cache line
+    @SuppressWarnings("unused")
+    private static final class LocalCounter extends AtomicLong implements HeapResident {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private long p1, p2, p3, p4, p5, p6, p7;
         
+    }
+    
+    private final class LocalValueWrapper {
+        
+        // Proxy of the value, or a proxy carrying only its version and expiration time if it is off-heap
         private final SambaValueProxy value;
+        private final int weight;
+        // Null unless the value is off-heap
+        private final OffHeapValue offHeapValue;
         private LocalValueWrapper equalValueWrapper;
+        // Guarded by the expiration lock
+        private SambaTimingWheel.Node expirationNode;
+        private boolean released;
+        
+        private LocalValueWrapper(SambaValueProxy value, int weight) {
+            this(value, weight, null);
+        }
         
-        private LocalValueWrapper(SambaValueProxy value) {
+        private LocalValueWrapper(SambaValueProxy value, int weight, OffHeapValue offHeapValue) {
             this.value = value;
+            this.weight = weight;
+            this.offHeapValue = offHeapValue;
         }
         
         @Override
@@ -176,13 +912,187 @@ public class SambaLocalCache implements SambaCache {
                     || (value == null && wrapper.value != null)) {
                 return false;
             }
-            boolean equals = value.equals(wrapper.value);
+            boolean equals;
+            if (offHeapValue == null && wrapper.offHeapValue == null) {
+                equals = value.equals(wrapper.value);
+            } else {
+                // Compared while the bin of the held wrapper is locked, so its off-heap value is not released
+                equals = Objects.equals(observedValue(), wrapper.observedValue());
+            }
             if (equals) {
                 equalValueWrapper = (LocalValueWrapper) obj;
             }
             return equals;
         }
         
+        private Object observedValue() {
+            SambaValueProxy valueProxy = toProxy(this);
+            return valueProxy != null ? valueProxy.getObservedValue() : SambaValueProxy.INVALIDATED;
+        }
+        
+    }
+    
+    /**
+     * Serialized value kept in a chunk allocated off-heap.
+     * 
+     * Chunk is referenced by its wrapper until the wrapper is released and by the readers while they are 
+     * decoding it, so it is freed by the last one of them. Decoded value is kept in the front cache by its proxy 
+     * which is invalidated once the value is released or dropped from the front cache.
+     */
+    private static final class OffHeapValue extends AtomicInteger {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private static final AtomicReferenceFieldUpdater<OffHeapValue, SambaValueProxy> DECODED = 
+                AtomicReferenceFieldUpdater.newUpdater(OffHeapValue.class, SambaValueProxy.class, "decoded");
+        
+        private final String key;
+        private final long address;
+        private final int length;
+        private volatile boolean released;
+        private volatile SambaValueProxy decoded;
+        
+        private OffHeapValue(String key, long address, int length) {
+            super(1);
+            this.key = key;
+            this.address = address;
+            this.length = length;
+        }
+        
+        private boolean reference() {
+            for (;;) {
+                int referenceCount = get();
+                if (referenceCount == 0) {
+                    return false;
+                }
+                if (compareAndSet(referenceCount, referenceCount + 1)) {
+                    return true;
+                }
+            }
+        }
+        
+    }
+    
+    private static final class OffHeapStorage {
+        
+        // Values are serialized into pooled buffers before they are copied into their chunks
+        private static final SambaBufferPool BUFFER_POOL = 
+                new SambaBufferPool(Runtime.getRuntime().availableProcessors() * 4, 4096, 1024 * 1024);
+        // Chunks are copied into thread-local arrays to be decoded, unless they are too big to be retained
+        private static final int MAX_RETAINED_DECODE_BUFFER_SIZE = 64 * 1024;
+        private static final ThreadLocal<byte[]> DECODE_BUFFER = 
+                new ThreadLocal<byte[]>() {
+                    protected byte[] initialValue() {
+                        return new byte[4096];
+                    };
+                };
+        
+        private final SambaSerializer serializer;
+        // Serializers of the specific keys (fields) overriding the serializer of the cache
+        private final ConcurrentMap<String, SambaSerializer> keySerializers = 
+                new ConcurrentHashMap<String, SambaSerializer>();
+        private final SambaSlabAllocator allocator;
+        // Ring of the values whose decoded values are kept, the oldest one is dropped by every new one
+        private final AtomicReferenceArray<OffHeapValue> frontCache;
+        private final AtomicLong frontCacheCursor = new AtomicLong();
+        
+        private OffHeapStorage(SambaSerializer serializer, SambaSlabAllocator allocator, int frontCacheSize) {
+            this.serializer = serializer;
+            this.allocator = allocator;
+            this.frontCache = 
+                    frontCacheSize > 0 
+                        ? new AtomicReferenceArray<OffHeapValue>(frontCacheSize) 
+                        : null;
+        }
+        
+        private SambaSerializer getSerializer(String key) {
+            if (keySerializers.isEmpty()) {
+                return serializer;
+            }
+            SambaSerializer keySerializer = keySerializers.get(key);
+            return keySerializer != null ? keySerializer : serializer;
+        }
+        
+        // Returns null if the value could not be allocated off-heap
+        private OffHeapValue store(String key, Object value) {
+            ByteBuffer data = getSerializer(key).serialize(value, BUFFER_POOL.acquire());
+            try {
+                int length = data.remaining();
+                long address = allocator.allocate(length);
+                if (address == SambaSlabAllocator.NO_ADDRESS) {
+                    return null;
+                }
+                allocator.write(address, data);
+                return new OffHeapValue(key, address, length);
+            } finally {
+                BUFFER_POOL.release(data);
+            }
+        }
+        
+        // Returns INVALIDATED if the value has been released and its chunk has been freed already
+        private Object load(OffHeapValue offHeapValue) {
+            if (!offHeapValue.reference()) {
+                return SambaValueProxy.INVALIDATED;
+            }
+            try {
+                int length = offHeapValue.length;
+                byte[] buffer = DECODE_BUFFER.get();
+                if (buffer.length < length) {
+                    buffer = new byte[length];
+                    if (length <= MAX_RETAINED_DECODE_BUFFER_SIZE) {
+                        DECODE_BUFFER.set(buffer);
+                    }
+                }
+                allocator.read(offHeapValue.address, buffer, length);
+                return getSerializer(offHeapValue.key).deserialize(ByteBuffer.wrap(buffer, 0, length));
+            } finally {
+                unreference(offHeapValue);
+            }
+        }
+        
+        private void unreference(OffHeapValue offHeapValue) {
+            if (offHeapValue.decrementAndGet() == 0) {
+                allocator.free(offHeapValue.address, offHeapValue.length);
+            }
+        }
+        
+        // Proxy is kept in the front cache if it is enabled, otherwise detached proxy of the value is returned
+        private SambaValueProxy cache(OffHeapValue offHeapValue, SambaValueProxy valueProxy) {
+            if (frontCache == null || !OffHeapValue.DECODED.compareAndSet(offHeapValue, null, valueProxy)) {
+                return SambaValueProxy.detached(
+                            valueProxy.getObservedValue(), valueProxy.getVersion(), valueProxy.getExpirationTime());
+            }
+            // Value might have been released before the proxy was kept, then the proxy is not kept anymore
+            if (offHeapValue.released) {
+                drop(offHeapValue, valueProxy);
+                return valueProxy;
+            }
+            int index = (int) (frontCacheCursor.getAndIncrement() % frontCache.length());
+            OffHeapValue droppedValue = frontCache.getAndSet(index, offHeapValue);
+            if (droppedValue != null && droppedValue != offHeapValue) {
+                SambaValueProxy droppedValueProxy = droppedValue.decoded;
+                if (droppedValueProxy != null) {
+                    drop(droppedValue, droppedValueProxy);
+                }
+            }
+            return valueProxy;
+        }
+        
+        private void drop(OffHeapValue offHeapValue, SambaValueProxy valueProxy) {
+            if (OffHeapValue.DECODED.compareAndSet(offHeapValue, valueProxy, null)) {
+                valueProxy.invalidateValue();
+            }
+        }
+        
+        private void release(OffHeapValue offHeapValue) {
+            offHeapValue.released = true;
+            SambaValueProxy valueProxy = offHeapValue.decoded;
+            if (valueProxy != null) {
+                drop(offHeapValue, valueProxy);
+            }
+            unreference(offHeapValue);
+        }
+        
     }
 
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+
+/**
+ * Creates named caches configured by <code>cache.named.&lt;name&gt;.*</code> properties 
+ * in <code>samba.properties</code>.
+ * 
+ * Type of the cache is configured by <code>cache.named.&lt;name&gt;.type</code> and the rest of the properties 
+ * are the ones of the cache types without their <code>cache.&lt;type&gt;.</code> prefixes 
+ * (for example <code>cache.named.&lt;name&gt;.tableName</code> or 
+ * <code>cache.named.&lt;name&gt;.nearCache.maximumWeight</code>). 
+ * Properties which are not configured for the named cache are inherited from its cache type.
+ */
+public final class SambaNamedCacheFactory {
+
+    private SambaNamedCacheFactory() {
+        
+    }
+    
+    public static SambaCache createCache(String cacheName) {
+        Properties cacheProps = SambaCacheProperties.getNamedCacheProperties(cacheName);
+        SambaCacheType cacheType = getConfiguredCacheType(cacheProps, cacheName);
+        if (cacheType == null) {
+            throw new IllegalArgumentException("Cache " + cacheName + " is not configured! " + 
+                    "Its type must be configured by '" + 
+                    SambaCacheProperties.getNamedCachePropertyPrefix(cacheName) + "type' property");
+        }
+        switch (cacheType) {
+            case LOCAL:
+                return new SambaLocalCache(cacheProps, "cache.local");
+            case GLOBAL:
+                return new SambaGlobalCache(cacheProps, null);
+            case TIERED:
+                return new SambaTieredCache(cacheProps);
+            default:
+                throw new IllegalArgumentException("Unknow cache type: " + cacheType + 
+                        "! Valid values are " + Arrays.asList(SambaCacheType.values()));
+        }
+    }
+    
+    private static SambaCacheType getConfiguredCacheType(Properties sambaProps, String cacheName) {
+        String cacheTypeName = 
+                sambaProps.getProperty(SambaCacheProperties.getNamedCachePropertyPrefix(cacheName) + "type");
+        if (cacheTypeName != null) {
+            return SambaCacheType.valueOf(cacheTypeName.trim().toUpperCase());
+        } else {
+            return null;
+        }
+    }
+    
+}
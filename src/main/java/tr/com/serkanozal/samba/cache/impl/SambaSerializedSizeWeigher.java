@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.io.OutputStream;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+
+import tr.com.serkanozal.samba.cache.SambaWeigher;
+
+/**
+ * {@link SambaWeigher} implementation which weighs entries by their serialized sizes in bytes.
+ * Values are serialized into a counting sink, so no buffer is allocated for the serialized form.
+ */
+public class SambaSerializedSizeWeigher implements SambaWeigher {
+
+    private final ThreadLocal<CountingKryo> threadLocalKryo = 
+            new ThreadLocal<CountingKryo>() {
+                protected CountingKryo initialValue() {
+                    return new CountingKryo();
+                };
+            };
+    
+    @Override
+    public int weigh(String key, Object value) {
+        long size = key.length() + threadLocalKryo.get().sizeOf(value);
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+    
+    private static class CountingKryo extends Kryo {
+        
+        private static final int BUFFER_SIZE = 1024;
+        
+        private final Output output = new Output(new NullOutputStream(), BUFFER_SIZE);
+        
+        private long sizeOf(Object obj) {
+            output.clear();
+            writeClassAndObject(output, obj);
+            return output.total();
+        }
+        
+    }
+    
+    private static class NullOutputStream extends OutputStream {
+        
+        @Override
+        public void write(int b) {
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+        
+    }
+
+}
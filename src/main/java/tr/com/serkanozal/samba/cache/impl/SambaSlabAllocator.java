@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Allocates chunks of off-heap memory from slabs of direct buffers, so values kept in them
+ * are neither scanned nor copied by GC.
+ *
+ * Chunks are sized in powers of two from {@link #MIN_CHUNK_SIZE} up to the slab size and
+ * every slab is carved into the chunks of a single size once it is allocated for that size.
+ * Free chunks of each size are linked into a lock-free stack through their first bytes,
+ * whose head is tagged with a counter bumped by every change, so a stale head is never swapped in (ABA).
+ * Slabs are allocated on demand until the memory limit is reached and they are never released,
+ * so chunks freed for a size are only reused by the same size (see {@link #getAllocatedMemory()}
+ * and {@link #getUsedMemory()} for the fragmentation).
+ *
+ * Addresses are flat over the slabs (the slab index followed by the offset in the slab).
+ */
+final class SambaSlabAllocator {
+
+    static final long NO_ADDRESS = -1;
+    static final int MIN_CHUNK_SIZE = 64;
+
+    private static final int MIN_CHUNK_SHIFT = Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    // Heads keep the chunk address in units of the minimum chunk size (plus one, so zero is the empty stack)
+    // in their low bits and the tag in their high bits
+    private static final int HEAD_REF_BITS = 40;
+    private static final long HEAD_REF_MASK = (1L << HEAD_REF_BITS) - 1;
+    private static final long EMPTY_REF = 0;
+
+    private final int slabSize;
+    private final int slabShift;
+    private final int maxSlabCount;
+    private final AtomicReferenceArray<ByteBuffer> slabs;
+    private final AtomicInteger slabCount = new AtomicInteger();
+    private final AtomicLongArray freeChunkHeads;
+    private final LongAdder usedMemory = new LongAdder();
+    private final LongAdder dataSize = new LongAdder();
+    private final LongAdder allocationFailureCount = new LongAdder();
+
+    /**
+     * @param slabSize the size of the slabs in bytes, which is rounded up to a power of two
+     *                 and which is also the maximum size of the chunks
+     * @param maxMemory the maximum memory in bytes to be allocated for the slabs (at least one slab)
+     */
+    SambaSlabAllocator(int slabSize, long maxMemory) {
+        int powerOfTwoSlabSize = Integer.highestOneBit(Math.max(MIN_CHUNK_SIZE, slabSize) - 1) << 1;
+        this.slabSize = powerOfTwoSlabSize;
+        this.slabShift = Integer.numberOfTrailingZeros(powerOfTwoSlabSize);
+        this.maxSlabCount = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxMemory / powerOfTwoSlabSize));
+        this.slabs = new AtomicReferenceArray<ByteBuffer>(maxSlabCount);
+        this.freeChunkHeads = new AtomicLongArray(slabShift - MIN_CHUNK_SHIFT + 1);
+    }
+
+    int getSlabSize() {
+        return slabSize;
+    }
+
+    long getMaxMemory() {
+        return (long) maxSlabCount * slabSize;
+    }
+
+    /**
+     * Gets the memory allocated for the slabs, including the free chunks in them.
+     */
+    long getAllocatedMemory() {
+        return (long) slabCount.get() * slabSize;
+    }
+
+    /**
+     * Gets the memory of the chunks in use, including their unused tails.
+     */
+    long getUsedMemory() {
+        return usedMemory.sum();
+    }
+
+    /**
+     * Gets the total size of the data written into the chunks in use.
+     */
+    long getDataSize() {
+        return dataSize.sum();
+    }
+
+    /**
+     * Gets the number of allocations which have failed, since the data was bigger than a slab
+     * or the memory limit had been reached.
+     */
+    long getAllocationFailureCount() {
+        return allocationFailureCount.sum();
+    }
+
+    private static int sizeClassOf(int length) {
+        int chunkShift = 32 - Integer.numberOfLeadingZeros(Math.max(MIN_CHUNK_SIZE, length) - 1);
+        return chunkShift - MIN_CHUNK_SHIFT;
+    }
+
+    private static int chunkSizeOf(int sizeClass) {
+        return MIN_CHUNK_SIZE << sizeClass;
+    }
+
+    /**
+     * @return the address of the chunk which can hold the given length of data,
+     *         {@link #NO_ADDRESS} if the data is bigger than a slab or the memory limit has been reached
+     */
+    long allocate(int length) {
+        if (length > slabSize) {
+            allocationFailureCount.increment();
+            return NO_ADDRESS;
+        }
+        int sizeClass = sizeClassOf(length);
+        for (;;) {
+            long head = freeChunkHeads.get(sizeClass);
+            long ref = head & HEAD_REF_MASK;
+            if (ref == EMPTY_REF) {
+                if (!addSlab(sizeClass)) {
+                    allocationFailureCount.increment();
+                    return NO_ADDRESS;
+                }
+                continue;
+            }
+            long address = toAddress(ref);
+            // Chunk might have been popped and reused concurrently, then the read link is garbage but the CAS fails
+            long nextRef = readLink(address);
+            if (freeChunkHeads.compareAndSet(sizeClass, head, tag(head, nextRef))) {
+                usedMemory.add(chunkSizeOf(sizeClass));
+                dataSize.add(length);
+                return address;
+            }
+        }
+    }
+
+    /**
+     * Frees the chunk at the given address which has been allocated for the given length of data.
+     */
+    void free(long address, int length) {
+        int sizeClass = sizeClassOf(length);
+        long ref = toRef(address);
+        for (;;) {
+            long head = freeChunkHeads.get(sizeClass);
+            writeLink(address, head & HEAD_REF_MASK);
+            if (freeChunkHeads.compareAndSet(sizeClass, head, tag(head, ref))) {
+                usedMemory.add(-chunkSizeOf(sizeClass));
+                dataSize.add(-length);
+                return;
+            }
+        }
+    }
+
+    // Slabs might be added concurrently for the same size, then the extra chunks are used later
+    private boolean addSlab(int sizeClass) {
+        int slabIndex;
+        do {
+            slabIndex = slabCount.get();
+            if (slabIndex >= maxSlabCount) {
+                return false;
+            }
+        } while (!slabCount.compareAndSet(slabIndex, slabIndex + 1));
+        slabs.set(slabIndex, ByteBuffer.allocateDirect(slabSize));
+
+        // Chunks of the slab are linked to each other before the whole chain is pushed at once
+        int chunkSize = chunkSizeOf(sizeClass);
+        long firstAddress = (long) slabIndex << slabShift;
+        long lastAddress = firstAddress + slabSize - chunkSize;
+        for (long address = firstAddress; address < lastAddress; address += chunkSize) {
+            writeLink(address, toRef(address + chunkSize));
+        }
+        long firstRef = toRef(firstAddress);
+        for (;;) {
+            long head = freeChunkHeads.get(sizeClass);
+            writeLink(lastAddress, head & HEAD_REF_MASK);
+            if (freeChunkHeads.compareAndSet(sizeClass, head, tag(head, firstRef))) {
+                return true;
+            }
+        }
+    }
+
+    private static long tag(long head, long ref) {
+        return (((head >>> HEAD_REF_BITS) + 1) << HEAD_REF_BITS) | ref;
+    }
+
+    private static long toRef(long address) {
+        return (address >>> MIN_CHUNK_SHIFT) + 1;
+    }
+
+    private static long toAddress(long ref) {
+        return (ref - 1) << MIN_CHUNK_SHIFT;
+    }
+
+    private ByteBuffer slabBuffer(long address) {
+        return slabs.get((int) (address >>> slabShift));
+    }
+
+    private int offset(long address) {
+        return (int) (address & (slabSize - 1));
+    }
+
+    private long readLink(long address) {
+        return slabBuffer(address).getLong(offset(address));
+    }
+
+    private void writeLink(long address, long ref) {
+        slabBuffer(address).putLong(offset(address), ref);
+    }
+
+    /**
+     * Writes the data between the position and the limit of the given buffer into the chunk at the given address.
+     */
+    void write(long address, ByteBuffer data) {
+        // Slab is duplicated, so concurrent writes into its other chunks don't share its position
+        ByteBuffer buffer = slabBuffer(address).duplicate();
+        ((Buffer) buffer).position(offset(address));
+        buffer.put(data.duplicate());
+    }
+
+    /**
+     * Reads the given length of data from the chunk at the given address into the beginning of the given array.
+     */
+    void read(long address, byte[] data, int length) {
+        ByteBuffer buffer = slabBuffer(address).duplicate();
+        ((Buffer) buffer).position(offset(address));
+        buffer.get(data, 0, length);
+    }
+
+}
@@ -15,55 +15,308 @@
  */
 package tr.com.serkanozal.samba.cache.impl;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 import org.apache.log4j.Logger;
 
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+
+import tr.com.serkanozal.samba.SambaValueProxy;
 import tr.com.serkanozal.samba.cache.SambaCache;
 import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
+import tr.com.serkanozal.samba.cache.SambaCacheMetrics;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaMutation;
+import tr.com.serkanozal.samba.cache.SambaNearCachePropagationMode;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
 import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache.CacheChangeListener;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStore;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
 
+/**
+ * {@link SambaCache} implementation which keeps entries in the global cache 
+ * and serves them from a near-cache on the local heap.
+ * 
+ * Near-cache is populated by readers without any ownership of keys, so concurrent readers of a key
+ * all can populate it. Keys are striped over stamps which are bumped by every write, removal and invalidation
+ * before the near-cache is updated. A reader takes the stamp of the key before reading from the global cache
+ * and puts the read value into the near-cache only if the stamp is still the same, 
+ * so a value which was read before a write or an invalidation never overwrites it. 
+ * In addition, values are put with their versions and a value never overwrites a newer one.
+ * 
+ * Concurrent near-cache misses of the same key are coalesced into a single read from the global store
+ * by the global cache, so a hot key which has just been invalidated is read once by all the readers.
+ * 
+ * In write-behind mode, puts and removals are applied to the near-cache right away and queued 
+ * to be written into the global cache in batches by a background flusher (see {@link #flush()}). 
+ * Queued writes of the same key are coalesced and they are served on near-cache misses until they are written.
+ * Other writes (compare-and-sets, counters and mutations) write the queued write of their key first.
+ * 
+ * Absence of keys can be cached in the near-cache as well, as tombstones which expire after the negative 
+ * time-to-live (configured by <code>cache.tiered.nearCache.negativeTtlMillis</code>, disabled by default). 
+ * So reads of keys which have never been set are served by the near-cache until the keys are inserted. 
+ * Tombstones are put in the same way as the read values and they are removed by insertions 
+ * (of this or the other instances through the change stream) just like the values, 
+ * so an insertion of the other instances might not be seen until then.
+ */
 public class SambaTieredCache implements SambaCache {
 
     private static final Logger LOGGER = Logger.getLogger(SambaTieredCache.class);
     
+    private static final long DEFAULT_NEGATIVE_TTL_MILLIS = 0;
+    // Held by the near-cache as the value of the keys which are known to be absent in the global cache
+    private static final Object ABSENT = new Tombstone();
+    
     private final NearCache nearCache;
     private final SambaGlobalCache globalCache;
+    private final SambaNearCachePropagationMode propagationMode;
+    // Metrics of the global tier are recorded by the global cache
+    private final SambaCacheMetricsRecorder metrics = new SambaCacheMetricsRecorder();
+    private final long defaultTtlMillis;
+    private final long negativeTtlMillis;
+    // Null unless the cache is in write-behind mode
+    private final SambaWriteBehindQueue writeBehindQueue;
     
     public SambaTieredCache() {
-        nearCache = new NearCache(new SambaLocalCache());
-        globalCache = new SambaGlobalCache(new CacheChangeListener() {
-            private void invalidate(String key) {
-                long ownId = nearCache.tryOwn(key);
-                try {
-                    nearCache.remove(key);
-                } finally {
-                    nearCache.releaseIfOwned(ownId, key);
-                }
-                
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug(
-                            String.format("Entry has been invalidated from " + 
-                                          "near-cache of tiered cache with key %s", key));
-                }
+        this(SambaCacheProperties.getSambaProperties());
+    }
+    
+    SambaTieredCache(Properties sambaProps) {
+        this.nearCache = new NearCache(createNearCache(sambaProps));
+        this.propagationMode = getConfiguredPropagationMode(sambaProps);
+        this.defaultTtlMillis = getConfiguredDefaultTtlMillis(sambaProps);
+        this.negativeTtlMillis = getConfiguredNegativeTtlMillis(sambaProps);
+        this.globalCache = new SambaGlobalCache(sambaProps, new NearCachePropagator());
+        this.writeBehindQueue = 
+                createWriteBehindQueue(
+                        globalCache, 
+                        getConfiguredWriteBehindFlushIntervalMillis(sambaProps), 
+                        getConfiguredWriteBehindMaxPendingCount(sambaProps));
+    }
+    
+    public SambaTieredCache(AmazonDynamoDB dynamoDB, AmazonDynamoDBStreams dynamoDBStreams) {
+        this(dynamoDB, dynamoDBStreams, getConfiguredPropagationMode());
+    }
+    
+    public SambaTieredCache(AmazonDynamoDB dynamoDB, AmazonDynamoDBStreams dynamoDBStreams, 
+                            SambaNearCachePropagationMode propagationMode) {
+        this.nearCache = new NearCache(createNearCache());
+        this.propagationMode = propagationMode;
+        this.defaultTtlMillis = getConfiguredDefaultTtlMillis(SambaCacheProperties.getSambaProperties());
+        this.negativeTtlMillis = getConfiguredNegativeTtlMillis(SambaCacheProperties.getSambaProperties());
+        this.globalCache = new SambaGlobalCache(dynamoDB, dynamoDBStreams, new NearCachePropagator());
+        this.writeBehindQueue = 
+                createWriteBehindQueue(
+                        globalCache, 
+                        getConfiguredWriteBehindFlushIntervalMillis(SambaCacheProperties.getSambaProperties()), 
+                        getConfiguredWriteBehindMaxPendingCount(SambaCacheProperties.getSambaProperties()));
+    }
+    
+    public SambaTieredCache(SambaGlobalStore store) {
+        this(store, getConfiguredPropagationMode());
+    }
+    
+    public SambaTieredCache(SambaGlobalStore store, SambaNearCachePropagationMode propagationMode) {
+        this(store, createNearCache(), propagationMode);
+    }
+    
+    public SambaTieredCache(SambaGlobalStore store, SambaLocalCache nearCache, 
+                            SambaNearCachePropagationMode propagationMode) {
+        this(store, nearCache, propagationMode, SambaGlobalCache.createSerializer());
+    }
+    
+    public SambaTieredCache(SambaGlobalStore store, SambaLocalCache nearCache, 
+                            SambaNearCachePropagationMode propagationMode, SambaSerializer serializer) {
+        this(store, nearCache, propagationMode, serializer, 
+             getConfiguredWriteBehindFlushIntervalMillis(SambaCacheProperties.getSambaProperties()), 
+             getConfiguredWriteBehindMaxPendingCount(SambaCacheProperties.getSambaProperties()));
+    }
+    
+    /**
+     * Creates the tiered cache which is in write-behind mode if the given flush interval is positive.
+     * 
+     * @param writeBehindFlushIntervalMillis the interval to write the queued writes into the global store, 
+     *                                       non-positive means that writes are written through
+     * @param writeBehindMaxPendingCount the number of the queued writes (of distinct keys) 
+     *                                   at which the writers flush the queue by themselves
+     */
+    public SambaTieredCache(SambaGlobalStore store, SambaLocalCache nearCache, 
+                            SambaNearCachePropagationMode propagationMode, SambaSerializer serializer,
+                            long writeBehindFlushIntervalMillis, int writeBehindMaxPendingCount) {
+        this.nearCache = new NearCache(nearCache);
+        this.propagationMode = propagationMode;
+        this.defaultTtlMillis = getConfiguredDefaultTtlMillis(SambaCacheProperties.getSambaProperties());
+        this.negativeTtlMillis = getConfiguredNegativeTtlMillis(SambaCacheProperties.getSambaProperties());
+        this.globalCache = new SambaGlobalCache(store, serializer, new NearCachePropagator());
+        this.writeBehindQueue = 
+                createWriteBehindQueue(globalCache, writeBehindFlushIntervalMillis, writeBehindMaxPendingCount);
+    }
+    
+    private static SambaLocalCache createNearCache() {
+        return createNearCache(SambaCacheProperties.getSambaProperties());
+    }
+    
+    private static SambaLocalCache createNearCache(Properties sambaProps) {
+        return new SambaLocalCache(sambaProps, "cache.tiered.nearCache");
+    }
+    
+    private static long getConfiguredDefaultTtlMillis(Properties sambaProps) {
+        return SambaCacheProperties.getLongProperty(sambaProps, "cache.tiered.defaultTtlMillis", NO_TTL);
+    }
+    
+    private static long getConfiguredNegativeTtlMillis(Properties sambaProps) {
+        return SambaCacheProperties.getLongProperty(
+                sambaProps, "cache.tiered.nearCache.negativeTtlMillis", DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+    
+    private static long getConfiguredWriteBehindFlushIntervalMillis(Properties sambaProps) {
+        return SambaCacheProperties.getLongProperty(sambaProps, "cache.tiered.writeBehind.flushIntervalMillis", 0);
+    }
+    
+    private static int getConfiguredWriteBehindMaxPendingCount(Properties sambaProps) {
+        return SambaCacheProperties.getIntProperty(sambaProps, "cache.tiered.writeBehind.maxPendingCount", 10000);
+    }
+    
+    private static SambaWriteBehindQueue createWriteBehindQueue(SambaGlobalCache globalCache, 
+                                                                long flushIntervalMillis, int maxPendingCount) {
+        if (flushIntervalMillis <= 0) {
+            return null;
+        }
+        return new SambaWriteBehindQueue(globalCache, flushIntervalMillis, Math.max(maxPendingCount, 1));
+    }
+    
+    private static SambaNearCachePropagationMode getConfiguredPropagationMode() {
+        return getConfiguredPropagationMode(SambaCacheProperties.getSambaProperties());
+    }
+    
+    private static SambaNearCachePropagationMode getConfiguredPropagationMode(Properties sambaProps) {
+        String propagationModeName = sambaProps.getProperty("cache.tiered.nearCache.propagationMode");
+        if (propagationModeName != null) {
+            return SambaNearCachePropagationMode.valueOf(propagationModeName.trim().toUpperCase());
+        } else {
+            return SambaNearCachePropagationMode.INVALIDATE;
+        }
+    }
+    
+    private class NearCachePropagator implements CacheChangeListener {
+        
+        private void invalidate(String key, long version) {
+            nearCache.invalidate(key);
+            if (propagationMode == SambaNearCachePropagationMode.UPDATE) {
+                nearCache.removeIfNotNewer(key, version);
+            } else {
+                nearCache.remove(key);
             }
             
-            @Override
-            public void onInsert(String key, Object value) {
-                invalidate(key);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                        String.format("Entry has been invalidated from " + 
+                                      "near-cache of tiered cache with key %s", key));
             }
-            
-            @Override
-            public void onUpdate(String key, Object oldValue, Object newValue) {
-                invalidate(key);
+        }
+        
+        private void update(String key, Supplier<Object> value, long version, long expirationTime) {
+            if (propagationMode != SambaNearCachePropagationMode.UPDATE) {
+                invalidate(key, version);
+                return;
             }
+            nearCache.invalidate(key);
+            nearCache.updateIfNewer(key, value, version, expirationTime);
+        }
+        
+        @Override
+        public void onInsert(String key, Supplier<Object> value, long version, long expirationTime) {
+            nearCache.changeReceived(key, version);
+            update(key, value, version, expirationTime);
+        }
+        
+        @Override
+        public void onUpdate(String key, Supplier<Object> newValue, long version, long expirationTime) {
+            nearCache.changeReceived(key, version);
+            update(key, newValue, version, expirationTime);
+        }
 
-            @Override
-            public void onDelete(String key) {
-                invalidate(key);
+        @Override
+        public void onDelete(String key, long oldVersion) {
+            // Removal of a version is newer than that version
+            nearCache.changeReceived(
+                    key, oldVersion != SambaValueProxy.NO_VERSION ? oldVersion + 1 : SambaValueProxy.NO_VERSION);
+            invalidate(key, oldVersion);
+        }
+        
+        @Override
+        public void onClear() {
+            nearCache.invalidateAll();
+            nearCache.clear();
+            
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Near-cache of tiered cache has been invalidated entirely");
             }
-        });
+        }
+        
+    }
+    
+    public SambaNearCachePropagationMode getPropagationMode() {
+        return propagationMode;
+    }
+    
+    /**
+     * Gets the number of reads which have been served by the near-cache.
+     */
+    public long getHitCount() {
+        return metrics.getLocalHitCount();
+    }
+    
+    /**
+     * Gets the number of reads which have missed the near-cache and have gone to the global cache.
+     */
+    public long getMissCount() {
+        return metrics.getLocalMissCount();
+    }
+    
+    /**
+     * Gets the number of near-cache misses which have been served by a concurrent read of the same key 
+     * from the global store instead of reading from it by themselves.
+     */
+    public long getCoalescedReadCount() {
+        return globalCache.getCoalescedReadCount();
+    }
+    
+    /**
+     * Gets the time-to-live of the tombstones cached for the absent keys, non-positive means that 
+     * absence of keys is not cached.
+     */
+    public long getNegativeTtlMillis() {
+        return negativeTtlMillis;
+    }
+    
+    @Override
+    public SambaCacheMetrics getMetrics() {
+        return metrics.snapshot(globalCache.metrics);
+    }
+    
+    // Expiration time is resolved once, so entry expires at the same time on both global cache and near-cache
+    private long toExpirationTime(long ttl, TimeUnit timeUnit) {
+        if (ttl == DEFAULT_TTL) {
+            return SambaGlobalStoreEntry.toExpirationTime(defaultTtlMillis, TimeUnit.MILLISECONDS);
+        }
+        return SambaGlobalStoreEntry.toExpirationTime(ttl, timeUnit);
     }
     
     @Override
@@ -81,18 +334,13 @@ public class SambaTieredCache implements SambaCache {
     public Object get(String key) {
         Object value = nearCache.get(key);
         if (value != null) {
-            return value;
+            metrics.recordLocalRead(true);
+            return isAbsent(value) ? null : value;
         }
         
-        long ownId = nearCache.tryOwn(key);
-        try {
-            value = globalCache.get(key);
-            if (value != null) {
-                nearCache.putIfAvailable(ownId, key, value);
-            }    
-        } finally {
-            nearCache.releaseIfOwned(ownId, key);
-        }
+        metrics.recordLocalRead(false);
+        long stamp = nearCache.stamp(key);
+        value = populate(stamp, key, getGlobalValue(key));
         
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
@@ -102,19 +350,81 @@ public class SambaTieredCache implements SambaCache {
         return value;
     }
     
+    // Queued write of the key is its global value, since it has not been written into the global cache yet
+    private SambaValueProxy getGlobalValue(String key) {
+        SambaWriteBehindQueue.PendingWrite pendingWrite = getPendingWrite(key);
+        if (pendingWrite != null) {
+            return toGlobalValue(pendingWrite);
+        }
+        return globalCache.<SambaValueProxy>get(key);
+    }
+    
+    private SambaWriteBehindQueue.PendingWrite getPendingWrite(String key) {
+        return writeBehindQueue != null ? writeBehindQueue.getPendingWrite(key) : null;
+    }
+    
+    private static SambaValueProxy toGlobalValue(SambaWriteBehindQueue.PendingWrite pendingWrite) {
+        if (pendingWrite.value == null 
+                || SambaGlobalStoreEntry.isExpired(pendingWrite.expirationTime, System.currentTimeMillis())) {
+            return null;
+        }
+        return SambaValueProxy.detached(pendingWrite.value, SambaValueProxy.NO_VERSION, pendingWrite.expirationTime);
+    }
+    
+    private void flushPendingWrite(String key) {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.flush(key);
+        }
+    }
+    
+    /**
+     * Writes the queued writes into the global cache if the cache is in write-behind mode, 
+     * so they are visible to the other instances once this call returns. 
+     * Should be called before the process might be frozen or terminated (for example at the end of 
+     * an AWS Lambda invocation), since the queued writes are lost otherwise.
+     */
     @Override
-    public <V> V refresh(String key) {
-        V value = null;
-        long ownId = nearCache.tryOwn(key);
-        try {
-            nearCache.remove(key);
-            value = globalCache.get(key);
-            if (value != null) {
-                nearCache.putIfAvailable(ownId, key, value);
-            }    
-        } finally {
-            nearCache.releaseIfOwned(ownId, key);
+    public void flush() {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.flush();
+        }
+    }
+    
+    private static boolean isAbsent(Object nearValue) {
+        return ((SambaValueProxy) nearValue).getObservedValue() == ABSENT;
+    }
+    
+    // Global value is put into near-cache with its version and near-cache proxy is returned if it could be put. 
+    // Otherwise detached proxy of the global value is returned as it is.
+    private SambaValueProxy populate(long stamp, String key, SambaValueProxy globalValue) {
+        if (globalValue == null) {
+            populateAbsent(stamp, key);
+            return null;
+        }
+        SambaValueProxy nearValue = 
+                nearCache.putIfNotInvalidated(
+                        stamp, key, globalValue.getObservedValue(), 
+                        globalValue.getVersion(), globalValue.getExpirationTime());
+        metrics.recordNearCachePopulation(nearValue != null);
+        return nearValue != null ? nearValue : globalValue;
+    }
+    
+    // Tombstone has no version, so it never prevents a value from being put over it
+    private void populateAbsent(long stamp, String key) {
+        if (negativeTtlMillis <= 0) {
+            return;
         }
+        long expirationTime = SambaGlobalStoreEntry.toExpirationTime(negativeTtlMillis, TimeUnit.MILLISECONDS);
+        nearCache.putIfNotInvalidated(stamp, key, ABSENT, SambaValueProxy.NO_VERSION, expirationTime);
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public Object refresh(String key) {
+        flushPendingWrite(key);
+        long stamp = nearCache.stamp(key);
+        nearCache.remove(key);
+        Object value = populate(stamp, key, globalCache.<SambaValueProxy>get(key));
         
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
@@ -126,57 +436,138 @@ public class SambaTieredCache implements SambaCache {
 
     @Override
     public void put(String key, Object value) {
+        put(key, value, DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public void put(String key, Object value, long ttl, TimeUnit timeUnit) {
         if (value == null) {
             remove(key);
         } else {
-            long ownId = nearCache.tryOwn(key);
-            try {
-                globalCache.put(key, value);
-                nearCache.putIfAvailable(ownId, key, value);  
-            } finally {
-                nearCache.releaseIfOwned(ownId, key);
-            }
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug(
-                        String.format("Value %s has been put into tiered cache with key %s", key, value));
-            }
+            putAndGetProxy(key, value, ttl, timeUnit);
         }
     }
     
     @Override
-    public boolean replace(String key, Object oldValue, Object newValue) {
-        boolean replaced = false;
-        if (oldValue == null && newValue != null) {
-            long ownId = nearCache.tryOwn(key);
-            try {
-                if (globalCache.replace(key, oldValue, newValue)) {
-                    nearCache.putIfAvailable(ownId, key, newValue); 
-                    replaced = true;
+    public SambaValueProxy putAndGetProxy(String key, Object value, long ttl, TimeUnit timeUnit) {
+        long expirationTime = toExpirationTime(ttl, timeUnit);
+        if (writeBehindQueue != null) {
+            writeBehindQueue.enqueue(key, value, expirationTime);
+            // Version of the value is not known until it is written, so it is put without version
+            nearCache.invalidate(key);
+            return nearCache.putIfNewer(key, value, SambaValueProxy.NO_VERSION, expirationTime);
+        }
+        SambaValueProxy valueProxy = 
+                writeThrough(
+                        key, 
+                        () -> globalCache.putAndGetVersion(key, value, expirationTime), 
+                        version -> nearCache.putWritten(key, value, version, expirationTime));
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value %s has been put into tiered cache with key %s", key, value));
+        }
+        return valueProxy;
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> Map<String, V> getAll(Collection<String> keys) {
+        Map<String, Object> values = new HashMap<String, Object>(keys.size());
+        Map<String, Long> missedKeyStamps = new LinkedHashMap<String, Long>();
+        for (String key : keys) {
+            Object value = nearCache.get(key);
+            if (value != null) {
+                if (!isAbsent(value)) {
+                    values.put(key, value);
                 }
-            } finally {
-                nearCache.releaseIfOwned(ownId, key);
+                metrics.recordLocalRead(true);
+            } else {
+                missedKeyStamps.put(key, nearCache.stamp(key));
+                metrics.recordLocalRead(false);
             }
-        } else if (oldValue != null && newValue == null) {
-            long ownId = nearCache.tryOwn(key);
-            try {
-                if (globalCache.replace(key, oldValue, newValue)) {
-                    nearCache.remove(key);
-                    replaced = true;
+        }
+        
+        if (writeBehindQueue != null) {
+            Iterator<Map.Entry<String, Long>> iter = missedKeyStamps.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String, Long> entry = iter.next();
+                SambaWriteBehindQueue.PendingWrite pendingWrite = writeBehindQueue.getPendingWrite(entry.getKey());
+                if (pendingWrite != null) {
+                    iter.remove();
+                    SambaValueProxy globalValue = toGlobalValue(pendingWrite);
+                    if (globalValue != null) {
+                        values.put(entry.getKey(), populate(entry.getValue(), entry.getKey(), globalValue));
+                    } else {
+                        populateAbsent(entry.getValue(), entry.getKey());
+                    }
                 }
-            } finally {
-                nearCache.releaseIfOwned(ownId, key);
             }
-        } else if (oldValue != null && newValue != null) {
-            long ownId = nearCache.tryOwn(key);
-            try {
-                if (globalCache.replace(key, oldValue, newValue)) {
-                    nearCache.putIfAvailable(ownId, key, newValue); 
-                    replaced = true;
+        }
+        
+        if (!missedKeyStamps.isEmpty()) {
+            // Misses are fetched from global cache in batch
+            Map<String, SambaValueProxy> globalValues = globalCache.getAll(missedKeyStamps.keySet());
+            for (Map.Entry<String, Long> entry : missedKeyStamps.entrySet()) {
+                String key = entry.getKey();
+                SambaValueProxy value = populate(entry.getValue(), key, globalValues.get(key));
+                if (value != null) {
+                    values.put(key, value);
                 }
-            } finally {
-                nearCache.releaseIfOwned(ownId, key);
+            }
+        }
+        
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d values have been retrieved from tiered cache with keys %s " + 
+                                  "(%d of them from near-cache)", 
+                                  values.size(), keys, keys.size() - missedKeyStamps.size()));
+        }
+        
+        return (Map<String, V>) values;
+    }
+    
+    @Override
+    public void putAll(Map<String, ?> entries) {
+        if (writeBehindQueue != null) {
+            // Writes are batched by the flusher anyway
+            for (Map.Entry<String, ?> entry : entries.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        globalCache.putAll(entries, expirationTime);
+        // Versions of the put values are not known, so they are read from global cache again on demand
+        for (String key : entries.keySet()) {
+            nearCache.invalidate(key);
+            nearCache.remove(key);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("%d values have been put into tiered cache", entries.size()));
+        }
+    }
+    
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue) {
+        return replace(key, oldValue, newValue, DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue, long ttl, TimeUnit timeUnit) {
+        flushPendingWrite(key);
+        if (newValue != null) {
+            return replaceAndGetProxy(key, oldValue, newValue, ttl, timeUnit) != null;
+        }
+        boolean replaced = false;
+        if (oldValue != null) {
+            if (globalCache.replace(key, oldValue, newValue)) {
+                nearCache.invalidate(key);
+                nearCache.remove(key);
+                replaced = true;
             }
         }    
+        metrics.recordCas(replaced);
         if (replaced && LOGGER.isDebugEnabled()) {
             LOGGER.debug(
                     String.format("Old value %s has been replaced with new value %s " + 
@@ -184,16 +575,153 @@ public class SambaTieredCache implements SambaCache {
         }
         return replaced;
     }
+    
+    @Override
+    public boolean replaceIfVersion(String key, long oldVersion, Object newValue) {
+        return replaceIfVersion(key, oldVersion, newValue, DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public boolean replaceIfVersion(String key, long oldVersion, Object newValue, long ttl, TimeUnit timeUnit) {
+        flushPendingWrite(key);
+        if (newValue != null) {
+            return replaceIfVersionAndGetProxy(key, oldVersion, newValue, ttl, timeUnit) != null;
+        }
+        boolean replaced = false;
+        if (globalCache.replaceIfVersion(key, oldVersion, newValue)) {
+            nearCache.invalidate(key);
+            nearCache.remove(key);
+            replaced = true;
+        }
+        metrics.recordCas(replaced);
+        if (replaced && LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value with version %d has been replaced with new value %s " + 
+                                  "assigned to key %s", oldVersion, newValue, key));
+        }
+        return replaced;
+    }
 
     @Override
-    public void remove(String key) {
-        long ownId = nearCache.tryOwn(key);
+    public SambaValueProxy replaceAndGetProxy(String key, Object oldValue, Object newValue, 
+                                              long ttl, TimeUnit timeUnit) {
+        flushPendingWrite(key);
+        long expirationTime = toExpirationTime(ttl, timeUnit);
+        return writeThrough(
+                    key, 
+                    () -> globalCache.replaceAndGetVersion(key, oldValue, newValue, expirationTime), 
+                    version -> toReplacedProxy(key, newValue, version, expirationTime));
+    }
+    
+    @Override
+    public SambaValueProxy replaceIfVersionAndGetProxy(String key, long oldVersion, Object newValue, 
+                                                       long ttl, TimeUnit timeUnit) {
+        flushPendingWrite(key);
+        long expirationTime = toExpirationTime(ttl, timeUnit);
+        return writeThrough(
+                    key, 
+                    () -> globalCache.replaceIfVersionAndGetVersion(key, oldVersion, newValue, expirationTime), 
+                    version -> toReplacedProxy(key, newValue, version, expirationTime));
+    }
+    
+    // New value is put into near-cache with its version and near-cache proxy of it 
+    // (or of a newer value put concurrently) is returned
+    private SambaValueProxy toReplacedProxy(String key, Object newValue, long version, long expirationTime) {
+        boolean replaced = version != SambaValueProxy.NO_VERSION;
+        metrics.recordCas(replaced);
+        if (!replaced) {
+            return null;
+        }
+        SambaValueProxy valueProxy = nearCache.putWritten(key, newValue, version, expirationTime);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value with key %s has been replaced with new value %s", key, newValue));
+        }
+        return valueProxy;
+    }
+    
+    // Changes received for the key are tracked by near-cache while it is being written into the global cache, 
+    // so the written value is not put into near-cache over a newer change of the others (see NearCache#putWritten)
+    private SambaValueProxy writeThrough(String key, LongSupplier globalWrite, 
+                                         LongFunction<SambaValueProxy> onWritten) {
+        nearCache.beginWrite(key);
         try {
-            globalCache.remove(key);
-            nearCache.remove(key);
+            return onWritten.apply(globalWrite.getAsLong());
         } finally {
-            nearCache.releaseIfOwned(ownId, key);
+            nearCache.endWrite(key);
+        }
+    }
+    
+    private CompletableFuture<SambaValueProxy> writeThroughAsync(String key, 
+                                                                 Supplier<CompletableFuture<Long>> globalWrite, 
+                                                                 LongFunction<SambaValueProxy> onWritten) {
+        nearCache.beginWrite(key);
+        CompletableFuture<Long> versionFuture;
+        try {
+            versionFuture = globalWrite.get();
+        } catch (RuntimeException e) {
+            nearCache.endWrite(key);
+            throw e;
+        }
+        return versionFuture.
+                    thenApply(version -> onWritten.apply(version)).
+                    whenComplete((valueProxy, error) -> nearCache.endWrite(key));
+    }
+
+    // Counter is read and cached like any other value, since it is decoded as Long by its serializer
+    @Override
+    public long getCounter(String key) {
+        globalCache.registerCounter(key);
+        SambaValueProxy value = (SambaValueProxy) get(key);
+        return value != null ? (Long) value.getObservedValue() : 0;
+    }
+    
+    @Override
+    public long addAndGetCounter(String key, long delta) {
+        flushPendingWrite(key);
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        SambaGlobalStoreEntry entry = globalCache.addAndGetCounterEntry(key, delta, expirationTime);
+        long counter = SambaGlobalStoreEntry.toCounter(entry.getDataBuffer());
+        nearCache.invalidate(key);
+        nearCache.putIfNewer(key, counter, entry.getVersion(), entry.getExpirationTime());
+        return counter;
+    }
+    
+    @Override
+    public long getAndSetCounter(String key, long newValue) {
+        flushPendingWrite(key);
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        long oldValue = globalCache.getAndSetCounter(key, newValue, expirationTime);
+        // Version of the set counter is not known, so it is read from global cache again on demand
+        nearCache.invalidate(key);
+        nearCache.remove(key);
+        return oldValue;
+    }
+    
+    @Override
+    public void mutate(String key, SambaMutation mutation) {
+        flushPendingWrite(key);
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        globalCache.mutate(key, mutation, expirationTime);
+        // Mutated value is not known without reading it, so it is read from global cache again on demand
+        nearCache.invalidate(key);
+        nearCache.remove(key);
+        
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Value with key %s has been mutated by %s in tiered cache", key, mutation));
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.enqueue(key, null, SambaValueProxy.NO_EXPIRATION);
+        } else {
+            globalCache.remove(key);
         }
+        nearCache.invalidate(key);
+        nearCache.remove(key);
         
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(
@@ -201,102 +729,362 @@ public class SambaTieredCache implements SambaCache {
         }
     }
     
+    @Override
+    public void removeAll(Collection<String> keys) {
+        if (writeBehindQueue != null) {
+            for (String key : keys) {
+                writeBehindQueue.enqueue(key, null, SambaValueProxy.NO_EXPIRATION);
+            }
+        } else {
+            globalCache.removeAll(keys);
+        }
+        for (String key : keys) {
+            nearCache.invalidate(key);
+            nearCache.remove(key);
+        }
+        
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                    String.format("Values have been removed from tiered cache with keys %s", keys));
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> CompletableFuture<V> getAsync(String key) {
+        Object value = nearCache.get(key);
+        if (value != null) {
+            if (isAbsent(value)) {
+                metrics.recordLocalRead(true);
+                return CompletableFuture.completedFuture(null);
+            }
+            SambaValueProxy valueProxy = (SambaValueProxy) value;
+            if (valueProxy.isDetached()) {
+                // Decoded off-heap value of the near-cache which is not kept in its front cache
+                metrics.recordLocalRead(true);
+                return CompletableFuture.completedFuture((V) valueProxy.getObservedValue());
+            }
+            // Completed future of the near-cache entry is reused, so there is no allocation for hits
+            CompletableFuture<Object> valueFuture = valueProxy.getValueFuture();
+            if (valueFuture != null) {
+                metrics.recordLocalRead(true);
+                return (CompletableFuture<V>) valueFuture;
+            }
+        }
+        
+        metrics.recordLocalRead(false);
+        long stamp = nearCache.stamp(key);
+        SambaWriteBehindQueue.PendingWrite pendingWrite = getPendingWrite(key);
+        if (pendingWrite != null) {
+            SambaValueProxy globalValue = toGlobalValue(pendingWrite);
+            return CompletableFuture.completedFuture(
+                    globalValue != null ? (V) populate(stamp, key, globalValue).getObservedValue() : null);
+        }
+        return complete(
+                () -> globalCache.getEntryAsync(key), 
+                globalValue -> populate(stamp, key, globalValue)).
+                    thenApply(globalValue -> globalValue != null ? (V) globalValue.getObservedValue() : null);
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V> CompletableFuture<V> refreshAsync(String key) {
+        flushPendingWrite(key);
+        long stamp = nearCache.stamp(key);
+        return complete(
+                () -> {
+                    nearCache.remove(key);
+                    return globalCache.getEntryAsync(key);
+                }, 
+                globalValue -> populate(stamp, key, globalValue)).
+                    thenApply(globalValue -> globalValue != null ? (V) globalValue.getObservedValue() : null);
+    }
+    
+    @Override
+    public CompletableFuture<Void> putAsync(String key, Object value) {
+        if (value == null) {
+            return removeAsync(key);
+        }
+        if (writeBehindQueue != null) {
+            // Value is only queued, so there is nothing to wait for
+            put(key, value);
+            return CompletableFuture.completedFuture(null);
+        }
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        // Version of the put value is not known, so it is read from global cache again on demand
+        return complete(
+                () -> globalCache.putAsync(key, value, expirationTime), 
+                nothing -> {
+                    nearCache.invalidate(key);
+                    nearCache.remove(key);
+                });
+    }
+    
+    @Override
+    public CompletableFuture<Boolean> replaceAsync(String key, Object oldValue, Object newValue) {
+        flushPendingWrite(key);
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        return complete(
+                () -> globalCache.replaceAsync(key, oldValue, newValue, expirationTime), 
+                replaced -> {
+                    metrics.recordCas(replaced);
+                    if (replaced) {
+                        nearCache.invalidate(key);
+                        nearCache.remove(key);
+                    }
+                });
+    }
+    
+    @Override
+    public CompletableFuture<Boolean> replaceIfVersionAsync(String key, long oldVersion, Object newValue) {
+        flushPendingWrite(key);
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        return complete(
+                () -> globalCache.replaceIfVersionAsync(key, oldVersion, newValue, expirationTime), 
+                replaced -> {
+                    metrics.recordCas(replaced);
+                    if (replaced) {
+                        nearCache.invalidate(key);
+                        nearCache.remove(key);
+                    }
+                });
+    }
+    
+    @Override
+    public CompletableFuture<SambaValueProxy> putAndGetProxyAsync(String key, Object value) {
+        if (writeBehindQueue != null) {
+            // Value is only queued, so there is nothing to wait for
+            return CompletableFuture.completedFuture(putAndGetProxy(key, value, DEFAULT_TTL, TimeUnit.MILLISECONDS));
+        }
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        return writeThroughAsync(
+                    key, 
+                    () -> globalCache.putAndGetVersionAsync(key, value, expirationTime), 
+                    version -> nearCache.putWritten(key, value, version, expirationTime));
+    }
+    
+    @Override
+    public CompletableFuture<SambaValueProxy> replaceAndGetProxyAsync(String key, Object oldValue, Object newValue) {
+        flushPendingWrite(key);
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        return writeThroughAsync(
+                    key, 
+                    () -> globalCache.replaceAndGetVersionAsync(key, oldValue, newValue, expirationTime), 
+                    version -> toReplacedProxy(key, newValue, version, expirationTime));
+    }
+    
+    @Override
+    public CompletableFuture<SambaValueProxy> replaceIfVersionAndGetProxyAsync(String key, long oldVersion, 
+                                                                                Object newValue) {
+        flushPendingWrite(key);
+        long expirationTime = toExpirationTime(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        return writeThroughAsync(
+                    key, 
+                    () -> globalCache.replaceIfVersionAndGetVersionAsync(key, oldVersion, newValue, expirationTime), 
+                    version -> toReplacedProxy(key, newValue, version, expirationTime));
+    }
+    
+    @Override
+    public CompletableFuture<Void> removeAsync(String key) {
+        if (writeBehindQueue != null) {
+            remove(key);
+            return CompletableFuture.completedFuture(null);
+        }
+        return complete(
+                () -> globalCache.removeAsync(key), 
+                nothing -> {
+                    nearCache.invalidate(key);
+                    nearCache.remove(key);
+                });
+    }
+    
+    // Near-cache is updated once the global cache call completes successfully
+    private <T> CompletableFuture<T> complete(Supplier<CompletableFuture<T>> globalCall, 
+                                              Consumer<T> onGlobalCallSucceeded) {
+        return globalCall.get().whenComplete((result, error) -> {
+            if (error == null) {
+                onGlobalCallSucceeded.accept(result);
+            }
+        });
+    }
+    
+    // Near-cache serializes the values too if it keeps them off-heap
+    @Override
+    public void registerSerializer(String key, SambaSerializer serializer) {
+        globalCache.registerSerializer(key, serializer);
+        nearCache.localCache.registerSerializer(key, serializer);
+    }
+    
     @Override
     public void clear() {
-        nearCache.ownAll();
-        try {
-            globalCache.clear();
-            nearCache.clear();
-        } finally {
-            nearCache.releaseAll();
+        if (writeBehindQueue != null) {
+            writeBehindQueue.clear();
         }
+        globalCache.clear();
+        nearCache.invalidateAll();
+        nearCache.clear();
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Tiered cache has been cleared");
         }
     }
     
+    /**
+     * Discards the cache. Writes queued by the write-behind cache are written into the global store
+     * and its background flushes are stopped, so the cache is not kept alive by the flusher anymore.
+     * Cache must not be written after it has been destroyed.
+     */
+    public void destroy() {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.destroy();
+        }
+    }
+    
     private class NearCache {
-
-        private final int SLOT_COUNT = 1024;
-        private final int SLOT_MASK = SLOT_COUNT - 1;
         
-        private final AtomicLongArray slotStates = new AtomicLongArray(SLOT_COUNT * 4);
-        private final SambaCache localCache;
+        // Stamps are padded to 128 bytes (two cache lines with adjacent line prefetch), 
+        // so bumping a stamp doesn't slow down readers of the other stamps
+        private final int STAMP_PADDING = 16;
+        private final int STRIPE_COUNT = 
+                Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 16 - 1) << 1;
+        private final int STRIPE_MASK = STRIPE_COUNT - 1;
+        private final BooleanSupplier ALWAYS = () -> true;
         
-        private NearCache(SambaCache localCache) {
+        private final AtomicLongArray stamps = new AtomicLongArray(STRIPE_COUNT * STAMP_PADDING);
+        // Keys being written by this cache into the global cache
+        private final ConcurrentMap<String, WritesInProgress> writesInProgress = 
+                new ConcurrentHashMap<String, WritesInProgress>();
+        private final SambaLocalCache localCache;
+        
+        private NearCache(SambaLocalCache localCache) {
             this.localCache = localCache;
+            SambaSlabAllocator offHeapMemory = localCache.getOffHeapMemory();
+            if (offHeapMemory != null) {
+                metrics.trackOffHeapMemory(offHeapMemory);
+            }
         }
         
-        private int getSlot(String key) {
+        private int stampIndex(String key) {
             int hash = key.hashCode();
-            return hash & SLOT_MASK;
+            hash ^= (hash >>> 16);
+            return (hash & STRIPE_MASK) * STAMP_PADDING;
         }
         
-        private int ownIdIndex(int slot) {
-            return (slot << 2);
+        private long stamp(String key) {
+            return stamps.get(stampIndex(key));
         }
         
-        private int activeCountIndex(int slot) {
-            return (slot << 2) + 1;
+        // Must be called after the global cache has been changed and before the near-cache is updated,
+        // so readers which have read from global cache before the change don't put the old value
+        private void invalidate(String key) {
+            stamps.incrementAndGet(stampIndex(key));
         }
         
-        private int completedCountIndex(int slot) {
-            return (slot << 2) + 2;
+        private void invalidateAll() {
+            for (int stripe = 0; stripe < STRIPE_COUNT; stripe++) {
+                stamps.incrementAndGet(stripe * STAMP_PADDING);
+            }
         }
-
-        private long tryOwn(String key) {
-            long ownId = -1;
-            int slot = getSlot(key);
-            long currentCompleted = slotStates.get(completedCountIndex(slot));
-            if (slotStates.compareAndSet(ownIdIndex(slot), 0, currentCompleted)) {
-                ownId = currentCompleted;
+        
+        // Returns the near-cache proxy of the key or null if the value could not be put
+        private SambaValueProxy putIfNotInvalidated(long stamp, String key, Object value, 
+                                                    long version, long expirationTime) {
+            int stampIndex = stampIndex(key);
+            if (stamps.get(stampIndex) != stamp) {
+                return null;
             }
-            slotStates.incrementAndGet(activeCountIndex(slot));
-            return ownId;
+            return localCache.putIfNewer(
+                    key, value, version, expirationTime, () -> stamps.get(stampIndex) == stamp);
         }
         
-        private void ownAll() {
-            for (int slot = 0; slot < SLOT_COUNT; slot++) {
-                slotStates.incrementAndGet(activeCountIndex(slot));
-            }    
+        private SambaValueProxy putIfNewer(String key, Object value, long version, long expirationTime) {
+            return localCache.putIfNewer(key, value, version, expirationTime, ALWAYS);
         }
-
-        private void releaseIfOwned(long ownId, String key) {
-            int slot = getSlot(key);
-            slotStates.incrementAndGet(completedCountIndex(slot));
-            slotStates.decrementAndGet(activeCountIndex(slot));
-            if (ownId >= 0) {
-                slotStates.set(ownIdIndex(slot), 0);
-            }   
-        }
-        
-        private void releaseAll() {
-            for (int slot = 0; slot < SLOT_COUNT; slot++) {
-                slotStates.incrementAndGet(completedCountIndex(slot));
-                slotStates.decrementAndGet(activeCountIndex(slot));
-            }
+        
+        private void beginWrite(String key) {
+            writesInProgress.compute(key, (k, writes) -> {
+                if (writes == null) {
+                    writes = new WritesInProgress();
+                }
+                writes.count++;
+                return writes;
+            });
         }
         
-        private boolean putIfAvailable(long ownId, String key, Object value) {
-            if (ownId >= 0) {
-                int slot = getSlot(key);
-                long activeCount = slotStates.get(activeCountIndex(slot));
-                long expectedCompleted = ownId;
-                long currentCompleted = slotStates.get(completedCountIndex(slot));
-                if (activeCount == 1 && currentCompleted == expectedCompleted) {
-                    put(key, value);
-                    return true;
-                }   
+        private void endWrite(String key) {
+            writesInProgress.computeIfPresent(key, (k, writes) -> --writes.count > 0 ? writes : null);
+        }
+        
+        // Called by the propagator before the change is applied. Changes without version might be newer than any.
+        private void changeReceived(String key, long version) {
+            if (writesInProgress.isEmpty()) {
+                return;
             }
-            return false;
+            long receivedVersion = version != SambaValueProxy.NO_VERSION ? version : Long.MAX_VALUE;
+            writesInProgress.computeIfPresent(key, (k, writes) -> {
+                writes.receivedVersion = Math.max(writes.receivedVersion, receivedVersion);
+                return writes;
+            });
+        }
+        
+        /*
+         * Puts the value written by this cache unless a newer change of the others has been received 
+         * while it was being written, since the newer value might have been dropped from near-cache already 
+         * and the written value would hide it then. Received changes are checked atomically with the put, 
+         * so the later ones are applied over the written value by the propagator. If the value is not put, 
+         * its detached proxy is returned, so it can still be compare-and-set by its version.
+         * Clears are not tracked, so a value written concurrently with a clear might survive it.
+         */
+        private SambaValueProxy putWritten(String key, Object value, long version, long expirationTime) {
+            invalidate(key);
+            SambaValueProxy valueProxy = 
+                    localCache.putIfNewer(
+                            key, value, version, expirationTime, 
+                            () -> writesInProgress.get(key).receivedVersion <= version);
+            return valueProxy != null ? valueProxy : SambaValueProxy.detached(value, version, expirationTime);
         }
 
         private Object get(String key) {
             return localCache.get(key);
         }
-
-        private void put(String key, Object value) {
-            localCache.put(key, value);
+        
+        // Only keys held in near-cache are updated, so changed values of other keys are never decoded.
+        // Changes which are not newer than the held value (late or already applied ones) are ignored and 
+        // values which cannot be ordered by their versions (such as tombstones) are just removed.
+        private void updateIfNewer(String key, Supplier<Object> value, long version, long expirationTime) {
+            SambaValueProxy currentValue = localCache.peek(key);
+            if (currentValue == null) {
+                return;
+            }
+            long currentVersion = currentValue.getVersion();
+            if (version == SambaValueProxy.NO_VERSION || currentVersion == SambaValueProxy.NO_VERSION) {
+                remove(key);
+            } else if (version > currentVersion) {
+                Object newValue = value.get();
+                if (newValue == null) {
+                    remove(key);
+                } else {
+                    putIfNewer(key, newValue, version, expirationTime);
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug(
+                                String.format("Value %s with version %d has been updated in " + 
+                                              "near-cache of tiered cache with key %s", newValue, version, key));
+                    }
+                }
+            }
+        }
+        
+        // Removal of an older version than the held value is ignored, since the entry has been re-created
+        private void removeIfNotNewer(String key, long version) {
+            SambaValueProxy currentValue = localCache.peek(key);
+            if (currentValue == null) {
+                return;
+            }
+            long currentVersion = currentValue.getVersion();
+            if (version == SambaValueProxy.NO_VERSION 
+                    || currentVersion == SambaValueProxy.NO_VERSION 
+                    || version >= currentVersion) {
+                remove(key);
+            }
         }
 
         private void remove(String key) {
@@ -308,5 +1096,25 @@ public class SambaTieredCache implements SambaCache {
         }
 
     }   
+    
+    // Updated only in the remapping functions of the map of the writes in progress
+    private static final class WritesInProgress {
+        
+        private int count;
+        // Highest version of the changes received since the first write in progress began
+        private volatile long receivedVersion = Long.MIN_VALUE;
+        
+    }
+    
+    // Weighed as an empty object by the weighers of the near-cache and never kept off-heap, 
+    // since it is recognized by its identity
+    private static final class Tombstone implements SambaLocalCache.HeapResident {
+        
+        @Override
+        public String toString() {
+            return "<absent>";
+        }
+        
+    }
 
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel which keeps the keys of expiring entries in buckets by their expiration times,
+ * so expired entries are found without scanning all the entries and without a timer per entry.
+ *
+ * There are wheels of 64 buckets spanning about a second, a minute, an hour and three days
+ * (as powers of two milliseconds). A key is put into the finest wheel which covers its expiration time.
+ * Once the time reaches a bucket of a coarser wheel, its keys are cascaded down into the finer wheels
+ * until they expire in the finest one. Keys expiring beyond the coarsest wheel stay in its buckets
+ * and are rescheduled whenever their buckets are reached.
+ *
+ * Expired keys are reported within about a second after their expiration.
+ * Nodes of keys are kept in doubly linked buckets, so owner cancels the node of a replaced or removed entry
+ * in constant time and rewriting a key doesn't pile up nodes. Owner must still check whether the reported key
+ * has really expired, since the key might have been written again with another node.
+ * Not thread-safe, so it must be guarded by its owner.
+ */
+final class SambaTimingWheel {
+
+    private static final int BUCKET_COUNT = 64;
+    private static final int BUCKET_MASK = BUCKET_COUNT - 1;
+    private static final int[] SPAN_SHIFTS = { 10, 16, 22, 28 };
+
+    private final Node[][] wheels = new Node[SPAN_SHIFTS.length][BUCKET_COUNT];
+    private long currentTime;
+    private int size;
+
+    SambaTimingWheel(long currentTime) {
+        this.currentTime = currentTime;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Time when the finest wheel ticks next, so advancing before that doesn't report anything
+    long nextTickTime() {
+        return ((currentTime >>> SPAN_SHIFTS[0]) + 1) << SPAN_SHIFTS[0];
+    }
+
+    Node schedule(String key, long expirationTime) {
+        Node node = new Node(key, expirationTime);
+        add(node);
+        size++;
+        return node;
+    }
+
+    // Node which has been reported or cancelled already is ignored
+    void cancel(Node node) {
+        node.cancelled = true;
+        if (node.wheel < 0) {
+            return;
+        }
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            wheels[node.wheel][node.bucket] = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.wheel = -1;
+        size--;
+    }
+
+    private void add(Node node) {
+        long delay = node.expirationTime - currentTime;
+        int wheel = 0;
+        while (wheel < SPAN_SHIFTS.length - 1 && delay >= ((long) BUCKET_COUNT << SPAN_SHIFTS[wheel])) {
+            wheel++;
+        }
+        // Already expired ones are put into the current bucket, so they are reported by the next tick
+        long time = Math.max(node.expirationTime, currentTime);
+        int bucket = (int) ((time >>> SPAN_SHIFTS[wheel]) & BUCKET_MASK);
+        Node head = wheels[wheel][bucket];
+        if (head != null) {
+            head.prev = node;
+        }
+        node.prev = null;
+        node.next = head;
+        node.wheel = wheel;
+        node.bucket = bucket;
+        wheels[wheel][bucket] = node;
+    }
+
+    /**
+     * Advances the wheels to the given time and reports the keys expired until then.
+     * Buckets passed since the last advance are processed including the current ones,
+     * whose keys are either reported or cascaded into the finer wheels.
+     */
+    void advance(long now, Consumer<String> expiredKeyConsumer) {
+        long previousTime = currentTime;
+        if (now <= previousTime) {
+            return;
+        }
+        currentTime = now;
+        for (int wheel = 0; wheel < SPAN_SHIFTS.length; wheel++) {
+            long previousTicks = previousTime >>> SPAN_SHIFTS[wheel];
+            long currentTicks = now >>> SPAN_SHIFTS[wheel];
+            if (currentTicks == previousTicks) {
+                // Coarser wheels cannot have ticked either
+                break;
+            }
+            long steps = Math.min(currentTicks - previousTicks + 1, BUCKET_COUNT);
+            for (long i = 0; i < steps; i++) {
+                int bucket = (int) ((previousTicks + i) & BUCKET_MASK);
+                // Detached first, since not expired keys might be added back into the same bucket. 
+                // Detached nodes are unlinked before any key is reported, 
+                // so the ones cancelled by the consumer are just skipped.
+                Node head = wheels[wheel][bucket];
+                wheels[wheel][bucket] = null;
+                for (Node node = head; node != null; node = node.next) {
+                    node.wheel = -1;
+                    size--;
+                }
+                Node node = head;
+                while (node != null) {
+                    Node next = node.next;
+                    node.prev = null;
+                    node.next = null;
+                    if (node.expirationTime <= now && !node.cancelled) {
+                        node.cancelled = true;
+                        expiredKeyConsumer.accept(node.key);
+                    } else if (!node.cancelled) {
+                        add(node);
+                        size++;
+                    }
+                    node = next;
+                }
+            }
+        }
+    }
+
+    static final class Node {
+
+        private final String key;
+        private final long expirationTime;
+        private Node prev;
+        private Node next;
+        // Wheel and bucket the node is linked into, or -1 as wheel once it is unlinked
+        private int wheel = -1;
+        private int bucket;
+        private boolean cancelled;
+
+        private Node(String key, long expirationTime) {
+            this.key = key;
+            this.expirationTime = expirationTime;
+        }
+
+    }
+
+}
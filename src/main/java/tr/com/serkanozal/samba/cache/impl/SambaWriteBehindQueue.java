@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pending writes of the keys of a write-behind tiered cache, which are written into its global cache
+ * in batches by a background flusher.
+ *
+ * Writes of the same key are coalesced, so only the last one is written. Pending write is kept
+ * until it has been written, so a key is always found either pending or in the global cache.
+ * Flushes are serialized, so writes of a key are written in their order.
+ */
+final class SambaWriteBehindQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(SambaWriteBehindQueue.class);
+
+    private static final ScheduledExecutorService FLUSHER_EXECUTOR_SERVICE =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                private final ThreadFactory delegatedThreadFactory = Executors.defaultThreadFactory();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = delegatedThreadFactory.newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static final class PendingWrite {
+
+        // Null value is a pending removal
+        final Object value;
+        final long expirationTime;
+
+        private PendingWrite(Object value, long expirationTime) {
+            this.value = value;
+            this.expirationTime = expirationTime;
+        }
+
+    }
+
+    private final ConcurrentMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<String, PendingWrite>();
+    private final SambaGlobalCache globalCache;
+    private final int maxPendingCount;
+    private final Object flushLock = new Object();
+    // Flusher is shared by all the queues, so the scheduled flush is cancelled when the queue is destroyed
+    private final ScheduledFuture<?> flushFuture;
+
+    SambaWriteBehindQueue(SambaGlobalCache globalCache, long flushIntervalMillis, int maxPendingCount) {
+        this.globalCache = globalCache;
+        this.maxPendingCount = maxPendingCount;
+        this.flushFuture = 
+                FLUSHER_EXECUTOR_SERVICE.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushInBackground();
+                    }
+                }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the write (or the removal if the value is null) of the key in place of its pending write.
+     * If the queue is full, it is flushed by the caller, so writers are slowed down to the pace of the flushes.
+     */
+    void enqueue(String key, Object value, long expirationTime) {
+        pendingWrites.put(key, new PendingWrite(value, expirationTime));
+        if (pendingWrites.size() >= maxPendingCount) {
+            flush();
+        }
+    }
+
+    PendingWrite getPendingWrite(String key) {
+        return pendingWrites.get(key);
+    }
+
+    private void flushInBackground() {
+        try {
+            flush();
+        } catch (Throwable t) {
+            // Pending writes are kept, so they are retried by the next flush
+            LOGGER.error("Unable to flush pending writes of tiered cache", t);
+        }
+    }
+
+    /**
+     * Writes all the pending writes into the global cache.
+     * Writes which are queued while flushing might be written by the next flush.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            if (pendingWrites.isEmpty()) {
+                return;
+            }
+            Map<String, PendingWrite> flushedWrites = new HashMap<String, PendingWrite>(pendingWrites);
+            // Batch writes have a single expiration time, so writes are grouped by their expiration times
+            Map<Long, Map<String, Object>> entriesByExpirationTime = new HashMap<Long, Map<String, Object>>();
+            List<String> removedKeys = new ArrayList<String>();
+            for (Map.Entry<String, PendingWrite> entry : flushedWrites.entrySet()) {
+                PendingWrite pendingWrite = entry.getValue();
+                if (pendingWrite.value == null) {
+                    removedKeys.add(entry.getKey());
+                } else {
+                    Map<String, Object> entries = entriesByExpirationTime.get(pendingWrite.expirationTime);
+                    if (entries == null) {
+                        entries = new HashMap<String, Object>();
+                        entriesByExpirationTime.put(pendingWrite.expirationTime, entries);
+                    }
+                    entries.put(entry.getKey(), pendingWrite.value);
+                }
+            }
+            for (Map.Entry<Long, Map<String, Object>> entry : entriesByExpirationTime.entrySet()) {
+                globalCache.putAll(entry.getValue(), entry.getKey());
+            }
+            globalCache.removeAll(removedKeys);
+            for (Map.Entry<String, PendingWrite> entry : flushedWrites.entrySet()) {
+                // Not removed if it has been overwritten in the meantime
+                pendingWrites.remove(entry.getKey(), entry.getValue());
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                        String.format("%d pending writes have been flushed from tiered cache",
+                                      flushedWrites.size()));
+            }
+        }
+    }
+
+    /**
+     * Writes the pending write of the key into the global cache,
+     * so the key can be read or written through the global cache afterwards.
+     */
+    void flush(String key) {
+        if (!pendingWrites.containsKey(key)) {
+            return;
+        }
+        synchronized (flushLock) {
+            PendingWrite pendingWrite = pendingWrites.get(key);
+            if (pendingWrite == null) {
+                return;
+            }
+            if (pendingWrite.value == null) {
+                globalCache.remove(key);
+            } else {
+                globalCache.putAndGetVersion(key, pendingWrite.value, pendingWrite.expirationTime);
+            }
+            pendingWrites.remove(key, pendingWrite);
+        }
+    }
+
+    /**
+     * Stops flushing in background after writing the pending writes into the global cache,
+     * so the queue (and its cache) is not kept by the flusher anymore.
+     */
+    void destroy() {
+        flushFuture.cancel(false);
+        flush();
+    }
+
+    // Pending writes are discarded, since the global cache is going to be cleared anyway
+    void clear() {
+        synchronized (flushLock) {
+            pendingWrites.clear();
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.store;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * SPI for the remote storage behind global (and so tiered) caches.
+ * 
+ * Store works on serialized data and is responsible for atomicity of the 
+ * conditional operations and for publishing changes done by other store 
+ * instances (other processes/machines) to the registered change listeners.
+ * Insert and update changes done through the same store instance are 
+ * not published back to its own listeners.
+ * 
+ * Every entry has a version which is increased on each update, 
+ * so conditional operations compare versions but not the data.
+ * Write operations return the new version of the entry 
+ * or {@link SambaGlobalStoreEntry#NO_VERSION} if their condition has failed.
+ * 
+ * Writes take the expiration time of the written entry 
+ * (or {@link SambaGlobalStoreEntry#NO_EXPIRATION}).
+ * Expired entries must be treated as absent by reads and conditional writes
+ * even if they have not been physically removed yet.
+ * 
+ * Single entry writes might also take the data as a byte buffer (between its position and limit),
+ * which is reused by the caller once the write returns, so the store must neither retain nor modify it. 
+ * They copy the data into a byte array by default, so stores which can write 
+ * from the buffer directly should override them.
+ * 
+ * Counters are entries whose data is a long in the form of {@link SambaGlobalStoreEntry#toCounterData(long)},
+ * so they are read like any other entry. They are updated by compare-and-set loops by default,
+ * so stores which can update numbers in place (atomically on the store side) should override the counter updates.
+ * 
+ * Structures (lists, sets, maps and numbers) might be kept natively by stores which can mutate them in place.
+ * Entries of such structures are read as {@link SambaGlobalStoreEntry#isStructured() structured} entries
+ * whose data is encoded by {@link SambaGlobalStoreStructure}. Mutations are not applied by the stores by default, 
+ * so they are applied by the cache through compare-and-set on the serialized value instead.
+ */
+public interface SambaGlobalStore {
+
+    SambaGlobalStoreEntry get(String key);
+    long put(String key, byte[] data, long expirationTime);
+    long putIfAbsent(String key, byte[] data, long expirationTime);
+    long replace(String key, long oldVersion, byte[] newData, long expirationTime);
+    void remove(String key);
+    boolean remove(String key, long oldVersion);
+    void clear();
+    
+    /**
+     * Gets entries of the given keys. Absent keys are not included in the returned map.
+     */
+    Map<String, SambaGlobalStoreEntry> getAll(Collection<String> keys);
+    void putAll(Map<String, byte[]> entries, long expirationTime);
+    void removeAll(Collection<String> keys);
+    
+    default long put(String key, ByteBuffer data, long expirationTime) {
+        return put(key, SambaGlobalStoreEntry.toByteArray(data), expirationTime);
+    }
+    
+    default long putIfAbsent(String key, ByteBuffer data, long expirationTime) {
+        return putIfAbsent(key, SambaGlobalStoreEntry.toByteArray(data), expirationTime);
+    }
+    
+    default long replace(String key, long oldVersion, ByteBuffer newData, long expirationTime) {
+        return replace(key, oldVersion, SambaGlobalStoreEntry.toByteArray(newData), expirationTime);
+    }
+    
+    /**
+     * Adds the given delta to the counter of the given key atomically. 
+     * Absent (or expired) counter is created from zero with the given expiration time
+     * and the expiration time of an existing counter is not changed.
+     * 
+     * @return the entry of the counter after the addition
+     */
+    default SambaGlobalStoreEntry addAndGetCounter(String key, long delta, long expirationTime) {
+        for (;;) {
+            SambaGlobalStoreEntry entry = get(key);
+            long counter = (entry != null ? SambaGlobalStoreEntry.toCounter(entry.getDataBuffer()) : 0) + delta;
+            byte[] data = SambaGlobalStoreEntry.toCounterData(counter);
+            long version;
+            if (entry != null) {
+                expirationTime = entry.getExpirationTime();
+                version = replace(key, entry.getVersion(), data, expirationTime);
+            } else {
+                version = putIfAbsent(key, data, expirationTime);
+            }
+            if (version != SambaGlobalStoreEntry.NO_VERSION) {
+                return new SambaGlobalStoreEntry(data, version, expirationTime);
+            }
+        }
+    }
+    
+    /**
+     * Sets the counter of the given key to the given value atomically.
+     * Absent (or expired) counter is created with the given expiration time
+     * and the expiration time of an existing counter is not changed.
+     * 
+     * @return the entry of the counter before it has been set, <code>null</code> if it was absent
+     */
+    default SambaGlobalStoreEntry getAndSetCounter(String key, long newCounter, long expirationTime) {
+        byte[] data = SambaGlobalStoreEntry.toCounterData(newCounter);
+        for (;;) {
+            SambaGlobalStoreEntry entry = get(key);
+            long version;
+            if (entry != null) {
+                version = replace(key, entry.getVersion(), data, entry.getExpirationTime());
+            } else {
+                version = putIfAbsent(key, data, expirationTime);
+            }
+            if (version != SambaGlobalStoreEntry.NO_VERSION) {
+                return entry;
+            }
+        }
+    }
+    
+    /**
+     * Applies the given mutation to the structure of the given key in place (atomically on the store side)
+     * without reading it first. Absent (or expired) structure is created by the mutation with the given 
+     * expiration time and the expiration time of an existing structure is not changed.
+     * 
+     * Store might decline a mutation which it cannot apply in place (for example, if the value of the key 
+     * is not a structure of the mutated kind but a serialized value), then the mutation is applied by the cache.
+     * 
+     * @return the new version of the entry or {@link SambaGlobalStoreEntry#NO_VERSION} if the mutation has been declined
+     */
+    default long mutate(String key, SambaGlobalStoreMutation mutation, long expirationTime) {
+        return SambaGlobalStoreEntry.NO_VERSION;
+    }
+    
+    void registerChangeListener(SambaGlobalStoreChangeListener changeListener);
+    void deregisterChangeListener(SambaGlobalStoreChangeListener changeListener);
+    
+}
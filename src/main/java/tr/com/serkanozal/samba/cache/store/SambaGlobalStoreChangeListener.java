@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.store;
+
+/**
+ * Listener of the changes done on {@link SambaGlobalStore} by other store instances.
+ * 
+ * Changed entries are given with their versions, so listeners can order the changes of a key. 
+ * Old entries and versions are given only if they are known by the store 
+ * (otherwise <code>null</code> and {@link SambaGlobalStoreEntry#NO_VERSION}).
+ */
+public interface SambaGlobalStoreChangeListener {
+
+    // Lag of the changes whose times are not known by the store
+    long UNKNOWN_LAG = -1;
+    
+    void onInsert(String key, SambaGlobalStoreEntry entry);
+    void onUpdate(String key, SambaGlobalStoreEntry oldEntry, SambaGlobalStoreEntry newEntry);
+    void onDelete(String key, long oldVersion);
+    void onClear();
+    
+    /**
+     * Called for every change received by the store before it is dispatched 
+     * (including the changes done by this store instance, which are not dispatched) 
+     * with the time passed since the change in milliseconds or {@link #UNKNOWN_LAG}. 
+     * Ignored by default, since it is only for monitoring the change stream.
+     */
+    default void onChangeReceived(long lagMillis) {
+    }
+    
+}
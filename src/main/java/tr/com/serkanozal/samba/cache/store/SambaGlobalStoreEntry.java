@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.store;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serialized data of an entry in {@link SambaGlobalStore} together with its version
+ * and its expiration time.
+ * 
+ * Version of an entry is increased on every update, so conditional updates 
+ * only compare versions instead of the serialized data.
+ * Expiration time is the wall-clock time in milliseconds after which the entry 
+ * is considered as absent, or {@link #NO_EXPIRATION} if the entry never expires.
+ * 
+ * Serialized data might be given as a byte buffer (for example, as received from the remote storage)
+ * to be decoded from it directly without copying it into a byte array first.
+ * The data is between the position and the limit of the buffer, 
+ * and the buffer is shared by the readers of the entry, so it must not be modified.
+ * 
+ * Data of a structured entry is not serialized by the cache but encoded by {@link SambaGlobalStoreStructure}
+ * from the structure kept natively by the store.
+ */
+public final class SambaGlobalStoreEntry {
+
+    public static final long NO_VERSION = -1;
+    public static final long NO_EXPIRATION = 0;
+    // Counters are kept as 8 bytes of big-endian long
+    public static final int COUNTER_DATA_LENGTH = 8;
+    
+    private static final AtomicLong LAST_INITIAL_VERSION = new AtomicLong();
+    
+    private final ByteBuffer dataBuffer;
+    private volatile byte[] data;
+    private final long version;
+    private final long expirationTime;
+    private final boolean structured;
+    
+    public SambaGlobalStoreEntry(byte[] data, long version) {
+        this(data, version, NO_EXPIRATION);
+    }
+    
+    public SambaGlobalStoreEntry(byte[] data, long version, long expirationTime) {
+        this.dataBuffer = data != null ? ByteBuffer.wrap(data) : null;
+        this.data = data;
+        this.version = version;
+        this.expirationTime = expirationTime;
+        this.structured = false;
+    }
+    
+    public SambaGlobalStoreEntry(ByteBuffer data, long version, long expirationTime) {
+        this(data, version, expirationTime, false);
+    }
+    
+    public SambaGlobalStoreEntry(ByteBuffer data, long version, long expirationTime, boolean structured) {
+        this.dataBuffer = data;
+        this.version = version;
+        this.expirationTime = expirationTime;
+        this.structured = structured;
+    }
+    
+    /**
+     * Gets the serialized data as byte array, which is copied from the data buffer 
+     * (at most once) if the entry has been created with a buffer not wrapping exactly the data.
+     */
+    public byte[] getData() {
+        byte[] bytes = data;
+        if (bytes == null && dataBuffer != null) {
+            if (dataBuffer.hasArray() && dataBuffer.arrayOffset() == 0 && dataBuffer.position() == 0 
+                    && dataBuffer.limit() == dataBuffer.array().length) {
+                bytes = dataBuffer.array();
+            } else {
+                bytes = toByteArray(dataBuffer);
+            }
+            data = bytes;
+        }
+        return bytes;
+    }
+    
+    /**
+     * Gets the serialized data as byte buffer without copying it. 
+     * The returned buffer must not be modified (including its position).
+     */
+    public ByteBuffer getDataBuffer() {
+        return dataBuffer;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+    
+    /**
+     * Whether the data is a structure encoded by {@link SambaGlobalStoreStructure} 
+     * instead of a value serialized by the cache.
+     */
+    public boolean isStructured() {
+        return structured;
+    }
+    
+    public boolean isExpired(long now) {
+        return isExpired(expirationTime, now);
+    }
+    
+    public static boolean isExpired(long expirationTime, long now) {
+        return expirationTime != NO_EXPIRATION && expirationTime <= now;
+    }
+    
+    /**
+     * Copies the bytes between the position and the limit of the given buffer 
+     * without changing its position.
+     */
+    public static byte[] toByteArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+    
+    /**
+     * Encodes the given counter as the data of its entry, which is 8 bytes of the counter in big-endian order.
+     */
+    public static byte[] toCounterData(long counter) {
+        byte[] data = new byte[COUNTER_DATA_LENGTH];
+        for (int i = COUNTER_DATA_LENGTH - 1; i >= 0; i--) {
+            data[i] = (byte) counter;
+            counter >>>= 8;
+        }
+        return data;
+    }
+    
+    /**
+     * Decodes the counter from the data of its entry without changing position of the given buffer.
+     */
+    public static long toCounter(ByteBuffer data) {
+        if (data.remaining() != COUNTER_DATA_LENGTH) {
+            throw new IllegalArgumentException("Entry data is not a counter!");
+        }
+        // Byte order of the shared buffer is not relied on
+        long counter = 0;
+        for (int i = data.position(); i < data.limit(); i++) {
+            counter = (counter << 8) | (data.get(i) & 0xFF);
+        }
+        return counter;
+    }
+    
+    /**
+     * Converts the given time-to-live to the expiration time starting from now.
+     * Non-positive time-to-live means that the entry never expires.
+     */
+    public static long toExpirationTime(long ttl, TimeUnit timeUnit) {
+        if (ttl <= 0) {
+            return NO_EXPIRATION;
+        }
+        long ttlMillis = Math.max(1, timeUnit.toMillis(ttl));
+        long now = System.currentTimeMillis();
+        // Saturate instead of overflowing for practically infinite time-to-live values
+        return ttlMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlMillis;
+    }
+    
+    /**
+     * Creates version for a new entry based on wall-clock time in microseconds.
+     * So a re-created entry starts from a version greater than the versions of its previous 
+     * incarnation (unless it has been updated more than a million times per second), 
+     * and compare-and-set with a version of the removed entry cannot succeed on the new one.
+     */
+    public static long newInitialVersion() {
+        long now = System.currentTimeMillis() * 1000;
+        for (;;) {
+            long last = LAST_INITIAL_VERSION.get();
+            long next = Math.max(now, last + 1);
+            if (LAST_INITIAL_VERSION.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.store;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Mutation of a structure (see {@link SambaGlobalStoreStructure}) to be applied in place
+ * by {@link SambaGlobalStore#mutate(String, SambaGlobalStoreMutation, long)}.
+ *
+ * Elements (and the map value of {@link Type#MAP_PUT}) are serialized by the cache,
+ * so set elements are compared by their serialized forms on the store side.
+ */
+public final class SambaGlobalStoreMutation {
+
+    public enum Type {
+
+        LIST_APPEND(true),
+        SET_ADD(true),
+        SET_REMOVE(false),
+        NUMBER_ADD(true),
+        MAP_PUT(true),
+        MAP_REMOVE(false);
+
+        private final boolean creating;
+
+        Type(boolean creating) {
+            this.creating = creating;
+        }
+
+        // Absent structure is created by the creating mutations,
+        // while the others leave it absent since there is nothing to remove from
+        public boolean isCreating() {
+            return creating;
+        }
+
+    }
+
+    private final Type type;
+    private final List<ByteBuffer> elements;
+    private final String mapKey;
+    private final long delta;
+
+    public SambaGlobalStoreMutation(Type type, List<ByteBuffer> elements, String mapKey, long delta) {
+        this.type = type;
+        this.elements = elements;
+        this.mapKey = mapKey;
+        this.delta = delta;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets the serialized elements of the list and set mutations or the serialized value of {@link Type#MAP_PUT}.
+     */
+    public List<ByteBuffer> getElements() {
+        return elements;
+    }
+
+    public String getMapKey() {
+        return mapKey;
+    }
+
+    public long getDelta() {
+        return delta;
+    }
+
+}
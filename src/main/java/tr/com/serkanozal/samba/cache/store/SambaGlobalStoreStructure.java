@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.store;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Encoding of the structures (lists, sets, maps and numbers) which are kept natively by stores
+ * and mutated in place by {@link SambaGlobalStoreMutation}s.
+ *
+ * Elements (and map values) of the structures are serialized by the cache,
+ * so a structure is encoded as its kind followed by its element count and its elements
+ * (map values preceded by their UTF-8 keys) each prefixed by its length.
+ * Numbers are encoded as 8 bytes of long. All the integers are in big-endian order.
+ */
+public final class SambaGlobalStoreStructure {
+
+    public static final byte LIST = 1;
+    public static final byte SET = 2;
+    public static final byte MAP = 3;
+    public static final byte NUMBER = 4;
+
+    private SambaGlobalStoreStructure() {
+
+    }
+
+    public static ByteBuffer encodeList(Collection<ByteBuffer> elements) {
+        return encodeElements(LIST, elements);
+    }
+
+    public static ByteBuffer encodeSet(Collection<ByteBuffer> elements) {
+        return encodeElements(SET, elements);
+    }
+
+    // Given element buffers are read without changing their positions
+    private static ByteBuffer encodeElements(byte kind, Collection<ByteBuffer> elements) {
+        int length = 1 + 4;
+        for (ByteBuffer element : elements) {
+            length += 4 + element.remaining();
+        }
+        ByteBuffer data = ByteBuffer.allocate(length);
+        data.put(kind).putInt(elements.size());
+        for (ByteBuffer element : elements) {
+            data.putInt(element.remaining()).put(element.duplicate());
+        }
+        ((Buffer) data).flip();
+        return data;
+    }
+
+    public static ByteBuffer encodeMap(Map<String, ByteBuffer> entries) {
+        List<byte[]> keys = new ArrayList<byte[]>(entries.size());
+        int length = 1 + 4;
+        for (Map.Entry<String, ByteBuffer> entry : entries.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            keys.add(key);
+            length += 4 + key.length + 4 + entry.getValue().remaining();
+        }
+        ByteBuffer data = ByteBuffer.allocate(length);
+        data.put(MAP).putInt(entries.size());
+        int i = 0;
+        for (ByteBuffer value : entries.values()) {
+            byte[] key = keys.get(i++);
+            data.putInt(key.length).put(key);
+            data.putInt(value.remaining()).put(value.duplicate());
+        }
+        ((Buffer) data).flip();
+        return data;
+    }
+
+    public static ByteBuffer encodeNumber(long number) {
+        ByteBuffer data = ByteBuffer.allocate(1 + 8);
+        data.put(NUMBER).putLong(number);
+        ((Buffer) data).flip();
+        return data;
+    }
+
+    /**
+     * Decodes the structure from the given data without changing its position.
+     * Elements are decoded by the given decoder from the buffers sharing the content of the data.
+     *
+     * @return an {@link ArrayList}, a {@link LinkedHashSet}, a {@link LinkedHashMap} or a {@link Long}
+     */
+    public static Object decode(ByteBuffer data, Function<ByteBuffer, Object> elementDecoder) {
+        // Duplicate is big-endian regardless of the byte order of the shared buffer
+        ByteBuffer buffer = data.duplicate();
+        byte kind = buffer.get();
+        if (kind == NUMBER) {
+            return buffer.getLong();
+        }
+        int count = buffer.getInt();
+        switch (kind) {
+            case LIST:
+                List<Object> list = new ArrayList<Object>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(elementDecoder.apply(nextElement(buffer)));
+                }
+                return list;
+            case SET:
+                Set<Object> set = new LinkedHashSet<Object>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    set.add(elementDecoder.apply(nextElement(buffer)));
+                }
+                return set;
+            case MAP:
+                Map<String, Object> map = new LinkedHashMap<String, Object>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    byte[] key = new byte[buffer.getInt()];
+                    buffer.get(key);
+                    map.put(new String(key, StandardCharsets.UTF_8), elementDecoder.apply(nextElement(buffer)));
+                }
+                return map;
+            default:
+                throw new IllegalArgumentException("Unknown structure kind: " + kind);
+        }
+    }
+
+    private static ByteBuffer nextElement(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        ByteBuffer element = buffer.duplicate();
+        ((Buffer) element).limit(element.position() + length);
+        ((Buffer) buffer).position(buffer.position() + length);
+        return element;
+    }
+
+}
@@ -0,0 +1,1200 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.store.impl;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.StreamRecord;
+import com.amazonaws.services.dynamodbv2.model.StreamSpecification;
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStore;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreChangeListener;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreMutation;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreStructure;
+
+/**
+ * {@link SambaGlobalStore} implementation which keeps entries on AWS's DynamoDB
+ * and listens changes through DynamoDB Streams by {@link SambaDynamoDBStreamConsumer}.
+ * 
+ * Version of an entry is kept in its "version" attribute and increased by update expressions,
+ * so conditional writes only send the expected version instead of the old data.
+ * 
+ * Expiration time of an entry is kept in its "ttl" attribute as epoch seconds,
+ * so expired items are deleted by DynamoDB itself once Time To Live is enabled 
+ * on the table for this attribute. As DynamoDB might delete expired items much later,
+ * reads and conditional writes treat them as absent until then.
+ * 
+ * Counters are kept in their "counter" attributes as native numbers, so they are updated in place 
+ * by a single <code>ADD</code> (or <code>SET</code>) update expression without reading them first.
+ * Similarly, structures are kept in their "structure" attributes as native lists, binary sets (of serialized elements),
+ * maps and numbers, so a mutation is a single update expression (<code>list_append</code>, <code>ADD</code>, 
+ * <code>DELETE</code> or <code>SET</code>/<code>REMOVE</code> of a map entry) without reading or rewriting 
+ * the whole value. Serialized values (and counters) are not mutated in place, so their mutations are declined.
+ * 
+ * Serialized data is handed to and taken from the SDK as byte buffers as they are,
+ * so it is neither copied before writes nor after reads (including the stream records).
+ * 
+ * Keys are scoped to the current generation of the table (items are kept with "&lt;generation&gt;/&lt;key&gt;" ids),
+ * which is kept in a dedicated item. So clear is a single increment of the generation instead of 
+ * deleting every item, and items of the stale generations are reaped later in the background by 
+ * parallel segmented scans and batch deletes. Items of the first generation are kept with the keys themselves
+ * as their ids (unless a key looks like a scoped id), so the items written before the keys were scoped 
+ * are read as the items of the first generation and reaped by the first clear.
+ * 
+ * Generation is validated by every operation by default (reads get it in the same batch with the entry 
+ * and writes read it before writing), so a clear is observed by all the instances right away. 
+ * If a generation refresh interval is given, generation is cached and validated at most once in the interval, 
+ * but only while the stream is consumed (there is a change listener), since then its change is also received 
+ * from the stream. So a clear of another instance is observed as soon as it is received from the stream 
+ * (or at most that late), and writes done until then are discarded as if they were done before the clear. 
+ * A failed conditional write validates the generation right away, since it might have failed 
+ * just because of the stale generation.
+ */
+public class SambaDynamoDBGlobalStore implements SambaGlobalStore {
+
+    private static final Logger LOGGER = Logger.getLogger(SambaDynamoDBGlobalStore.class);
+
+    // Limits of DynamoDB for a single BatchGetItem and BatchWriteItem request
+    private static final int MAX_BATCH_GET_ITEM_COUNT = 100;
+    private static final int MAX_BATCH_WRITE_ITEM_COUNT = 25;
+    private static final long MIN_UNPROCESSED_RETRY_BACKOFF_MILLIS = 10;
+    private static final long MAX_UNPROCESSED_RETRY_BACKOFF_MILLIS = 1000;
+    // Items written before versioning and the batch written items have no version attribute, 
+    // initial versions are based on wall-clock time so they never collide with this one
+    private static final long UNVERSIONED_ITEM_VERSION = 0;
+    private static final String TTL_ATTRIBUTE_NAME = "ttl";
+    private static final String PUT_EXPRESSION = 
+            "SET #data = :data, #source = :source, #version = if_not_exists(#version, :initialVersion) + :one";
+    private static final String REPLACE_EXPRESSION = 
+            "SET #data = :data, #source = :source, #version = if_not_exists(#version, :zero) + :one";
+    private static final String SET_TTL_EXPRESSION = ", #ttl = :ttl";
+    private static final String REMOVE_TTL_EXPRESSION = " REMOVE #ttl";
+    private static final String VERSION_CONDITION = "#version = :oldVersion";
+    private static final String UNVERSIONED_CONDITION = "attribute_exists(id) AND attribute_not_exists(#version)";
+    private static final String NOT_EXPIRED_CONDITION = " AND (attribute_not_exists(#ttl) OR #ttl > :now)";
+    // Items left without any value (like emptied sets) are absent too
+    private static final String ABSENT_CONDITION = 
+            "attribute_not_exists(id) OR #ttl <= :now " + 
+            "OR (attribute_not_exists(#data) AND attribute_not_exists(#counter) AND attribute_not_exists(#structure))";
+    // Counters are kept as native numbers, so they are updated by DynamoDB itself in a single request
+    private static final String COUNTER_ATTRIBUTE_NAME = "counter";
+    private static final String ADD_COUNTER_EXPRESSION = 
+            "ADD #counter :counter SET #source = :source, #version = if_not_exists(#version, :initialVersion) + :one";
+    private static final String SET_COUNTER_EXPRESSION = 
+            "SET #counter = :counter, #source = :source, #version = if_not_exists(#version, :initialVersion) + :one";
+    private static final String KEEP_TTL_EXPRESSION = ", #ttl = if_not_exists(#ttl, :ttl)";
+    private static final String LIVE_CONDITION = "attribute_not_exists(#ttl) OR #ttl > :now";
+    private static final String EXPIRED_CONDITION = "#ttl <= :now";
+    // Structures are kept as native types, so they are mutated by DynamoDB itself in a single request
+    private static final String STRUCTURE_ATTRIBUTE_NAME = "structure";
+    private static final String STRUCTURE_VERSION_EXPRESSION = 
+            "#source = :source, #version = if_not_exists(#version, :initialVersion) + :one";
+    private static final String LIST_APPEND_EXPRESSION = 
+            "SET #structure = list_append(if_not_exists(#structure, :empty), :elements), ";
+    private static final String MAP_PUT_EXPRESSION = "SET #structure.#mapKey = :element, ";
+    private static final String CREATE_STRUCTURE_EXPRESSION = "SET #structure = :structure, ";
+    private static final String CLEAR_VALUE_EXPRESSION = " REMOVE #data, #counter";
+    private static final String MUTABLE_CONDITION = 
+            "attribute_not_exists(#data) AND attribute_not_exists(#counter) " + 
+            "AND (attribute_not_exists(#ttl) OR #ttl > :now)";
+    private static final String OPTIONAL_STRUCTURE_TYPE_CONDITION = 
+            " AND (attribute_not_exists(#structure) OR attribute_type(#structure, :type))";
+    private static final String STRUCTURE_TYPE_CONDITION = " AND attribute_type(#structure, :type)";
+    // Id of the item keeping the generation, which is never used by the items as the key with the same id is scoped
+    private static final String GENERATION_ITEM_ID = "___SambaGeneration___";
+    private static final String GENERATION_ATTRIBUTE_NAME = "generation";
+    private static final char GENERATION_SEPARATOR = '/';
+    private static final int REAP_SEGMENT_COUNT = 4;
+    // Stale generations are reaped after the others must have observed the new generation,
+    // so late writes into the stale generations (done before observing it) are reaped too
+    private static final long REAP_DELAY_MILLIS = 1000;
+    private static final ScheduledExecutorService REAPER_EXECUTOR_SERVICE = 
+            Executors.newScheduledThreadPool(REAP_SEGMENT_COUNT, new ThreadFactory() {
+                private final ThreadFactory delegatedThreadFactory = Executors.defaultThreadFactory();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = delegatedThreadFactory.newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    public static final int DEFAULT_STREAM_THREAD_COUNT = 2;
+    public static final long DEFAULT_STREAM_MIN_POLL_INTERVAL_MILLIS = 100;
+    public static final long DEFAULT_STREAM_MAX_POLL_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_STREAM_SHARD_DISCOVERY_INTERVAL_MILLIS = 10000;
+    public static final long DEFAULT_GENERATION_REFRESH_INTERVAL_MILLIS = 0;
+
+    private final String DYNAMO_DB_TABLE_NAME;
+    private final int DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND;
+    private final int DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND;
+    private final AmazonDynamoDB DYNAMO_DB;
+    private final Table DYNAMO_DB_TABLE;
+    private final AmazonDynamoDBStreams DYNAMO_DB_STREAMS;
+    private final SambaDynamoDBStreamConsumer STREAM_CONSUMER;
+    private final List<SambaGlobalStoreChangeListener> changeListeners =
+            new CopyOnWriteArrayList<SambaGlobalStoreChangeListener>();
+    private final String UUID = java.util.UUID.randomUUID().toString();
+    private final long GENERATION_REFRESH_INTERVAL_MILLIS;
+    private final AtomicLong generation = new AtomicLong();
+    private volatile long generationRefreshTime;
+
+    public SambaDynamoDBGlobalStore(AmazonDynamoDB dynamoDB, AmazonDynamoDBStreams dynamoDBStreams,
+                                    String tableName, int readCapacityPerSecond, int writeCapacityPerSecond) {
+        this(dynamoDB, dynamoDBStreams, tableName, readCapacityPerSecond, writeCapacityPerSecond,
+             DEFAULT_STREAM_THREAD_COUNT, DEFAULT_STREAM_MIN_POLL_INTERVAL_MILLIS,
+             DEFAULT_STREAM_MAX_POLL_INTERVAL_MILLIS, DEFAULT_STREAM_SHARD_DISCOVERY_INTERVAL_MILLIS, null);
+    }
+
+    public SambaDynamoDBGlobalStore(AmazonDynamoDB dynamoDB, AmazonDynamoDBStreams dynamoDBStreams,
+                                    String tableName, int readCapacityPerSecond, int writeCapacityPerSecond,
+                                    int streamThreadCount, long streamMinPollIntervalMillis, 
+                                    long streamMaxPollIntervalMillis, long streamShardDiscoveryIntervalMillis,
+                                    File streamCheckpointFile) {
+        this(dynamoDB, dynamoDBStreams, tableName, readCapacityPerSecond, writeCapacityPerSecond,
+             streamThreadCount, streamMinPollIntervalMillis, streamMaxPollIntervalMillis, 
+             streamShardDiscoveryIntervalMillis, streamCheckpointFile, DEFAULT_GENERATION_REFRESH_INTERVAL_MILLIS);
+    }
+
+    public SambaDynamoDBGlobalStore(AmazonDynamoDB dynamoDB, AmazonDynamoDBStreams dynamoDBStreams,
+                                    String tableName, int readCapacityPerSecond, int writeCapacityPerSecond,
+                                    int streamThreadCount, long streamMinPollIntervalMillis, 
+                                    long streamMaxPollIntervalMillis, long streamShardDiscoveryIntervalMillis,
+                                    File streamCheckpointFile, long generationRefreshIntervalMillis) {
+        DYNAMO_DB_TABLE_NAME = tableName;
+        DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND = readCapacityPerSecond;
+        DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND = writeCapacityPerSecond;
+        DYNAMO_DB = dynamoDB;
+        DYNAMO_DB_STREAMS = dynamoDBStreams;
+        DYNAMO_DB_TABLE = ensureTableAvailable();
+        GENERATION_REFRESH_INTERVAL_MILLIS = generationRefreshIntervalMillis;
+        refreshGeneration();
+        STREAM_CONSUMER = 
+                new SambaDynamoDBStreamConsumer(
+                        dynamoDB, dynamoDBStreams, tableName, new StreamRecordHandler(), 
+                        streamThreadCount, streamMinPollIntervalMillis, streamMaxPollIntervalMillis, 
+                        streamShardDiscoveryIntervalMillis, streamCheckpointFile);
+    }
+
+    private Table ensureTableAvailable() {
+        boolean tableExist = false;
+        try {
+            DYNAMO_DB.describeTable(DYNAMO_DB_TABLE_NAME);
+            tableExist = true;
+        } catch (ResourceNotFoundException e) {
+        }
+
+        if (!tableExist) {
+            ArrayList<AttributeDefinition> attributeDefinitions =
+                    new ArrayList<AttributeDefinition>();
+            attributeDefinitions.add(
+                    new AttributeDefinition().
+                            withAttributeName("id").
+                            withAttributeType("S"));
+
+            ArrayList<KeySchemaElement> keySchema = new ArrayList<KeySchemaElement>();
+            keySchema.add(
+                    new KeySchemaElement().
+                            withAttributeName("id").
+                            withKeyType(KeyType.HASH));
+
+            StreamSpecification streamSpecification = new StreamSpecification();
+            streamSpecification.setStreamEnabled(true);
+            streamSpecification.setStreamViewType(StreamViewType.NEW_AND_OLD_IMAGES);
+
+            CreateTableRequest createTableRequest =
+                    new CreateTableRequest().
+                            withTableName(DYNAMO_DB_TABLE_NAME).
+                            withKeySchema(keySchema).
+                            withAttributeDefinitions(attributeDefinitions).
+                            withStreamSpecification(streamSpecification).
+                            withProvisionedThroughput(
+                                    new ProvisionedThroughput().
+                                            withReadCapacityUnits((long) DYNAMO_DB_TABLE_READ_CAPACITY_PER_SECOND).
+                                            withWriteCapacityUnits((long) DYNAMO_DB_TABLE_WRITE_CAPACITY_PER_SECOND));
+
+            try {
+                LOGGER.info(
+                        String.format(
+                                "Creating DynamoDB table (%s) creation, because it is not exist",
+                                DYNAMO_DB_TABLE_NAME));
+
+                DYNAMO_DB.createTable(createTableRequest);
+            } catch (ResourceInUseException e) {
+                LOGGER.info(
+                        String.format(
+                                "Ignoring DynamoDB table (%s) creation, because it is already exist",
+                                DYNAMO_DB_TABLE_NAME));
+            }
+        } else {
+            LOGGER.info(
+                    String.format(
+                            "Ignoring DynamoDB table (%s) creation, because it is already exist",
+                            DYNAMO_DB_TABLE_NAME));
+        }
+
+        while (true) {
+            DescribeTableResult describeTableResult =
+                    DYNAMO_DB.describeTable(DYNAMO_DB_TABLE_NAME);
+            TableDescription tableDescription = describeTableResult.getTable();
+            if ("ACTIVE".equals(tableDescription.getTableStatus())) {
+                break;
+            }
+            LOGGER.info(
+                    String.format(
+                            "DynamoDB table (%s) is not active yet, waiting until it is active ...",
+                            DYNAMO_DB_TABLE_NAME));
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+            }
+        }
+
+        return new Table(DYNAMO_DB, DYNAMO_DB_TABLE_NAME);
+    }
+
+    private class StreamRecordHandler implements SambaDynamoDBStreamConsumer.RecordHandler {
+
+        @Override
+        public void onRecord(Record record) {
+            StreamRecord streamRecord = record.getDynamodb();
+            String eventName = record.getEventName();
+            String id = streamRecord.getKeys().get("id").getS();
+            long lagMillis = getLagMillis(streamRecord);
+            for (SambaGlobalStoreChangeListener listener : changeListeners) {
+                listener.onChangeReceived(lagMillis);
+            }
+            if (GENERATION_ITEM_ID.equals(id)) {
+                if (streamRecord.getNewImage() != null) {
+                    observeGeneration(getGeneration(streamRecord.getNewImage()));
+                }
+                return;
+            }
+            long itemGeneration = generationOf(id);
+            // A change in a newer generation means that the table has been cleared in the meantime
+            observeGeneration(itemGeneration);
+            if (itemGeneration != generation.get()) {
+                // Changes of the stale generations (including their reaping) are not visible anymore
+                return;
+            }
+            String key = keyOf(id);
+            if ("INSERT".equals(eventName)) {
+                SambaGlobalStoreEntry newEntry = getEntry(streamRecord.getNewImage());
+                String source = streamRecord.getNewImage().get("source").getS();
+                if (!source.equals(UUID)) {
+                    for (SambaGlobalStoreChangeListener listener : changeListeners) {
+                        listener.onInsert(key, newEntry);
+                    }
+                }
+            } else if ("MODIFY".equals(eventName)) {
+                SambaGlobalStoreEntry oldEntry = getEntry(streamRecord.getOldImage());
+                SambaGlobalStoreEntry newEntry = getEntry(streamRecord.getNewImage());
+                String source = streamRecord.getNewImage().get("source").getS();
+                if (!source.equals(UUID)) {
+                    for (SambaGlobalStoreChangeListener listener : changeListeners) {
+                        listener.onUpdate(key, oldEntry, newEntry);
+                    }
+                }
+            } else if ("REMOVE".equals(eventName)) {
+                long oldVersion = getVersion(streamRecord.getOldImage());
+                for (SambaGlobalStoreChangeListener listener : changeListeners) {
+                    listener.onDelete(key, oldVersion);
+                }
+            } else {
+                LOGGER.warn("Unknown event name: " + eventName);
+            }
+        }
+
+        // Creation time of the record is approximate (rounded down to seconds by DynamoDB), 
+        // so lags shorter than a second are not precise
+        private long getLagMillis(StreamRecord streamRecord) {
+            Date creationTime = streamRecord.getApproximateCreationDateTime();
+            if (creationTime == null) {
+                return SambaGlobalStoreChangeListener.UNKNOWN_LAG;
+            }
+            return Math.max(0, System.currentTimeMillis() - creationTime.getTime());
+        }
+
+        // Unversioned items (like the batch written ones) cannot be ordered by their versions against the others,
+        // so they are published without version and the listeners invalidate them instead of comparing versions
+        private SambaGlobalStoreEntry getEntry(Map<String, AttributeValue> image) {
+            return image != null ? toEntry(image, SambaGlobalStoreEntry.NO_VERSION) : null;
+        }
+
+        private long getVersion(Map<String, AttributeValue> image) {
+            if (image == null) {
+                return SambaGlobalStoreEntry.NO_VERSION;
+            }
+            AttributeValue version = image.get("version");
+            return version != null ? Long.parseLong(version.getN()) : UNVERSIONED_ITEM_VERSION;
+        }
+
+    }
+
+    // Keys of the first generation are used as the ids as they are (like the items written before the keys 
+    // were scoped), unless they look like scoped ids themselves
+    private static String scopedId(long generation, String key) {
+        if (generation == 0 && separatorIndexOf(key) < 0 && !GENERATION_ITEM_ID.equals(key)) {
+            return key;
+        }
+        return Long.toString(generation) + GENERATION_SEPARATOR + key;
+    }
+
+    // Returns -1 for the ids which are not prefixed by a generation
+    private static int separatorIndexOf(String id) {
+        int separatorIndex = id.indexOf(GENERATION_SEPARATOR);
+        if (separatorIndex <= 0 || separatorIndex > 18) {
+            return -1;
+        }
+        for (int i = 0; i < separatorIndex; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        return separatorIndex;
+    }
+
+    private static long generationOf(String id) {
+        int separatorIndex = separatorIndexOf(id);
+        return separatorIndex < 0 ? 0 : Long.parseLong(id.substring(0, separatorIndex));
+    }
+
+    private static String keyOf(String id) {
+        int separatorIndex = separatorIndexOf(id);
+        return separatorIndex < 0 ? id : id.substring(separatorIndex + 1);
+    }
+
+    private static Map<String, AttributeValue> idKey(String id) {
+        return Collections.singletonMap("id", new AttributeValue().withS(id));
+    }
+
+    private static long getGeneration(Map<String, AttributeValue> generationItem) {
+        AttributeValue generation = generationItem != null ? generationItem.get(GENERATION_ATTRIBUTE_NAME) : null;
+        return generation != null ? Long.parseLong(generation.getN()) : 0;
+    }
+
+    // Generation is cached only while the stream is consumed, since clears of the other instances 
+    // are not observed early otherwise
+    private boolean isGenerationRefreshDue() {
+        return GENERATION_REFRESH_INTERVAL_MILLIS <= 0 
+                || changeListeners.isEmpty()
+                || System.currentTimeMillis() - generationRefreshTime >= GENERATION_REFRESH_INTERVAL_MILLIS;
+    }
+
+    private void refreshGeneration() {
+        long refreshTime = System.currentTimeMillis();
+        Map<String, AttributeValue> generationItem =
+                DYNAMO_DB.getItem(
+                        new GetItemRequest().
+                                withTableName(DYNAMO_DB_TABLE_NAME).
+                                withKey(idKey(GENERATION_ITEM_ID)).
+                                withConsistentRead(true)).getItem();
+        observeGeneration(getGeneration(generationItem));
+        generationRefreshTime = refreshTime;
+    }
+
+    // Generation to scope the keys of an operation, which is validated first if it is due
+    private long currentGeneration() {
+        if (isGenerationRefreshDue()) {
+            refreshGeneration();
+        }
+        return generation.get();
+    }
+
+    // Conditional writes might have failed just because the table has been cleared by another instance, 
+    // so the generation is validated right away and the write is retried if it was stale
+    private boolean isGenerationStale(long usedGeneration) {
+        refreshGeneration();
+        return generation.get() != usedGeneration;
+    }
+
+    // Listeners are notified as the table has been cleared, if the observed generation is newer than the known one
+    private void observeGeneration(long observedGeneration) {
+        for (;;) {
+            long currentGeneration = generation.get();
+            if (observedGeneration <= currentGeneration) {
+                return;
+            }
+            if (generation.compareAndSet(currentGeneration, observedGeneration)) {
+                break;
+            }
+        }
+        for (SambaGlobalStoreChangeListener listener : changeListeners) {
+            listener.onClear();
+        }
+    }
+
+    private static SambaGlobalStoreEntry toEntry(Map<String, AttributeValue> item) {
+        return toEntry(item, UNVERSIONED_ITEM_VERSION);
+    }
+
+    private static SambaGlobalStoreEntry toEntry(Map<String, AttributeValue> item, long unversionedItemVersion) {
+        AttributeValue data = item.get("data");
+        AttributeValue version = item.get("version");
+        ByteBuffer dataBuffer = null;
+        boolean structured = false;
+        if (data != null) {
+            dataBuffer = data.getB();
+        } else if (item.containsKey(COUNTER_ATTRIBUTE_NAME)) {
+            // Counter is exposed as its data, so it is read like any other entry
+            long counter = toCounter(item.get(COUNTER_ATTRIBUTE_NAME));
+            dataBuffer = ByteBuffer.wrap(SambaGlobalStoreEntry.toCounterData(counter));
+        } else if (item.containsKey(STRUCTURE_ATTRIBUTE_NAME)) {
+            // Structure is exposed as its encoded data, so it is decoded by the cache
+            dataBuffer = toStructureData(item.get(STRUCTURE_ATTRIBUTE_NAME));
+            structured = dataBuffer != null;
+        }
+        return new SambaGlobalStoreEntry(
+                    dataBuffer, 
+                    version != null ? Long.parseLong(version.getN()) : unversionedItemVersion,
+                    getExpirationTime(item),
+                    structured);
+    }
+    
+    // Elements are taken as they are received, so they are not copied before they are decoded
+    private static ByteBuffer toStructureData(AttributeValue structure) {
+        if (structure.getN() != null) {
+            return SambaGlobalStoreStructure.encodeNumber(toCounter(structure));
+        } else if (structure.getBS() != null) {
+            return SambaGlobalStoreStructure.encodeSet(structure.getBS());
+        } else if (structure.getM() != null) {
+            Map<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(structure.getM().size() * 2);
+            for (Map.Entry<String, AttributeValue> entry : structure.getM().entrySet()) {
+                entries.put(entry.getKey(), entry.getValue().getB());
+            }
+            return SambaGlobalStoreStructure.encodeMap(entries);
+        } else if (structure.getL() != null) {
+            List<ByteBuffer> elements = new ArrayList<ByteBuffer>(structure.getL().size());
+            for (AttributeValue element : structure.getL()) {
+                elements.add(element.getB());
+            }
+            return SambaGlobalStoreStructure.encodeList(elements);
+        }
+        return null;
+    }
+    
+    // Numbers of DynamoDB are not bounded by long, so counters overflow like longs do
+    private static long toCounter(AttributeValue counter) {
+        return new BigInteger(counter.getN()).longValue();
+    }
+
+    private static long getExpirationTime(Map<String, AttributeValue> item) {
+        AttributeValue ttl = item.get(TTL_ATTRIBUTE_NAME);
+        return ttl != null ? toExpirationTime(Long.parseLong(ttl.getN())) : SambaGlobalStoreEntry.NO_EXPIRATION;
+    }
+
+    private static long toExpirationTime(long ttlSeconds) {
+        return TimeUnit.SECONDS.toMillis(ttlSeconds);
+    }
+
+    // DynamoDB expects the expiration time in epoch seconds, so it is rounded up to the next second
+    private static long toTtlSeconds(long expirationTime) {
+        return (expirationTime + 999) / 1000;
+    }
+
+    private static long nowSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+
+    @Override
+    public void registerChangeListener(SambaGlobalStoreChangeListener changeListener) {
+        changeListeners.add(changeListener);
+        // Stream is not consumed at all until there is someone interested in the changes
+        STREAM_CONSUMER.start();
+    }
+
+    @Override
+    public void deregisterChangeListener(SambaGlobalStoreChangeListener changeListener) {
+        changeListeners.remove(changeListener);
+    }
+
+    // Read by the low level API, since the document API copies binary attributes into byte arrays
+    @Override
+    public SambaGlobalStoreEntry get(String key) {
+        Map<String, AttributeValue> item;
+        for (;;) {
+            long generation = this.generation.get();
+            String id = scopedId(generation, key);
+            if (!isGenerationRefreshDue()) {
+                item =
+                        DYNAMO_DB.getItem(
+                                new GetItemRequest().
+                                        withTableName(DYNAMO_DB_TABLE_NAME).
+                                        withKey(idKey(id)).
+                                        withConsistentRead(true)).getItem();
+                break;
+            }
+            // Generation is read in the same batch with the entry, so it is validated without an extra round trip
+            long refreshTime = System.currentTimeMillis();
+            List<Map<String, AttributeValue>> keys = new ArrayList<Map<String, AttributeValue>>(2);
+            keys.add(idKey(GENERATION_ITEM_ID));
+            keys.add(idKey(id));
+            Map<String, Map<String, AttributeValue>> items = batchGetItems(keys);
+            long readGeneration = getGeneration(items.get(GENERATION_ITEM_ID));
+            observeGeneration(readGeneration);
+            generationRefreshTime = refreshTime;
+            if (readGeneration == generation) {
+                item = items.get(id);
+                break;
+            }
+            // Table has been cleared in the meantime, so the entry is read from the new generation
+        }
+        if (item == null) {
+            return null;
+        }
+        SambaGlobalStoreEntry entry = toEntry(item);
+        if (entry.getDataBuffer() == null || entry.isExpired(System.currentTimeMillis())) {
+            // Left without any value (like an emptied set) or expired but not deleted by DynamoDB yet
+            return null;
+        }
+        return entry;
+    }
+
+    @Override
+    public long put(String key, byte[] data, long expirationTime) {
+        return put(key, ByteBuffer.wrap(data), expirationTime);
+    }
+
+    @Override
+    public long putIfAbsent(String key, byte[] data, long expirationTime) {
+        return putIfAbsent(key, ByteBuffer.wrap(data), expirationTime);
+    }
+
+    @Override
+    public long replace(String key, long oldVersion, byte[] newData, long expirationTime) {
+        return replace(key, oldVersion, ByteBuffer.wrap(newData), expirationTime);
+    }
+
+    @Override
+    public long put(String key, ByteBuffer data, long expirationTime) {
+        UpdateItemOutcome outcome =
+                DYNAMO_DB_TABLE.updateItem(
+                        new UpdateItemSpec().
+                                withPrimaryKey("id", scopedId(currentGeneration(), key)).
+                                withUpdateExpression(PUT_EXPRESSION + ttlExpression(expirationTime)).
+                                withNameMap(updateNames()).
+                                withValueMap(
+                                        updateValues(data, expirationTime).
+                                            withLong(":initialVersion", SambaGlobalStoreEntry.newInitialVersion())).
+                                withReturnValues(ReturnValue.UPDATED_NEW));
+        return outcome.getItem().getLong("version");
+    }
+
+    @Override
+    public long putIfAbsent(String key, ByteBuffer data, long expirationTime) {
+        long version = SambaGlobalStoreEntry.newInitialVersion();
+        for (;;) {
+            long generation = currentGeneration();
+            try {
+                // Expired item is overwritten as if it has already been deleted
+                DYNAMO_DB.putItem(
+                        new PutItemRequest().
+                                withTableName(DYNAMO_DB_TABLE_NAME).
+                                withItem(newItem(scopedId(generation, key), data.duplicate(), version, expirationTime)).
+                                withConditionExpression(ABSENT_CONDITION).
+                                withExpressionAttributeNames(absentNames()).
+                                withExpressionAttributeValues(
+                                        Collections.singletonMap(
+                                                ":now", new AttributeValue().withN(Long.toString(nowSeconds())))));
+                return version;
+            } catch (ConditionalCheckFailedException e) {
+                if (!isGenerationStale(generation)) {
+                    return SambaGlobalStoreEntry.NO_VERSION;
+                }
+                // Entry might be absent in the new generation
+            }
+        }
+    }
+
+    private static Map<String, String> absentNames() {
+        Map<String, String> names = new HashMap<String, String>(8);
+        names.put("#data", "data");
+        names.put("#counter", COUNTER_ATTRIBUTE_NAME);
+        names.put("#structure", STRUCTURE_ATTRIBUTE_NAME);
+        names.put("#ttl", TTL_ATTRIBUTE_NAME);
+        return names;
+    }
+
+    // Items are built by the low level API, since the document API copies binary attributes into byte arrays
+    private Map<String, AttributeValue> newItem(String id, ByteBuffer data, long version, long expirationTime) {
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>(8);
+        item.put("id", new AttributeValue().withS(id));
+        item.put("data", new AttributeValue().withB(data));
+        item.put("source", new AttributeValue().withS(UUID));
+        if (version != UNVERSIONED_ITEM_VERSION) {
+            item.put("version", new AttributeValue().withN(Long.toString(version)));
+        }
+        if (expirationTime != SambaGlobalStoreEntry.NO_EXPIRATION) {
+            item.put(TTL_ATTRIBUTE_NAME, new AttributeValue().withN(Long.toString(toTtlSeconds(expirationTime))));
+        }
+        return item;
+    }
+
+    @Override
+    public long replace(String key, long oldVersion, ByteBuffer newData, long expirationTime) {
+        long generation = currentGeneration();
+        UpdateItemSpec updateItemSpec =
+                new UpdateItemSpec().
+                        withPrimaryKey("id", scopedId(generation, key)).
+                        withUpdateExpression(REPLACE_EXPRESSION + ttlExpression(expirationTime)).
+                        withReturnValues(ReturnValue.UPDATED_NEW);
+        ValueMap values = 
+                updateValues(newData, expirationTime).
+                    withLong(":zero", UNVERSIONED_ITEM_VERSION).
+                    withLong(":now", nowSeconds());
+        if (oldVersion == UNVERSIONED_ITEM_VERSION) {
+            updateItemSpec.
+                withConditionExpression(UNVERSIONED_CONDITION + NOT_EXPIRED_CONDITION).
+                withNameMap(updateNames()).
+                withValueMap(values);
+        } else {
+            updateItemSpec.
+                withConditionExpression(VERSION_CONDITION + NOT_EXPIRED_CONDITION).
+                withNameMap(updateNames()).
+                withValueMap(values.withLong(":oldVersion", oldVersion));
+        }
+        try {
+            return DYNAMO_DB_TABLE.updateItem(updateItemSpec).getItem().getLong("version");
+        } catch (ConditionalCheckFailedException e) {
+            // Not retried even if the generation was stale, since there is no entry with the old version 
+            // in the new generation, but the caller reads the entry from the new generation then
+            isGenerationStale(generation);
+            return SambaGlobalStoreEntry.NO_VERSION;
+        }
+    }
+
+    private static NameMap updateNames() {
+        return new NameMap().
+                    with("#data", "data").
+                    with("#source", "source").
+                    with("#version", "version").
+                    with("#ttl", TTL_ATTRIBUTE_NAME);
+    }
+
+    private ValueMap updateValues(ByteBuffer data, long expirationTime) {
+        ValueMap values = 
+                new ValueMap().
+                    with(":data", data).
+                    withString(":source", UUID).
+                    withLong(":one", 1);
+        if (expirationTime != SambaGlobalStoreEntry.NO_EXPIRATION) {
+            values.withLong(":ttl", toTtlSeconds(expirationTime));
+        }
+        return values;
+    }
+
+    private static String ttlExpression(long expirationTime) {
+        return expirationTime != SambaGlobalStoreEntry.NO_EXPIRATION ? SET_TTL_EXPRESSION : REMOVE_TTL_EXPRESSION;
+    }
+
+    @Override
+    public void remove(String key) {
+        DYNAMO_DB_TABLE.deleteItem("id", scopedId(currentGeneration(), key));
+    }
+
+    @Override
+    public boolean remove(String key, long oldVersion) {
+        long generation = currentGeneration();
+        DeleteItemSpec deleteItemSpec =
+                new DeleteItemSpec().
+                        withPrimaryKey("id", scopedId(generation, key)).
+                        withNameMap(new NameMap().with("#version", "version"));
+        if (oldVersion == UNVERSIONED_ITEM_VERSION) {
+            deleteItemSpec.withConditionExpression(UNVERSIONED_CONDITION);
+        } else {
+            deleteItemSpec.
+                withConditionExpression(VERSION_CONDITION).
+                withValueMap(new ValueMap().withLong(":oldVersion", oldVersion));
+        }
+        try {
+            DYNAMO_DB_TABLE.deleteItem(deleteItemSpec);
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            // Not retried for the same reason with the replace
+            isGenerationStale(generation);
+            return false;
+        }
+    }
+
+    @Override
+    public SambaGlobalStoreEntry addAndGetCounter(String key, long delta, long expirationTime) {
+        String id = scopedId(currentGeneration(), key);
+        for (;;) {
+            UpdateItemResult result = 
+                    updateCounter(id, ADD_COUNTER_EXPRESSION + keepTtlExpression(expirationTime), LIVE_CONDITION, 
+                                  delta, expirationTime, ReturnValue.ALL_NEW);
+            if (result == null) {
+                // Expired counter is restarted as if it was absent
+                result = 
+                        updateCounter(id, SET_COUNTER_EXPRESSION + ttlExpression(expirationTime), EXPIRED_CONDITION,
+                                      delta, expirationTime, ReturnValue.ALL_NEW);
+            }
+            if (result != null) {
+                return toEntry(result.getAttributes());
+            }
+            // Counter has been recreated concurrently after it expired
+        }
+    }
+    
+    @Override
+    public SambaGlobalStoreEntry getAndSetCounter(String key, long newCounter, long expirationTime) {
+        String id = scopedId(currentGeneration(), key);
+        for (;;) {
+            UpdateItemResult result = 
+                    updateCounter(id, SET_COUNTER_EXPRESSION + keepTtlExpression(expirationTime), LIVE_CONDITION, 
+                                  newCounter, expirationTime, ReturnValue.ALL_OLD);
+            if (result != null) {
+                Map<String, AttributeValue> oldItem = result.getAttributes();
+                return oldItem != null && !oldItem.isEmpty() ? toEntry(oldItem) : null;
+            }
+            result = 
+                    updateCounter(id, SET_COUNTER_EXPRESSION + ttlExpression(expirationTime), EXPIRED_CONDITION,
+                                  newCounter, expirationTime, ReturnValue.NONE);
+            if (result != null) {
+                // Expired counter is treated as absent
+                return null;
+            }
+        }
+    }
+    
+    // Returns null if the condition has failed
+    private UpdateItemResult updateCounter(String id, String updateExpression, String conditionExpression, 
+                                           long counter, long expirationTime, ReturnValue returnValue) {
+        Map<String, String> names = new HashMap<String, String>(8);
+        names.put("#counter", COUNTER_ATTRIBUTE_NAME);
+        names.put("#source", "source");
+        names.put("#version", "version");
+        names.put("#ttl", TTL_ATTRIBUTE_NAME);
+        Map<String, AttributeValue> values = new HashMap<String, AttributeValue>(8);
+        values.put(":counter", new AttributeValue().withN(Long.toString(counter)));
+        values.put(":source", new AttributeValue().withS(UUID));
+        values.put(":one", new AttributeValue().withN("1"));
+        values.put(":initialVersion", 
+                   new AttributeValue().withN(Long.toString(SambaGlobalStoreEntry.newInitialVersion())));
+        values.put(":now", new AttributeValue().withN(Long.toString(nowSeconds())));
+        if (expirationTime != SambaGlobalStoreEntry.NO_EXPIRATION) {
+            values.put(":ttl", new AttributeValue().withN(Long.toString(toTtlSeconds(expirationTime))));
+        }
+        return conditionalUpdate(id, updateExpression, conditionExpression, names, values, returnValue);
+    }
+    
+    // Returns null if the condition has failed
+    private UpdateItemResult conditionalUpdate(String id, String updateExpression, String conditionExpression, 
+                                               Map<String, String> names, Map<String, AttributeValue> values,
+                                               ReturnValue returnValue) {
+        try {
+            return DYNAMO_DB.updateItem(
+                        new UpdateItemRequest().
+                                withTableName(DYNAMO_DB_TABLE_NAME).
+                                withKey(idKey(id)).
+                                withUpdateExpression(updateExpression).
+                                withConditionExpression(conditionExpression).
+                                withExpressionAttributeNames(names).
+                                withExpressionAttributeValues(values).
+                                withReturnValues(returnValue));
+        } catch (ConditionalCheckFailedException e) {
+            return null;
+        }
+    }
+    
+    // Expiration time of a live counter (or structure) is kept as it is
+    private static String keepTtlExpression(long expirationTime) {
+        return expirationTime != SambaGlobalStoreEntry.NO_EXPIRATION ? KEEP_TTL_EXPRESSION : "";
+    }
+    
+    @Override
+    public long mutate(String key, SambaGlobalStoreMutation mutation, long expirationTime) {
+        String id = scopedId(currentGeneration(), key);
+        UpdateItemResult result = updateStructure(id, mutation, expirationTime);
+        if (result == null && mutation.getType().isCreating()) {
+            // Absent (or expired) structure is created as a whole, 
+            // since entries of a map cannot be set before the map itself exists
+            result = createStructure(id, mutation, expirationTime);
+            if (result == null) {
+                // Structure has been created concurrently in the meantime
+                result = updateStructure(id, mutation, expirationTime);
+            }
+        }
+        if (result == null) {
+            // Not a live structure of the mutated kind, so it is left to the cache
+            return SambaGlobalStoreEntry.NO_VERSION;
+        }
+        return Long.parseLong(result.getAttributes().get("version").getN());
+    }
+    
+    // Returns null if the item is not a live structure of the mutated kind (or an absent one for creating mutations)
+    private UpdateItemResult updateStructure(String id, SambaGlobalStoreMutation mutation, long expirationTime) {
+        Map<String, String> names = structureNames();
+        names.put("#data", "data");
+        names.put("#counter", COUNTER_ATTRIBUTE_NAME);
+        Map<String, AttributeValue> values = structureValues(expirationTime);
+        String versionExpression = STRUCTURE_VERSION_EXPRESSION + keepTtlExpression(expirationTime);
+        String updateExpression;
+        String type;
+        switch (mutation.getType()) {
+            case LIST_APPEND:
+                updateExpression = LIST_APPEND_EXPRESSION + versionExpression;
+                values.put(":empty", new AttributeValue().withL(new ArrayList<AttributeValue>(0)));
+                values.put(":elements", toListValue(mutation.getElements()));
+                type = "L";
+                break;
+            case SET_ADD:
+                updateExpression = "SET " + versionExpression + " ADD #structure :elements";
+                values.put(":elements", new AttributeValue().withBS(mutation.getElements()));
+                type = "BS";
+                break;
+            case SET_REMOVE:
+                updateExpression = "SET " + versionExpression + " DELETE #structure :elements";
+                values.put(":elements", new AttributeValue().withBS(mutation.getElements()));
+                type = "BS";
+                break;
+            case NUMBER_ADD:
+                updateExpression = "SET " + versionExpression + " ADD #structure :delta";
+                values.put(":delta", new AttributeValue().withN(Long.toString(mutation.getDelta())));
+                type = "N";
+                break;
+            case MAP_PUT:
+                updateExpression = MAP_PUT_EXPRESSION + versionExpression;
+                names.put("#mapKey", mutation.getMapKey());
+                values.put(":element", new AttributeValue().withB(mutation.getElements().get(0)));
+                type = "M";
+                break;
+            case MAP_REMOVE:
+                updateExpression = "SET " + versionExpression + " REMOVE #structure.#mapKey";
+                names.put("#mapKey", mutation.getMapKey());
+                type = "M";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mutation type: " + mutation.getType());
+        }
+        values.put(":type", new AttributeValue().withS(type));
+        // Map entries are set into an existing map, which is created by createStructure if it is absent
+        String conditionExpression = 
+                MUTABLE_CONDITION + 
+                (mutation.getType().isCreating() && mutation.getType() != SambaGlobalStoreMutation.Type.MAP_PUT 
+                    ? OPTIONAL_STRUCTURE_TYPE_CONDITION 
+                    : STRUCTURE_TYPE_CONDITION);
+        return conditionalUpdate(id, updateExpression, conditionExpression, names, values, ReturnValue.UPDATED_NEW);
+    }
+    
+    // Any stale value of an absent (or expired) item is overwritten by the created structure
+    private UpdateItemResult createStructure(String id, SambaGlobalStoreMutation mutation, long expirationTime) {
+        Map<String, String> names = structureNames();
+        names.putAll(absentNames());
+        Map<String, AttributeValue> values = structureValues(expirationTime);
+        AttributeValue structure;
+        switch (mutation.getType()) {
+            case LIST_APPEND:
+                structure = toListValue(mutation.getElements());
+                break;
+            case SET_ADD:
+                structure = new AttributeValue().withBS(mutation.getElements());
+                break;
+            case NUMBER_ADD:
+                structure = new AttributeValue().withN(Long.toString(mutation.getDelta()));
+                break;
+            case MAP_PUT:
+                AttributeValue value = new AttributeValue().withB(mutation.getElements().get(0));
+                structure = new AttributeValue().withM(Collections.singletonMap(mutation.getMapKey(), value));
+                break;
+            default:
+                throw new IllegalArgumentException("Mutation cannot create structure: " + mutation.getType());
+        }
+        values.put(":structure", structure);
+        String updateExpression = CREATE_STRUCTURE_EXPRESSION + STRUCTURE_VERSION_EXPRESSION;
+        if (expirationTime != SambaGlobalStoreEntry.NO_EXPIRATION) {
+            updateExpression += SET_TTL_EXPRESSION + CLEAR_VALUE_EXPRESSION;
+        } else {
+            updateExpression += CLEAR_VALUE_EXPRESSION + ", #ttl";
+        }
+        return conditionalUpdate(id, updateExpression, ABSENT_CONDITION, names, values, ReturnValue.UPDATED_NEW);
+    }
+    
+    private static Map<String, String> structureNames() {
+        Map<String, String> names = new HashMap<String, String>(8);
+        names.put("#structure", STRUCTURE_ATTRIBUTE_NAME);
+        names.put("#source", "source");
+        names.put("#version", "version");
+        names.put("#ttl", TTL_ATTRIBUTE_NAME);
+        return names;
+    }
+    
+    private Map<String, AttributeValue> structureValues(long expirationTime) {
+        Map<String, AttributeValue> values = new HashMap<String, AttributeValue>(16);
+        values.put(":source", new AttributeValue().withS(UUID));
+        values.put(":one", new AttributeValue().withN("1"));
+        values.put(":initialVersion", 
+                   new AttributeValue().withN(Long.toString(SambaGlobalStoreEntry.newInitialVersion())));
+        values.put(":now", new AttributeValue().withN(Long.toString(nowSeconds())));
+        if (expirationTime != SambaGlobalStoreEntry.NO_EXPIRATION) {
+            values.put(":ttl", new AttributeValue().withN(Long.toString(toTtlSeconds(expirationTime))));
+        }
+        return values;
+    }
+    
+    private static AttributeValue toListValue(List<ByteBuffer> elements) {
+        List<AttributeValue> list = new ArrayList<AttributeValue>(elements.size());
+        for (ByteBuffer element : elements) {
+            list.add(new AttributeValue().withB(element));
+        }
+        return new AttributeValue().withL(list);
+    }
+    
+    // Generation is increased atomically, so concurrent clears never get the same generation
+    @Override
+    public void clear() {
+        Map<String, AttributeValue> generationItem =
+                DYNAMO_DB.updateItem(
+                        new UpdateItemRequest().
+                                withTableName(DYNAMO_DB_TABLE_NAME).
+                                withKey(idKey(GENERATION_ITEM_ID)).
+                                withUpdateExpression("ADD #generation :one").
+                                withExpressionAttributeNames(
+                                        Collections.singletonMap("#generation", GENERATION_ATTRIBUTE_NAME)).
+                                withExpressionAttributeValues(
+                                        Collections.singletonMap(":one", new AttributeValue().withN("1"))).
+                                withReturnValues(ReturnValue.UPDATED_NEW)).getAttributes();
+        long newGeneration = getGeneration(generationItem);
+        observeGeneration(newGeneration);
+        for (int segment = 0; segment < REAP_SEGMENT_COUNT; segment++) {
+            int reapedSegment = segment;
+            REAPER_EXECUTOR_SERVICE.schedule(
+                    () -> reap(newGeneration, reapedSegment), 
+                    Math.max(GENERATION_REFRESH_INTERVAL_MILLIS, 0) + REAP_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Deletes the items of the generations older than the given one in the given segment of the table
+    private void reap(long generation, int segment) {
+        try {
+            int reapedCount = 0;
+            Map<String, AttributeValue> exclusiveStartKey = null;
+            do {
+                ScanResult scanResult =
+                        DYNAMO_DB.scan(
+                                new ScanRequest().
+                                        withTableName(DYNAMO_DB_TABLE_NAME).
+                                        withSegment(segment).
+                                        withTotalSegments(REAP_SEGMENT_COUNT).
+                                        withProjectionExpression("id").
+                                        withExclusiveStartKey(exclusiveStartKey));
+                List<WriteRequest> writeRequests = new ArrayList<WriteRequest>();
+                for (Map<String, AttributeValue> item : scanResult.getItems()) {
+                    String id = item.get("id").getS();
+                    if (GENERATION_ITEM_ID.equals(id)) {
+                        continue;
+                    }
+                    if (generationOf(id) < generation) {
+                        writeRequests.add(new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(idKey(id))));
+                    }
+                }
+                batchWrite(writeRequests);
+                reapedCount += writeRequests.size();
+                exclusiveStartKey = scanResult.getLastEvaluatedKey();
+            } while (exclusiveStartKey != null && !exclusiveStartKey.isEmpty());
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                        String.format("%d items of the generations before %d have been reaped from segment %d " + 
+                                      "of DynamoDB table (%s)", reapedCount, generation, segment, DYNAMO_DB_TABLE_NAME));
+            }
+        } catch (RuntimeException e) {
+            // Items left behind are reaped by the next clear
+            LOGGER.warn(
+                    String.format("Unable to reap items of the generations before %d from segment %d " + 
+                                  "of DynamoDB table (%s)", generation, segment, DYNAMO_DB_TABLE_NAME), e);
+        }
+    }
+
+    @Override
+    public Map<String, SambaGlobalStoreEntry> getAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, SambaGlobalStoreEntry> result = new HashMap<String, SambaGlobalStoreEntry>(keys.size());
+        List<Map<String, AttributeValue>> chunk = new ArrayList<Map<String, AttributeValue>>();
+        long generation = currentGeneration();
+        for (String key : new LinkedHashSet<String>(keys)) {
+            chunk.add(idKey(scopedId(generation, key)));
+            if (chunk.size() == MAX_BATCH_GET_ITEM_COUNT) {
+                batchGet(chunk, result);
+                chunk = new ArrayList<Map<String, AttributeValue>>();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            batchGet(chunk, result);
+        }
+        return result;
+    }
+
+    private void batchGet(List<Map<String, AttributeValue>> keys, Map<String, SambaGlobalStoreEntry> result) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Map<String, AttributeValue>> item : batchGetItems(keys).entrySet()) {
+            SambaGlobalStoreEntry entry = toEntry(item.getValue());
+            if (entry.getDataBuffer() != null && !entry.isExpired(now)) {
+                result.put(keyOf(item.getKey()), entry);
+            }
+        }
+    }
+
+    // Returns the read items by their ids
+    private Map<String, Map<String, AttributeValue>> batchGetItems(List<Map<String, AttributeValue>> keys) {
+        Map<String, Map<String, AttributeValue>> result = 
+                new HashMap<String, Map<String, AttributeValue>>(keys.size());
+        Map<String, KeysAndAttributes> requestItems =
+                Collections.singletonMap(
+                        DYNAMO_DB_TABLE_NAME,
+                        new KeysAndAttributes().
+                                withKeys(keys).
+                                withConsistentRead(true));
+        long backoffMillis = MIN_UNPROCESSED_RETRY_BACKOFF_MILLIS;
+        while (requestItems != null && !requestItems.isEmpty()) {
+            BatchGetItemResult batchGetItemResult =
+                    DYNAMO_DB.batchGetItem(
+                            new BatchGetItemRequest().withRequestItems(requestItems));
+            List<Map<String, AttributeValue>> items = batchGetItemResult.getResponses().get(DYNAMO_DB_TABLE_NAME);
+            if (items != null) {
+                for (Map<String, AttributeValue> item : items) {
+                    result.put(item.get("id").getS(), item);
+                }
+            }
+            requestItems = batchGetItemResult.getUnprocessedKeys();
+            if (requestItems != null && !requestItems.isEmpty()) {
+                backoffMillis = backoff(backoffMillis);
+            }
+        }
+        return result;
+    }
+
+    // Batch writes cannot have update expressions, 
+    // so entries are overwritten with new initial versions instead of increased ones
+    @Override
+    public void putAll(Map<String, byte[]> entries, long expirationTime) {
+        List<WriteRequest> writeRequests = new ArrayList<WriteRequest>(entries.size());
+        long generation = currentGeneration();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            // Batch writes replace the items without reading their versions, so a new version (based on 
+            // the wall-clock time of this instance) might be older than the replaced one of a skewed clock. 
+            // So items are written without version, just like the ones written before versioning.
+            Map<String, AttributeValue> item = 
+                    newItem(scopedId(generation, entry.getKey()), ByteBuffer.wrap(entry.getValue()), 
+                            UNVERSIONED_ITEM_VERSION, expirationTime);
+            writeRequests.add(new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+        }
+        batchWrite(writeRequests);
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        Set<String> uniqueKeys = new LinkedHashSet<String>(keys);
+        List<WriteRequest> writeRequests = new ArrayList<WriteRequest>(uniqueKeys.size());
+        long generation = currentGeneration();
+        for (String key : uniqueKeys) {
+            writeRequests.add(
+                    new WriteRequest().withDeleteRequest(
+                            new DeleteRequest().withKey(idKey(scopedId(generation, key)))));
+        }
+        batchWrite(writeRequests);
+    }
+
+    private void batchWrite(List<WriteRequest> writeRequests) {
+        for (int i = 0; i < writeRequests.size(); i += MAX_BATCH_WRITE_ITEM_COUNT) {
+            List<WriteRequest> chunk =
+                    writeRequests.subList(i, Math.min(i + MAX_BATCH_WRITE_ITEM_COUNT, writeRequests.size()));
+            Map<String, List<WriteRequest>> requestItems =
+                    Collections.singletonMap(DYNAMO_DB_TABLE_NAME, (List<WriteRequest>) new ArrayList<WriteRequest>(chunk));
+            long backoffMillis = MIN_UNPROCESSED_RETRY_BACKOFF_MILLIS;
+            while (requestItems != null && !requestItems.isEmpty()) {
+                BatchWriteItemResult batchWriteItemResult =
+                        DYNAMO_DB.batchWriteItem(
+                                new BatchWriteItemRequest().withRequestItems(requestItems));
+                requestItems = batchWriteItemResult.getUnprocessedItems();
+                if (requestItems != null && !requestItems.isEmpty()) {
+                    backoffMillis = backoff(backoffMillis);
+                }
+            }
+        }
+    }
+
+    // Unprocessed items are retried with exponential backoff as suggested by DynamoDB
+    private static long backoff(long backoffMillis) {
+        try {
+            Thread.sleep(backoffMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying unprocessed batch items", e);
+        }
+        return Math.min(backoffMillis * 2, MAX_UNPROCESSED_RETRY_BACKOFF_MILLIS);
+    }
+
+}
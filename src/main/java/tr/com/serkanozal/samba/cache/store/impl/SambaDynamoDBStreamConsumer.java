@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.store.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DescribeStreamRequest;
+import com.amazonaws.services.dynamodbv2.model.ExpiredIteratorException;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
+import com.amazonaws.services.dynamodbv2.model.GetShardIteratorRequest;
+import com.amazonaws.services.dynamodbv2.model.LimitExceededException;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.Shard;
+import com.amazonaws.services.dynamodbv2.model.ShardIteratorType;
+import com.amazonaws.services.dynamodbv2.model.StreamDescription;
+import com.amazonaws.services.dynamodbv2.model.TrimmedDataAccessException;
+
+/**
+ * Consumes DynamoDB Streams of a table continuously with a dedicated poller for each shard.
+ *
+ * <ul>
+ *  <li>
+ *      Every shard is polled on its own schedule. Polling is repeated right away while
+ *      there are more records to read, after the minimum interval once records have been read
+ *      and backs off up to the maximum interval while the shard is idle.
+ *  </li>
+ *  <li>
+ *      Child shards are consumed only after their parent shards are consumed entirely,
+ *      so the events of a key are handled in order while shards are rolled over.
+ *  </li>
+ *  <li>
+ *      Records of the same item in a single batch are coalesced, so only the latest one is handled.
+ *  </li>
+ *  <li>
+ *      Sequence numbers of the handled records are checkpointed (to the checkpoint file if specified),
+ *      so a restarted consumer resumes from where it was left instead of jumping to the latest records.
+ *  </li>
+ * </ul>
+ */
+class SambaDynamoDBStreamConsumer {
+
+    private static final Logger LOGGER = Logger.getLogger(SambaDynamoDBStreamConsumer.class);
+
+    // Maximum number of records returned by a single GetRecords request
+    private static final int MAX_RECORD_COUNT_PER_POLL = 1000;
+    private static final long CHECKPOINT_SAVE_INTERVAL_MILLIS = 1000;
+    private static final String SHARD_END_CHECKPOINT = "SHARD_END";
+    private static final String STREAM_ARN_PROPERTY = "streamArn";
+    private static final String SHARD_PROPERTY_PREFIX = "shard.";
+
+    interface RecordHandler {
+
+        void onRecord(Record record);
+
+    }
+
+    private final AmazonDynamoDB dynamoDB;
+    private final AmazonDynamoDBStreams dynamoDBStreams;
+    private final String tableName;
+    private final RecordHandler recordHandler;
+    private final long minPollIntervalMillis;
+    private final long maxPollIntervalMillis;
+    private final long shardDiscoveryIntervalMillis;
+    private final File checkpointFile;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final ConcurrentMap<String, ShardConsumer> shardConsumers =
+            new ConcurrentHashMap<String, ShardConsumer>();
+    // Sequence number of the last handled record (or shard end marker) by shard id
+    private final ConcurrentMap<String, String> checkpoints =
+            new ConcurrentHashMap<String, String>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Runnable shardDiscoveryTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                discoverShards(false);
+            } catch (Throwable t) {
+                LOGGER.error("Error occurred while discovering stream shards!", t);
+            }
+        }
+    };
+    private volatile String streamArn;
+    private volatile boolean checkpointsChanged;
+
+    SambaDynamoDBStreamConsumer(AmazonDynamoDB dynamoDB, AmazonDynamoDBStreams dynamoDBStreams,
+                                String tableName, RecordHandler recordHandler,
+                                int threadCount, long minPollIntervalMillis, long maxPollIntervalMillis,
+                                long shardDiscoveryIntervalMillis, File checkpointFile) {
+        this.dynamoDB = dynamoDB;
+        this.dynamoDBStreams = dynamoDBStreams;
+        this.tableName = tableName;
+        this.recordHandler = recordHandler;
+        this.minPollIntervalMillis = minPollIntervalMillis;
+        this.maxPollIntervalMillis = Math.max(minPollIntervalMillis, maxPollIntervalMillis);
+        this.shardDiscoveryIntervalMillis = shardDiscoveryIntervalMillis;
+        this.checkpointFile = checkpointFile;
+        this.scheduledExecutorService =
+                Executors.newScheduledThreadPool(threadCount, new ThreadFactory() {
+                    private final ThreadFactory delegatedThreadFactory = Executors.defaultThreadFactory();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = delegatedThreadFactory.newThread(r);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Starts consuming. Iterators of the shards are acquired before returning,
+     * so the records written after this call are not missed.
+     */
+    void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        streamArn = describeStreamArn();
+        // Shards without checkpoint are newer than the loaded checkpoints, so they are consumed entirely
+        boolean resumed = loadCheckpoints();
+        try {
+            discoverShards(!resumed);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Unable to start consuming stream of table " + tableName, e);
+        }
+        scheduledExecutorService.scheduleWithFixedDelay(
+                shardDiscoveryTask,
+                shardDiscoveryIntervalMillis, shardDiscoveryIntervalMillis, TimeUnit.MILLISECONDS);
+        if (checkpointFile != null) {
+            scheduledExecutorService.scheduleWithFixedDelay(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            saveCheckpoints();
+                        }
+                    },
+                    CHECKPOINT_SAVE_INTERVAL_MILLIS, CHECKPOINT_SAVE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private String describeStreamArn() {
+        return dynamoDB.describeTable(tableName).getTable().getLatestStreamArn();
+    }
+
+    private boolean loadCheckpoints() {
+        if (checkpointFile == null || !checkpointFile.exists()) {
+            return false;
+        }
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(checkpointFile);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to load stream checkpoints from " + checkpointFile + ", so ignoring them", e);
+            return false;
+        }
+        // Checkpoints of another stream (for example, of a re-created table) are meaningless
+        if (!streamArn.equals(props.getProperty(STREAM_ARN_PROPERTY))) {
+            return false;
+        }
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith(SHARD_PROPERTY_PREFIX)) {
+                checkpoints.put(name.substring(SHARD_PROPERTY_PREFIX.length()), props.getProperty(name));
+            }
+        }
+        return !checkpoints.isEmpty();
+    }
+
+    private void saveCheckpoints() {
+        if (!checkpointsChanged) {
+            return;
+        }
+        checkpointsChanged = false;
+        Properties props = new Properties();
+        props.setProperty(STREAM_ARN_PROPERTY, streamArn);
+        for (Map.Entry<String, String> entry : checkpoints.entrySet()) {
+            props.setProperty(SHARD_PROPERTY_PREFIX + entry.getKey(), entry.getValue());
+        }
+        // Written to a temporary file and then renamed, so the checkpoint file is never seen half written
+        File tempFile = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                props.store(out, "Samba DynamoDB stream checkpoints");
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(checkpointFile)) {
+                checkpointFile.delete();
+                if (!tempFile.renameTo(checkpointFile)) {
+                    throw new IOException("Unable to rename " + tempFile + " to " + checkpointFile);
+                }
+            }
+        } catch (IOException e) {
+            checkpointsChanged = true;
+            LOGGER.error("Unable to save stream checkpoints to " + checkpointFile, e);
+        }
+    }
+
+    private void checkpoint(String shardId, String checkpoint) {
+        checkpoints.put(shardId, checkpoint);
+        checkpointsChanged = true;
+    }
+
+    private boolean isConsumed(String shardId) {
+        return SHARD_END_CHECKPOINT.equals(checkpoints.get(shardId));
+    }
+
+    private List<Shard> describeShards() {
+        List<Shard> shards = new ArrayList<Shard>();
+        String lastEvaluatedShardId = null;
+        do {
+            StreamDescription streamDescription =
+                    dynamoDBStreams.describeStream(
+                            new DescribeStreamRequest().
+                                    withStreamArn(streamArn).
+                                    withExclusiveStartShardId(lastEvaluatedShardId)).
+                        getStreamDescription();
+            shards.addAll(streamDescription.getShards());
+            lastEvaluatedShardId = streamDescription.getLastEvaluatedShardId();
+        } while (lastEvaluatedShardId != null);
+        return shards;
+    }
+
+    private synchronized void discoverShards(boolean fromLatest) {
+        List<Shard> shards;
+        try {
+            shards = describeShards();
+        } catch (ResourceNotFoundException e) {
+            // Stream might have been replaced, so its new ARN is looked up
+            streamArn = describeStreamArn();
+            shards = describeShards();
+        }
+        Set<String> shardIds = new HashSet<String>(shards.size());
+        for (Shard shard : shards) {
+            shardIds.add(shard.getShardId());
+            if (fromLatest
+                    && !checkpoints.containsKey(shard.getShardId())
+                    && shard.getSequenceNumberRange().getEndingSequenceNumber() != null) {
+                // Closed shards are skipped at the beginning just like the older records of open shards
+                checkpoint(shard.getShardId(), SHARD_END_CHECKPOINT);
+            }
+        }
+        for (Shard shard : shards) {
+            String shardId = shard.getShardId();
+            String parentShardId = shard.getParentShardId();
+            if (isConsumed(shardId) || shardConsumers.containsKey(shardId)) {
+                continue;
+            }
+            // Parent shards which are already trimmed from the stream cannot be waited for
+            if (parentShardId != null && shardIds.contains(parentShardId) && !isConsumed(parentShardId)) {
+                continue;
+            }
+            ShardConsumer shardConsumer =
+                    new ShardConsumer(
+                            shardId,
+                            fromLatest ? ShardIteratorType.LATEST : ShardIteratorType.TRIM_HORIZON);
+            if (fromLatest) {
+                // Latest iterators are acquired immediately to not miss the coming records
+                shardConsumer.acquireShardIterator();
+            }
+            shardConsumers.put(shardId, shardConsumer);
+            scheduledExecutorService.execute(shardConsumer);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Started consuming " + shardId + " from stream " + streamArn);
+            }
+        }
+        // Checkpoints of the trimmed shards are not needed anymore
+        for (String shardId : new ArrayList<String>(checkpoints.keySet())) {
+            if (!shardIds.contains(shardId) && !shardConsumers.containsKey(shardId)) {
+                checkpoints.remove(shardId);
+                checkpointsChanged = true;
+            }
+        }
+    }
+
+    private void onShardConsumed(String shardId) {
+        checkpoint(shardId, SHARD_END_CHECKPOINT);
+        shardConsumers.remove(shardId);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Finished consuming " + shardId + " from stream " + streamArn);
+        }
+        // Child shards are started right away instead of waiting for the next discovery
+        scheduledExecutorService.execute(shardDiscoveryTask);
+    }
+
+    // Only the latest record of an item in the batch is handled
+    private static Collection<Record> coalesce(List<Record> records) {
+        if (records.size() == 1) {
+            return records;
+        }
+        Map<Map<String, AttributeValue>, Record> latestRecords =
+                new LinkedHashMap<Map<String, AttributeValue>, Record>(records.size());
+        for (Record record : records) {
+            Map<String, AttributeValue> keys = record.getDynamodb().getKeys();
+            // Re-inserted, so records are handled in the order of their latest changes
+            latestRecords.remove(keys);
+            latestRecords.put(keys, record);
+        }
+        return latestRecords.values();
+    }
+
+    private class ShardConsumer implements Runnable {
+
+        private final String shardId;
+        private final ShardIteratorType initialShardIteratorType;
+        private String shardIterator;
+        private long pollIntervalMillis;
+
+        private ShardConsumer(String shardId, ShardIteratorType initialShardIteratorType) {
+            this.shardId = shardId;
+            this.initialShardIteratorType = initialShardIteratorType;
+            this.pollIntervalMillis = minPollIntervalMillis;
+        }
+
+        private void acquireShardIterator() {
+            String checkpoint = checkpoints.get(shardId);
+            GetShardIteratorRequest request =
+                    new GetShardIteratorRequest().
+                            withStreamArn(streamArn).
+                            withShardId(shardId);
+            if (checkpoint != null) {
+                request.
+                    withShardIteratorType(ShardIteratorType.AFTER_SEQUENCE_NUMBER).
+                    withSequenceNumber(checkpoint);
+            } else {
+                request.withShardIteratorType(initialShardIteratorType);
+            }
+            try {
+                shardIterator = dynamoDBStreams.getShardIterator(request).getShardIterator();
+            } catch (TrimmedDataAccessException e) {
+                LOGGER.warn("Checkpoint " + checkpoint + " of " + shardId + " has been trimmed already, " +
+                            "so consuming from the oldest available record");
+                shardIterator =
+                        dynamoDBStreams.getShardIterator(
+                                request.
+                                    withShardIteratorType(ShardIteratorType.TRIM_HORIZON).
+                                    withSequenceNumber(null)).
+                            getShardIterator();
+            }
+        }
+
+        @Override
+        public void run() {
+            long delayMillis;
+            try {
+                delayMillis = poll();
+            } catch (ExpiredIteratorException e) {
+                // Re-acquired from the checkpoint on the next poll
+                shardIterator = null;
+                delayMillis = 0;
+            } catch (LimitExceededException e) {
+                pollIntervalMillis = maxPollIntervalMillis;
+                delayMillis = pollIntervalMillis;
+            } catch (Throwable t) {
+                LOGGER.error("Error occurred while consuming " + shardId + " from stream " + streamArn, t);
+                pollIntervalMillis = maxPollIntervalMillis;
+                delayMillis = pollIntervalMillis;
+            }
+            if (delayMillis >= 0) {
+                scheduledExecutorService.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            } else {
+                onShardConsumed(shardId);
+            }
+        }
+
+        // Returns delay until the next poll or -1 if the shard has been consumed entirely
+        private long poll() {
+            if (shardIterator == null) {
+                acquireShardIterator();
+            }
+            GetRecordsResult getRecordsResult =
+                    dynamoDBStreams.getRecords(
+                            new GetRecordsRequest().
+                                    withShardIterator(shardIterator).
+                                    withLimit(MAX_RECORD_COUNT_PER_POLL));
+            List<Record> records = getRecordsResult.getRecords();
+            if (!records.isEmpty()) {
+                for (Record record : coalesce(records)) {
+                    try {
+                        recordHandler.onRecord(record);
+                    } catch (Throwable t) {
+                        LOGGER.error("Error occurred while handling stream record " + record, t);
+                    }
+                }
+                checkpoint(shardId, records.get(records.size() - 1).getDynamodb().getSequenceNumber());
+            }
+            shardIterator = getRecordsResult.getNextShardIterator();
+            if (shardIterator == null) {
+                return -1;
+            }
+            if (records.size() >= MAX_RECORD_COUNT_PER_POLL) {
+                // There are probably more records waiting
+                return 0;
+            }
+            if (records.isEmpty()) {
+                pollIntervalMillis = Math.min(Math.max(pollIntervalMillis, 1) * 2, maxPollIntervalMillis);
+            } else {
+                pollIntervalMillis = minPollIntervalMillis;
+            }
+            return pollIntervalMillis;
+        }
+
+    }
+
+}
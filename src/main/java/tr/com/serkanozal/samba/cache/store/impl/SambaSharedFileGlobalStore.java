@@ -0,0 +1,945 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.cache.store.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStore;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreChangeListener;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
+
+/**
+ * {@link SambaGlobalStore} implementation which keeps entries in a memory-mapped file,
+ * so processes on the same host share the entries with the latency of memory access.
+ *
+ * The file consists of a header, a fixed size open-addressing slot table and a change ring buffer.
+ * <ul>
+ *  <li>
+ *      Every slot is guarded by its stamp as seqlock. Writers own the slot by locking the region
+ *      of its stamp in the file, turning the even stamp to odd and publishing the next even stamp
+ *      before unlocking it, so readers never block and just retry if the stamp has changed while reading.
+ *      Once a slot is claimed by a key, it stays assigned to that key.
+ *  </li>
+ *  <li>
+ *      File locks are released by the OS when their process dies, so an odd stamp seen by the next owner
+ *      of a slot means that the previous owner has died while writing it. Then the slot is recovered
+ *      by dropping its (possibly torn) entry or its unfinished claim. Readers which see an odd stamp
+ *      for too long lock the slot themselves, so they either wait for the live owner or recover the slot.
+ *  </li>
+ *  <li>
+ *      Every slot has the version of its entry which is increased on every modification
+ *      (including removal), so versions of a key are never reused.
+ *  </li>
+ *  <li>
+ *      Every slot has the expiration time of its entry. Expired entries are not reaped,
+ *      but they are treated as absent, so their data is dropped by the next write to the slot.
+ *  </li>
+ *  <li>
+ *      Every modification publishes an event to the change ring by claiming a sequence under the lock
+ *      of the sequence region. Each store instance polls the ring from its own cursor and reports a clear
+ *      (everything might have changed) if it has been lapped by the writers.
+ *  </li>
+ * </ul>
+ *
+ * Mapped memory is accessed through the absolute accessors of the mapped buffer in native byte order.
+ * Shared reads and writes are ordered by volatile accesses around them, which keep the JIT from
+ * reordering them, while the ordering of the memory itself relies on the store ordering of the platform.
+ */
+public class SambaSharedFileGlobalStore implements SambaGlobalStore {
+
+    private static final Logger LOGGER = Logger.getLogger(SambaSharedFileGlobalStore.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Changed whenever the layout (or the locking protocol) is changed, so files in an old layout are re-initialized
+    private static final long MAGIC = 0x53616D6261534634L;
+
+    private static final int HEADER_SIZE = 128;
+    private static final int HEADER_MAGIC_OFFSET = 0;
+    private static final int HEADER_SLOT_COUNT_OFFSET = 8;
+    private static final int HEADER_MAX_KEY_LENGTH_OFFSET = 12;
+    private static final int HEADER_MAX_DATA_LENGTH_OFFSET = 16;
+    private static final int HEADER_RING_CAPACITY_OFFSET = 20;
+    // On its own cache line, because it is updated by every writer
+    private static final int HEADER_RING_SEQUENCE_OFFSET = 64;
+
+    private static final int SLOT_STAMP_OFFSET = 0;
+    private static final int SLOT_KEY_HASH_OFFSET = 8;
+    private static final int SLOT_KEY_LENGTH_OFFSET = 12;
+    private static final int SLOT_DATA_LENGTH_OFFSET = 16;
+    private static final int SLOT_VERSION_OFFSET = 24;
+    private static final int SLOT_EXPIRATION_TIME_OFFSET = 32;
+    private static final int SLOT_KEY_OFFSET = 40;
+    private static final int SLOT_ALIGNMENT = 64;
+
+    private static final int EVENT_SEQUENCE_OFFSET = 0;
+    private static final int EVENT_TYPE_OFFSET = 8;
+    private static final int EVENT_KEY_LENGTH_OFFSET = 12;
+    private static final int EVENT_SOURCE_OFFSET = 16;
+    private static final int EVENT_KEY_OFFSET = 24;
+
+    private static final int EVENT_TYPE_INSERT = 1;
+    private static final int EVENT_TYPE_UPDATE = 2;
+    private static final int EVENT_TYPE_DELETE = 3;
+    private static final int EVENT_TYPE_CLEAR = 4;
+
+    private static final int NO_SLOT = 0;
+    private static final int NO_DATA = -1;
+    private static final long EVENT_IN_PROGRESS = -1;
+    // Unpublished event is skipped after this many polls, because its writer might have died
+    private static final int MAX_EVENT_STALL_COUNT = 1000;
+    // Readers lock the slot after seeing it written for this many times, because its writer might have died
+    private static final int MAX_SLOT_STALL_COUNT = 1000;
+    // Locked regions are re-tried with exponential back-off up to this interval
+    private static final long MAX_LOCK_BACK_OFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Region locks of the files shared by the store instances of this JVM by their canonical paths
+    private static final ConcurrentMap<String, RegionLocks> REGION_LOCKS =
+            new ConcurrentHashMap<String, RegionLocks>();
+
+    // Never written, only read to keep shared reads from being reordered by the JIT
+    private static volatile int loadFence;
+    // Written to keep shared writes from being reordered by the JIT
+    private static volatile int storeFence;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final RegionLocks regionLocks;
+    // Must be kept reachable, otherwise mapping is released by GC
+    private final MappedByteBuffer mappedBuffer;
+    private final int slotCount;
+    private final int slotMask;
+    private final int maxKeyLength;
+    private final int maxDataLength;
+    private final int slotSize;
+    private final int slotsOffset;
+    private final int ringCapacity;
+    private final int ringMask;
+    private final int ringEntrySize;
+    private final int ringOffset;
+    private final long pollIntervalNanos;
+    private final long source = new Random().nextLong();
+    private final List<SambaGlobalStoreChangeListener> changeListeners =
+            new CopyOnWriteArrayList<SambaGlobalStoreChangeListener>();
+    private ChangePoller changePoller;
+
+    /**
+     * @param file                  the file to be mapped. If it already exists,
+     *                              its own geometry is used instead of the given one.
+     * @param slotCount             maximum number of keys (rounded up to power of two)
+     * @param maxKeyLength          maximum length of UTF-8 encoded key in bytes
+     * @param maxDataLength         maximum length of serialized value in bytes
+     * @param changeRingCapacity    number of change events to be retained (rounded up to power of two)
+     * @param pollIntervalMicros    interval to poll change events
+     */
+    public SambaSharedFileGlobalStore(File file, int slotCount, int maxKeyLength, int maxDataLength,
+                                      int changeRingCapacity, long pollIntervalMicros) {
+        this.file = file;
+        this.pollIntervalNanos = TimeUnit.MICROSECONDS.toNanos(pollIntervalMicros);
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            regionLocks = getRegionLocks(file);
+            FileChannel channel = randomAccessFile.getChannel();
+            // Guard initialization against other processes and other store instances opening the same file
+            // concurrently. Only the magic is locked, so the regions locked by the other instances don't overlap.
+            regionLocks.lock(HEADER_MAGIC_OFFSET);
+            try {
+                boolean initialized = false;
+                if (randomAccessFile.length() >= HEADER_SIZE) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+                    channel.read(header, 0);
+                    if (header.getLong(HEADER_MAGIC_OFFSET) == MAGIC) {
+                        slotCount = header.getInt(HEADER_SLOT_COUNT_OFFSET);
+                        maxKeyLength = header.getInt(HEADER_MAX_KEY_LENGTH_OFFSET);
+                        maxDataLength = header.getInt(HEADER_MAX_DATA_LENGTH_OFFSET);
+                        changeRingCapacity = header.getInt(HEADER_RING_CAPACITY_OFFSET);
+                        initialized = true;
+                    }
+                }
+                if (!initialized) {
+                    // Drop any content in an unknown layout
+                    randomAccessFile.setLength(0);
+                }
+                this.slotCount = nextPowerOfTwo(slotCount);
+                this.slotMask = this.slotCount - 1;
+                this.maxKeyLength = align(maxKeyLength, 8);
+                this.maxDataLength = maxDataLength;
+                this.slotSize = align(SLOT_KEY_OFFSET + this.maxKeyLength + maxDataLength, SLOT_ALIGNMENT);
+                this.ringCapacity = nextPowerOfTwo(changeRingCapacity);
+                this.ringMask = this.ringCapacity - 1;
+                this.ringEntrySize = align(EVENT_KEY_OFFSET + this.maxKeyLength, 8);
+
+                long fileSize =
+                        HEADER_SIZE +
+                        (long) this.slotCount * slotSize +
+                        (long) this.ringCapacity * ringEntrySize;
+                if (fileSize > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException(
+                            "Shared file store size " + fileSize + " exceeds maximum mappable size " +
+                            Integer.MAX_VALUE + " !");
+                }
+                if (randomAccessFile.length() < fileSize) {
+                    randomAccessFile.setLength(fileSize);
+                }
+                mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                mappedBuffer.order(ByteOrder.nativeOrder());
+                slotsOffset = HEADER_SIZE;
+                ringOffset = slotsOffset + this.slotCount * slotSize;
+
+                if (!initialized) {
+                    mappedBuffer.putInt(HEADER_SLOT_COUNT_OFFSET, this.slotCount);
+                    mappedBuffer.putInt(HEADER_MAX_KEY_LENGTH_OFFSET, this.maxKeyLength);
+                    mappedBuffer.putInt(HEADER_MAX_DATA_LENGTH_OFFSET, this.maxDataLength);
+                    mappedBuffer.putInt(HEADER_RING_CAPACITY_OFFSET, this.ringCapacity);
+                    putLongOrdered(HEADER_MAGIC_OFFSET, MAGIC);
+                    mappedBuffer.force();
+                }
+            } finally {
+                regionLocks.unlock(HEADER_MAGIC_OFFSET);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map shared file store " + file, e);
+        }
+        LOGGER.info(
+                String.format(
+                        "Shared file store (%s) has been mapped with %d slots and %d change ring capacity",
+                        file, this.slotCount, this.ringCapacity));
+    }
+
+    private static RegionLocks getRegionLocks(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        RegionLocks regionLocks = REGION_LOCKS.get(path);
+        if (regionLocks == null) {
+            RegionLocks newRegionLocks = new RegionLocks(file);
+            regionLocks = REGION_LOCKS.putIfAbsent(path, newRegionLocks);
+            if (regionLocks == null) {
+                regionLocks = newRegionLocks;
+            } else {
+                newRegionLocks.close();
+            }
+        }
+        return regionLocks;
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        int powerOfTwo = 1;
+        while (powerOfTwo < value) {
+            powerOfTwo <<= 1;
+        }
+        return powerOfTwo;
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) & -alignment;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private byte[] toKeyBytes(String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        if (keyBytes.length == 0 || keyBytes.length > maxKeyLength) {
+            throw new IllegalArgumentException(
+                    "Key length must be between 1 and " + maxKeyLength + " bytes: " + key);
+        }
+        return keyBytes;
+    }
+
+    private void checkDataLength(ByteBuffer data) {
+        if (data.remaining() > maxDataLength) {
+            throw new IllegalArgumentException(
+                    "Data length " + data.remaining() + " exceeds maximum data length " + maxDataLength +
+                    " of shared file store " + file + " !");
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////
+
+    /**
+     * Locks of the 8-byte regions of a shared file, which exclude the threads of this JVM
+     * by the lock stripes of the regions and the other processes by the file locks of the regions.
+     *
+     * File locks are held by the whole JVM, so they must not be acquired for the same region
+     * by multiple threads (or multiple store instances) of it. They are acquired through an asynchronous channel,
+     * since it is not closed (releasing every file lock of the JVM) if the locking thread is interrupted.
+     */
+    private static final class RegionLocks {
+
+        private static final int STRIPE_COUNT = 256;
+        private static final int REGION_SIZE = 8;
+
+        private final AsynchronousFileChannel channel;
+        private final ReentrantLock[] stripes = new ReentrantLock[STRIPE_COUNT];
+        // File locks held by the stripes by their regions, which are only accessed by the stripe owners
+        private final Map<Integer, FileLock> fileLocks = new ConcurrentHashMap<Integer, FileLock>();
+
+        private RegionLocks(File file) throws IOException {
+            this.channel =
+                    AsynchronousFileChannel.open(
+                            file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                stripes[i] = new ReentrantLock();
+            }
+        }
+
+        private static int stripeOf(int offset) {
+            return (offset / REGION_SIZE) & (STRIPE_COUNT - 1);
+        }
+
+        // Stripes are reentrant, since a slot is recovered by publishing an event while it is locked
+        private void lock(int offset) {
+            int stripe = stripeOf(offset);
+            stripes[stripe].lock();
+            long backOffNanos = 1;
+            try {
+                for (;;) {
+                    FileLock fileLock = channel.tryLock(offset, REGION_SIZE, false);
+                    if (fileLock != null) {
+                        fileLocks.put(offset, fileLock);
+                        return;
+                    }
+                    // Locked by another process
+                    LockSupport.parkNanos(backOffNanos);
+                    backOffNanos = Math.min(backOffNanos << 1, MAX_LOCK_BACK_OFF_NANOS);
+                }
+            } catch (IOException e) {
+                stripes[stripe].unlock();
+                throw new IllegalStateException("Unable to lock region " + offset + " of shared file", e);
+            } catch (RuntimeException e) {
+                stripes[stripe].unlock();
+                throw e;
+            }
+        }
+
+        private void unlock(int offset) {
+            int stripe = stripeOf(offset);
+            FileLock fileLock = fileLocks.remove(offset);
+            try {
+                fileLock.release();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to unlock region " + offset + " of shared file", e);
+            } finally {
+                stripes[stripe].unlock();
+            }
+        }
+
+        private void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+    private static void loadFence() {
+        int fence = loadFence;
+    }
+
+    private static void storeFence() {
+        storeFence = 0;
+    }
+
+    private int getIntOrdered(int offset) {
+        loadFence();
+        int value = mappedBuffer.getInt(offset);
+        loadFence();
+        return value;
+    }
+
+    private long getLongOrdered(int offset) {
+        loadFence();
+        long value = mappedBuffer.getLong(offset);
+        loadFence();
+        return value;
+    }
+
+    private void putIntOrdered(int offset, int value) {
+        storeFence();
+        mappedBuffer.putInt(offset, value);
+        storeFence();
+    }
+
+    private void putLongOrdered(int offset, long value) {
+        storeFence();
+        mappedBuffer.putLong(offset, value);
+        storeFence();
+    }
+
+    private int slotOffset(int index) {
+        return slotsOffset + index * slotSize;
+    }
+
+    private int findSlot(String key, byte[] keyBytes, boolean create) {
+        int hash = hash(key);
+        int index = hash & slotMask;
+        int probeCount = 0;
+        while (probeCount < slotCount) {
+            int slot = slotOffset(index);
+            int keyLength = getIntOrdered(slot + SLOT_KEY_LENGTH_OFFSET);
+            if (keyLength == 0) {
+                long stamp = getLongOrdered(slot + SLOT_STAMP_OFFSET);
+                if ((stamp & 1) != 0) {
+                    // Slot is being claimed by someone else (or its claimer has died),
+                    // so check it again after it is claimed (or recovered)
+                    awaitSlot(slot);
+                    continue;
+                }
+                if (!create) {
+                    // Key would have been in this never used slot
+                    return NO_SLOT;
+                }
+                stamp = lockSlot(slot);
+                boolean claimed = false;
+                try {
+                    if (mappedBuffer.getInt(slot + SLOT_KEY_LENGTH_OFFSET) == 0) {
+                        mappedBuffer.putInt(slot + SLOT_KEY_HASH_OFFSET, hash);
+                        mappedBuffer.putInt(slot + SLOT_DATA_LENGTH_OFFSET, NO_DATA);
+                        mappedBuffer.putLong(slot + SLOT_VERSION_OFFSET, SambaGlobalStoreEntry.newInitialVersion());
+                        writeBytes(slot + SLOT_KEY_OFFSET, keyBytes);
+                        putIntOrdered(slot + SLOT_KEY_LENGTH_OFFSET, keyBytes.length);
+                        claimed = true;
+                    }
+                } finally {
+                    unlockSlot(slot, stamp, claimed);
+                }
+                if (claimed) {
+                    return slot;
+                }
+                // Slot has been claimed by someone else in the meantime, so check it again
+                continue;
+            }
+            if (keyLength == keyBytes.length
+                    && mappedBuffer.getInt(slot + SLOT_KEY_HASH_OFFSET) == hash
+                    && equalBytes(slot + SLOT_KEY_OFFSET, keyBytes, keyBytes.length)) {
+                return slot;
+            }
+            index = (index + 1) & slotMask;
+            probeCount++;
+        }
+        if (create) {
+            throw new IllegalStateException(
+                    "Shared file store " + file + " is full, no available slot for key " + key + " !");
+        }
+        return NO_SLOT;
+    }
+
+    // Returns the even stamp of the slot which is turned to odd until the slot is unlocked
+    private long lockSlot(int slot) {
+        regionLocks.lock(slot + SLOT_STAMP_OFFSET);
+        try {
+            long stamp = getLongOrdered(slot + SLOT_STAMP_OFFSET);
+            if ((stamp & 1) != 0) {
+                stamp = recoverSlot(slot, stamp);
+            }
+            putLongOrdered(slot + SLOT_STAMP_OFFSET, stamp + 1);
+            return stamp;
+        } catch (RuntimeException e) {
+            regionLocks.unlock(slot + SLOT_STAMP_OFFSET);
+            throw e;
+        }
+    }
+
+    private void unlockSlot(int slot, long stamp, boolean modified) {
+        try {
+            putLongOrdered(slot + SLOT_STAMP_OFFSET, modified ? stamp + 2 : stamp);
+        } finally {
+            regionLocks.unlock(slot + SLOT_STAMP_OFFSET);
+        }
+    }
+
+    // Waits for the live owner of the slot or recovers the slot from its dead owner
+    private void awaitSlot(int slot) {
+        for (int i = 0; i < MAX_SLOT_STALL_COUNT; i++) {
+            if ((getLongOrdered(slot + SLOT_STAMP_OFFSET) & 1) == 0) {
+                return;
+            }
+            Thread.yield();
+        }
+        unlockSlot(slot, lockSlot(slot), false);
+    }
+
+    // Called with the slot locked, after its owner has died while writing it, and returns its next even stamp.
+    // Claim of the slot is dropped if it was not finished, otherwise the (possibly torn) entry is dropped.
+    private long recoverSlot(int slot, long stamp) {
+        int keyLength = mappedBuffer.getInt(slot + SLOT_KEY_LENGTH_OFFSET);
+        LOGGER.warn(
+                String.format("Recovering slot %d of shared file store %s from its dead writer",
+                              (slot - slotsOffset) / slotSize, file));
+        if (keyLength <= 0 || keyLength > maxKeyLength) {
+            putIntOrdered(slot + SLOT_KEY_LENGTH_OFFSET, 0);
+            return stamp + 1;
+        }
+        // Entry is reported as removed, because its old data might have been served until now
+        removeData(slot);
+        byte[] keyBytes = new byte[keyLength];
+        readBytes(slot + SLOT_KEY_OFFSET, keyBytes, keyLength);
+        publishEvent(EVENT_TYPE_DELETE, keyBytes);
+        return stamp + 1;
+    }
+
+    private SambaGlobalStoreEntry readEntry(int slot) {
+        int stallCount = 0;
+        for (;;) {
+            long stamp = getLongOrdered(slot + SLOT_STAMP_OFFSET);
+            if ((stamp & 1) != 0) {
+                if (++stallCount > MAX_SLOT_STALL_COUNT) {
+                    awaitSlot(slot);
+                    stallCount = 0;
+                } else {
+                    Thread.yield();
+                }
+                continue;
+            }
+            int dataLength = mappedBuffer.getInt(slot + SLOT_DATA_LENGTH_OFFSET);
+            long version = mappedBuffer.getLong(slot + SLOT_VERSION_OFFSET);
+            long expirationTime = mappedBuffer.getLong(slot + SLOT_EXPIRATION_TIME_OFFSET);
+            byte[] data = null;
+            if (dataLength >= 0 && dataLength <= maxDataLength
+                    && !SambaGlobalStoreEntry.isExpired(expirationTime, System.currentTimeMillis())) {
+                data = new byte[dataLength];
+                readBytes(slot + SLOT_KEY_OFFSET + maxKeyLength, data, dataLength);
+            }
+            if (getLongOrdered(slot + SLOT_STAMP_OFFSET) == stamp) {
+                return data != null ? new SambaGlobalStoreEntry(data, version, expirationTime) : null;
+            }
+        }
+    }
+
+    private long writeData(int slot, ByteBuffer data, long expirationTime) {
+        writeBytes(slot + SLOT_KEY_OFFSET + maxKeyLength, data);
+        mappedBuffer.putInt(slot + SLOT_DATA_LENGTH_OFFSET, data.remaining());
+        mappedBuffer.putLong(slot + SLOT_EXPIRATION_TIME_OFFSET, expirationTime);
+        return increaseVersion(slot);
+    }
+
+    private void removeData(int slot) {
+        mappedBuffer.putInt(slot + SLOT_DATA_LENGTH_OFFSET, NO_DATA);
+        increaseVersion(slot);
+    }
+
+    private long increaseVersion(int slot) {
+        long version = mappedBuffer.getLong(slot + SLOT_VERSION_OFFSET) + 1;
+        mappedBuffer.putLong(slot + SLOT_VERSION_OFFSET, version);
+        return version;
+    }
+
+    private boolean hasVersion(int slot, long version) {
+        return mappedBuffer.getLong(slot + SLOT_VERSION_OFFSET) == version;
+    }
+
+    private boolean hasData(int slot) {
+        return mappedBuffer.getInt(slot + SLOT_DATA_LENGTH_OFFSET) != NO_DATA;
+    }
+
+    private boolean hasLiveData(int slot) {
+        return hasData(slot)
+                && !SambaGlobalStoreEntry.isExpired(
+                        mappedBuffer.getLong(slot + SLOT_EXPIRATION_TIME_OFFSET), System.currentTimeMillis());
+    }
+
+    private void writeBytes(int offset, byte[] bytes) {
+        writeBytes(offset, ByteBuffer.wrap(bytes));
+    }
+
+    // Bytes between the position and the limit of the buffer are written without changing its position.
+    // Mapped buffer is duplicated, so concurrent writers don't share its position.
+    private void writeBytes(int offset, ByteBuffer data) {
+        ByteBuffer buffer = mappedBuffer.duplicate();
+        // Called through Buffer, since ByteBuffer overrides it with covariant return type since Java 9
+        ((Buffer) buffer).position(offset);
+        buffer.put(data.duplicate());
+    }
+
+    private void readBytes(int offset, byte[] bytes, int length) {
+        ByteBuffer buffer = mappedBuffer.duplicate();
+        ((Buffer) buffer).position(offset);
+        buffer.get(bytes, 0, length);
+        loadFence();
+    }
+
+    private boolean equalBytes(int offset, byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            if (mappedBuffer.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /////////////////////////////////////////////////////////////////
+
+    private int ringEntryOffset(long sequence) {
+        return ringOffset + (int) (sequence & ringMask) * ringEntrySize;
+    }
+
+    private long currentRingSequence() {
+        return getLongOrdered(HEADER_RING_SEQUENCE_OFFSET);
+    }
+
+    private void publishEvent(int eventType, byte[] keyBytes) {
+        long sequence;
+        regionLocks.lock(HEADER_RING_SEQUENCE_OFFSET);
+        try {
+            sequence = currentRingSequence();
+            putLongOrdered(HEADER_RING_SEQUENCE_OFFSET, sequence + 1);
+        } finally {
+            regionLocks.unlock(HEADER_RING_SEQUENCE_OFFSET);
+        }
+        int entry = ringEntryOffset(sequence);
+        putLongOrdered(entry + EVENT_SEQUENCE_OFFSET, EVENT_IN_PROGRESS);
+        mappedBuffer.putInt(entry + EVENT_TYPE_OFFSET, eventType);
+        mappedBuffer.putLong(entry + EVENT_SOURCE_OFFSET, source);
+        if (keyBytes != null) {
+            writeBytes(entry + EVENT_KEY_OFFSET, keyBytes);
+            mappedBuffer.putInt(entry + EVENT_KEY_LENGTH_OFFSET, keyBytes.length);
+        } else {
+            mappedBuffer.putInt(entry + EVENT_KEY_LENGTH_OFFSET, 0);
+        }
+        putLongOrdered(entry + EVENT_SEQUENCE_OFFSET, sequence + 1);
+    }
+
+    private class ChangePoller extends Thread {
+
+        private long nextSequence = currentRingSequence();
+        private int stallCount;
+
+        private ChangePoller() {
+            super("samba-shared-file-store-poller-" + file.getName());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    poll();
+                } catch (Throwable t) {
+                    LOGGER.error("Error occurred while processing change events!", t);
+                }
+                LockSupport.parkNanos(pollIntervalNanos);
+            }
+        }
+
+        private void poll() {
+            long publishedSequence = currentRingSequence();
+            if (publishedSequence - nextSequence > ringCapacity) {
+                lapped(publishedSequence);
+                return;
+            }
+            while (nextSequence < publishedSequence) {
+                int entry = ringEntryOffset(nextSequence);
+                long expectedEntrySequence = nextSequence + 1;
+                long entrySequence = getLongOrdered(entry + EVENT_SEQUENCE_OFFSET);
+                if (entrySequence != expectedEntrySequence) {
+                    if (entrySequence > expectedEntrySequence) {
+                        lapped(publishedSequence);
+                    } else if (++stallCount > MAX_EVENT_STALL_COUNT) {
+                        LOGGER.warn("Skipping change event " + nextSequence +
+                                    " which has not been published for a long time");
+                        lapped(publishedSequence);
+                    }
+                    return;
+                }
+                int eventType = mappedBuffer.getInt(entry + EVENT_TYPE_OFFSET);
+                int keyLength = mappedBuffer.getInt(entry + EVENT_KEY_LENGTH_OFFSET);
+                long eventSource = mappedBuffer.getLong(entry + EVENT_SOURCE_OFFSET);
+                byte[] keyBytes = null;
+                if (keyLength > 0 && keyLength <= maxKeyLength) {
+                    keyBytes = new byte[keyLength];
+                    readBytes(entry + EVENT_KEY_OFFSET, keyBytes, keyLength);
+                }
+                if (getLongOrdered(entry + EVENT_SEQUENCE_OFFSET) != expectedEntrySequence) {
+                    lapped(publishedSequence);
+                    return;
+                }
+                stallCount = 0;
+                nextSequence++;
+                dispatch(eventType, eventSource, keyBytes);
+            }
+        }
+
+        private void lapped(long publishedSequence) {
+            nextSequence = publishedSequence;
+            stallCount = 0;
+            for (SambaGlobalStoreChangeListener listener : changeListeners) {
+                listener.onClear();
+            }
+        }
+
+        // Times of the change events are not kept in the ring, so their lags are unknown
+        private void dispatch(int eventType, long eventSource, byte[] keyBytes) {
+            for (SambaGlobalStoreChangeListener listener : changeListeners) {
+                listener.onChangeReceived(SambaGlobalStoreChangeListener.UNKNOWN_LAG);
+            }
+            if (eventType == EVENT_TYPE_CLEAR) {
+                for (SambaGlobalStoreChangeListener listener : changeListeners) {
+                    listener.onClear();
+                }
+                return;
+            }
+            if (keyBytes == null) {
+                return;
+            }
+            String key = new String(keyBytes, UTF_8);
+            if (eventType == EVENT_TYPE_DELETE) {
+                // Version of the removed entry is not kept, as the slot version is already increased
+                for (SambaGlobalStoreChangeListener listener : changeListeners) {
+                    listener.onDelete(key, SambaGlobalStoreEntry.NO_VERSION);
+                }
+            } else if (eventSource != source) {
+                // Current entry is reported, as it is at least as new as the entry of this event
+                SambaGlobalStoreEntry entry = get(key);
+                for (SambaGlobalStoreChangeListener listener : changeListeners) {
+                    if (entry == null) {
+                        listener.onDelete(key, SambaGlobalStoreEntry.NO_VERSION);
+                    } else if (eventType == EVENT_TYPE_INSERT) {
+                        listener.onInsert(key, entry);
+                    } else {
+                        listener.onUpdate(key, null, entry);
+                    }
+                }
+            }
+        }
+
+    }
+
+    /////////////////////////////////////////////////////////////////
+
+    @Override
+    public synchronized void registerChangeListener(SambaGlobalStoreChangeListener changeListener) {
+        changeListeners.add(changeListener);
+        if (changePoller == null) {
+            changePoller = new ChangePoller();
+            changePoller.start();
+        }
+    }
+
+    @Override
+    public synchronized void deregisterChangeListener(SambaGlobalStoreChangeListener changeListener) {
+        changeListeners.remove(changeListener);
+        if (changeListeners.isEmpty() && changePoller != null) {
+            changePoller.interrupt();
+            changePoller = null;
+        }
+    }
+
+    @Override
+    public SambaGlobalStoreEntry get(String key) {
+        int slot = findSlot(key, toKeyBytes(key), false);
+        if (slot == NO_SLOT) {
+            return null;
+        }
+        return readEntry(slot);
+    }
+
+    @Override
+    public long put(String key, byte[] data, long expirationTime) {
+        return put(key, ByteBuffer.wrap(data), expirationTime);
+    }
+
+    @Override
+    public long putIfAbsent(String key, byte[] data, long expirationTime) {
+        return putIfAbsent(key, ByteBuffer.wrap(data), expirationTime);
+    }
+
+    @Override
+    public long replace(String key, long oldVersion, byte[] newData, long expirationTime) {
+        return replace(key, oldVersion, ByteBuffer.wrap(newData), expirationTime);
+    }
+
+    @Override
+    public long put(String key, ByteBuffer data, long expirationTime) {
+        checkDataLength(data);
+        byte[] keyBytes = toKeyBytes(key);
+        int slot = findSlot(key, keyBytes, true);
+        long stamp = lockSlot(slot);
+        boolean existing = hasLiveData(slot);
+        long version;
+        try {
+            version = writeData(slot, data, expirationTime);
+        } finally {
+            unlockSlot(slot, stamp, true);
+        }
+        publishEvent(existing ? EVENT_TYPE_UPDATE : EVENT_TYPE_INSERT, keyBytes);
+        return version;
+    }
+
+    @Override
+    public long putIfAbsent(String key, ByteBuffer data, long expirationTime) {
+        checkDataLength(data);
+        byte[] keyBytes = toKeyBytes(key);
+        int slot = findSlot(key, keyBytes, true);
+        long stamp = lockSlot(slot);
+        long version = SambaGlobalStoreEntry.NO_VERSION;
+        try {
+            if (!hasLiveData(slot)) {
+                version = writeData(slot, data, expirationTime);
+            }
+        } finally {
+            unlockSlot(slot, stamp, version != SambaGlobalStoreEntry.NO_VERSION);
+        }
+        if (version != SambaGlobalStoreEntry.NO_VERSION) {
+            publishEvent(EVENT_TYPE_INSERT, keyBytes);
+        }
+        return version;
+    }
+
+    @Override
+    public long replace(String key, long oldVersion, ByteBuffer newData, long expirationTime) {
+        checkDataLength(newData);
+        byte[] keyBytes = toKeyBytes(key);
+        int slot = findSlot(key, keyBytes, false);
+        if (slot == NO_SLOT) {
+            return SambaGlobalStoreEntry.NO_VERSION;
+        }
+        long stamp = lockSlot(slot);
+        long version = SambaGlobalStoreEntry.NO_VERSION;
+        try {
+            if (hasLiveData(slot) && hasVersion(slot, oldVersion)) {
+                version = writeData(slot, newData, expirationTime);
+            }
+        } finally {
+            unlockSlot(slot, stamp, version != SambaGlobalStoreEntry.NO_VERSION);
+        }
+        if (version != SambaGlobalStoreEntry.NO_VERSION) {
+            publishEvent(EVENT_TYPE_UPDATE, keyBytes);
+        }
+        return version;
+    }
+
+    @Override
+    public void remove(String key) {
+        byte[] keyBytes = toKeyBytes(key);
+        int slot = findSlot(key, keyBytes, false);
+        if (slot == NO_SLOT) {
+            return;
+        }
+        long stamp = lockSlot(slot);
+        boolean removed = false;
+        try {
+            if (hasData(slot)) {
+                removeData(slot);
+                removed = true;
+            }
+        } finally {
+            unlockSlot(slot, stamp, removed);
+        }
+        if (removed) {
+            publishEvent(EVENT_TYPE_DELETE, keyBytes);
+        }
+    }
+
+    @Override
+    public boolean remove(String key, long oldVersion) {
+        byte[] keyBytes = toKeyBytes(key);
+        int slot = findSlot(key, keyBytes, false);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+        long stamp = lockSlot(slot);
+        boolean removed = false;
+        try {
+            if (hasData(slot) && hasVersion(slot, oldVersion)) {
+                removeData(slot);
+                removed = true;
+            }
+        } finally {
+            unlockSlot(slot, stamp, removed);
+        }
+        if (removed) {
+            publishEvent(EVENT_TYPE_DELETE, keyBytes);
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < slotCount; i++) {
+            int slot = slotOffset(i);
+            if (getIntOrdered(slot + SLOT_KEY_LENGTH_OFFSET) == 0) {
+                continue;
+            }
+            long stamp = lockSlot(slot);
+            boolean removed = false;
+            try {
+                if (hasData(slot)) {
+                    removeData(slot);
+                    removed = true;
+                }
+            } finally {
+                unlockSlot(slot, stamp, removed);
+            }
+        }
+        publishEvent(EVENT_TYPE_CLEAR, null);
+    }
+
+    // Entries are in memory, so there is no need to batch anything
+    
+    @Override
+    public Map<String, SambaGlobalStoreEntry> getAll(Collection<String> keys) {
+        Map<String, SambaGlobalStoreEntry> result = new HashMap<String, SambaGlobalStoreEntry>(keys.size());
+        for (String key : keys) {
+            SambaGlobalStoreEntry entry = get(key);
+            if (entry != null) {
+                result.put(key, entry);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> entries, long expirationTime) {
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue(), expirationTime);
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        for (String key : keys) {
+            remove(key);
+        }
+    }
+
+}
@@ -15,10 +15,27 @@
  */
 package tr.com.serkanozal.samba;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.AssertionFailedError;
 
@@ -29,11 +46,27 @@ import org.junit.Test;
 
 import tr.com.serkanozal.samba.cache.SambaCache;
 import tr.com.serkanozal.samba.cache.SambaCacheConsistencyModel;
+import tr.com.serkanozal.samba.cache.SambaCacheMetrics;
 import tr.com.serkanozal.samba.cache.SambaCacheProvider;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaMutation;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache;
+import tr.com.serkanozal.samba.cache.impl.SambaTieredCache;
+import tr.com.serkanozal.samba.dynamodb.InMemoryDynamoDB;
 
 public abstract class BaseSambaFieldTest {
 
+    // Shared by all caches in the test JVM just like the real DynamoDB table
+    protected static final InMemoryDynamoDB IN_MEMORY_DYNAMO_DB = new InMemoryDynamoDB();
+    
+    static {
+        // Leave some items of every batch request unprocessed to exercise retries
+        IN_MEMORY_DYNAMO_DB.setMaxProcessedBatchItemCount(20);
+        // Roll stream shards over frequently to exercise following child shards
+        IN_MEMORY_DYNAMO_DB.setMaxStreamShardRecordCount(50);
+    }
+    
     protected SambaCacheType cacheType;
     protected SambaCache cache1;
     protected SambaCache cache2;
@@ -41,10 +74,10 @@ public abstract class BaseSambaFieldTest {
     @Before
     public void setup() {
         cacheType = getCacheType();
-        cache1 = SambaCacheProvider.createCache(cacheType);
+        cache1 = createCache(cacheType);
         cache1.clear();
         cache2 = cacheType != SambaCacheType.LOCAL 
-                    ? SambaCacheProvider.createCache(cacheType)
+                    ? createCache(cacheType)
                     : cache1;
         cache2.clear();
     }
@@ -60,6 +93,43 @@ public abstract class BaseSambaFieldTest {
     
     protected abstract SambaCacheType getCacheType();
     
+    /**
+     * Creates cache backed by real DynamoDB if AWS credentials are configured, 
+     * otherwise by the in-memory DynamoDB stand-in.
+     */
+    protected SambaCache createCache(SambaCacheType cacheType) {
+        if (cacheType == SambaCacheType.LOCAL || isAwsCredentialsConfigured()) {
+            return SambaCacheProvider.createCache(cacheType);
+        }
+        switch (cacheType) {
+            case GLOBAL:
+                return new SambaGlobalCache(IN_MEMORY_DYNAMO_DB, IN_MEMORY_DYNAMO_DB.getStreams());
+            case TIERED:
+                return new SambaTieredCache(IN_MEMORY_DYNAMO_DB, IN_MEMORY_DYNAMO_DB.getStreams());
+            default:
+                throw new IllegalArgumentException("Unknown cache type: " + cacheType);
+        }
+    }
+    
+    private static boolean isAwsCredentialsConfigured() {
+        Properties awsProps = new Properties();
+        InputStream in = BaseSambaFieldTest.class.getClassLoader().getResourceAsStream("aws-credentials.properties");
+        if (in != null) {
+            try {
+                awsProps.load(in);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        awsProps.putAll(System.getProperties());
+        return awsProps.getProperty("aws.accessKey") != null && awsProps.getProperty("aws.secretKey") != null;
+    }
+    
     @Test
     public void test_fieldConsistency() {
         String fieldId = UUID.randomUUID().toString();
@@ -268,7 +338,854 @@ public abstract class BaseSambaFieldTest {
         checkConsistency(field2, 100);
     }
     
-    private void checkConsistency(SambaField<?> field, Object expectedValue) {
+    @Test
+    public void test_batchOperations() {
+        // More than the item limits of both batch get and batch write requests
+        int fieldCount = 150;
+        SambaField<?>[] fields1 = new SambaField<?>[fieldCount];
+        SambaField<?>[] fields2 = new SambaField<?>[fieldCount];
+        List<String> fieldIds = new ArrayList<String>(fieldCount);
+        Map<String, Object> values = new HashMap<String, Object>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            String fieldId = UUID.randomUUID().toString();
+            fields1[i] = new SambaField<String>(fieldId, cache1);
+            fields2[i] = new SambaField<String>(fieldId, cache2);
+            fieldIds.add(fieldId);
+            values.put(fieldId, "Value-" + i);
+        }
+        
+        ////////////////////////////////////////////////////////// 
+        
+        for (Object value : SambaField.getAll(fields1)) {
+            Assert.assertNull(value);
+        }
+        
+        ////////////////////////////////////////////////////////// 
+        
+        cache1.putAll(values);
+        List<Object> batchValues1 = SambaField.getAll(fields1);
+        for (int i = 0; i < fieldCount; i++) {
+            Assert.assertEquals("Value-" + i, batchValues1.get(i));
+            Assert.assertEquals("Value-" + i, fields1[i].get());
+            checkConsistency(fields2[i], "Value-" + i);
+        }
+        List<Object> batchValues2 = SambaField.getAll(fields2);
+        for (int i = 0; i < fieldCount; i++) {
+            Assert.assertEquals("Value-" + i, batchValues2.get(i));
+        }
+        
+        ////////////////////////////////////////////////////////// 
+        
+        cache1.removeAll(fieldIds.subList(0, fieldCount / 2));
+        Map<String, Object> updates = new HashMap<String, Object>();
+        updates.put(fieldIds.get(fieldCount - 1), null);
+        updates.put(fieldIds.get(fieldCount - 2), "Value-X");
+        cache1.putAll(updates);
+        batchValues1 = SambaField.getAll(fields1);
+        for (int i = 0; i < fieldCount; i++) {
+            Object expectedValue;
+            if (i < fieldCount / 2 || i == fieldCount - 1) {
+                expectedValue = null;
+            } else if (i == fieldCount - 2) {
+                expectedValue = "Value-X";
+            } else {
+                expectedValue = "Value-" + i;
+            }
+            Assert.assertEquals(expectedValue, batchValues1.get(i));
+            checkConsistency(fields2[i], expectedValue);
+        }
+    }
+    
+    @Test
+    public void test_asyncOperations() {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<Integer> field1 = new SambaField<Integer>(fieldId, cache1);
+        SambaField<Integer> field2 = new SambaField<Integer>(fieldId, cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertNull(field1.getAsync().join());
+        Assert.assertNull(field2.getAsync().join());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        field1.setAsync(1).join();
+        Assert.assertEquals(1, field1.getAsync().join().intValue());
+        checkConsistency(field2, 1);
+        
+        if (cacheType != SambaCacheType.GLOBAL) {
+            // Locally available value is served by the same completed future
+            Assert.assertEquals(1, field1.get().intValue());
+            CompletableFuture<Integer> future = field1.getAsync();
+            Assert.assertTrue(future.isDone());
+            Assert.assertSame(future, field1.getAsync());
+        }
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertFalse(field1.compareAndSetAsync(0, 2).join());
+        Assert.assertTrue(field1.compareAndSetAsync(1, 2).join());
+        Assert.assertEquals(2, field1.getAsync().join().intValue());
+        checkConsistency(field2, 2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        field1.setAsync(null).join();
+        Assert.assertNull(field1.getAsync().join());
+        checkConsistency(field2, null);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        SambaFieldProcessor<Integer> incrementer = 
+                new SambaFieldProcessor<Integer>() {
+                    @Override
+                    public Integer process(Integer currentValue) {
+                        if (currentValue == null) {
+                            return 1;
+                        } else {
+                            return currentValue + 1;
+                        }
+                    }
+                };
+        
+        // Issued all together to have concurrent remote calls in flight
+        List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < 100; i++) {
+            SambaField<Integer> field = i % 2 == 0 ? field1 : field2;
+            futures.add(field.processAtomicallyAsync(incrementer));
+        }
+        for (CompletableFuture<Integer> future : futures) {
+            future.join();
+        }
+        
+        checkConsistency(field1, 100);
+        checkConsistency(field2, 100);
+    }
+    
+    @Test
+    public void test_asyncCompareAndSetAfterEqualValueIsWrittenByOther() {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<Integer> field1 = new SambaField<Integer>(fieldId, cache1);
+        SambaField<Integer> field2 = new SambaField<Integer>(fieldId, cache2);
+        
+        field1.set(1);
+        Assert.assertEquals(1, field1.get().intValue());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Version retrieved by the first field is stale, but the value is still equal
+        field2.set(1);
+        Assert.assertTrue(field1.compareAndSetAsync(1, 2).join());
+        checkConsistency(field2, 2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertEquals(2, field1.get().intValue());
+        field2.set(2);
+        // Processor is retried without the stale version, so it doesn't spin on it
+        Assert.assertEquals(3, field1.processAtomicallyAsync(currentValue -> currentValue + 1).join().intValue());
+        checkConsistency(field2, 3);
+    }
+    
+    @Test
+    public void test_compareAndSetWithEqualValues() {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<HashMap<Integer, String>> field1 = new SambaField<HashMap<Integer, String>>(fieldId, cache1);
+        SambaField<HashMap<Integer, String>> field2 = new SambaField<HashMap<Integer, String>>(fieldId, cache2);
+        
+        // Keys are in the same bucket, so iteration (and so serialization) order depends on insertion order
+        HashMap<Integer, String> value1 = new HashMap<Integer, String>();
+        value1.put(1, "Value-1");
+        value1.put(17, "Value-17");
+        HashMap<Integer, String> equalValue1 = new HashMap<Integer, String>();
+        equalValue1.put(17, "Value-17");
+        equalValue1.put(1, "Value-1");
+        HashMap<Integer, String> value2 = new HashMap<Integer, String>();
+        value2.put(2, "Value-2");
+        HashMap<Integer, String> value3 = new HashMap<Integer, String>();
+        value3.put(3, "Value-3");
+        
+        ////////////////////////////////////////////////////////// 
+        
+        field1.set(value1);
+        Assert.assertTrue(field1.compareAndSet(equalValue1, value2));
+        checkConsistency(field1, value2);
+        checkConsistency(field2, value2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Retrieved value of the second field is stale now
+        field1.set(value3);
+        Assert.assertFalse(field2.compareAndSet(value2, value1));
+        
+        // Version of the retrieved value doesn't match anymore but the value is equal again
+        field1.set(new HashMap<Integer, String>(value2));
+        Assert.assertTrue(field2.compareAndSet(value2, value1));
+        checkConsistency(field1, value1);
+        checkConsistency(field2, value1);
+    }
+    
+    @Test
+    public void test_expiration() throws InterruptedException {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<String> field1 = new SambaField<String>(fieldId, cache1);
+        SambaField<String> field2 = new SambaField<String>(fieldId, cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        field1.set("Value-1", 1, TimeUnit.SECONDS);
+        Assert.assertEquals("Value-1", field1.get());
+        checkConsistency(field2, "Value-1");
+        
+        // DynamoDB keeps expiration times in seconds, so wait until the rounded up expiration time as well
+        Thread.sleep(2100);
+        
+        // Expired values are not served even though they have not been removed yet
+        Assert.assertNull(field1.get());
+        Assert.assertNull(field2.get());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertTrue(field1.compareAndSet(null, "Value-2", 1, TimeUnit.MINUTES));
+        Assert.assertEquals("Value-2", field1.get());
+        checkConsistency(field2, "Value-2");
+        
+        Assert.assertTrue(field1.compareAndSet("Value-2", "Value-3"));
+        Assert.assertEquals("Value-3", field1.get());
+        checkConsistency(field2, "Value-3");
+    }
+    
+    @Test
+    public void test_serialization() {
+        // Values written by the built-in fast paths and the generic path
+        Object[] values = {
+            "Value-1", "Değer-2 \u2713", 3, 4L, 5.5D, 6.5F, (short) 7, (byte) 8, '9', true, 
+            ByteBuffer.wrap(new byte[] { 1, 2, 3 }), new ArrayList<String>(Arrays.asList("Value-10", "Value-11"))
+        };
+        for (Object value : values) {
+            String fieldId = UUID.randomUUID().toString();
+            SambaField<Object> field1 = new SambaField<Object>(fieldId, cache1);
+            SambaField<Object> field2 = new SambaField<Object>(fieldId, cache2);
+            
+            field1.set(value);
+            Assert.assertEquals(value, field1.get());
+            checkConsistency(field2, value);
+        }
+        
+        ////////////////////////////////////////////////////////// 
+        
+        String fieldId = UUID.randomUUID().toString();
+        byte[] bytes = { 1, 2, 3 };
+        SambaField<byte[]> bytesField1 = new SambaField<byte[]>(fieldId, cache1);
+        SambaField<byte[]> bytesField2 = new SambaField<byte[]>(fieldId, cache2);
+        bytesField1.set(bytes);
+        Assert.assertArrayEquals(bytes, bytesField2.refresh());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        final AtomicInteger serializationCount = new AtomicInteger();
+        SambaSerializer serializer = new SambaSerializer() {
+            @Override
+            public byte[] serialize(Object value) {
+                serializationCount.incrementAndGet();
+                return ((String) value).getBytes(StandardCharsets.UTF_8);
+            }
+            
+            @Override
+            public Object deserialize(byte[] data) {
+                return new String(data, StandardCharsets.UTF_8);
+            }
+        };
+        fieldId = UUID.randomUUID().toString();
+        SambaField<String> field1 = new SambaField<String>(fieldId, cache1, serializer);
+        SambaField<String> field2 = new SambaField<String>(fieldId, cache2, serializer);
+        
+        field1.set("Value-12");
+        Assert.assertEquals("Value-12", field1.get());
+        checkConsistency(field2, "Value-12");
+        Assert.assertTrue(field2.compareAndSet("Value-12", "Value-13"));
+        checkConsistency(field1, "Value-13");
+        if (cacheType != SambaCacheType.LOCAL) {
+            Assert.assertTrue(serializationCount.get() > 0);
+        }
+    }
+    
+    @Test
+    public void test_getOrCreateWithLease() throws InterruptedException {
+        String fieldId = UUID.randomUUID().toString();
+        final SambaField<String> field1 = new SambaField<String>(fieldId, cache1);
+        final SambaField<String> field2 = new SambaField<String>(fieldId, cache2);
+        final AtomicInteger createCount = new AtomicInteger();
+        final SambaValueFactory<String> factory = 
+                new SambaValueFactory<String>() {
+                    @Override
+                    public String create() {
+                        createCount.incrementAndGet();
+                        try {
+                            // Creation is slow, so the others have to wait for it
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return "Value-1";
+                    }
+                    
+                    @Override
+                    public void destroy(String value) {
+                    }
+                };
+                
+        ////////////////////////////////////////////////////////// 
+        
+        Thread[] threads = new Thread[10];
+        final String[] values = new String[threads.length];
+        final CyclicBarrier barrier = new CyclicBarrier(threads.length);
+        
+        for (int i = 0; i < threads.length; i++) {
+            final int threadNo = i;
+            // Callers of different caches compete for the lease like different processes
+            final SambaField<String> field = 
+                    new SambaField<String>(fieldId, i % 2 == 0 ? field1.getCache() : field2.getCache());
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } catch (BrokenBarrierException e) {
+                        e.printStackTrace();
+                    }
+                    values[threadNo] = field.getOrCreateWithLease(factory);
+                };
+            };
+            threads[i].start();
+        }
+        
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        Assert.assertEquals(1, createCount.get());
+        for (String value : values) {
+            Assert.assertEquals("Value-1", value);
+        }
+        checkConsistency(field1, "Value-1");
+        checkConsistency(field2, "Value-1");
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Lease of a creator which has died without releasing it is taken over once it expires
+        field1.clear();
+        checkConsistency(field2, null);
+        Assert.assertTrue(
+                cache2.replace(fieldId + SambaField.CREATION_LEASE_KEY_SUFFIX, null, "Dead-Creator", 
+                               1, TimeUnit.SECONDS));
+        Assert.assertEquals("Value-1", field1.getOrCreateWithLease(factory, 1, TimeUnit.SECONDS));
+        Assert.assertEquals(2, createCount.get());
+        checkConsistency(field2, "Value-1");
+    }
+    
+    @Test
+    public void test_counterField() throws InterruptedException {
+        String fieldId = UUID.randomUUID().toString();
+        final SambaLongField field1 = new SambaLongField(fieldId, cache1);
+        final SambaLongField field2 = new SambaLongField(fieldId, cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertEquals(0, field1.get());
+        Assert.assertEquals(1, field1.incrementAndGet());
+        Assert.assertEquals(11, field2.addAndGet(10));
+        Assert.assertEquals(11, field1.getAndSet(5));
+        Assert.assertEquals(5, field2.getAndIncrement());
+        Assert.assertEquals(5, field1.decrementAndGet());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Thread[] threads = new Thread[10];
+        final CyclicBarrier barrier = new CyclicBarrier(threads.length);
+        
+        for (int i = 0; i < threads.length; i++) {
+            final SambaLongField field = i % 2 == 0 ? field1 : field2;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } catch (BrokenBarrierException e) {
+                        e.printStackTrace();
+                    }
+                    for (int j = 0; j < 10; j++) {
+                        field.incrementAndGet();
+                    }
+                };
+            };
+            threads[i].start();
+        }
+        
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        Assert.assertEquals(105, field1.addAndGet(0));
+        checkConsistency(field2, 105);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        SambaIntField intField = new SambaIntField(UUID.randomUUID().toString(), cache1);
+        intField.set(Integer.MAX_VALUE);
+        Assert.assertEquals(Integer.MAX_VALUE, intField.get());
+        Assert.assertEquals(Integer.MIN_VALUE, intField.incrementAndGet());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        field1.clear();
+        Assert.assertEquals(0, field1.get());
+        checkConsistency(field2, 0);
+    }
+    
+    @Test
+    public void test_mutations() throws InterruptedException {
+        String fieldId = UUID.randomUUID().toString();
+        final SambaField<List<String>> listField1 = new SambaField<List<String>>(fieldId + "#list", cache1);
+        final SambaField<List<String>> listField2 = new SambaField<List<String>>(fieldId + "#list", cache2);
+        final SambaField<Long> numberField1 = new SambaField<Long>(fieldId + "#number", cache1);
+        final SambaField<Long> numberField2 = new SambaField<Long>(fieldId + "#number", cache2);
+        SambaField<Set<String>> setField1 = new SambaField<Set<String>>(fieldId + "#set", cache1);
+        SambaField<Set<String>> setField2 = new SambaField<Set<String>>(fieldId + "#set", cache2);
+        SambaField<Map<String, Integer>> mapField1 = new SambaField<Map<String, Integer>>(fieldId + "#map", cache1);
+        SambaField<Map<String, Integer>> mapField2 = new SambaField<Map<String, Integer>>(fieldId + "#map", cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        listField1.mutate(SambaMutation.listAppend("a", "b"));
+        listField2.mutate(SambaMutation.listAppend("c"));
+        checkConsistency(listField1, Arrays.asList("a", "b", "c"));
+        
+        setField1.mutate(SambaMutation.setAdd("x", "y"));
+        setField2.mutate(SambaMutation.setAdd("y", "z"));
+        checkConsistency(setField1, new HashSet<String>(Arrays.asList("x", "y", "z")));
+        setField2.mutate(SambaMutation.setRemove("x", "y", "z"));
+        checkConsistency(setField1, null);
+        
+        mapField1.mutate(SambaMutation.mapPut("k1", 1));
+        mapField2.mutate(SambaMutation.mapPut("k2", 2));
+        mapField1.mutate(SambaMutation.mapRemove("k1"));
+        checkConsistency(mapField2, Collections.singletonMap("k2", 2));
+        
+        try {
+            listField1.mutate(SambaMutation.setAdd("d"));
+            Assert.fail("List must not be mutated as set");
+        } catch (IllegalArgumentException e) {
+        }
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Thread[] threads = new Thread[10];
+        final CyclicBarrier barrier = new CyclicBarrier(threads.length);
+        
+        for (int i = 0; i < threads.length; i++) {
+            final SambaField<List<String>> listField = i % 2 == 0 ? listField1 : listField2;
+            final SambaField<Long> numberField = i % 2 == 0 ? numberField1 : numberField2;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } catch (BrokenBarrierException e) {
+                        e.printStackTrace();
+                    }
+                    for (int j = 0; j < 10; j++) {
+                        listField.mutate(SambaMutation.listAppend("e"));
+                        numberField.mutate(SambaMutation.numberAdd(1));
+                    }
+                };
+            };
+            threads[i].start();
+        }
+        
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        checkConsistency(numberField1, 100L);
+        checkConsistency(numberField2, 100L);
+        Assert.assertEquals(103, listField1.refresh().size());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Values which have been set as a whole are mutated too
+        listField1.set(new ArrayList<String>(Arrays.asList("p")));
+        listField1.mutate(SambaMutation.listAppend("q"));
+        checkConsistency(listField2, Arrays.asList("p", "q"));
+    }
+    
+    @Test
+    public void test_readYourAsyncWrites() {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<String> field1 = new SambaField<String>(fieldId, cache1);
+        SambaField<String> field2 = new SambaField<String>(fieldId, cache1);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        field1.setAsync("Value-1").join();
+        SambaCacheMetrics before = cache1.getMetrics();
+        Assert.assertEquals("Value-1", field1.getAsync().join());
+        Assert.assertTrue(field1.compareAndSetAsync("Value-1", "Value-2").join());
+        Assert.assertEquals("Value-2", field1.getAsync().join());
+        SambaCacheMetrics after = cache1.getMetrics();
+        
+        // Proxies written asynchronously are installed like the sync ones
+        if (cacheType == SambaCacheType.GLOBAL) {
+            Assert.assertEquals(before.getRemoteReadLatencyMicros().getCount() + 2, 
+                                after.getRemoteReadLatencyMicros().getCount());
+        } else {
+            Assert.assertEquals(before.getLocalHitCount() + before.getLocalMissCount(), 
+                                after.getLocalHitCount() + after.getLocalMissCount());
+            Assert.assertEquals(before.getRemoteReadLatencyMicros().getCount(), 
+                                after.getRemoteReadLatencyMicros().getCount());
+        }
+        
+        ////////////////////////////////////////////////////////// 
+        
+        field2.set("Value-3");
+        Assert.assertEquals("Value-3", field1.getAsync().join());
+        field1.setAsync(null).join();
+        Assert.assertNull(field1.getAsync().join());
+        Assert.assertNull(field2.get());
+    }
+    
+    @Test
+    public void test_readYourWrites() {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<String> field1 = new SambaField<String>(fieldId, cache1);
+        SambaField<String> field2 = new SambaField<String>(fieldId, cache1);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        field1.set("Value-1");
+        SambaCacheMetrics before = cache1.getMetrics();
+        Assert.assertEquals("Value-1", field1.get());
+        Assert.assertTrue(field1.compareAndSet("Value-1", "Value-2"));
+        Assert.assertEquals("Value-2", field1.get());
+        SambaCacheMetrics after = cache1.getMetrics();
+        
+        // Written values are served by the field itself unless the cache is global, 
+        // and they are compare-and-set by their versions without being read back
+        if (cacheType == SambaCacheType.GLOBAL) {
+            Assert.assertEquals(before.getRemoteReadLatencyMicros().getCount() + 2, 
+                                after.getRemoteReadLatencyMicros().getCount());
+        } else {
+            Assert.assertEquals(before.getLocalHitCount() + before.getLocalMissCount(), 
+                                after.getLocalHitCount() + after.getLocalMissCount());
+            Assert.assertEquals(before.getRemoteReadLatencyMicros().getCount(), 
+                                after.getRemoteReadLatencyMicros().getCount());
+        }
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Values written by the others are not hidden by the installed proxy
+        field2.set("Value-3");
+        Assert.assertEquals("Value-3", field1.get());
+        Assert.assertTrue(field1.compareAndSet("Value-3", "Value-4"));
+        Assert.assertEquals("Value-4", field2.get());
+        field2.clear();
+        Assert.assertNull(field1.get());
+        Assert.assertTrue(field1.compareAndSet(null, "Value-5"));
+        Assert.assertEquals("Value-5", field1.get());
+        Assert.assertEquals("Value-5", field2.get());
+    }
+    
+    @Test
+    public void test_map() throws InterruptedException {
+        String mapId = UUID.randomUUID().toString();
+        final SambaMap<String, Integer> map1 = new SambaMap<String, Integer>(mapId, cache1);
+        final SambaMap<String, Integer> map2 = new SambaMap<String, Integer>(mapId, cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertTrue(map1.isEmpty());
+        Assert.assertNull(map1.get("key-1"));
+        
+        map1.put("key-1", 1);
+        map2.put("key-2", 2);
+        Assert.assertTrue(map1.putIfAbsent("key-3", 3));
+        Assert.assertFalse(map2.putIfAbsent("key-3", 33));
+        Assert.assertEquals(3, map1.get("key-3").intValue());
+        Assert.assertTrue(map2.replace("key-3", 3, 4));
+        Assert.assertFalse(map2.replace("key-3", 3, 5));
+        
+        Map<String, Integer> expectedEntries = new HashMap<String, Integer>();
+        expectedEntries.put("key-1", 1);
+        expectedEntries.put("key-2", 2);
+        expectedEntries.put("key-3", 4);
+        checkConsistency(map1, expectedEntries);
+        checkConsistency(map2, expectedEntries);
+        
+        map2.remove("key-1");
+        Assert.assertTrue(map1.replace("key-3", 4, null));
+        expectedEntries.remove("key-1");
+        expectedEntries.remove("key-3");
+        checkConsistency(map1, expectedEntries);
+        Assert.assertEquals(Collections.singleton("key-2"), map1.keySet());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Entries are updated independently without conflicting with each other
+        Thread[] threads = new Thread[10];
+        final CyclicBarrier barrier = new CyclicBarrier(threads.length);
+        
+        for (int i = 0; i < threads.length; i++) {
+            final SambaMap<String, Integer> map = i % 2 == 0 ? map1 : map2;
+            final String key = "key-" + (10 + i);
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } catch (BrokenBarrierException e) {
+                        e.printStackTrace();
+                    }
+                    for (int j = 0; j < 10; j++) {
+                        map.put(key, j);
+                    }
+                };
+            };
+            threads[i].start();
+        }
+        
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        for (int i = 0; i < threads.length; i++) {
+            expectedEntries.put("key-" + (10 + i), 9);
+        }
+        checkConsistency(map1, expectedEntries);
+        checkConsistency(map2, expectedEntries);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Entries are iterated in pages
+        SambaMap<Integer, String> bigMap = new SambaMap<Integer, String>(mapId + "#big", cache1);
+        Map<Integer, String> expectedBigEntries = new HashMap<Integer, String>();
+        for (int i = 0; i < SambaMap.PAGE_SIZE * 2 + 1; i++) {
+            bigMap.put(i, "value-" + i);
+            expectedBigEntries.put(i, "value-" + i);
+        }
+        Assert.assertEquals(expectedBigEntries.size(), bigMap.size());
+        Assert.assertEquals(expectedBigEntries, toMap(bigMap));
+        
+        bigMap.clear();
+        Assert.assertTrue(bigMap.isEmpty());
+        Assert.assertFalse(bigMap.iterator().hasNext());
+    }
+    
+    @Test
+    public void test_set() {
+        String setId = UUID.randomUUID().toString();
+        SambaSet<String> set1 = new SambaSet<String>(setId, cache1);
+        SambaSet<String> set2 = new SambaSet<String>(setId, cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        Assert.assertTrue(set1.add("element-1"));
+        Assert.assertTrue(set2.add("element-2"));
+        Assert.assertFalse(set2.add("element-1"));
+        Assert.assertTrue(set1.contains("element-2"));
+        
+        Assert.assertTrue(set1.remove("element-1"));
+        Assert.assertFalse(set1.remove("element-1"));
+        Assert.assertFalse(set1.contains("element-1"));
+        
+        Set<String> elements = new HashSet<String>();
+        for (String element : set1) {
+            elements.add(element);
+        }
+        Assert.assertEquals(Collections.singleton("element-2"), elements);
+        Assert.assertEquals(1, set2.size());
+        
+        set2.clear();
+        Assert.assertTrue(set2.isEmpty());
+    }
+    
+    @Test
+    public void test_refreshAhead() throws InterruptedException {
+        String fieldId = UUID.randomUUID().toString();
+        AtomicReference<String> source = new AtomicReference<String>("Value-1");
+        AtomicInteger loadCount = new AtomicInteger();
+        SambaLoader<String> loader = new SambaLoader<String>() {
+            @Override
+            public String load(String id) {
+                loadCount.incrementAndGet();
+                return source.get();
+            }
+        };
+        SambaField<String> field1 = new SambaField<String>(fieldId, cache1, loader, 2, TimeUnit.SECONDS);
+        SambaField<String> field2 = new SambaField<String>(fieldId, cache2, loader, 2, TimeUnit.SECONDS);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        long loadTime = System.currentTimeMillis();
+        Assert.assertEquals("Value-1", field1.get());
+        Assert.assertEquals(1, loadCount.get());
+        // Loaded value has been written into the cache
+        Assert.assertEquals("Value-1", field2.get());
+        Assert.assertEquals(1, loadCount.get());
+        
+        source.set("Value-2");
+        String value;
+        while (!"Value-2".equals(value = field1.get())) {
+            // Readers keep being served the current value until the loaded one is swapped in
+            Assert.assertEquals("Value-1", value);
+            Thread.sleep(1);
+        }
+        // Refreshed before the loaded value expires (expiration times are rounded up to seconds on DynamoDB)
+        Assert.assertTrue(System.currentTimeMillis() < loadTime + TimeUnit.SECONDS.toMillis(3));
+        
+        field1.clear();
+        source.set(null);
+        Assert.assertNull(field1.get());
+    }
+    
+    @Test
+    public void test_absenceFoundByLoaderIsRemembered() {
+        String fieldId = UUID.randomUUID().toString();
+        AtomicInteger loadCount = new AtomicInteger();
+        SambaLoader<String> loader = new SambaLoader<String>() {
+            @Override
+            public String load(String id) {
+                loadCount.incrementAndGet();
+                return null;
+            }
+        };
+        SambaField<String> field1 = new SambaField<String>(fieldId, cache1, loader, 1, TimeUnit.HOURS);
+        SambaField<String> field2 = new SambaField<String>(fieldId, cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNull(field1.get());
+        }
+        Assert.assertEquals(1, loadCount.get());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Absence is forgotten when the field is cleared
+        field1.clear();
+        Assert.assertNull(field1.get());
+        Assert.assertEquals(2, loadCount.get());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Values written by the others are still served
+        field2.set("Value-1");
+        checkConsistency(field1, "Value-1");
+        Assert.assertEquals(2, loadCount.get());
+    }
+    
+    private static <K, V> Map<K, V> toMap(SambaMap<K, V> map) {
+        Map<K, V> entries = new HashMap<K, V>();
+        for (Map.Entry<K, V> entry : map) {
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        return entries;
+    }
+    
+    private void checkConsistency(SambaMap<?, ?> map, Map<?, ?> expectedEntries) {
+        if (map.getConsistencyModel() == SambaCacheConsistencyModel.STRONG_CONSISTENCY) {
+            Assert.assertEquals(expectedEntries, toMap(map));
+            return;
+        }
+        long finish = System.currentTimeMillis() + 30 * 1000; // 30 seconds later
+        while (System.currentTimeMillis() < finish) {
+            if (expectedEntries.equals(toMap(map))) {
+                return;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
+        }
+        Assert.assertEquals(expectedEntries, toMap(map));
+    }
+    
+    @Test
+    public void test_metrics() {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<Integer> field1 = new SambaField<Integer>(fieldId, cache1);
+        SambaFieldProcessor<Integer> incrementer = 
+                new SambaFieldProcessor<Integer>() {
+                    @Override
+                    public Integer process(Integer currentValue) {
+                        if (currentValue == null) {
+                            return 1;
+                        } else {
+                            return currentValue + 1;
+                        }
+                    }
+                };
+        
+        ////////////////////////////////////////////////////////// 
+        
+        SambaCacheMetrics before = cache1.getMetrics();
+        for (int i = 0; i < 10; i++) {
+            field1.processAtomically(incrementer);
+        }
+        Assert.assertEquals(10, field1.get().intValue());
+        SambaCacheMetrics after = cache1.getMetrics();
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Metrics are snapshots, so the earlier one has not been changed
+        Assert.assertTrue(after.getCasAttemptCount() >= before.getCasAttemptCount() + 10);
+        Assert.assertTrue(after.getCasAttemptCount() - after.getCasFailureCount() 
+                            >= before.getCasAttemptCount() - before.getCasFailureCount() + 10);
+        if (cacheType == SambaCacheType.GLOBAL) {
+            Assert.assertEquals(0, after.getLocalHitCount() + after.getLocalMissCount());
+        } else {
+            Assert.assertTrue(after.getLocalHitCount() + after.getLocalMissCount() 
+                                > before.getLocalHitCount() + before.getLocalMissCount());
+        }
+        if (cacheType == SambaCacheType.LOCAL) {
+            Assert.assertEquals(0, after.getRemoteWriteLatencyMicros().getCount());
+            Assert.assertEquals(0, after.getSerializedSizeBytes().getCount());
+        } else {
+            Assert.assertTrue(after.getRemoteReadLatencyMicros().getCount() 
+                                > before.getRemoteReadLatencyMicros().getCount());
+            Assert.assertTrue(after.getRemoteWriteLatencyMicros().getCount() 
+                                >= before.getRemoteWriteLatencyMicros().getCount() + 10);
+            Assert.assertTrue(after.getSerializedSizeBytes().getCount() 
+                                >= before.getSerializedSizeBytes().getCount() + 10);
+            SambaCacheMetrics.Histogram writeLatencies = after.getRemoteWriteLatencyMicros();
+            Assert.assertTrue(writeLatencies.getPercentile50() <= writeLatencies.getPercentile99());
+            Assert.assertTrue(writeLatencies.getPercentile99() <= writeLatencies.getMax());
+        }
+    }
+    
+    private void checkConsistency(SambaLongField field, long expectedValue) {
+        if (field.getConsistencyModel() == SambaCacheConsistencyModel.STRONG_CONSISTENCY) {
+            Assert.assertEquals(expectedValue, field.get());
+            return;
+        }
+        long finish = System.currentTimeMillis() + 30 * 1000; // 30 seconds later
+        while (System.currentTimeMillis() < finish) {
+            if (field.get() == expectedValue) {
+                return;
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+            }
+        }
+        throw new AssertionFailedError(
+                String.format("Expected counter %d couldn't be retrieved eventually!", expectedValue));
+    }
+    
+    protected void checkConsistency(SambaField<?> field, Object expectedValue) {
         SambaCacheConsistencyModel consistencyModel = field.getConsistencyModel();
         switch (consistencyModel) {
             case STRONG_CONSISTENCY:
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaNearCachePropagationMode;
+import tr.com.serkanozal.samba.cache.SambaWeigher;
+import tr.com.serkanozal.samba.cache.impl.SambaLocalCache;
+import tr.com.serkanozal.samba.cache.impl.SambaTieredCache;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
+import tr.com.serkanozal.samba.cache.store.impl.SambaDynamoDBGlobalStore;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+
+public class SambaBoundedTieredCacheBackedFieldTest extends BaseSambaFieldTest {
+
+    private static final int NEAR_CACHE_MAXIMUM_SIZE = 8;
+    
+    @Override
+    protected SambaCacheType getCacheType() {
+        return SambaCacheType.TIERED;
+    }
+    
+    @Override
+    protected SambaCache createCache(SambaCacheType cacheType) {
+        return new SambaTieredCache(
+                    newStore("___SambaGlobalCacheTest___"), 
+                    new SambaLocalCache(NEAR_CACHE_MAXIMUM_SIZE, SambaWeigher.ENTRY_COUNT),
+                    SambaNearCachePropagationMode.INVALIDATE);
+    }
+    
+    private static SambaDynamoDBGlobalStore newStore(String tableName) {
+        return new SambaDynamoDBGlobalStore(
+                    IN_MEMORY_DYNAMO_DB, IN_MEMORY_DYNAMO_DB.getStreams(), tableName, 10, 10);
+    }
+    
+    @Test
+    public void test_evictedValuesAreRetrievedAgain() {
+        List<SambaField<String>> fields = new ArrayList<SambaField<String>>();
+        for (int i = 0; i < NEAR_CACHE_MAXIMUM_SIZE * 4; i++) {
+            SambaField<String> field = new SambaField<String>(UUID.randomUUID().toString(), cache1);
+            field.set("Value-" + i);
+            fields.add(field);
+        }
+        
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < fields.size(); i++) {
+                Assert.assertEquals("Value-" + i, fields.get(i).get());
+            }
+        }
+    }
+
+    @Test
+    public void test_unscopedItemsAreReadAsFirstGenerationAndReaped() throws InterruptedException {
+        String tableName = "___SambaLegacyGlobalStoreTest___";
+        SambaDynamoDBGlobalStore store = newStore(tableName);
+        // Item written before the keys were scoped to the generations
+        Map<String, AttributeValue> legacyItem = new HashMap<String, AttributeValue>();
+        legacyItem.put("id", new AttributeValue().withS("legacyKey"));
+        legacyItem.put("data", new AttributeValue().withB(ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+        legacyItem.put("version", new AttributeValue().withN("1"));
+        IN_MEMORY_DYNAMO_DB.putItem(new PutItemRequest().withTableName(tableName).withItem(legacyItem));
+        
+        SambaGlobalStoreEntry entry = store.get("legacyKey");
+        Assert.assertNotNull(entry);
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, entry.getData());
+        // Keys looking like the scoped ids are not mixed with the items of the other generations
+        store.put("5/key", new byte[] { 4 }, SambaGlobalStoreEntry.NO_EXPIRATION);
+        Assert.assertArrayEquals(new byte[] { 4 }, store.get("5/key").getData());
+        
+        store.clear();
+        Assert.assertNull(store.get("legacyKey"));
+        Assert.assertNull(store.get("5/key"));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (IN_MEMORY_DYNAMO_DB.getItem(
+                    new GetItemRequest().
+                            withTableName(tableName).
+                            withKey(Collections.singletonMap("id", legacyItem.get("id")))).getItem() != null) {
+            Assert.assertTrue("Unscoped item has not been reaped", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+        // Generation itself is not reaped with the items of the first generation
+        store.put("legacyKey", new byte[] { 5 }, SambaGlobalStoreEntry.NO_EXPIRATION);
+        SambaDynamoDBGlobalStore otherStore = 
+                new SambaDynamoDBGlobalStore(IN_MEMORY_DYNAMO_DB, IN_MEMORY_DYNAMO_DB.getStreams(), tableName, 10, 10);
+        Assert.assertArrayEquals(new byte[] { 5 }, otherStore.get("legacyKey").getData());
+    }
+
+}
@@ -15,7 +15,22 @@
  */
 package tr.com.serkanozal.samba;
 
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheMetrics;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
+import tr.com.serkanozal.samba.cache.store.impl.SambaDynamoDBGlobalStore;
 
 public class SambaGlobalCacheBackedFieldTest extends BaseSambaFieldTest {
 
@@ -23,5 +38,158 @@ public class SambaGlobalCacheBackedFieldTest extends BaseSambaFieldTest {
     protected SambaCacheType getCacheType() {
         return SambaCacheType.GLOBAL;
     }
+    
+    @Test
+    public void test_clearOfOtherInstanceIsObservedRightAway() {
+        checkClearObservedRightAway(cache1, cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Generation is not cached even if refresh interval is configured, 
+        // since global caches don't receive its changes from the stream
+        SambaCache globalCache1;
+        SambaCache globalCache2;
+        System.setProperty("cache.global.generationRefreshIntervalMillis", "60000");
+        try {
+            globalCache1 = createCache(SambaCacheType.GLOBAL);
+            globalCache2 = createCache(SambaCacheType.GLOBAL);
+        } finally {
+            System.clearProperty("cache.global.generationRefreshIntervalMillis");
+        }
+        checkClearObservedRightAway(globalCache1, globalCache2);
+    }
+    
+    private void checkClearObservedRightAway(SambaCache cache1, SambaCache cache2) {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<String> field1 = new SambaField<String>(fieldId, cache1);
+        SambaField<String> field2 = new SambaField<String>(fieldId, cache2);
+        
+        field1.set("Value-1");
+        Assert.assertEquals("Value-1", field2.get());
+        
+        cache2.clear();
+        Assert.assertNull(field1.get());
+        // Written into the new generation, so it is not lost
+        field1.set("Value-2");
+        Assert.assertEquals("Value-2", field2.get());
+    }
 
+    @Test
+    public void test_concurrentReadsOfSameKeyAreCoalesced() throws InterruptedException {
+        BlockingGlobalStore store = new BlockingGlobalStore("___SambaCoalescingTest___");
+        SambaCache cache = new SambaGlobalCache(store);
+        String fieldId = UUID.randomUUID().toString();
+        new SambaField<String>(fieldId, cache).set("Value-1");
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Readers missing while a read of the key is in flight wait for it instead of reading by themselves
+        SambaCacheMetrics before = cache.getMetrics();
+        int readCountBefore = store.readCount.get();
+        Thread[] readers = new Thread[5];
+        AtomicReferenceArray<String> values = new AtomicReferenceArray<String>(readers.length);
+        store.blockNextRead();
+        readers[0] = startReader(new SambaField<String>(fieldId, cache), values, 0);
+        store.awaitBlockedRead();
+        for (int i = 1; i < readers.length; i++) {
+            readers[i] = startReader(new SambaField<String>(fieldId, cache), values, i);
+        }
+        awaitCoalescedReadCount(cache, before.getCoalescedReadCount() + readers.length - 1);
+        store.releaseBlockedRead();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        for (int i = 0; i < readers.length; i++) {
+            Assert.assertEquals("Value-1", values.get(i));
+        }
+        SambaCacheMetrics after = cache.getMetrics();
+        Assert.assertEquals(readCountBefore + 1, store.readCount.get());
+        Assert.assertEquals(before.getRemoteReadLatencyMicros().getCount() + 1, 
+                            after.getRemoteReadLatencyMicros().getCount());
+        Assert.assertEquals(before.getCoalescedReadCount() + readers.length - 1, after.getCoalescedReadCount());
+        Assert.assertEquals(before.getGlobalHitCount() + readers.length, after.getGlobalHitCount());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Read in flight is not joined after a write, since it may have read the value before the write
+        before = cache.getMetrics();
+        readCountBefore = store.readCount.get();
+        store.blockNextRead();
+        readers[0] = startReader(new SambaField<String>(fieldId, cache), values, 0);
+        store.awaitBlockedRead();
+        new SambaField<String>(fieldId, cache).set("Value-2");
+        // Reads by itself without waiting for the blocked read
+        readers[1] = startReader(new SambaField<String>(fieldId, cache), values, 1);
+        readers[1].join(TimeUnit.SECONDS.toMillis(10));
+        Assert.assertFalse(readers[1].isAlive());
+        Assert.assertEquals("Value-2", values.get(1));
+        store.releaseBlockedRead();
+        readers[0].join();
+        after = cache.getMetrics();
+        Assert.assertEquals(readCountBefore + 2, store.readCount.get());
+        Assert.assertEquals(before.getCoalescedReadCount(), after.getCoalescedReadCount());
+    }
+    
+    private static Thread startReader(final SambaField<String> field, 
+                                      final AtomicReferenceArray<String> values, final int index) {
+        Thread reader = new Thread() {
+            public void run() {
+                values.set(index, field.get());
+            };
+        };
+        reader.start();
+        return reader;
+    }
+    
+    private static void awaitCoalescedReadCount(SambaCache cache, long expectedCoalescedReadCount) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cache.getMetrics().getCoalescedReadCount() < expectedCoalescedReadCount 
+                && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        Assert.assertTrue(cache.getMetrics().getCoalescedReadCount() >= expectedCoalescedReadCount);
+    }
+    
+    // Blocks the next read until it is released, so the reads of the key coming meanwhile find it in flight
+    private static class BlockingGlobalStore extends SambaDynamoDBGlobalStore {
+        
+        private final AtomicInteger readCount = new AtomicInteger();
+        private final AtomicBoolean blockNextRead = new AtomicBoolean();
+        private volatile CountDownLatch readStarted;
+        private volatile CountDownLatch readReleased;
+        
+        private BlockingGlobalStore(String tableName) {
+            super(IN_MEMORY_DYNAMO_DB, IN_MEMORY_DYNAMO_DB.getStreams(), tableName, 10, 10);
+        }
+        
+        private void blockNextRead() {
+            readStarted = new CountDownLatch(1);
+            readReleased = new CountDownLatch(1);
+            blockNextRead.set(true);
+        }
+        
+        private void awaitBlockedRead() throws InterruptedException {
+            Assert.assertTrue(readStarted.await(10, TimeUnit.SECONDS));
+        }
+        
+        private void releaseBlockedRead() {
+            readReleased.countDown();
+        }
+        
+        @Override
+        public SambaGlobalStoreEntry get(String key) {
+            readCount.incrementAndGet();
+            if (blockNextRead.compareAndSet(true, false)) {
+                readStarted.countDown();
+                try {
+                    readReleased.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return super.get(key);
+        }
+        
+    }
+    
 }
@@ -15,7 +15,12 @@
  */
 package tr.com.serkanozal.samba;
 
+import org.junit.Assert;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.cache.SambaCacheProvider;
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.impl.SambaLocalCache;
 
 public class SambaLocalCacheBackedFieldTest extends BaseSambaFieldTest {
 
@@ -23,5 +28,28 @@ public class SambaLocalCacheBackedFieldTest extends BaseSambaFieldTest {
     protected SambaCacheType getCacheType() {
         return SambaCacheType.LOCAL;
     }
+    
+    @Test
+    public void test_namedCachesAreIsolated() {
+        System.setProperty("cache.named.localTestCache.type", "LOCAL");
+        try {
+            SambaCacheProvider.registerCache("registeredLocalTestCache", new SambaLocalCache());
+            
+            SambaField<String> field1 = new SambaField<String>("namedField", "localTestCache");
+            SambaField<String> field2 = new SambaField<String>("namedField", "registeredLocalTestCache");
+            
+            Assert.assertSame(SambaCacheProvider.getCache("localTestCache"), field1.getCache());
+            Assert.assertNotSame(field1.getCache(), field2.getCache());
+            
+            field1.set("Value-1");
+            field2.set("Value-2");
+            
+            Assert.assertEquals("Value-1", field1.get());
+            Assert.assertEquals("Value-2", field2.get());
+            Assert.assertEquals("Value-1", new SambaField<String>("namedField", "localTestCache").get());
+        } finally {
+            System.clearProperty("cache.named.localTestCache.type");
+        }
+    }
 
 }
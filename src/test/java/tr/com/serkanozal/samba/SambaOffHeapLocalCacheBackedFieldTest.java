@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheMetrics;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaWeigher;
+import tr.com.serkanozal.samba.cache.impl.SambaKryoSerializer;
+import tr.com.serkanozal.samba.cache.impl.SambaLocalCache;
+
+public class SambaOffHeapLocalCacheBackedFieldTest extends BaseSambaFieldTest {
+
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final int FRONT_CACHE_SIZE = 4;
+    
+    @Override
+    protected SambaCacheType getCacheType() {
+        return SambaCacheType.LOCAL;
+    }
+    
+    @Override
+    protected SambaCache createCache(SambaCacheType cacheType) {
+        return new SambaLocalCache(
+                    SambaLocalCache.UNBOUNDED, SambaWeigher.ENTRY_COUNT, SambaCache.NO_TTL, 
+                    new SambaKryoSerializer(), 16 * SLAB_SIZE, SLAB_SIZE, FRONT_CACHE_SIZE);
+    }
+    
+    @Test
+    public void test_valuesAreKeptOffHeap() {
+        SambaCacheMetrics before = cache1.getMetrics();
+        
+        List<SambaField<String>> fields = new ArrayList<SambaField<String>>();
+        for (int i = 0; i < FRONT_CACHE_SIZE * 4; i++) {
+            SambaField<String> field = new SambaField<String>(UUID.randomUUID().toString(), cache1);
+            field.set("Value-" + i);
+            fields.add(field);
+        }
+        // Values are dropped from the front cache by the others, so they are decoded again
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < fields.size(); i++) {
+                Assert.assertEquals("Value-" + i, fields.get(i).get());
+            }
+        }
+        
+        SambaCacheMetrics after = cache1.getMetrics();
+        Assert.assertEquals(16 * SLAB_SIZE, after.getOffHeapMaxMemoryBytes());
+        Assert.assertTrue(after.getOffHeapAllocatedMemoryBytes() > 0);
+        Assert.assertTrue(after.getOffHeapDataBytes() > before.getOffHeapDataBytes());
+        Assert.assertTrue(after.getOffHeapUsedMemoryBytes() >= after.getOffHeapDataBytes());
+        
+        // Chunks of the removed values are freed
+        for (SambaField<String> field : fields) {
+            field.set(null);
+        }
+        Assert.assertEquals(before.getOffHeapDataBytes(), cache1.getMetrics().getOffHeapDataBytes());
+    }
+    
+    @Test
+    public void test_valuesBiggerThanSlabAreKeptOnHeap() {
+        StringBuilder value = new StringBuilder();
+        while (value.length() <= SLAB_SIZE) {
+            value.append(UUID.randomUUID());
+        }
+        SambaCacheMetrics before = cache1.getMetrics();
+        
+        SambaField<String> field = new SambaField<String>(UUID.randomUUID().toString(), cache1);
+        field.set(value.toString());
+        
+        Assert.assertEquals(value.toString(), field.get());
+        SambaCacheMetrics after = cache1.getMetrics();
+        Assert.assertEquals(before.getOffHeapAllocationFailureCount() + 1, after.getOffHeapAllocationFailureCount());
+        Assert.assertEquals(before.getOffHeapDataBytes(), after.getOffHeapDataBytes());
+    }
+
+}
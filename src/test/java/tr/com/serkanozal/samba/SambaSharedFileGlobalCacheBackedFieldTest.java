@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.impl.SambaGlobalCache;
+import tr.com.serkanozal.samba.cache.store.impl.SambaSharedFileGlobalStore;
+
+public class SambaSharedFileGlobalCacheBackedFieldTest extends BaseSambaFieldTest {
+
+    private static File storeFile;
+    
+    @BeforeClass
+    public static void createStoreFile() throws IOException {
+        storeFile = File.createTempFile("samba-shared-file-store-", ".samba");
+        storeFile.delete();
+    }
+    
+    @AfterClass
+    public static void deleteStoreFile() {
+        storeFile.delete();
+    }
+    
+    @Override
+    protected SambaCacheType getCacheType() {
+        return SambaCacheType.GLOBAL;
+    }
+    
+    // Each cache maps the same file through its own store just like different processes
+    @Override
+    protected SambaCache createCache(SambaCacheType cacheType) {
+        return new SambaGlobalCache(new SambaSharedFileGlobalStore(storeFile, 1024, 64, 1024, 1024, 100));
+    }
+    
+    @Test(timeout = 30000)
+    public void test_slotOfDeadWriterIsRecovered() throws IOException {
+        String name = UUID.randomUUID().toString();
+        SambaField<String> field1 = new SambaField<String>(name, cache1);
+        SambaField<String> field2 = new SambaField<String>(name, cache2);
+        field1.set("Value-1");
+        
+        // Writer dies while writing the slot, so its stamp is left odd without any lock held on it
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(storeFile, "rw")) {
+            MappedByteBuffer buffer = 
+                    randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+            buffer.order(ByteOrder.nativeOrder());
+            int slot = findSlotOf(buffer, name.getBytes(Charset.forName("UTF-8")));
+            buffer.putLong(slot, buffer.getLong(slot) + 1);
+        }
+        
+        // Possibly torn entry is dropped instead of readers and writers waiting for the dead writer forever
+        Assert.assertNull(field2.get());
+        field2.set("Value-2");
+        Assert.assertEquals("Value-2", field1.refresh());
+    }
+    
+    // Key of a slot is at the end of its 40-byte metadata
+    private static int findSlotOf(MappedByteBuffer buffer, byte[] keyBytes) {
+        for (int i = 0; i + keyBytes.length <= buffer.limit(); i++) {
+            int j = 0;
+            while (j < keyBytes.length && buffer.get(i + j) == keyBytes[j]) {
+                j++;
+            }
+            if (j == keyBytes.length) {
+                return i - 40;
+            }
+        }
+        throw new AssertionError("No slot of key " + new String(keyBytes, Charset.forName("UTF-8")));
+    }
+
+}
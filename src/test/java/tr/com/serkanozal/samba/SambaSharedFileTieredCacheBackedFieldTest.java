@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.impl.SambaTieredCache;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreChangeListener;
+import tr.com.serkanozal.samba.cache.store.SambaGlobalStoreEntry;
+import tr.com.serkanozal.samba.cache.store.impl.SambaSharedFileGlobalStore;
+
+public class SambaSharedFileTieredCacheBackedFieldTest extends BaseSambaFieldTest {
+
+    private static File storeFile;
+    
+    // Numbers of the clears received by the stores of the caches in the order of their creation
+    private final List<AtomicInteger> receivedClearCounts = new ArrayList<AtomicInteger>();
+    
+    @BeforeClass
+    public static void createStoreFile() throws IOException {
+        storeFile = File.createTempFile("samba-shared-file-store-", ".samba");
+        storeFile.delete();
+    }
+    
+    @AfterClass
+    public static void deleteStoreFile() {
+        storeFile.delete();
+    }
+    
+    /*
+     * Clears done by the setup are received by the pollers of the stores asynchronously, 
+     * so the test waits for them. Otherwise they might clear the near-caches in the middle of the test.
+     * First cache receives both of the clears, but the second one is created after the first clear.
+     */
+    @Override
+    public void setup() {
+        super.setup();
+        awaitReceivedClears(receivedClearCounts.get(0), 2);
+        awaitReceivedClears(receivedClearCounts.get(1), 1);
+    }
+    
+    private static void awaitReceivedClears(AtomicInteger receivedClearCount, int expectedClearCount) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (receivedClearCount.get() < expectedClearCount && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        Assert.assertTrue(receivedClearCount.get() >= expectedClearCount);
+    }
+    
+    @Override
+    protected SambaCacheType getCacheType() {
+        return SambaCacheType.TIERED;
+    }
+    
+    // Each cache maps the same file through its own store just like different processes
+    @Override
+    protected SambaCache createCache(SambaCacheType cacheType) {
+        SambaSharedFileGlobalStore store = new SambaSharedFileGlobalStore(storeFile, 1024, 64, 1024, 1024, 100);
+        SambaCache cache = new SambaTieredCache(store);
+        // Registered after the listener of the cache, so the clears are counted once the cache has handled them
+        AtomicInteger receivedClearCount = new AtomicInteger();
+        store.registerChangeListener(new SambaGlobalStoreChangeListener() {
+            @Override
+            public void onInsert(String key, SambaGlobalStoreEntry entry) {
+            }
+            @Override
+            public void onUpdate(String key, SambaGlobalStoreEntry oldEntry, SambaGlobalStoreEntry newEntry) {
+            }
+            @Override
+            public void onDelete(String key, long oldVersion) {
+            }
+            @Override
+            public void onClear() {
+                receivedClearCount.incrementAndGet();
+            }
+        });
+        receivedClearCounts.add(receivedClearCount);
+        return cache;
+    }
+
+}
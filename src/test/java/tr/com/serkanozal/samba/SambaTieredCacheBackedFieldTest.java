@@ -15,7 +15,13 @@
  */
 package tr.com.serkanozal.samba;
 
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
 import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.impl.SambaTieredCache;
 
 public class SambaTieredCacheBackedFieldTest extends BaseSambaFieldTest {
 
@@ -23,5 +29,56 @@ public class SambaTieredCacheBackedFieldTest extends BaseSambaFieldTest {
     protected SambaCacheType getCacheType() {
         return SambaCacheType.TIERED;
     }
+    
+    @Test
+    public void test_absentKeysAreServedByNearCache() throws InterruptedException {
+        // Absence is not cached unless negative time-to-live is configured
+        Assert.assertEquals(0, ((SambaTieredCache) cache1).getNegativeTtlMillis());
+        SambaTieredCache tieredCache1;
+        System.setProperty("cache.tiered.nearCache.negativeTtlMillis", "1000");
+        try {
+            tieredCache1 = (SambaTieredCache) createCache(SambaCacheType.TIERED);
+        } finally {
+            System.clearProperty("cache.tiered.nearCache.negativeTtlMillis");
+        }
+        Assert.assertEquals(1000, tieredCache1.getNegativeTtlMillis());
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<String> field1 = new SambaField<String>(fieldId, tieredCache1);
+        SambaField<String> field2 = new SambaField<String>(fieldId, cache2);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Tombstone might not be put by the first read if the near-cache is invalidated concurrently 
+        // (for example by the clear event of the setup delivered through the change stream)
+        long hitCount;
+        do {
+            hitCount = tieredCache1.getHitCount();
+            Assert.assertNull(field1.get());
+        } while (tieredCache1.getHitCount() == hitCount);
+        long missCount = tieredCache1.getMissCount();
+        hitCount = tieredCache1.getHitCount();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNull(field1.get());
+        }
+        // Absence has been cached
+        Assert.assertEquals(missCount, tieredCache1.getMissCount());
+        Assert.assertEquals(hitCount + 10, tieredCache1.getHitCount());
+        
+        // Insertion by the other instance removes the tombstone through the change stream
+        field2.set("Value-1");
+        long finish = System.currentTimeMillis() + tieredCache1.getNegativeTtlMillis();
+        while (field1.get() == null) {
+            Assert.assertTrue(System.currentTimeMillis() < finish);
+            Thread.sleep(1);
+        }
+        Assert.assertEquals("Value-1", field1.get());
+        
+        // Insertion by this instance replaces the tombstone right away
+        String otherFieldId = UUID.randomUUID().toString();
+        SambaField<String> otherField = new SambaField<String>(otherFieldId, tieredCache1);
+        Assert.assertNull(otherField.get());
+        otherField.set("Value-2");
+        Assert.assertEquals("Value-2", new SambaField<String>(otherFieldId, tieredCache1).get());
+    }
 
 }
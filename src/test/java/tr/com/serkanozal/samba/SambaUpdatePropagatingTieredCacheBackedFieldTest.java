@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheType;
+import tr.com.serkanozal.samba.cache.SambaNearCachePropagationMode;
+import tr.com.serkanozal.samba.cache.SambaSerializer;
+import tr.com.serkanozal.samba.cache.impl.SambaKryoSerializer;
+import tr.com.serkanozal.samba.cache.impl.SambaLocalCache;
+import tr.com.serkanozal.samba.cache.impl.SambaTieredCache;
+import tr.com.serkanozal.samba.cache.store.impl.SambaDynamoDBGlobalStore;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+
+public class SambaUpdatePropagatingTieredCacheBackedFieldTest extends BaseSambaFieldTest {
+
+    @Override
+    protected SambaCacheType getCacheType() {
+        return SambaCacheType.TIERED;
+    }
+    
+    @Override
+    protected SambaCache createCache(SambaCacheType cacheType) {
+        return new SambaTieredCache(
+                    IN_MEMORY_DYNAMO_DB, IN_MEMORY_DYNAMO_DB.getStreams(), SambaNearCachePropagationMode.UPDATE);
+    }
+
+    @Test
+    public void test_batchWritesAreSeenDespiteNewerVersionsOfSkewedClocks() throws InterruptedException {
+        // Keys of a new table are not scoped (they are in the first generation), so its items are found by the keys
+        String tableName = "___SambaSkewedClockTest___";
+        SambaCache writerCache = newCache(tableName);
+        SambaCache readerCache = newCache(tableName);
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<String> writerField = new SambaField<String>(fieldId, writerCache);
+        SambaField<String> readerField = new SambaField<String>(fieldId, readerCache);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        writerField.set("Value-1");
+        // Version of a writer whose clock is an hour ahead
+        Map<String, AttributeValue> item = getItem(tableName, fieldId);
+        long skewedVersion = (System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)) * 1000;
+        item.put("version", new AttributeValue().withN(Long.toString(skewedVersion)));
+        IN_MEMORY_DYNAMO_DB.putItem(new PutItemRequest().withTableName(tableName).withItem(item));
+        Assert.assertEquals("Value-1", readerField.get());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Batch write is not ignored by the near-cache holding the value of the newer version
+        writerCache.putAll(Collections.singletonMap(fieldId, "Value-2"));
+        checkConsistency(readerField, "Value-2");
+    }
+    
+    @Test
+    public void test_olderChangeReceivedAfterNewerOneIsIgnored() {
+        // Items are written by another table's cache and copied, so their changes are received one by one
+        String sourceTableName = "___SambaOutOfOrderChangeSourceTest___";
+        String tableName = "___SambaOutOfOrderChangeTest___";
+        SambaCache sourceCache = newCache(sourceTableName);
+        SambaCache readerCache = newCache(tableName);
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<String> sourceField = new SambaField<String>(fieldId, sourceCache);
+        SambaField<String> readerField = new SambaField<String>(fieldId, readerCache);
+        sourceField.set("Value-1");
+        Map<String, AttributeValue> item = getItem(sourceTableName, fieldId);
+        sourceField.set("Value-2");
+        Map<String, AttributeValue> olderItem = getItem(sourceTableName, fieldId);
+        sourceField.set("Value-3");
+        Map<String, AttributeValue> newerItem = getItem(sourceTableName, fieldId);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        IN_MEMORY_DYNAMO_DB.putItem(new PutItemRequest().withTableName(tableName).withItem(item));
+        awaitStreamRecordCount(readerCache, 1);
+        Assert.assertEquals("Value-1", readerField.get());
+        
+        ////////////////////////////////////////////////////////// 
+        
+        // Older version is received after the newer one
+        IN_MEMORY_DYNAMO_DB.putItem(new PutItemRequest().withTableName(tableName).withItem(newerItem));
+        awaitStreamRecordCount(readerCache, 2);
+        IN_MEMORY_DYNAMO_DB.putItem(new PutItemRequest().withTableName(tableName).withItem(olderItem));
+        awaitStreamRecordCount(readerCache, 3);
+        // Global store holds the value of the older version now, so the newer value is only in the near-cache
+        Assert.assertEquals("Value-3", readerField.get());
+    }
+    
+    @Test
+    public void test_changesOfKeysNotInNearCacheAreNotDeserialized() {
+        String tableName = "___SambaLazyChangeDecodingTest___";
+        CountingSerializer readerSerializer = new CountingSerializer();
+        SambaCache writerCache = newCache(tableName);
+        SambaCache readerCache = 
+                new SambaTieredCache(
+                        new SambaDynamoDBGlobalStore(
+                                IN_MEMORY_DYNAMO_DB, IN_MEMORY_DYNAMO_DB.getStreams(), tableName, 10, 10), 
+                        new SambaLocalCache(),
+                        SambaNearCachePropagationMode.UPDATE,
+                        readerSerializer);
+        String heldFieldId = UUID.randomUUID().toString();
+        String notHeldFieldId = UUID.randomUUID().toString();
+        SambaField<String> heldReaderField = new SambaField<String>(heldFieldId, readerCache);
+        
+        ////////////////////////////////////////////////////////// 
+        
+        new SambaField<String>(heldFieldId, writerCache).set("Value-1");
+        awaitStreamRecordCount(readerCache, 1);
+        Assert.assertEquals("Value-1", heldReaderField.get());
+        int deserializationCount = readerSerializer.deserializationCount.get();
+        
+        ////////////////////////////////////////////////////////// 
+        
+        new SambaField<String>(notHeldFieldId, writerCache).set("Value-1");
+        new SambaField<String>(heldFieldId, writerCache).set("Value-2");
+        awaitStreamRecordCount(readerCache, 3);
+        // Only the change of the key held by the near-cache is deserialized to update it
+        Assert.assertEquals(deserializationCount + 1, readerSerializer.deserializationCount.get());
+        checkConsistency(heldReaderField, "Value-2");
+    }
+    
+    private static Map<String, AttributeValue> getItem(String tableName, String key) {
+        return IN_MEMORY_DYNAMO_DB.getItem(
+                    new GetItemRequest().
+                            withTableName(tableName).
+                            withKey(Collections.singletonMap("id", new AttributeValue().withS(key)))).getItem();
+    }
+
+    @Test
+    public void test_restartedStreamConsumerResumesFromCheckpoint() throws IOException, InterruptedException {
+        File checkpointDir = Files.createTempDirectory("samba-checkpoint").toFile();
+        File checkpointFile = new File(checkpointDir, "checkpoint.properties");
+        File restartCheckpointFile = new File(checkpointDir, "restart-checkpoint.properties");
+        System.setProperty("cache.global.tableName", "___SambaStreamCheckpointTest___");
+        try {
+            System.setProperty("cache.global.stream.checkpointFile", checkpointFile.getPath());
+            SambaCache cache = new SambaTieredCache(
+                    IN_MEMORY_DYNAMO_DB, IN_MEMORY_DYNAMO_DB.getStreams(), SambaNearCachePropagationMode.UPDATE);
+            
+            ////////////////////////////////////////////////////////// 
+            
+            cache.put("Key-0", "Value-0");
+            awaitStreamRecordCount(cache, 1);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!checkpointFile.exists() && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(checkpointFile.exists());
+            // Checkpoint is taken as the consumer left it when its process is gone, 
+            // since the consumer of this cache keeps checkpointing the coming records
+            Files.copy(checkpointFile.toPath(), restartCheckpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            
+            ////////////////////////////////////////////////////////// 
+            
+            // Written while the restarted consumer is down
+            for (int i = 1; i <= 3; i++) {
+                cache.put("Key-" + i, "Value-" + i);
+            }
+            awaitStreamRecordCount(cache, 4);
+            
+            ////////////////////////////////////////////////////////// 
+            
+            System.setProperty("cache.global.stream.checkpointFile", restartCheckpointFile.getPath());
+            SambaCache restartedCache = new SambaTieredCache(
+                    IN_MEMORY_DYNAMO_DB, IN_MEMORY_DYNAMO_DB.getStreams(), SambaNearCachePropagationMode.UPDATE);
+            // Records written while it was down are received (none from the latest), 
+            // but the ones handled before the checkpoint are not received again
+            awaitStreamRecordCount(restartedCache, 3);
+            Thread.sleep(1000);
+            Assert.assertEquals(3, restartedCache.getMetrics().getStreamRecordCount());
+        } finally {
+            System.clearProperty("cache.global.tableName");
+            System.clearProperty("cache.global.stream.checkpointFile");
+        }
+    }
+    
+    private static void awaitStreamRecordCount(SambaCache cache, long expectedRecordCount) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (cache.getMetrics().getStreamRecordCount() < expectedRecordCount && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        Assert.assertTrue(cache.getMetrics().getStreamRecordCount() >= expectedRecordCount);
+    }
+    
+    private static SambaCache newCache(String tableName) {
+        return new SambaTieredCache(
+                    new SambaDynamoDBGlobalStore(
+                            IN_MEMORY_DYNAMO_DB, IN_MEMORY_DYNAMO_DB.getStreams(), tableName, 10, 10), 
+                    SambaNearCachePropagationMode.UPDATE);
+    }
+
+    private static class CountingSerializer implements SambaSerializer {
+        
+        private final SambaSerializer serializer = new SambaKryoSerializer();
+        private final AtomicInteger deserializationCount = new AtomicInteger();
+        
+        @Override
+        public byte[] serialize(Object value) {
+            return serializer.serialize(value);
+        }
+        
+        @Override
+        public ByteBuffer serialize(Object value, ByteBuffer buffer) {
+            return serializer.serialize(value, buffer);
+        }
+        
+        @Override
+        public Object deserialize(byte[] data) {
+            deserializationCount.incrementAndGet();
+            return serializer.deserialize(data);
+        }
+        
+        @Override
+        public Object deserialize(ByteBuffer data) {
+            deserializationCount.incrementAndGet();
+            return serializer.deserialize(data);
+        }
+        
+    }
+    
+}
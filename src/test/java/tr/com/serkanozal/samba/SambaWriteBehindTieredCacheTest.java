@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import tr.com.serkanozal.samba.cache.SambaCache;
+import tr.com.serkanozal.samba.cache.SambaCacheMetrics;
+import tr.com.serkanozal.samba.cache.SambaNearCachePropagationMode;
+import tr.com.serkanozal.samba.cache.SambaWeigher;
+import tr.com.serkanozal.samba.cache.impl.SambaKryoSerializer;
+import tr.com.serkanozal.samba.cache.impl.SambaLocalCache;
+import tr.com.serkanozal.samba.cache.impl.SambaTieredCache;
+import tr.com.serkanozal.samba.cache.store.impl.SambaDynamoDBGlobalStore;
+
+// Writes of write-behind caches are not visible to the other instances until they are flushed,
+// so they are not covered by the field tests which expect them to be visible immediately
+public class SambaWriteBehindTieredCacheTest {
+
+    private static final int MAX_PENDING_COUNT = 64;
+
+    private SambaTieredCache writeBehindCache;
+    private SambaCache writeThroughCache;
+
+    @Before
+    public void setup() {
+        // Flushed explicitly by the tests
+        writeBehindCache = createWriteBehindCache(Long.MAX_VALUE / 2);
+        writeBehindCache.clear();
+        writeThroughCache = new SambaTieredCache(
+                                    BaseSambaFieldTest.IN_MEMORY_DYNAMO_DB,
+                                    BaseSambaFieldTest.IN_MEMORY_DYNAMO_DB.getStreams(),
+                                    SambaNearCachePropagationMode.INVALIDATE);
+    }
+
+    @After
+    public void tearDown() {
+        writeBehindCache.clear();
+        writeBehindCache.destroy();
+        writeBehindCache = null;
+        writeThroughCache.clear();
+        writeThroughCache = null;
+    }
+
+    private SambaTieredCache createWriteBehindCache(long flushIntervalMillis) {
+        return new SambaTieredCache(
+                    new SambaDynamoDBGlobalStore(
+                            BaseSambaFieldTest.IN_MEMORY_DYNAMO_DB,
+                            BaseSambaFieldTest.IN_MEMORY_DYNAMO_DB.getStreams(),
+                            "___SambaGlobalCacheTest___", 10, 10),
+                    new SambaLocalCache(Long.MAX_VALUE, SambaWeigher.ENTRY_COUNT),
+                    SambaNearCachePropagationMode.INVALIDATE,
+                    new SambaKryoSerializer(),
+                    flushIntervalMillis, MAX_PENDING_COUNT);
+    }
+
+    @Test
+    public void test_writesAreCoalescedAndFlushed() {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<Integer> field1 = new SambaField<Integer>(fieldId, writeBehindCache);
+        SambaField<Integer> field2 = new SambaField<Integer>(fieldId, writeThroughCache);
+
+        SambaCacheMetrics before = writeBehindCache.getMetrics();
+        for (int i = 0; i < 1000; i++) {
+            field1.set(i);
+            Assert.assertEquals(i, field1.get().intValue());
+        }
+        Assert.assertNull(field2.refresh());
+        writeBehindCache.flush();
+        SambaCacheMetrics after = writeBehindCache.getMetrics();
+
+        // Only the last write has been written
+        Assert.assertEquals(1, after.getRemoteWriteLatencyMicros().getCount()
+                                - before.getRemoteWriteLatencyMicros().getCount());
+        Assert.assertEquals(999, field2.refresh().intValue());
+
+        field1.clear();
+        Assert.assertNull(field1.get());
+        Assert.assertEquals(999, field2.refresh().intValue());
+        writeBehindCache.flush();
+        Assert.assertNull(field2.refresh());
+    }
+
+    @Test
+    public void test_writesOfManyKeysAreFlushed() {
+        String fieldIdPrefix = UUID.randomUUID().toString();
+        for (int i = 0; i < MAX_PENDING_COUNT * 4; i++) {
+            new SambaField<Integer>(fieldIdPrefix + "-" + i, writeBehindCache).set(i);
+        }
+        writeBehindCache.flush();
+        for (int i = 0; i < MAX_PENDING_COUNT * 4; i++) {
+            SambaField<Integer> field = new SambaField<Integer>(fieldIdPrefix + "-" + i, writeThroughCache);
+            Assert.assertEquals(i, field.refresh().intValue());
+        }
+    }
+
+    @Test
+    public void test_pendingWritesAreRead() {
+        String fieldId = UUID.randomUUID().toString();
+        writeBehindCache.put(fieldId, "Value-1");
+
+        // Served from the pending write even if it is not in the near-cache
+        Assert.assertEquals("Value-1", unwrap(writeBehindCache.refresh(fieldId)));
+        Assert.assertEquals("Value-1", unwrap(writeBehindCache.getAll(Arrays.asList(fieldId)).get(fieldId)));
+        Assert.assertEquals("Value-1", writeBehindCache.getAsync(fieldId).join());
+    }
+
+    @Test
+    public void test_conditionalWritesFlushPendingWrites() {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<String> field1 = new SambaField<String>(fieldId, writeBehindCache);
+        SambaField<String> field2 = new SambaField<String>(fieldId, writeThroughCache);
+
+        field1.set("Value-1");
+        Assert.assertTrue(field1.compareAndSet("Value-1", "Value-2"));
+        Assert.assertEquals("Value-2", field1.get());
+        Assert.assertEquals("Value-2", field2.refresh());
+        Assert.assertFalse(field1.compareAndSet("Value-1", "Value-3"));
+    }
+
+    @Test
+    public void test_writesAreFlushedInBackground() throws InterruptedException {
+        SambaTieredCache cache = createWriteBehindCache(100);
+        String fieldId = UUID.randomUUID().toString();
+        new SambaField<String>(fieldId, cache).set("Value-1");
+
+        SambaField<String> field = new SambaField<String>(fieldId, writeThroughCache);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (field.refresh() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Value-1", field.refresh());
+        cache.destroy();
+    }
+
+    @Test
+    public void test_pendingWritesAreFlushedOnDestroy() {
+        String fieldId = UUID.randomUUID().toString();
+        SambaField<String> field1 = new SambaField<String>(fieldId, writeBehindCache);
+        SambaField<String> field2 = new SambaField<String>(fieldId, writeThroughCache);
+
+        field1.set("Value-1");
+        Assert.assertNull(field2.refresh());
+        writeBehindCache.destroy();
+        Assert.assertEquals("Value-1", field2.refresh());
+    }
+
+    private static Object unwrap(Object value) {
+        return value instanceof SambaValueProxy ? ((SambaValueProxy) value).getValue() : value;
+    }
+
+}
@@ -0,0 +1,611 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.dynamodb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ConditionalOperator;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteTableResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.StreamRecord;
+import com.amazonaws.services.dynamodbv2.model.StreamSpecification;
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TableStatus;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * In-process stand-in for DynamoDB which keeps tables in memory.
+ *
+ * Supports the subset of the DynamoDB API used by Samba (table management,
+ * single item CRUD with legacy conditions or condition/update expressions, batch reads/writes 
+ * and parallel scans) together with a
+ * stream per table exposed through {@link #getStreams()}.
+ * So global and tiered caches can be exercised without network access.
+ *
+ * Batch requests are limited as DynamoDB does and only
+ * {@link #setMaxProcessedBatchItemCount(int)} items of a batch request are processed,
+ * the rest is reported back as unprocessed to exercise the retry path of the clients.
+ */
+public class InMemoryDynamoDB extends AbstractAmazonDynamoDB {
+
+    private static final int DEFAULT_SCAN_LIMIT = 1000;
+    private static final int MAX_BATCH_GET_ITEM_COUNT = 100;
+    private static final int MAX_BATCH_WRITE_ITEM_COUNT = 25;
+
+    private final ConcurrentMap<String, InMemoryTable> tables =
+            new ConcurrentHashMap<String, InMemoryTable>();
+    private final InMemoryDynamoDBStreams streams = new InMemoryDynamoDBStreams(this);
+    private volatile int maxProcessedBatchItemCount = Integer.MAX_VALUE;
+    private volatile int maxStreamShardRecordCount = Integer.MAX_VALUE;
+
+    public AmazonDynamoDBStreams getStreams() {
+        return streams;
+    }
+
+    public void setMaxProcessedBatchItemCount(int maxProcessedBatchItemCount) {
+        this.maxProcessedBatchItemCount = maxProcessedBatchItemCount;
+    }
+
+    /**
+     * Sets number of records after which the open shard of a table stream is closed 
+     * and a child shard is opened instead.
+     */
+    public void setMaxStreamShardRecordCount(int maxStreamShardRecordCount) {
+        this.maxStreamShardRecordCount = maxStreamShardRecordCount;
+    }
+
+    InMemoryTable getTable(String tableName) {
+        InMemoryTable table = tables.get(tableName);
+        if (table == null) {
+            throw new ResourceNotFoundException("Requested resource not found: Table: " + tableName + " not found");
+        }
+        return table;
+    }
+
+    Collection<InMemoryTable> getTables() {
+        return tables.values();
+    }
+
+    @Override
+    public CreateTableResult createTable(CreateTableRequest request) {
+        InMemoryTable table = new InMemoryTable(request);
+        if (tables.putIfAbsent(request.getTableName(), table) != null) {
+            throw new ResourceInUseException("Table already exists: " + request.getTableName());
+        }
+        return new CreateTableResult().withTableDescription(table.describe());
+    }
+
+    @Override
+    public DeleteTableResult deleteTable(DeleteTableRequest request) {
+        InMemoryTable table = tables.remove(request.getTableName());
+        if (table == null) {
+            throw new ResourceNotFoundException("Requested resource not found: Table: " +
+                                                request.getTableName() + " not found");
+        }
+        return new DeleteTableResult().withTableDescription(table.describe());
+    }
+
+    @Override
+    public DescribeTableResult describeTable(DescribeTableRequest request) {
+        return new DescribeTableResult().withTable(getTable(request.getTableName()).describe());
+    }
+
+    @Override
+    public GetItemResult getItem(GetItemRequest request) {
+        InMemoryTable table = getTable(request.getTableName());
+        Map<String, AttributeValue> item = table.items.get(table.keyOf(request.getKey()));
+        return new GetItemResult().withItem(item != null ? copyItem(item) : null);
+    }
+
+    @Override
+    public PutItemResult putItem(PutItemRequest request) {
+        InMemoryTable table = getTable(request.getTableName());
+        Map<String, AttributeValue> newItem = copyItem(request.getItem());
+        ItemKey key = table.keyOf(newItem);
+        synchronized (table) {
+            Map<String, AttributeValue> oldItem = table.items.get(key);
+            checkCondition(oldItem, request.getExpected(), request.getConditionalOperator(),
+                           request.getConditionExpression(), request.getExpressionAttributeNames(),
+                           request.getExpressionAttributeValues());
+            table.items.put(key, newItem);
+            table.recordChange(oldItem, newItem);
+            PutItemResult result = new PutItemResult();
+            if (oldItem != null && ReturnValue.ALL_OLD.toString().equals(request.getReturnValues())) {
+                result.setAttributes(copyItem(oldItem));
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public DeleteItemResult deleteItem(DeleteItemRequest request) {
+        InMemoryTable table = getTable(request.getTableName());
+        ItemKey key = table.keyOf(request.getKey());
+        synchronized (table) {
+            Map<String, AttributeValue> oldItem = table.items.get(key);
+            checkCondition(oldItem, request.getExpected(), request.getConditionalOperator(),
+                           request.getConditionExpression(), request.getExpressionAttributeNames(),
+                           request.getExpressionAttributeValues());
+            DeleteItemResult result = new DeleteItemResult();
+            if (oldItem != null) {
+                table.items.remove(key);
+                table.recordChange(oldItem, null);
+                if (ReturnValue.ALL_OLD.toString().equals(request.getReturnValues())) {
+                    result.setAttributes(copyItem(oldItem));
+                }
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public UpdateItemResult updateItem(UpdateItemRequest request) {
+        if (request.getAttributeUpdates() != null && !request.getAttributeUpdates().isEmpty()) {
+            throw new UnsupportedOperationException("Legacy attribute updates are not supported, use update expressions");
+        }
+        InMemoryTable table = getTable(request.getTableName());
+        ItemKey key = table.keyOf(request.getKey());
+        synchronized (table) {
+            Map<String, AttributeValue> oldItem = table.items.get(key);
+            checkCondition(oldItem, request.getExpected(), request.getConditionalOperator(),
+                           request.getConditionExpression(), request.getExpressionAttributeNames(),
+                           request.getExpressionAttributeValues());
+            Map<String, AttributeValue> newItem = copyItem(oldItem != null ? oldItem : request.getKey());
+            Set<String> updatedAttributes = Collections.emptySet();
+            if (request.getUpdateExpression() != null) {
+                updatedAttributes =
+                        InMemoryExpressions.applyUpdate(
+                                request.getUpdateExpression(), request.getExpressionAttributeNames(),
+                                request.getExpressionAttributeValues(), newItem);
+            }
+            table.items.put(key, newItem);
+            table.recordChange(oldItem, newItem);
+            UpdateItemResult result = new UpdateItemResult();
+            ReturnValue returnValue =
+                    request.getReturnValues() != null
+                        ? ReturnValue.fromValue(request.getReturnValues())
+                        : ReturnValue.NONE;
+            switch (returnValue) {
+                case ALL_OLD:
+                    result.setAttributes(copyItem(oldItem));
+                    break;
+                case ALL_NEW:
+                    result.setAttributes(copyItem(newItem));
+                    break;
+                case UPDATED_OLD:
+                    if (oldItem != null) {
+                        result.setAttributes(InMemoryExpressions.selectAttributes(oldItem, updatedAttributes));
+                    }
+                    break;
+                case UPDATED_NEW:
+                    result.setAttributes(InMemoryExpressions.selectAttributes(newItem, updatedAttributes));
+                    break;
+                default:
+                    break;
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+        int itemCount = 0;
+        for (KeysAndAttributes keysAndAttributes : request.getRequestItems().values()) {
+            itemCount += keysAndAttributes.getKeys().size();
+        }
+        if (itemCount > MAX_BATCH_GET_ITEM_COUNT) {
+            throw new AmazonDynamoDBException(
+                    "Too many items requested for the BatchGetItem call: " + itemCount);
+        }
+        int remaining = maxProcessedBatchItemCount;
+        Map<String, List<Map<String, AttributeValue>>> responses =
+                new HashMap<String, List<Map<String, AttributeValue>>>();
+        Map<String, KeysAndAttributes> unprocessedKeys = new HashMap<String, KeysAndAttributes>();
+        for (Map.Entry<String, KeysAndAttributes> entry : request.getRequestItems().entrySet()) {
+            InMemoryTable table = getTable(entry.getKey());
+            List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+            List<Map<String, AttributeValue>> unprocessed = new ArrayList<Map<String, AttributeValue>>();
+            for (Map<String, AttributeValue> key : entry.getValue().getKeys()) {
+                if (remaining > 0) {
+                    remaining--;
+                    Map<String, AttributeValue> item = table.items.get(table.keyOf(key));
+                    if (item != null) {
+                        items.add(copyItem(item));
+                    }
+                } else {
+                    unprocessed.add(key);
+                }
+            }
+            responses.put(entry.getKey(), items);
+            if (!unprocessed.isEmpty()) {
+                unprocessedKeys.put(
+                        entry.getKey(),
+                        new KeysAndAttributes().
+                                withKeys(unprocessed).
+                                withConsistentRead(entry.getValue().getConsistentRead()));
+            }
+        }
+        return new BatchGetItemResult().
+                    withResponses(responses).
+                    withUnprocessedKeys(unprocessedKeys);
+    }
+
+    @Override
+    public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+        int itemCount = 0;
+        for (List<WriteRequest> writeRequests : request.getRequestItems().values()) {
+            itemCount += writeRequests.size();
+        }
+        if (itemCount > MAX_BATCH_WRITE_ITEM_COUNT) {
+            throw new AmazonDynamoDBException(
+                    "Too many items requested for the BatchWriteItem call: " + itemCount);
+        }
+        int remaining = maxProcessedBatchItemCount;
+        Map<String, List<WriteRequest>> unprocessedItems = new HashMap<String, List<WriteRequest>>();
+        for (Map.Entry<String, List<WriteRequest>> entry : request.getRequestItems().entrySet()) {
+            InMemoryTable table = getTable(entry.getKey());
+            List<WriteRequest> unprocessed = new ArrayList<WriteRequest>();
+            for (WriteRequest writeRequest : entry.getValue()) {
+                if (remaining <= 0) {
+                    unprocessed.add(writeRequest);
+                    continue;
+                }
+                remaining--;
+                if (writeRequest.getPutRequest() != null) {
+                    Map<String, AttributeValue> newItem = copyItem(writeRequest.getPutRequest().getItem());
+                    ItemKey key = table.keyOf(newItem);
+                    synchronized (table) {
+                        table.recordChange(table.items.put(key, newItem), newItem);
+                    }
+                } else {
+                    ItemKey key = table.keyOf(writeRequest.getDeleteRequest().getKey());
+                    synchronized (table) {
+                        Map<String, AttributeValue> oldItem = table.items.remove(key);
+                        if (oldItem != null) {
+                            table.recordChange(oldItem, null);
+                        }
+                    }
+                }
+            }
+            if (!unprocessed.isEmpty()) {
+                unprocessedItems.put(entry.getKey(), unprocessed);
+            }
+        }
+        return new BatchWriteItemResult().withUnprocessedItems(unprocessedItems);
+    }
+
+    @Override
+    public ScanResult scan(ScanRequest request) {
+        InMemoryTable table = getTable(request.getTableName());
+        int limit = request.getLimit() != null ? request.getLimit() : DEFAULT_SCAN_LIMIT;
+        ItemKey exclusiveStartKey =
+                request.getExclusiveStartKey() != null
+                    ? table.keyOf(request.getExclusiveStartKey())
+                    : null;
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        synchronized (table) {
+            Iterator<Map.Entry<ItemKey, Map<String, AttributeValue>>> iter = table.items.entrySet().iterator();
+            if (exclusiveStartKey != null) {
+                while (iter.hasNext()) {
+                    if (iter.next().getKey().equals(exclusiveStartKey)) {
+                        break;
+                    }
+                }
+            }
+            while (iter.hasNext() && items.size() < limit) {
+                Map.Entry<ItemKey, Map<String, AttributeValue>> entry = iter.next();
+                if (!isInSegment(entry.getKey(), request.getSegment(), request.getTotalSegments())) {
+                    continue;
+                }
+                items.add(copyItem(entry.getValue()));
+                if (items.size() == limit && iter.hasNext()) {
+                    lastEvaluatedKey = table.keyAttributesOf(entry.getValue());
+                }
+            }
+        }
+        return new ScanResult().
+                    withItems(items).
+                    withCount(items.size()).
+                    withScannedCount(items.size()).
+                    withLastEvaluatedKey(lastEvaluatedKey);
+    }
+
+    // Items are distributed over the segments of parallel scans by their key hashes
+    private static boolean isInSegment(ItemKey key, Integer segment, Integer totalSegments) {
+        if (segment == null || totalSegments == null) {
+            return true;
+        }
+        return (key.hashCode() & Integer.MAX_VALUE) % totalSegments == segment;
+    }
+
+    private static void checkCondition(Map<String, AttributeValue> item,
+                                       Map<String, ExpectedAttributeValue> expected,
+                                       String conditionalOperator,
+                                       String conditionExpression,
+                                       Map<String, String> expressionAttributeNames,
+                                       Map<String, AttributeValue> expressionAttributeValues) {
+        if (conditionExpression != null) {
+            if (expected != null && !expected.isEmpty()) {
+                throw new AmazonDynamoDBException(
+                        "Legacy and expression parameters cannot be used together: Expected and ConditionExpression");
+            }
+            if (!InMemoryExpressions.evaluateCondition(
+                    conditionExpression, expressionAttributeNames, expressionAttributeValues, item)) {
+                throw new ConditionalCheckFailedException("The conditional request failed");
+            }
+            return;
+        }
+        if (expected == null || expected.isEmpty()) {
+            return;
+        }
+        boolean or = ConditionalOperator.OR.toString().equals(conditionalOperator);
+        boolean result = !or;
+        for (Map.Entry<String, ExpectedAttributeValue> entry : expected.entrySet()) {
+            AttributeValue actual = item != null ? item.get(entry.getKey()) : null;
+            boolean matched = matches(actual, entry.getValue());
+            if (or) {
+                result |= matched;
+            } else {
+                result &= matched;
+            }
+        }
+        if (!result) {
+            throw new ConditionalCheckFailedException("The conditional request failed");
+        }
+    }
+
+    private static boolean matches(AttributeValue actual, ExpectedAttributeValue expected) {
+        if (expected.getComparisonOperator() != null) {
+            ComparisonOperator operator = ComparisonOperator.fromValue(expected.getComparisonOperator());
+            List<AttributeValue> values = expected.getAttributeValueList();
+            switch (operator) {
+                case NULL:
+                    return actual == null;
+                case NOT_NULL:
+                    return actual != null;
+                case EQ:
+                    return actual != null && actual.equals(values.get(0));
+                case NE:
+                    return actual == null || !actual.equals(values.get(0));
+                default:
+                    throw new UnsupportedOperationException("Unsupported comparison operator: " + operator);
+            }
+        }
+        if (Boolean.FALSE.equals(expected.getExists())) {
+            return actual == null;
+        }
+        if (expected.getValue() != null) {
+            return actual != null && actual.equals(expected.getValue());
+        }
+        return actual != null;
+    }
+
+    static Map<String, AttributeValue> copyItem(Map<String, AttributeValue> item) {
+        if (item == null) {
+            return null;
+        }
+        Map<String, AttributeValue> copy = new HashMap<String, AttributeValue>(item.size());
+        for (Map.Entry<String, AttributeValue> entry : item.entrySet()) {
+            copy.put(entry.getKey(), copyValue(entry.getValue()));
+        }
+        return copy;
+    }
+
+    static AttributeValue copyValue(AttributeValue value) {
+        AttributeValue copy = new AttributeValue();
+        copy.setS(value.getS());
+        copy.setN(value.getN());
+        if (value.getB() != null) {
+            copy.setB(copyBuffer(value.getB()));
+        }
+        if (value.getSS() != null) {
+            copy.setSS(new ArrayList<String>(value.getSS()));
+        }
+        if (value.getNS() != null) {
+            copy.setNS(new ArrayList<String>(value.getNS()));
+        }
+        if (value.getBS() != null) {
+            List<ByteBuffer> bs = new ArrayList<ByteBuffer>(value.getBS().size());
+            for (ByteBuffer b : value.getBS()) {
+                bs.add(copyBuffer(b));
+            }
+            copy.setBS(bs);
+        }
+        if (value.getM() != null) {
+            copy.setM(copyItem(value.getM()));
+        }
+        if (value.getL() != null) {
+            List<AttributeValue> l = new ArrayList<AttributeValue>(value.getL().size());
+            for (AttributeValue v : value.getL()) {
+                l.add(copyValue(v));
+            }
+            copy.setL(l);
+        }
+        copy.setNULL(value.getNULL());
+        copy.setBOOL(value.getBOOL());
+        return copy;
+    }
+
+    private static ByteBuffer copyBuffer(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        byte[] bytes = new byte[source.remaining()];
+        source.get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    static final class ItemKey {
+
+        private final List<AttributeValue> values;
+
+        private ItemKey(List<AttributeValue> values) {
+            this.values = values;
+        }
+
+        @Override
+        public int hashCode() {
+            return values.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ItemKey)) {
+                return false;
+            }
+            return values.equals(((ItemKey) obj).values);
+        }
+
+    }
+
+    final class InMemoryTable {
+
+        final String tableName;
+        final List<KeySchemaElement> keySchema;
+        final StreamSpecification streamSpecification;
+        final String streamArn;
+        final Date creationDate = new Date();
+        final Map<ItemKey, Map<String, AttributeValue>> items =
+                new ConcurrentHashMap<ItemKey, Map<String, AttributeValue>>();
+        final InMemoryStream stream;
+
+        private InMemoryTable(CreateTableRequest request) {
+            this.tableName = request.getTableName();
+            this.keySchema = new ArrayList<KeySchemaElement>(request.getKeySchema());
+            this.streamSpecification = request.getStreamSpecification();
+            if (streamSpecification != null && Boolean.TRUE.equals(streamSpecification.getStreamEnabled())) {
+                this.streamArn = "arn:aws:dynamodb:local:000000000000:table/" + tableName +
+                                 "/stream/" + creationDate.getTime();
+                this.stream = new InMemoryStream(streamArn);
+            } else {
+                this.streamArn = null;
+                this.stream = null;
+            }
+        }
+
+        private TableDescription describe() {
+            TableDescription description =
+                    new TableDescription().
+                            withTableName(tableName).
+                            withTableStatus(TableStatus.ACTIVE).
+                            withKeySchema(keySchema).
+                            withCreationDateTime(creationDate).
+                            withItemCount((long) items.size());
+            if (stream != null) {
+                description.
+                    withStreamSpecification(streamSpecification).
+                    withLatestStreamArn(streamArn);
+            }
+            return description;
+        }
+
+        ItemKey keyOf(Map<String, AttributeValue> item) {
+            List<AttributeValue> values = new ArrayList<AttributeValue>(keySchema.size());
+            for (KeySchemaElement keySchemaElement : keySchema) {
+                AttributeValue value = item.get(keySchemaElement.getAttributeName());
+                if (value == null) {
+                    throw new IllegalArgumentException(
+                            "Missing key attribute: " + keySchemaElement.getAttributeName());
+                }
+                values.add(value);
+            }
+            return new ItemKey(values);
+        }
+
+        Map<String, AttributeValue> keyAttributesOf(Map<String, AttributeValue> item) {
+            Map<String, AttributeValue> key = new LinkedHashMap<String, AttributeValue>();
+            for (KeySchemaElement keySchemaElement : keySchema) {
+                String attributeName = keySchemaElement.getAttributeName();
+                key.put(attributeName, copyValue(item.get(attributeName)));
+            }
+            return key;
+        }
+
+        // Must be called while holding the table lock so stream order matches write order
+        void recordChange(Map<String, AttributeValue> oldItem, Map<String, AttributeValue> newItem) {
+            if (stream == null) {
+                return;
+            }
+            String eventName;
+            if (oldItem == null) {
+                eventName = "INSERT";
+            } else if (newItem == null) {
+                eventName = "REMOVE";
+            } else {
+                eventName = "MODIFY";
+            }
+            StreamViewType viewType = StreamViewType.fromValue(streamSpecification.getStreamViewType());
+            StreamRecord streamRecord =
+                    new StreamRecord().
+                            withKeys(keyAttributesOf(oldItem != null ? oldItem : newItem)).
+                            withStreamViewType(viewType).
+                            withApproximateCreationDateTime(new Date());
+            if (oldItem != null
+                    && (viewType == StreamViewType.OLD_IMAGE || viewType == StreamViewType.NEW_AND_OLD_IMAGES)) {
+                streamRecord.setOldImage(copyItem(oldItem));
+            }
+            if (newItem != null
+                    && (viewType == StreamViewType.NEW_IMAGE || viewType == StreamViewType.NEW_AND_OLD_IMAGES)) {
+                streamRecord.setNewImage(copyItem(newItem));
+            }
+            stream.append(eventName, streamRecord, maxStreamShardRecordCount);
+        }
+
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.dynamodb;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.DescribeStreamRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeStreamResult;
+import com.amazonaws.services.dynamodbv2.model.ExpiredIteratorException;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
+import com.amazonaws.services.dynamodbv2.model.GetShardIteratorRequest;
+import com.amazonaws.services.dynamodbv2.model.GetShardIteratorResult;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ShardIteratorType;
+import com.amazonaws.services.dynamodbv2.model.StreamDescription;
+import com.amazonaws.services.dynamodbv2.model.StreamStatus;
+
+import tr.com.serkanozal.samba.dynamodb.InMemoryDynamoDB.InMemoryTable;
+
+/**
+ * DynamoDB Streams API over the in-memory streams of {@link InMemoryDynamoDB} tables.
+ * 
+ * Shard iterators are plain <code>streamArn|shardId|sequenceNumber</code> strings
+ * pointing to the next sequence number to be read.
+ */
+class InMemoryDynamoDBStreams extends AbstractAmazonDynamoDBStreams {
+
+    private static final int DEFAULT_RECORD_LIMIT = 1000;
+    private static final String ITERATOR_SEPARATOR = "|";
+    
+    private final InMemoryDynamoDB dynamoDB;
+    
+    InMemoryDynamoDBStreams(InMemoryDynamoDB dynamoDB) {
+        this.dynamoDB = dynamoDB;
+    }
+    
+    private InMemoryStream findStream(String streamArn) {
+        for (InMemoryTable table : dynamoDB.getTables()) {
+            if (table.stream != null && table.stream.streamArn.equals(streamArn)) {
+                return table.stream;
+            }
+        }
+        throw new ResourceNotFoundException("Requested resource not found: Stream: " + streamArn + " not found");
+    }
+    
+    @Override
+    public DescribeStreamResult describeStream(DescribeStreamRequest request) {
+        InMemoryStream stream = findStream(request.getStreamArn());
+        return new DescribeStreamResult().
+                    withStreamDescription(
+                            new StreamDescription().
+                                    withStreamArn(stream.streamArn).
+                                    withStreamStatus(StreamStatus.ENABLED).
+                                    withShards(stream.describeShards()));
+    }
+    
+    @Override
+    public GetShardIteratorResult getShardIterator(GetShardIteratorRequest request) {
+        InMemoryStream stream = findStream(request.getStreamArn());
+        String shardId = request.getShardId();
+        long sequenceNumber;
+        switch (ShardIteratorType.fromValue(request.getShardIteratorType())) {
+            case TRIM_HORIZON:
+                sequenceNumber = stream.firstSequenceNumber(shardId);
+                break;
+            case LATEST:
+                sequenceNumber = stream.latestSequenceNumber(shardId);
+                break;
+            case AT_SEQUENCE_NUMBER:
+                sequenceNumber = Long.parseLong(request.getSequenceNumber());
+                break;
+            case AFTER_SEQUENCE_NUMBER:
+                sequenceNumber = Long.parseLong(request.getSequenceNumber()) + 1;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shard iterator type: " + request.getShardIteratorType());
+        }
+        return new GetShardIteratorResult().
+                    withShardIterator(toShardIterator(stream.streamArn, shardId, sequenceNumber));
+    }
+    
+    @Override
+    public GetRecordsResult getRecords(GetRecordsRequest request) {
+        String[] parts = request.getShardIterator().split("\\" + ITERATOR_SEPARATOR);
+        if (parts.length != 3) {
+            throw new ExpiredIteratorException("Invalid shard iterator: " + request.getShardIterator());
+        }
+        InMemoryStream stream = findStream(parts[0]);
+        String shardId = parts[1];
+        long sequenceNumber = Math.max(Long.parseLong(parts[2]), stream.firstSequenceNumber(shardId));
+        int limit = request.getLimit() != null ? request.getLimit() : DEFAULT_RECORD_LIMIT;
+        List<Record> records = stream.read(shardId, sequenceNumber, limit);
+        if (records == null) {
+            // Shard is closed and all of its records have been read
+            return new GetRecordsResult().withRecords(Collections.<Record>emptyList());
+        }
+        long nextSequenceNumber = sequenceNumber;
+        if (!records.isEmpty()) {
+            Record lastRecord = records.get(records.size() - 1);
+            nextSequenceNumber = Long.parseLong(lastRecord.getDynamodb().getSequenceNumber()) + 1;
+        }
+        return new GetRecordsResult().
+                    withRecords(records).
+                    withNextShardIterator(toShardIterator(stream.streamArn, shardId, nextSequenceNumber));
+    }
+    
+    private static String toShardIterator(String streamArn, String shardId, long sequenceNumber) {
+        return streamArn + ITERATOR_SEPARATOR + shardId + ITERATOR_SEPARATOR + sequenceNumber;
+    }
+    
+}
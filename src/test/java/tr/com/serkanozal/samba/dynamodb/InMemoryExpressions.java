@@ -0,0 +1,535 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.dynamodb;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+/**
+ * Evaluates condition and update expressions of {@link InMemoryDynamoDB} requests.
+ *
+ * Supports comparisons, <code>BETWEEN</code>, <code>AND</code>/<code>OR</code>/<code>NOT</code>,
+ * <code>attribute_exists</code>/<code>attribute_not_exists</code>/<code>attribute_type</code> in conditions and
+ * <code>SET</code> (with <code>+</code>/<code>-</code>, <code>if_not_exists</code> and
+ * <code>list_append</code>), <code>REMOVE</code>, <code>ADD</code> and <code>DELETE</code> in updates.
+ * Document paths can refer to nested map attributes and list elements.
+ */
+final class InMemoryExpressions {
+
+    private static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+    private final List<String> tokens;
+    private final Map<String, String> names;
+    private final Map<String, AttributeValue> values;
+    private final String expression;
+    private int position;
+
+    private InMemoryExpressions(String expression,
+                                Map<String, String> names,
+                                Map<String, AttributeValue> values) {
+        this.expression = expression;
+        this.tokens = tokenize(expression);
+        this.names = names != null ? names : Collections.<String, String>emptyMap();
+        this.values = values != null ? values : Collections.<String, AttributeValue>emptyMap();
+    }
+
+    /**
+     * Evaluates the given condition expression on the given item.
+     *
+     * @return <code>true</code> if the condition holds, <code>false</code> otherwise
+     */
+    static boolean evaluateCondition(String expression,
+                                     Map<String, String> names,
+                                     Map<String, AttributeValue> values,
+                                     Map<String, AttributeValue> item) {
+        InMemoryExpressions parser = new InMemoryExpressions(expression, names, values);
+        boolean result = parser.parseCondition(item != null ? item : Collections.<String, AttributeValue>emptyMap());
+        parser.expectEnd();
+        return result;
+    }
+
+    /**
+     * Applies the given update expression on the given item in place.
+     *
+     * @return names of the top level attributes touched by the update
+     */
+    static Set<String> applyUpdate(String expression,
+                                   Map<String, String> names,
+                                   Map<String, AttributeValue> values,
+                                   Map<String, AttributeValue> item) {
+        InMemoryExpressions parser = new InMemoryExpressions(expression, names, values);
+        Set<String> updatedAttributes = new LinkedHashSet<String>();
+        // All the operands are evaluated against the item before the update as DynamoDB does
+        Map<String, AttributeValue> oldItem = InMemoryDynamoDB.copyItem(item);
+        while (!parser.atEnd()) {
+            String action = parser.next().toUpperCase();
+            do {
+                List<Object> path = parser.parsePath();
+                updatedAttributes.add((String) path.get(0));
+                if ("SET".equals(action)) {
+                    parser.expect("=");
+                    setPath(item, path, parser.parseSetValue(oldItem));
+                } else if ("REMOVE".equals(action)) {
+                    removePath(item, path);
+                } else if ("ADD".equals(action)) {
+                    setPath(item, path, add(resolvePath(oldItem, path), parser.parseOperand(oldItem)));
+                } else if ("DELETE".equals(action)) {
+                    AttributeValue remaining = delete(resolvePath(oldItem, path), parser.parseOperand(oldItem));
+                    if (remaining != null) {
+                        setPath(item, path, remaining);
+                    } else {
+                        removePath(item, path);
+                    }
+                } else {
+                    throw parser.invalid("unknown action " + action);
+                }
+            } while (parser.accept(","));
+        }
+        return updatedAttributes;
+    }
+
+    private static List<String> tokenize(String expression) {
+        List<String> tokens = new ArrayList<String>();
+        int i = 0;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '#' || c == ':') {
+                int start = i++;
+                while (i < expression.length()
+                        && (Character.isLetterOrDigit(expression.charAt(i)) || expression.charAt(i) == '_')) {
+                    i++;
+                }
+                tokens.add(expression.substring(start, i));
+            } else if ((c == '<' || c == '>') && i + 1 < expression.length()
+                    && (expression.charAt(i + 1) == '=' || (c == '<' && expression.charAt(i + 1) == '>'))) {
+                tokens.add(expression.substring(i, i + 2));
+                i += 2;
+            } else if ("()[],.=<>+-".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else {
+                throw new AmazonDynamoDBException(
+                        "Invalid expression: unexpected character '" + c + "' in " + expression);
+            }
+        }
+        return tokens;
+    }
+
+    private AmazonDynamoDBException invalid(String reason) {
+        return new AmazonDynamoDBException("Invalid expression: " + reason + " in " + expression);
+    }
+
+    private boolean atEnd() {
+        return position >= tokens.size();
+    }
+
+    private String peek() {
+        return atEnd() ? null : tokens.get(position);
+    }
+
+    private String next() {
+        if (atEnd()) {
+            throw invalid("unexpected end");
+        }
+        return tokens.get(position++);
+    }
+
+    private boolean accept(String token) {
+        if (!atEnd() && tokens.get(position).equalsIgnoreCase(token)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) {
+            throw invalid("expected '" + token + "' but found '" + peek() + "'");
+        }
+    }
+
+    private void expectEnd() {
+        if (!atEnd()) {
+            throw invalid("unexpected token '" + peek() + "'");
+        }
+    }
+
+    private boolean parseCondition(Map<String, AttributeValue> item) {
+        boolean result = parseAnd(item);
+        while (accept("OR")) {
+            // Both sides are parsed anyway to consume their tokens
+            result |= parseAnd(item);
+        }
+        return result;
+    }
+
+    private boolean parseAnd(Map<String, AttributeValue> item) {
+        boolean result = parseNot(item);
+        while (accept("AND")) {
+            result &= parseNot(item);
+        }
+        return result;
+    }
+
+    private boolean parseNot(Map<String, AttributeValue> item) {
+        if (accept("NOT")) {
+            return !parseNot(item);
+        }
+        return parsePredicate(item);
+    }
+
+    private boolean parsePredicate(Map<String, AttributeValue> item) {
+        if (accept("(")) {
+            boolean result = parseCondition(item);
+            expect(")");
+            return result;
+        }
+        if (accept("attribute_exists")) {
+            expect("(");
+            AttributeValue value = resolvePath(item, parsePath());
+            expect(")");
+            return value != null;
+        }
+        if (accept("attribute_not_exists")) {
+            expect("(");
+            AttributeValue value = resolvePath(item, parsePath());
+            expect(")");
+            return value == null;
+        }
+        if (accept("attribute_type")) {
+            expect("(");
+            AttributeValue value = resolvePath(item, parsePath());
+            expect(",");
+            AttributeValue type = parseOperand(item);
+            expect(")");
+            return value != null && type != null && typeOf(value).equals(type.getS());
+        }
+        AttributeValue left = parseOperand(item);
+        if (accept("BETWEEN")) {
+            AttributeValue lower = parseOperand(item);
+            expect("AND");
+            AttributeValue upper = parseOperand(item);
+            if (left == null || lower == null || upper == null) {
+                return false;
+            }
+            int lowerComparison = compare(left, lower);
+            int upperComparison = compare(left, upper);
+            return lowerComparison != INCOMPARABLE && upperComparison != INCOMPARABLE
+                    && lowerComparison >= 0 && upperComparison <= 0;
+        }
+        String comparator = next();
+        AttributeValue right = parseOperand(item);
+        if ("=".equals(comparator)) {
+            return left != null && right != null && compare(left, right) == 0;
+        } else if ("<>".equals(comparator)) {
+            return left == null || right == null || compare(left, right) != 0;
+        }
+        if (left == null || right == null) {
+            return false;
+        }
+        int comparison = compare(left, right);
+        if (comparison == INCOMPARABLE) {
+            return false;
+        }
+        if ("<".equals(comparator)) {
+            return comparison < 0;
+        } else if ("<=".equals(comparator)) {
+            return comparison <= 0;
+        } else if (">".equals(comparator)) {
+            return comparison > 0;
+        } else if (">=".equals(comparator)) {
+            return comparison >= 0;
+        }
+        throw invalid("unknown comparator " + comparator);
+    }
+
+    private AttributeValue parseSetValue(Map<String, AttributeValue> item) {
+        AttributeValue value = parseOperand(item);
+        if (accept("+")) {
+            return arithmetic(value, parseOperand(item), false);
+        } else if (accept("-")) {
+            return arithmetic(value, parseOperand(item), true);
+        }
+        return value;
+    }
+
+    private AttributeValue parseOperand(Map<String, AttributeValue> item) {
+        String token = peek();
+        if (token == null) {
+            throw invalid("unexpected end");
+        }
+        if (token.startsWith(":")) {
+            position++;
+            AttributeValue value = values.get(token);
+            if (value == null) {
+                throw invalid("undefined value placeholder " + token);
+            }
+            return value;
+        }
+        if (accept("if_not_exists")) {
+            expect("(");
+            AttributeValue existing = resolvePath(item, parsePath());
+            expect(",");
+            AttributeValue defaultValue = parseOperand(item);
+            expect(")");
+            return existing != null ? existing : defaultValue;
+        }
+        if (accept("list_append")) {
+            expect("(");
+            AttributeValue first = parseOperand(item);
+            expect(",");
+            AttributeValue second = parseOperand(item);
+            expect(")");
+            if (first == null || first.getL() == null || second == null || second.getL() == null) {
+                throw invalid("list_append operands must be lists");
+            }
+            List<AttributeValue> list = new ArrayList<AttributeValue>(first.getL());
+            list.addAll(second.getL());
+            return new AttributeValue().withL(list);
+        }
+        return resolvePath(item, parsePath());
+    }
+
+    private List<Object> parsePath() {
+        List<Object> path = new ArrayList<Object>();
+        path.add(parseName());
+        for (;;) {
+            if (accept(".")) {
+                path.add(parseName());
+            } else if (accept("[")) {
+                String index = next();
+                try {
+                    path.add(Integer.parseInt(index));
+                } catch (NumberFormatException e) {
+                    throw invalid("invalid list index " + index);
+                }
+                expect("]");
+            } else {
+                return path;
+            }
+        }
+    }
+
+    private String parseName() {
+        String token = next();
+        if (token.startsWith("#")) {
+            String name = names.get(token);
+            if (name == null) {
+                throw invalid("undefined name placeholder " + token);
+            }
+            return name;
+        }
+        if (token.startsWith(":") || !Character.isLetter(token.charAt(0)) && token.charAt(0) != '_') {
+            throw invalid("invalid attribute name " + token);
+        }
+        return token;
+    }
+
+    private static AttributeValue resolvePath(Map<String, AttributeValue> item, List<Object> path) {
+        AttributeValue value = item.get(path.get(0));
+        for (int i = 1; i < path.size() && value != null; i++) {
+            Object element = path.get(i);
+            if (element instanceof String) {
+                value = value.getM() != null ? value.getM().get(element) : null;
+            } else {
+                List<AttributeValue> list = value.getL();
+                int index = (Integer) element;
+                value = list != null && index < list.size() ? list.get(index) : null;
+            }
+        }
+        return value;
+    }
+
+    private static void setPath(Map<String, AttributeValue> item, List<Object> path, AttributeValue value) {
+        if (path.size() == 1) {
+            item.put((String) path.get(0), InMemoryDynamoDB.copyValue(value));
+            return;
+        }
+        AttributeValue parent = resolvePath(item, path.subList(0, path.size() - 1));
+        Object last = path.get(path.size() - 1);
+        if (parent == null) {
+            throw new AmazonDynamoDBException(
+                    "The document path provided in the update expression is invalid for update");
+        }
+        if (last instanceof String) {
+            if (parent.getM() == null) {
+                throw new AmazonDynamoDBException(
+                        "The document path provided in the update expression is invalid for update");
+            }
+            parent.getM().put((String) last, InMemoryDynamoDB.copyValue(value));
+        } else {
+            List<AttributeValue> list = parent.getL();
+            if (list == null) {
+                throw new AmazonDynamoDBException(
+                        "The document path provided in the update expression is invalid for update");
+            }
+            int index = (Integer) last;
+            if (index < list.size()) {
+                list.set(index, InMemoryDynamoDB.copyValue(value));
+            } else {
+                list.add(InMemoryDynamoDB.copyValue(value));
+            }
+        }
+    }
+
+    private static void removePath(Map<String, AttributeValue> item, List<Object> path) {
+        if (path.size() == 1) {
+            item.remove(path.get(0));
+            return;
+        }
+        AttributeValue parent = resolvePath(item, path.subList(0, path.size() - 1));
+        Object last = path.get(path.size() - 1);
+        if (parent == null) {
+            return;
+        }
+        if (last instanceof String) {
+            if (parent.getM() != null) {
+                parent.getM().remove(last);
+            }
+        } else if (parent.getL() != null && (Integer) last < parent.getL().size()) {
+            parent.getL().remove(((Integer) last).intValue());
+        }
+    }
+
+    private static AttributeValue arithmetic(AttributeValue left, AttributeValue right, boolean subtract) {
+        if (left == null || right == null || left.getN() == null || right.getN() == null) {
+            throw new AmazonDynamoDBException(
+                    "An operand in the update expression has an incorrect data type");
+        }
+        BigDecimal result =
+                subtract
+                    ? new BigDecimal(left.getN()).subtract(new BigDecimal(right.getN()))
+                    : new BigDecimal(left.getN()).add(new BigDecimal(right.getN()));
+        return new AttributeValue().withN(result.toPlainString());
+    }
+
+    private static AttributeValue add(AttributeValue current, AttributeValue value) {
+        if (value.getN() != null) {
+            BigDecimal base = current != null ? new BigDecimal(current.getN()) : BigDecimal.ZERO;
+            return new AttributeValue().withN(base.add(new BigDecimal(value.getN())).toPlainString());
+        }
+        if (value.getSS() != null) {
+            Set<String> set = new LinkedHashSet<String>();
+            if (current != null) {
+                set.addAll(current.getSS());
+            }
+            set.addAll(value.getSS());
+            return new AttributeValue().withSS(set);
+        }
+        if (value.getNS() != null) {
+            Set<String> set = new LinkedHashSet<String>();
+            if (current != null) {
+                set.addAll(current.getNS());
+            }
+            set.addAll(value.getNS());
+            return new AttributeValue().withNS(set);
+        }
+        if (value.getBS() != null) {
+            Set<ByteBuffer> set = new LinkedHashSet<ByteBuffer>();
+            if (current != null) {
+                set.addAll(current.getBS());
+            }
+            set.addAll(value.getBS());
+            return new AttributeValue().withBS(set);
+        }
+        throw new AmazonDynamoDBException(
+                "An operand in the update expression has an incorrect data type");
+    }
+
+    private static AttributeValue delete(AttributeValue current, AttributeValue value) {
+        if (current == null) {
+            return null;
+        }
+        if (value.getSS() != null && current.getSS() != null) {
+            List<String> set = new ArrayList<String>(current.getSS());
+            set.removeAll(value.getSS());
+            return set.isEmpty() ? null : new AttributeValue().withSS(set);
+        }
+        if (value.getNS() != null && current.getNS() != null) {
+            List<String> set = new ArrayList<String>(current.getNS());
+            set.removeAll(value.getNS());
+            return set.isEmpty() ? null : new AttributeValue().withNS(set);
+        }
+        if (value.getBS() != null && current.getBS() != null) {
+            List<ByteBuffer> set = new ArrayList<ByteBuffer>(current.getBS());
+            set.removeAll(value.getBS());
+            return set.isEmpty() ? null : new AttributeValue().withBS(set);
+        }
+        throw new AmazonDynamoDBException(
+                "An operand in the update expression has an incorrect data type");
+    }
+
+    private static String typeOf(AttributeValue value) {
+        if (value.getS() != null) {
+            return "S";
+        } else if (value.getN() != null) {
+            return "N";
+        } else if (value.getB() != null) {
+            return "B";
+        } else if (value.getSS() != null) {
+            return "SS";
+        } else if (value.getNS() != null) {
+            return "NS";
+        } else if (value.getBS() != null) {
+            return "BS";
+        } else if (value.getM() != null) {
+            return "M";
+        } else if (value.getL() != null) {
+            return "L";
+        } else if (value.getBOOL() != null) {
+            return "BOOL";
+        }
+        return "NULL";
+    }
+
+    private static int compare(AttributeValue left, AttributeValue right) {
+        if (left.getN() != null && right.getN() != null) {
+            return new BigDecimal(left.getN()).compareTo(new BigDecimal(right.getN()));
+        }
+        if (left.getS() != null && right.getS() != null) {
+            return left.getS().compareTo(right.getS());
+        }
+        if (left.getB() != null && right.getB() != null) {
+            return left.getB().compareTo(right.getB());
+        }
+        // Values of different types are never equal and cannot be ordered
+        return left.equals(right) ? 0 : INCOMPARABLE;
+    }
+
+    static Map<String, AttributeValue> selectAttributes(Map<String, AttributeValue> item, Set<String> names) {
+        Map<String, AttributeValue> selected = new HashMap<String, AttributeValue>(names.size());
+        for (String name : names) {
+            AttributeValue value = item.get(name);
+            if (value != null) {
+                selected.put(name, InMemoryDynamoDB.copyValue(value));
+            }
+        }
+        return selected;
+    }
+
+}
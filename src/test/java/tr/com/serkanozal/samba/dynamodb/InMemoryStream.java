@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2016, Serkan OZAL, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tr.com.serkanozal.samba.dynamodb;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.SequenceNumberRange;
+import com.amazonaws.services.dynamodbv2.model.Shard;
+import com.amazonaws.services.dynamodbv2.model.StreamRecord;
+
+/**
+ * Bounded in-memory change stream of an {@link InMemoryDynamoDB} table.
+ *
+ * Records are appended to the only open shard. Once the open shard has the configured number of records,
+ * it is closed and a child shard is opened, just like DynamoDB rolls shards over,
+ * so consumers have to follow the shard lineage.
+ */
+final class InMemoryStream {
+
+    private static final int MAX_RETAINED_RECORD_COUNT = 100000;
+
+    final String streamArn;
+    private final LinkedList<InMemoryShard> shards = new LinkedList<InMemoryShard>();
+    private long nextSequenceNumber = 1;
+    private int nextShardIndex = 1;
+    private int retainedRecordCount;
+
+    InMemoryStream(String streamArn) {
+        this.streamArn = streamArn;
+        openShard(null);
+    }
+
+    static String formatSequenceNumber(long sequenceNumber) {
+        return String.format("%021d", sequenceNumber);
+    }
+
+    private InMemoryShard openShard(String parentShardId) {
+        InMemoryShard shard =
+                new InMemoryShard(
+                        String.format("shardId-%020d", nextShardIndex++),
+                        parentShardId,
+                        nextSequenceNumber);
+        shards.addLast(shard);
+        return shard;
+    }
+
+    synchronized void append(String eventName, StreamRecord streamRecord, int maxShardRecordCount) {
+        InMemoryShard shard = shards.getLast();
+        if (shard.appendedRecordCount >= maxShardRecordCount) {
+            shard.endingSequenceNumber = nextSequenceNumber - 1;
+            shard = openShard(shard.shardId);
+        }
+        long sequenceNumber = nextSequenceNumber++;
+        streamRecord.setSequenceNumber(formatSequenceNumber(sequenceNumber));
+        shard.records.addLast(
+                new Record().
+                        withEventID(UUID.randomUUID().toString()).
+                        withEventName(eventName).
+                        withEventSource("aws:dynamodb").
+                        withEventVersion("1.1").
+                        withAwsRegion("local").
+                        withDynamodb(streamRecord));
+        shard.appendedRecordCount++;
+        if (++retainedRecordCount > MAX_RETAINED_RECORD_COUNT) {
+            InMemoryShard oldestShard = shards.getFirst();
+            oldestShard.records.removeFirst();
+            retainedRecordCount--;
+            // Closed shards are gone once all their records are trimmed
+            if (oldestShard.records.isEmpty() && oldestShard.isClosed()) {
+                shards.removeFirst();
+            }
+        }
+    }
+
+    synchronized List<Shard> describeShards() {
+        List<Shard> result = new ArrayList<Shard>(shards.size());
+        for (InMemoryShard shard : shards) {
+            SequenceNumberRange sequenceNumberRange =
+                    new SequenceNumberRange().
+                            withStartingSequenceNumber(formatSequenceNumber(shard.firstSequenceNumber()));
+            if (shard.isClosed()) {
+                sequenceNumberRange.setEndingSequenceNumber(formatSequenceNumber(shard.endingSequenceNumber));
+            }
+            result.add(
+                    new Shard().
+                            withShardId(shard.shardId).
+                            withParentShardId(shard.parentShardId).
+                            withSequenceNumberRange(sequenceNumberRange));
+        }
+        return result;
+    }
+
+    private InMemoryShard findShard(String shardId) {
+        for (InMemoryShard shard : shards) {
+            if (shard.shardId.equals(shardId)) {
+                return shard;
+            }
+        }
+        throw new ResourceNotFoundException("Requested resource not found: Shard: " + shardId + " not found");
+    }
+
+    synchronized long firstSequenceNumber(String shardId) {
+        return findShard(shardId).firstSequenceNumber();
+    }
+
+    synchronized long latestSequenceNumber(String shardId) {
+        InMemoryShard shard = findShard(shardId);
+        return shard.isClosed() ? shard.endingSequenceNumber + 1 : nextSequenceNumber;
+    }
+
+    /**
+     * Reads records of the given shard starting from the given sequence number.
+     *
+     * @return the read records or <code>null</code> if the shard is closed and there is no record to read anymore
+     */
+    synchronized List<Record> read(String shardId, long fromSequenceNumber, int limit) {
+        InMemoryShard shard = findShard(shardId);
+        if (shard.isClosed() && fromSequenceNumber > shard.endingSequenceNumber) {
+            return null;
+        }
+        List<Record> result = new ArrayList<Record>();
+        for (Record record : shard.records) {
+            long sequenceNumber = Long.parseLong(record.getDynamodb().getSequenceNumber());
+            if (sequenceNumber >= fromSequenceNumber) {
+                result.add(record.clone());
+                if (result.size() >= limit) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static final class InMemoryShard {
+
+        private final String shardId;
+        private final String parentShardId;
+        private final long startingSequenceNumber;
+        private final LinkedList<Record> records = new LinkedList<Record>();
+        private int appendedRecordCount;
+        private long endingSequenceNumber = -1;
+
+        private InMemoryShard(String shardId, String parentShardId, long startingSequenceNumber) {
+            this.shardId = shardId;
+            this.parentShardId = parentShardId;
+            this.startingSequenceNumber = startingSequenceNumber;
+        }
+
+        private boolean isClosed() {
+            return endingSequenceNumber >= 0;
+        }
+
+        private long firstSequenceNumber() {
+            if (records.isEmpty()) {
+                return isClosed() ? endingSequenceNumber + 1 : startingSequenceNumber;
+            }
+            return Long.parseLong(records.getFirst().getDynamodb().getSequenceNumber());
+        }
+
+    }
+
+}